@@ -0,0 +1,312 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloudypeer.utils.BoundedExecutor;
+
+/**
+ * Asynchronous facade of a StorageCloud. <br>
+ * Every operation is run on an I/O executor and immediately returns a Future of its result;
+ * errors are raised by <code>Future.get()</code> wrapped in an ExecutionException. The executor
+ * is bounded and may be shared by several clouds, while the number of operations concurrently
+ * running on each cloud is limited separately, so that a slow cloud can't take all the I/O
+ * threads. Operations exceeding the limit are queued without blocking the caller.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class AsyncStorageCloud {
+
+  public static int DEFAULT_IO_THREADS = 32;
+  public static int DEFAULT_MAX_CONCURRENCY = 8;
+
+  private static ExecutorService defaultExecutor = null;
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private StorageCloud cloud;
+  private BoundedExecutor executor;
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>AsyncStorageCloud</code> instance running on the shared I/O executor
+   * with at most {@value #DEFAULT_MAX_CONCURRENCY} concurrent operations.
+   *
+   * @param cloud Wrapped cloud
+   */
+  public AsyncStorageCloud(StorageCloud cloud) {
+    this(cloud, getDefaultExecutor(), DEFAULT_MAX_CONCURRENCY);
+  }
+
+  /**
+   * Creates a new <code>AsyncStorageCloud</code> instance.
+   *
+   * @param cloud Wrapped cloud
+   * @param executor Executor running the operations
+   * @param maxConcurrency Maximum number of operations running at once on this cloud
+   */
+  public AsyncStorageCloud(StorageCloud cloud, ExecutorService executor, int maxConcurrency) {
+    if (cloud == null) throw new IllegalArgumentException("Null storage cloud");
+
+    this.cloud = cloud;
+    this.executor = new BoundedExecutor(executor, maxConcurrency);
+  }
+
+  /**
+   * Creates a bounded executor suitable for cloud I/O. Its threads are daemon threads.
+   *
+   * @param threads Number of threads
+   * @return New executor
+   */
+  public static ExecutorService newIOExecutor(int threads) {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "StorageCloud-io-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  }
+
+  /**
+   * Returns the I/O executor shared by default, created on first use with
+   * {@link #DEFAULT_IO_THREADS} threads.
+   *
+   * @return Shared I/O executor
+   */
+  public static synchronized ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) defaultExecutor = newIOExecutor(DEFAULT_IO_THREADS);
+    return defaultExecutor;
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the wrapped cloud.
+   *
+   * @return Storage cloud
+   */
+  public StorageCloud getStorageCloud() {
+    return cloud;
+  }
+
+  /**
+   * Returns the maximum number of operations running at once on this cloud.
+   *
+   * @return Concurrency limit
+   */
+  public int getMaxConcurrency() {
+    return executor.getMaxConcurrency();
+  }
+
+  /**
+   * Sets the maximum number of operations running at once on this cloud.
+   *
+   * @param maxConcurrency Concurrency limit
+   */
+  public void setMaxConcurrency(int maxConcurrency) {
+    executor.setMaxConcurrency(maxConcurrency);
+  }
+
+  /**
+   * Returns the number of operations currently running.
+   *
+   * @return Running operations
+   */
+  public int getActive() {
+    return executor.getActive();
+  }
+
+  /**
+   * Returns the number of operations waiting to run.
+   *
+   * @return Queued operations
+   */
+  public int getQueued() {
+    return executor.getQueued();
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Runs the specified operation on this cloud, respecting its concurrency limit. Useful to run
+   * sequences of calls (or custom operations) as a single asynchronous operation.
+   *
+   * @param operation Operation to run
+   * @return Future result of the operation
+   */
+  public <T> Future<T> submit(Callable<T> operation) {
+    FutureTask<T> task = new FutureTask<T>(operation);
+    executor.execute(task);
+    return task;
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#list}.
+   */
+  public Future<String[]> list(final Date timestamp, final String prefix) {
+    return submit(new Callable<String[]>() {
+        public String[] call() throws Exception {
+          return cloud.list(timestamp, prefix);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#listWithMetadata}.
+   */
+  public Future<Map<String, CloudMetadata>> listWithMetadata(final String prefix,
+                                                             final Date timestamp)
+  {
+    return submit(new Callable<Map<String, CloudMetadata>>() {
+        public Map<String, CloudMetadata> call() throws Exception {
+          return cloud.listWithMetadata(prefix, timestamp);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#get}.
+   */
+  public Future<CloudObject> get(final String key) {
+    return submit(new Callable<CloudObject>() {
+        public CloudObject call() throws Exception {
+          return cloud.get(key);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#get(String, long, long)}.
+   */
+  public Future<CloudObject> get(final String key, final long offset, final long length) {
+    return submit(new Callable<CloudObject>() {
+        public CloudObject call() throws Exception {
+          return cloud.get(key, offset, length);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#getAll}.
+   */
+  public Future<Map<String, CloudObject>> getAll(final Collection<String> keys) {
+    return submit(new Callable<Map<String, CloudObject>>() {
+        public Map<String, CloudObject> call() throws Exception {
+          return cloud.getAll(keys);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#getMetadata}.
+   */
+  public Future<CloudMetadata> getMetadata(final String key) {
+    return submit(new Callable<CloudMetadata>() {
+        public CloudMetadata call() throws Exception {
+          return cloud.getMetadata(key);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#getMetadataAll}.
+   */
+  public Future<Map<String, CloudMetadata>> getMetadataAll(final Collection<String> keys) {
+    return submit(new Callable<Map<String, CloudMetadata>>() {
+        public Map<String, CloudMetadata> call() throws Exception {
+          return cloud.getMetadataAll(keys);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#put}. The input stream is read by the I/O
+   * thread.
+   */
+  public Future<Void> put(final String key, final String contentType,
+                          final InputStream valueInputStream,
+                          final Map<String, String> userMetadata)
+  {
+    return submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.put(key, contentType, valueInputStream, userMetadata);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#putAll}.
+   */
+  public Future<Void> putAll(final CloudPutRequest requests[]) {
+    return submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.putAll(requests);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#putAllConditional}.
+   */
+  public Future<CloudPutRequest.Result[]> putAllConditional(final CloudPutRequest requests[]) {
+    return submit(new Callable<CloudPutRequest.Result[]>() {
+        public CloudPutRequest.Result[] call() throws Exception {
+          return cloud.putAllConditional(requests);
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#putMetadata}.
+   */
+  public Future<Void> putMetadata(final String key, final String contentType,
+                                  final Map<String, String> userMetadata)
+  {
+    return submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.putMetadata(key, contentType, userMetadata);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Asynchronous version of {@link StorageCloud#remove}.
+   */
+  public Future<Void> remove(final String key) {
+    return submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.remove(key);
+          return null;
+        }
+      });
+  }
+}
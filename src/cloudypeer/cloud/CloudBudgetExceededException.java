@@ -0,0 +1,53 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud;
+
+/**
+ * Exception raised by a {@link MeteredStorageCloud} when an operation would exceed the budget of
+ * the current window. The operation is not performed and can be retried once the window ends.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CloudBudgetExceededException extends CloudException {
+
+  private long retryAfter;
+
+  /**
+   * Creates a new <code>CloudBudgetExceededException</code> instance.
+   *
+   * @param message Error message
+   * @param retryAfter Milliseconds until the end of the budget window
+   */
+  public CloudBudgetExceededException(String message, long retryAfter) {
+    super(message);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Returns the time left until the budget window ends.
+   *
+   * @return Milliseconds until the budget is replenished
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Looks for a budget exception in the cause chain of the specified error. Store layers wrap
+   * cloud errors, so callers wanting to tell a deferred operation from a failure use this.
+   *
+   * @param e Error to inspect
+   * @return The budget exception causing the error, or null if it's not caused by the budget
+   */
+  public static CloudBudgetExceededException find(Throwable e) {
+    while (e != null) {
+      if (e instanceof CloudBudgetExceededException) return (CloudBudgetExceededException) e;
+      e = e.getCause();
+    }
+    return null;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud;
+
+import java.util.Date;
+
+/**
+ * Entry of a cloud change feed: describes a single modification of a key.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CloudChange {
+
+  /**
+   * Kind of modification
+   */
+  public enum Type {
+    /**
+     * The key value (and metadata) was written
+     */
+    PUT,
+
+    /**
+     * Only the key metadata was written
+     */
+    METADATA,
+
+    /**
+     * The key was removed
+     */
+    REMOVE
+  }
+
+  private long sequence;
+  private String key;
+  private Type type;
+  private Date timestamp;
+
+  /**
+   * Creates a new <code>CloudChange</code> instance.
+   *
+   * @param sequence Sequence number of the change
+   * @param key Modified key
+   * @param type Kind of modification
+   * @param timestamp Modification date
+   */
+  public CloudChange(long sequence, String key, Type type, Date timestamp) {
+    if (key == null) throw new IllegalArgumentException("Null key");
+    if (type == null) throw new IllegalArgumentException("Null change type");
+
+    this.sequence = sequence;
+    this.key = key;
+    this.type = type;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Returns the sequence number of the change. Sequence numbers increase with the order in which
+   * changes are recorded.
+   *
+   * @return Sequence number
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Returns the modified key.
+   *
+   * @return Key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the kind of modification.
+   *
+   * @return Change type
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the modification date.
+   *
+   * @return Modification date
+   */
+  public Date getTimestamp() {
+    return timestamp;
+  }
+
+  public String toString() {
+    return sequence + ":" + type + ":" + key;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Simple container describing a single put operation of a batch write. <br>
+ * A request may carry the MD5 of its content, computed by the client, and the version the
+ * object is expected to have: in that case it's a conditional put (see
+ * {@link StorageCloud#putAllConditional}).
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CloudPutRequest {
+
+  /**
+   * Outcome of a conditional put
+   */
+  public enum Result {
+    /**
+     * The content was uploaded
+     */
+    UPLOADED,
+
+    /**
+     * The cloud already held the same content: only the metadata were updated
+     */
+    UNCHANGED,
+
+    /**
+     * The object didn't have the expected version: nothing was written
+     */
+    REJECTED
+  }
+
+  private String key;
+  private String contentType;
+  private InputStream valueInputStream;
+  private Map<String, String> userMetadata;
+  private String contentMD5 = null;
+  private boolean versionChecked = false;
+  private String expectedMD5 = null;
+
+  /**
+   * Creates a new <code>CloudPutRequest</code> instance.
+   *
+   * @param key Key to update
+   * @param contentType Content type of the object
+   * @param valueInputStream The input stream from which read the value
+   * @param userMetadata The user metadata to associate to the key or null if not used
+   */
+  public CloudPutRequest(String key, String contentType, InputStream valueInputStream,
+                         Map<String, String> userMetadata)
+  {
+    if (key == null) throw new IllegalArgumentException("Null key");
+    if (valueInputStream == null) throw new IllegalArgumentException("Null value input stream");
+
+    this.key = key;
+    this.contentType = contentType;
+    this.valueInputStream = valueInputStream;
+    this.userMetadata = userMetadata;
+  }
+
+  /**
+   * Creates a new <code>CloudPutRequest</code> instance skipping the upload if the cloud already
+   * holds the same content.
+   *
+   * @param key Key to update
+   * @param contentType Content type of the object
+   * @param valueInputStream The input stream from which read the value
+   * @param userMetadata The user metadata to associate to the key or null if not used
+   * @param contentMD5 MD5 hash of the content, or null if unknown
+   */
+  public CloudPutRequest(String key, String contentType, InputStream valueInputStream,
+                         Map<String, String> userMetadata, String contentMD5)
+  {
+    this(key, contentType, valueInputStream, userMetadata);
+    this.contentMD5 = contentMD5;
+  }
+
+  /**
+   * Creates a new <code>CloudPutRequest</code> instance writing the object only if its current
+   * version is the expected one. The version of an object is identified by its content MD5.
+   *
+   * @param key Key to update
+   * @param contentType Content type of the object
+   * @param valueInputStream The input stream from which read the value
+   * @param userMetadata The user metadata to associate to the key or null if not used
+   * @param contentMD5 MD5 hash of the content, or null if unknown
+   * @param expectedMD5 MD5 hash of the current content, or null if the key is expected to be
+   * absent
+   */
+  public CloudPutRequest(String key, String contentType, InputStream valueInputStream,
+                         Map<String, String> userMetadata, String contentMD5, String expectedMD5)
+  {
+    this(key, contentType, valueInputStream, userMetadata, contentMD5);
+    this.versionChecked = true;
+    this.expectedMD5 = expectedMD5;
+  }
+
+  /**
+   * Returns the key to update.
+   *
+   * @return Object's key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the content type of the object.
+   *
+   * @return Object's content type
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Returns the input stream from which read the value.
+   *
+   * @return Value input stream
+   */
+  public InputStream getInputStream() {
+    return valueInputStream;
+  }
+
+  /**
+   * Returns the user metadata to associate to the object.
+   *
+   * @return User metadata or null
+   */
+  public Map<String, String> getUserMetadata() {
+    return userMetadata;
+  }
+
+  /**
+   * Returns the MD5 hash of the content, as computed by the client.
+   *
+   * @return Content MD5 hash or null if unknown
+   */
+  public String getContentMD5() {
+    return contentMD5;
+  }
+
+  /**
+   * Checks if the current version of the object must be checked before writing it.
+   *
+   * @return True if the expected version must be checked
+   */
+  public boolean isVersionChecked() {
+    return versionChecked;
+  }
+
+  /**
+   * Returns the MD5 hash of the content the object is expected to have.
+   *
+   * @return Expected content MD5 hash, or null if the key is expected to be absent
+   */
+  public String getExpectedMD5() {
+    return expectedMD5;
+  }
+
+  /**
+   * Decides the outcome of this request given the current content of the object. If the cloud
+   * already holds the content of this request the upload is skipped, even if the object doesn't
+   * have the expected version.
+   *
+   * @param currentMD5 MD5 hash of the current content, or null if the key is absent
+   * @return Outcome of the request
+   */
+  public Result evaluate(String currentMD5) {
+    if (contentMD5 != null && contentMD5.equals(currentMD5)) return Result.UNCHANGED;
+    if (versionChecked) {
+      boolean expected = (expectedMD5 == null) ? currentMD5 == null : expectedMD5.equals(currentMD5);
+      if (!expected) return Result.REJECTED;
+    }
+    return Result.UPLOADED;
+  }
+}
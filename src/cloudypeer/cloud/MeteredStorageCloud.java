@@ -0,0 +1,645 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * StorageCloud decorator accounting the cost of the operations performed on the wrapped cloud
+ * and enforcing a budget on them. <br>
+ * <br>
+ * Operations are counted by class (lists, gets, puts and removes) as the cloud providers bill
+ * them: batch operations count one operation per key, and reads of the change feed count as
+ * lists. Bytes are counted as the value streams are consumed. Usage is accumulated in three
+ * scopes:
+ * <ul>
+ *   <li><b>total</b>: since the cloud was created;</li>
+ *   <li><b>cycle</b>: since the last call to {@link #startCycle}, which the caller invokes at the
+ *   beginning of each synchronization with the cloud;</li>
+ *   <li><b>window</b>: since the beginning of the current budget window.</li>
+ * </ul>
+ * If a budget is set, an operation which would exceed the operations allowed in the window, or
+ * started once the allowed bytes have been transferred, is not performed and raises a
+ * {@link CloudBudgetExceededException}. Bytes are counted after the fact, so a window may exceed
+ * its byte budget by the size of the objects being transferred when the budget ran out. <br>
+ * Usage is per instance: each peer wraps its own cloud, and may export the counters through JMX
+ * under its own name with {@link #registerMBean}.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MeteredStorageCloud extends StorageCloud implements MeteredStorageCloudMBean {
+
+  public static int DEFAULT_BUDGET_WINDOW = 3600;
+  public static long DEFAULT_MAX_OPERATIONS = 0;
+  public static long DEFAULT_MAX_BYTES = 0;
+
+  public static final String MBEAN_DOMAIN = "cloudypeer";
+
+  private static final int LIST = 0;
+  private static final int GET = 1;
+  private static final int PUT = 2;
+  private static final int REMOVE = 3;
+  private static final int BYTES_READ = 4;
+  private static final int BYTES_WRITTEN = 5;
+  private static final int COUNTERS = 6;
+
+  /**
+   * Snapshot of the usage accounted in a scope.
+   */
+  public static class Usage {
+    private long counters[] = new long[COUNTERS];
+
+    private Usage(AtomicLongArray counters) {
+      for (int i = 0; i < COUNTERS; i++) this.counters[i] = counters.get(i);
+    }
+
+    public long getLists() {
+      return counters[LIST];
+    }
+
+    public long getGets() {
+      return counters[GET];
+    }
+
+    public long getPuts() {
+      return counters[PUT];
+    }
+
+    public long getRemoves() {
+      return counters[REMOVE];
+    }
+
+    /**
+     * Returns the number of operations of all classes.
+     *
+     * @return Operations performed
+     */
+    public long getOperations() {
+      return counters[LIST] + counters[GET] + counters[PUT] + counters[REMOVE];
+    }
+
+    public long getBytesRead() {
+      return counters[BYTES_READ];
+    }
+
+    public long getBytesWritten() {
+      return counters[BYTES_WRITTEN];
+    }
+
+    public String toString() {
+      return String.format("%d lists, %d gets, %d puts, %d removes, %d bytes read, " +
+                           "%d bytes written", getLists(), getGets(), getPuts(), getRemoves(),
+                           getBytesRead(), getBytesWritten());
+    }
+  }
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private StorageCloud cloud;
+
+  private AtomicLongArray total = new AtomicLongArray(COUNTERS);
+  private volatile AtomicLongArray cycle = new AtomicLongArray(COUNTERS);
+  private volatile AtomicLongArray window = new AtomicLongArray(COUNTERS);
+  private AtomicLong cycles = new AtomicLong();
+  private AtomicLong budgetExceeded = new AtomicLong();
+
+  /**
+   * Beginning of the current budget window
+   */
+  private long windowStart = System.currentTimeMillis();
+
+  private volatile int budgetWindow = DEFAULT_BUDGET_WINDOW * 1000;
+  private volatile long maxOperations = DEFAULT_MAX_OPERATIONS;
+  private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>MeteredStorageCloud</code> instance with the default budget.
+   *
+   * @param cloud Wrapped cloud
+   */
+  public MeteredStorageCloud(StorageCloud cloud) {
+    if (cloud == null) throw new IllegalArgumentException("Null storage cloud");
+
+    this.cloud = cloud;
+  }
+
+  /**
+   * Creates a new <code>MeteredStorageCloud</code> instance.
+   *
+   * @param cloud Wrapped cloud
+   * @param budgetWindow Length of the budget window in seconds
+   * @param maxOperations Operations allowed in each window, or 0 for no limit
+   * @param maxBytes Bytes transferred in each window, or 0 for no limit
+   */
+  public MeteredStorageCloud(StorageCloud cloud, int budgetWindow, long maxOperations,
+                             long maxBytes)
+  {
+    this(cloud);
+    setBudgetWindow(budgetWindow);
+    setMaxOperations(maxOperations);
+    setMaxBytes(maxBytes);
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the wrapped cloud.
+   *
+   * @return Storage cloud
+   */
+  public StorageCloud getStorageCloud() {
+    return cloud;
+  }
+
+  /**
+   * Returns the length of the budget window.
+   *
+   * @return Budget window in seconds
+   */
+  public int getBudgetWindow() {
+    return budgetWindow / 1000;
+  }
+
+  /**
+   * Sets the length of the budget window. The default value is {@value #DEFAULT_BUDGET_WINDOW}.
+   *
+   * @param seconds Budget window in seconds
+   */
+  public void setBudgetWindow(int seconds) {
+    if (seconds <= 0) throw new IllegalArgumentException("Budget window must be positive");
+    this.budgetWindow = seconds * 1000;
+  }
+
+  public long getMaxOperations() {
+    return maxOperations;
+  }
+
+  /**
+   * Sets the number of operations allowed in each budget window.
+   *
+   * @param maxOperations Operations allowed, or 0 for no limit
+   */
+  public void setMaxOperations(long maxOperations) {
+    this.maxOperations = Math.max(0, maxOperations);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Sets the number of bytes which can be transferred (in either direction) in each budget
+   * window.
+   *
+   * @param maxBytes Bytes allowed, or 0 for no limit
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Returns the usage since the cloud was created.
+   *
+   * @return Total usage
+   */
+  public Usage getTotalUsage() {
+    return new Usage(total);
+  }
+
+  /**
+   * Returns the usage since the beginning of the current cycle.
+   *
+   * @return Cycle usage
+   */
+  public Usage getCycleUsage() {
+    return new Usage(cycle);
+  }
+
+  /**
+   * Returns the usage of the current budget window.
+   *
+   * @return Window usage
+   */
+  public synchronized Usage getWindowUsage() {
+    return new Usage(currentWindow());
+  }
+
+  /**
+   * Checks whether the budget of the current window is exhausted, in which case every operation
+   * raises a CloudBudgetExceededException until the window ends.
+   *
+   * @return True if no operation can be performed
+   */
+  public synchronized boolean isOverBudget() {
+    AtomicLongArray w = currentWindow();
+    return (maxOperations > 0 && operations(w) >= maxOperations) ||
+      (maxBytes > 0 && bytes(w) >= maxBytes);
+  }
+
+  /**
+   * Returns the number of operations that can still be performed in the current window.
+   *
+   * @return Remaining operations, or Long.MAX_VALUE if not limited
+   */
+  public synchronized long getRemainingOperations() {
+    if (maxOperations == 0) return Long.MAX_VALUE;
+    return Math.max(0, maxOperations - operations(currentWindow()));
+  }
+
+  /* MBean attributes */
+
+  public long getLists() {
+    return total.get(LIST);
+  }
+
+  public long getGets() {
+    return total.get(GET);
+  }
+
+  public long getPuts() {
+    return total.get(PUT);
+  }
+
+  public long getRemoves() {
+    return total.get(REMOVE);
+  }
+
+  public long getBytesRead() {
+    return total.get(BYTES_READ);
+  }
+
+  public long getBytesWritten() {
+    return total.get(BYTES_WRITTEN);
+  }
+
+  public long getCycleOperations() {
+    return operations(cycle);
+  }
+
+  public long getCycleBytes() {
+    return bytes(cycle);
+  }
+
+  public long getCycles() {
+    return cycles.get();
+  }
+
+  public synchronized long getWindowOperations() {
+    return operations(currentWindow());
+  }
+
+  public synchronized long getWindowBytes() {
+    return bytes(currentWindow());
+  }
+
+  /**
+   * Returns the number of operations refused because of the budget.
+   *
+   * @return Refused operations
+   */
+  public long getBudgetExceeded() {
+    return budgetExceeded.get();
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Starts a new accounting cycle.
+   *
+   * @return Usage of the cycle just ended
+   */
+  public Usage startCycle() {
+    AtomicLongArray ended = cycle;
+    cycle = new AtomicLongArray(COUNTERS);
+    cycles.incrementAndGet();
+    return new Usage(ended);
+  }
+
+  /**
+   * Registers this cloud on the platform MBean server, under
+   * <code>cloudypeer:type=MeteredStorageCloud,name=&lt;name&gt;</code>.
+   *
+   * @param name Name distinguishing this cloud, e.g. the local peer
+   * @return Name of the registered MBean
+   * @exception JMException If the MBean cannot be registered
+   */
+  public ObjectName registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=MeteredStorageCloud,name=" +
+                                           ObjectName.quote(name));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(this, objectName);
+    return objectName;
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static long operations(AtomicLongArray counters) {
+    return counters.get(LIST) + counters.get(GET) + counters.get(PUT) + counters.get(REMOVE);
+  }
+
+  private static long bytes(AtomicLongArray counters) {
+    return counters.get(BYTES_READ) + counters.get(BYTES_WRITTEN);
+  }
+
+  /**
+   * Returns the counters of the current window, starting a new one if it has ended. Must be
+   * called holding the lock.
+   */
+  private AtomicLongArray currentWindow() {
+    long now = System.currentTimeMillis();
+    if (now - windowStart >= budgetWindow) {
+      windowStart = now - (now - windowStart) % budgetWindow;
+      window = new AtomicLongArray(COUNTERS);
+    }
+    return window;
+  }
+
+  /**
+   * Accounts operations about to be performed, refusing them if they would exceed the budget.
+   */
+  private synchronized void charge(int type, long count) {
+    AtomicLongArray w = currentWindow();
+    String exceeded = null;
+    if (maxOperations > 0 && operations(w) + count > maxOperations)
+      exceeded = String.format("operation budget exhausted (%d of %d used)", operations(w),
+                               maxOperations);
+    else if (maxBytes > 0 && bytes(w) >= maxBytes)
+      exceeded = String.format("byte budget exhausted (%d of %d used)", bytes(w), maxBytes);
+
+    if (exceeded != null) {
+      budgetExceeded.incrementAndGet();
+      long retryAfter = windowStart + budgetWindow - System.currentTimeMillis();
+      throw new CloudBudgetExceededException("Cloud " + cloud.getCloudURI().getURI() + ": " +
+                                             exceeded, retryAfter);
+    }
+
+    total.addAndGet(type, count);
+    cycle.addAndGet(type, count);
+    w.addAndGet(type, count);
+  }
+
+  private void count(int type, long count) {
+    total.addAndGet(type, count);
+    cycle.addAndGet(type, count);
+    window.addAndGet(type, count);
+  }
+
+  /**
+   * Input stream counting the bytes transferred.
+   */
+  private class MeteredInputStream extends FilterInputStream {
+    private int type;
+
+    MeteredInputStream(InputStream in, int type) {
+      super(in);
+      this.type = type;
+    }
+
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) count(type, 1);
+      return b;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) count(type, read);
+      return read;
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      if (skipped > 0) count(type, skipped);
+      return skipped;
+    }
+  }
+
+  private CloudObject metered(final CloudObject obj) {
+    if (obj == null) return null;
+
+    final InputStream in = (obj.getInputStream() != null) ?
+      new MeteredInputStream(obj.getInputStream(), BYTES_READ) : null;
+    return new CloudObject() {
+      public CloudURI getCloudURI() {
+        return obj.getCloudURI();
+      }
+
+      public String getKey() {
+        return obj.getKey();
+      }
+
+      public CloudMetadata getMetadata() {
+        return obj.getMetadata();
+      }
+
+      public InputStream getInputStream() {
+        return in;
+      }
+    };
+  }
+
+  private InputStream uploaded(InputStream in) {
+    return (in != null) ? new MeteredInputStream(in, BYTES_WRITTEN) : null;
+  }
+
+  private CloudPutRequest metered(CloudPutRequest r) {
+    InputStream in = uploaded(r.getInputStream());
+    if (r.isVersionChecked())
+      return new CloudPutRequest(r.getKey(), r.getContentType(), in, r.getUserMetadata(),
+                                 r.getContentMD5(), r.getExpectedMD5());
+    return new CloudPutRequest(r.getKey(), r.getContentType(), in, r.getUserMetadata(),
+                               r.getContentMD5());
+  }
+
+  private CloudPutRequest[] metered(CloudPutRequest requests[]) {
+    CloudPutRequest result[] = new CloudPutRequest[requests.length];
+    for (int i = 0; i < requests.length; i++) result[i] = metered(requests[i]);
+    return result;
+  }
+
+  /* *********************************************************************
+   * StorageCloud methods
+   ***********************************************************************/
+
+  public CloudURI getCloudURI() {
+    return cloud.getCloudURI();
+  }
+
+  public boolean supportsListByDate() {
+    return cloud.supportsListByDate();
+  }
+
+  public boolean supportsListByPrefix() {
+    return cloud.supportsListByPrefix();
+  }
+
+  public String[] list(Date timestamp, String prefix) throws IOException, CloudException {
+    charge(LIST, 1);
+    return cloud.list(timestamp, prefix);
+  }
+
+  /**
+   * Counts a list operation for each page of keys fetched.
+   */
+  public Iterator<String> listIterator(Date timestamp, String prefix, final int pageSize)
+    throws IOException, CloudException
+  {
+    charge(LIST, 1);
+    final Iterator<String> it = cloud.listIterator(timestamp, prefix, pageSize);
+    return new Iterator<String>() {
+      private int returned = 0;
+
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      public String next() {
+        if (returned > 0 && returned % pageSize == 0) charge(LIST, 1);
+        String key = it.next();
+        returned++;
+        return key;
+      }
+
+      public void remove() {
+        it.remove();
+      }
+    };
+  }
+
+  public CloudObject get(String key) throws IOException, CloudException {
+    charge(GET, 1);
+    return metered(cloud.get(key));
+  }
+
+  public CloudObject get(String key, long offset, long length) throws IOException, CloudException {
+    charge(GET, 1);
+    return metered(cloud.get(key, offset, length));
+  }
+
+  public Map<String, CloudObject> getAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    charge(GET, keys.size());
+    Map<String, CloudObject> objects = cloud.getAll(keys);
+    HashMap<String, CloudObject> result = new HashMap<String, CloudObject>(objects.size() * 2);
+    for (Map.Entry<String, CloudObject> e: objects.entrySet())
+      result.put(e.getKey(), metered(e.getValue()));
+    return result;
+  }
+
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    charge(GET, 1);
+    return cloud.getMetadata(key);
+  }
+
+  public Map<String, CloudMetadata> getMetadataAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    charge(GET, keys.size());
+    return cloud.getMetadataAll(keys);
+  }
+
+  public Map<String, CloudMetadata> listWithMetadata(String prefix, Date timestamp)
+    throws IOException, CloudException
+  {
+    charge(LIST, 1);
+    return cloud.listWithMetadata(prefix, timestamp);
+  }
+
+  public void put(String key, String contentType, InputStream valueInputStream, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    charge(PUT, 1);
+    cloud.put(key, contentType, uploaded(valueInputStream), userMetadata);
+  }
+
+  public void putAll(CloudPutRequest requests[]) throws IOException, CloudException {
+    charge(PUT, requests.length);
+    cloud.putAll(metered(requests));
+  }
+
+  public boolean putIfChanged(String key, String contentType, InputStream valueInputStream,
+                              String contentMD5, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    charge(PUT, 1);
+    return cloud.putIfChanged(key, contentType, uploaded(valueInputStream), contentMD5,
+                              userMetadata);
+  }
+
+  public boolean putIfVersion(String key, String contentType, InputStream valueInputStream,
+                              String contentMD5, Map<String, String> userMetadata,
+                              String expectedMD5)
+    throws IOException, CloudException
+  {
+    charge(PUT, 1);
+    return cloud.putIfVersion(key, contentType, uploaded(valueInputStream), contentMD5,
+                              userMetadata, expectedMD5);
+  }
+
+  public CloudPutRequest.Result[] putAllConditional(CloudPutRequest requests[])
+    throws IOException, CloudException
+  {
+    charge(PUT, requests.length);
+    return cloud.putAllConditional(metered(requests));
+  }
+
+  public long getAvoidedUploads() {
+    return cloud.getAvoidedUploads();
+  }
+
+  public void putMetadata(String key, String contentType, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    charge(PUT, 1);
+    cloud.putMetadata(key, contentType, userMetadata);
+  }
+
+  public void remove(String key) throws IOException, CloudException {
+    charge(REMOVE, 1);
+    cloud.remove(key);
+  }
+
+  public boolean supportsChangeFeed() {
+    return cloud.supportsChangeFeed();
+  }
+
+  public long getChangeSequence() throws IOException, CloudException {
+    charge(LIST, 1);
+    return cloud.getChangeSequence();
+  }
+
+  public CloudChange[] changesSince(long sequence, int limit) throws IOException, CloudException {
+    charge(LIST, 1);
+    return cloud.changesSince(sequence, limit);
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud;
+
+/**
+ * Management interface of {@link MeteredStorageCloud}, exported through JMX by
+ * {@link MeteredStorageCloud#registerMBean}.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public interface MeteredStorageCloudMBean {
+
+  /* Totals since the cloud was created */
+  public long getLists();
+  public long getGets();
+  public long getPuts();
+  public long getRemoves();
+  public long getBytesRead();
+  public long getBytesWritten();
+
+  /* Usage of the current cycle */
+  public long getCycleOperations();
+  public long getCycleBytes();
+  public long getCycles();
+
+  /* Usage and limits of the current budget window */
+  public long getWindowOperations();
+  public long getWindowBytes();
+  public long getBudgetExceeded();
+  public boolean isOverBudget();
+
+  public int getBudgetWindow();
+  public void setBudgetWindow(int seconds);
+  public long getMaxOperations();
+  public void setMaxOperations(long maxOperations);
+  public long getMaxBytes();
+  public void setMaxBytes(long maxBytes);
+}
@@ -7,10 +7,16 @@ package cloudypeer.cloud;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cloudypeer.DynamicProviderHelper;
+import cloudypeer.utils.RangeInputStream;
 
 /**
  * This class defines standard methods to interact with a cloud storage provider and represent the
@@ -29,6 +35,11 @@ public abstract class StorageCloud {
   private static Map<String, Class<? extends StorageCloud>> storageCloudProviders =
     DynamicProviderHelper.loadProvidersConfiguration(StorageCloud.class, PROVIDERS_CONFIGURATION);
 
+  /**
+   * Number of conditional puts whose upload was skipped
+   */
+  private final AtomicLong avoidedUploads = new AtomicLong();
+
   /* *********************************************************************
    * Implementation of instantiation methods
    ***********************************************************************/
@@ -92,7 +103,7 @@ public abstract class StorageCloud {
    * Returns the object associated to this key on the cloud
    *
    * @param key The key to retrieve
-   * @return The CloudObject associated to the key
+   * @return The CloudObject associated to the key, or null if the key is not present
    * @exception IOException If an IO error occurs while handling the request
    * @exception CloudException If any other error occurs
    */
@@ -102,7 +113,7 @@ public abstract class StorageCloud {
    * Returns the metadata associated to this key on the cloud
    *
    * @param key The key to retrieve
-   * @return The CloudMetadata associated to the key
+   * @return The CloudMetadata associated to the key, or null if the key is not present
    * @exception IOException If an IO error occurs while handling the request
    * @exception CloudException If any other error occurs
    */
@@ -142,4 +153,366 @@ public abstract class StorageCloud {
    * @exception CloudException If any other error occurs
    */
   public abstract void remove(String key) throws IOException, CloudException;
+
+  /* *********************************************************************
+   * Methods with default implementation
+   ***********************************************************************/
+
+  /**
+   * Lazily iterates over the keys present on the cloud. Keys are fetched a page at a time so
+   * that the full listing is never materialized. If a filtering parameter is not supported by
+   * this cloud provider it will be ignored. <br>
+   * The default implementation wraps the array returned by {@link #list}. Errors occurring while
+   * fetching a page are raised as CloudException by the iterator methods.
+   *
+   * @param timestamp If not null, returns only keys fresher than the specified timestamp
+   * @param prefix If not null, returns only keys matching the prefix
+   * @param pageSize Number of keys fetched at once
+   * @return Iterator over the keys present on the cloud
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public Iterator<String> listIterator(Date timestamp, String prefix, int pageSize)
+    throws IOException, CloudException
+  {
+    return Arrays.asList(list(timestamp, prefix)).iterator();
+  }
+
+  /**
+   * Returns a range of the content of the object associated to this key on the cloud. The
+   * metadata of the returned object describe the whole object; if the range exceeds the end of
+   * the content only the available bytes are returned (none if the offset is past the end). <br>
+   * The default implementation retrieves the whole object and skips the bytes preceding the
+   * range. Providers able to transfer only the requested range should override this method.
+   *
+   * @param key The key to retrieve
+   * @param offset Index of the first byte to read
+   * @param length Maximum number of bytes to read
+   * @return The CloudObject associated to the key, or null if the key is not present
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public CloudObject get(String key, long offset, long length) throws IOException, CloudException {
+    checkRange(offset, length);
+
+    final CloudObject obj = get(key);
+    if (obj == null) return null;
+
+    final InputStream in = new RangeInputStream(obj.getInputStream(), offset, length);
+    return new CloudObject() {
+      public CloudURI getCloudURI() {
+        return obj.getCloudURI();
+      }
+
+      public String getKey() {
+        return obj.getKey();
+      }
+
+      public CloudMetadata getMetadata() {
+        return obj.getMetadata();
+      }
+
+      public InputStream getInputStream() {
+        return in;
+      }
+    };
+  }
+
+  /**
+   * Checks the arguments of a ranged get.
+   *
+   * @param offset Index of the first byte to read
+   * @param length Maximum number of bytes to read
+   * @exception IllegalArgumentException If the range is not valid
+   */
+  protected static void checkRange(long offset, long length) {
+    if (offset < 0) throw new IllegalArgumentException("Negative range offset");
+    if (length <= 0) throw new IllegalArgumentException("Range length must be positive");
+  }
+
+  /**
+   * Performs all the specified put operations. <br>
+   * The default implementation simply invokes {@link #put} for each request. Providers able to
+   * perform the whole batch in a single round trip (or transaction) should override this method.
+   * In that case either all the requests are applied or none is.
+   *
+   * @param requests Put operations to perform
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public void putAll(CloudPutRequest requests[]) throws IOException, CloudException {
+    for (CloudPutRequest r: requests) {
+      put(r.getKey(), r.getContentType(), r.getInputStream(), r.getUserMetadata());
+    }
+  }
+
+  /**
+   * Sets the value of the specified key unless the cloud already holds the same content, in
+   * which case the content isn't transferred and only the metadata are updated.
+   *
+   * @param key Key to update
+   * @param contentType Content type of this object
+   * @param valueInputStream The input stream from which read the value (not read if the upload
+   * is skipped)
+   * @param contentMD5 MD5 hash of the content, computed by the client
+   * @param userMetadata The user metadata to associate to the key or null if not used
+   * @return True if the content has been uploaded
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public boolean putIfChanged(String key, String contentType, InputStream valueInputStream,
+                              String contentMD5, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    CloudPutRequest.Result result;
+    result = conditionalPut(new CloudPutRequest(key, contentType, valueInputStream, userMetadata,
+                                                contentMD5));
+    countResult(result);
+    return result == CloudPutRequest.Result.UPLOADED;
+  }
+
+  /**
+   * Sets the value of the specified key only if the object currently has the expected version,
+   * identified by its content MD5. If the cloud already holds the same content the content isn't
+   * transferred and only the metadata are updated.
+   *
+   * @param key Key to update
+   * @param contentType Content type of this object
+   * @param valueInputStream The input stream from which read the value (not read if nothing is
+   * uploaded)
+   * @param contentMD5 MD5 hash of the content computed by the client, or null if unknown
+   * @param userMetadata The user metadata to associate to the key or null if not used
+   * @param expectedMD5 MD5 hash of the current content, or null if the key is expected to be
+   * absent
+   * @return False if the object didn't have the expected version and nothing was written
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public boolean putIfVersion(String key, String contentType, InputStream valueInputStream,
+                              String contentMD5, Map<String, String> userMetadata,
+                              String expectedMD5)
+    throws IOException, CloudException
+  {
+    CloudPutRequest.Result result;
+    result = conditionalPut(new CloudPutRequest(key, contentType, valueInputStream, userMetadata,
+                                                contentMD5, expectedMD5));
+    countResult(result);
+    return result != CloudPutRequest.Result.REJECTED;
+  }
+
+  /**
+   * Performs all the specified put operations, honoring the conditions of each request (see
+   * {@link CloudPutRequest#evaluate}). The input streams of the requests not uploaded are
+   * neither read nor closed.
+   *
+   * @param requests Put operations to perform
+   * @return Outcome of each request
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public CloudPutRequest.Result[] putAllConditional(CloudPutRequest requests[])
+    throws IOException, CloudException
+  {
+    CloudPutRequest.Result results[] = conditionalPutAll(requests);
+    for (CloudPutRequest.Result r: results) countResult(r);
+    return results;
+  }
+
+  /**
+   * Returns the number of conditional puts that didn't need to upload their content because the
+   * cloud already held it.
+   *
+   * @return Number of avoided uploads
+   */
+  public long getAvoidedUploads() {
+    return avoidedUploads.get();
+  }
+
+  private void countResult(CloudPutRequest.Result result) {
+    if (result == CloudPutRequest.Result.UNCHANGED) avoidedUploads.incrementAndGet();
+  }
+
+  /**
+   * Performs a conditional put. <br>
+   * The default implementation retrieves the current metadata and then performs either a put or
+   * a metadata update: the check and the write are not atomic. Providers able to perform them
+   * atomically should override this method.
+   *
+   * @param request Put operation to perform
+   * @return Outcome of the request
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  protected CloudPutRequest.Result conditionalPut(CloudPutRequest request)
+    throws IOException, CloudException
+  {
+    CloudMetadata meta = getMetadata(request.getKey());
+    CloudPutRequest.Result result = request.evaluate((meta != null) ? meta.getContentMD5() : null);
+
+    if (result == CloudPutRequest.Result.UPLOADED) {
+      put(request.getKey(), request.getContentType(), request.getInputStream(),
+          request.getUserMetadata());
+    } else if (result == CloudPutRequest.Result.UNCHANGED && !sameMetadata(meta, request)) {
+      putMetadata(request.getKey(), request.getContentType(), request.getUserMetadata());
+    }
+
+    return result;
+  }
+
+  /**
+   * Performs a batch of conditional puts. <br>
+   * The default implementation simply invokes {@link #conditionalPut} for each request.
+   * Providers able to perform the whole batch in a single round trip should override this
+   * method.
+   *
+   * @param requests Put operations to perform
+   * @return Outcome of each request
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  protected CloudPutRequest.Result[] conditionalPutAll(CloudPutRequest requests[])
+    throws IOException, CloudException
+  {
+    CloudPutRequest.Result results[] = new CloudPutRequest.Result[requests.length];
+    for (int i = 0; i < requests.length; i++) results[i] = conditionalPut(requests[i]);
+    return results;
+  }
+
+  /**
+   * Checks if a put request would leave the object metadata unchanged.
+   *
+   * @param meta Current object metadata
+   * @param request Put request
+   * @return True if content type and user metadata are the same
+   */
+  protected static boolean sameMetadata(CloudMetadata meta, CloudPutRequest request) {
+    String contentType = (request.getContentType() != null) ? request.getContentType() : "";
+    String current = (meta.getContentType() != null) ? meta.getContentType() : "";
+    if (!contentType.equals(current)) return false;
+
+    Map<String, String> userMetadata = request.getUserMetadata();
+    Map<String, String> currentUserMetadata = meta.getUserMetadata();
+    if (userMetadata == null || userMetadata.isEmpty())
+      return currentUserMetadata == null || currentUserMetadata.isEmpty();
+    return userMetadata.equals(currentUserMetadata);
+  }
+
+  /**
+   * Returns the objects associated to the specified keys. Keys not present on the cloud are
+   * omitted from the result. <br>
+   * The default implementation simply invokes {@link #get} for each key. Providers able to
+   * retrieve several objects in a single round trip should override this method; in that case
+   * the object contents may be buffered, so callers should request a bounded number of keys at
+   * once.
+   *
+   * @param keys Keys to retrieve
+   * @return Map of the keys present on the cloud to their objects
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public Map<String, CloudObject> getAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    HashMap<String, CloudObject> result = new HashMap<String, CloudObject>(keys.size() * 2);
+    CloudObject obj;
+
+    for (String key: keys) {
+      obj = get(key);
+      if (obj != null) result.put(key, obj);
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the metadata associated to the specified keys. Keys not present on the cloud are
+   * omitted from the result. <br>
+   * The default implementation simply invokes {@link #getMetadata} for each key. Providers able
+   * to retrieve several metadata in a single round trip should override this method.
+   *
+   * @param keys Keys to retrieve
+   * @return Map of the keys present on the cloud to their metadata
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public Map<String, CloudMetadata> getMetadataAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    HashMap<String, CloudMetadata> result = new HashMap<String, CloudMetadata>(keys.size() * 2);
+    CloudMetadata meta;
+
+    for (String key: keys) {
+      meta = getMetadata(key);
+      if (meta != null) result.put(key, meta);
+    }
+
+    return result;
+  }
+
+  /**
+   * Lists the keys present on the cloud together with their metadata. If a filtering parameter
+   * is not supported by this cloud provider it will be ignored. <br>
+   * The default implementation lists the keys and then retrieves the metadata of each one of
+   * them. Providers able to return the metadata along with the listing should override this
+   * method.
+   *
+   * @param prefix If not null, returns only keys matching the prefix
+   * @param timestamp If not null, returns only keys fresher than the specified timestamp
+   * @return Map of the keys present on the cloud to their metadata
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If any other error occurs
+   */
+  public Map<String, CloudMetadata> listWithMetadata(String prefix, Date timestamp)
+    throws IOException, CloudException
+  {
+    String keys[] = list(timestamp, prefix);
+    HashMap<String, CloudMetadata> result = new HashMap<String, CloudMetadata>(keys.length * 2);
+    CloudMetadata meta;
+
+    for (String key: keys) {
+      if (key == null) continue;
+      /* The key may have been removed in the meantime */
+      meta = getMetadata(key);
+      if (meta != null) result.put(key, meta);
+    }
+
+    return result;
+  }
+
+  /**
+   * Checks if this cloud implementation records a change feed (see {@link #changesSince}).
+   *
+   * @return True if the change feed is available
+   */
+  public boolean supportsChangeFeed() {
+    return false;
+  }
+
+  /**
+   * Returns the sequence number of the latest recorded change, or 0 if no change has been
+   * recorded yet. Changes recorded after this call have a greater sequence number.
+   *
+   * @return Latest change sequence number
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If the change feed is not supported or any other error occurs
+   */
+  public long getChangeSequence() throws IOException, CloudException {
+    throw new CloudException("Change feed not supported by " + getClass().getName());
+  }
+
+  /**
+   * Returns the changes recorded after the specified sequence number, in sequence order. <br>
+   * Sequence numbers are not guaranteed to be contiguous: a gap may be either a permanent hole
+   * (e.g. an aborted transaction) or a change not yet visible.
+   *
+   * @param sequence Sequence number of the last change already seen (0 to start from the
+   * beginning)
+   * @param limit Maximum number of changes to return
+   * @return Changes following the specified sequence number
+   * @exception IOException If an IO error occurs while handling the request
+   * @exception CloudException If the change feed is not supported or any other error occurs
+   */
+  public CloudChange[] changesSince(long sequence, int limit) throws IOException, CloudException {
+    throw new CloudException("Change feed not supported by " + getClass().getName());
+  }
 }
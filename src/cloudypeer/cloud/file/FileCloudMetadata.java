@@ -0,0 +1,83 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.file;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudMetadata;
+
+/**
+ * Implementation of CloudMetadata for the local filesystem cloud.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FileCloudMetadata implements CloudMetadata {
+
+  private long contentLength;
+  private long lastModified;
+  private String contentMD5;
+  private String contentType;
+  private Map<String, String> userMetadata;
+
+  /**
+   * Creates a new <code>FileCloudMetadata</code> instance.
+   *
+   * @param contentLength Object's content length
+   * @param lastModified Object's last modification date
+   * @param contentMD5 Object's MD5 hash
+   * @param contentType Object's content type
+   * @param userMetadata Object's user metadata or null
+   */
+  public FileCloudMetadata(long contentLength, Date lastModified, String contentMD5,
+                           String contentType, Map<String, String> userMetadata)
+  {
+    if (contentLength < 0) throw new IllegalArgumentException("Illegal content length");
+    if (lastModified == null) throw new IllegalArgumentException("Null modification date");
+    if (contentMD5 == null) throw new IllegalArgumentException("Null content MD5");
+
+    this.contentLength = contentLength;
+    this.lastModified = lastModified.getTime();
+    this.contentMD5 = contentMD5.toLowerCase().trim();
+    this.contentType = (contentType != null) ? contentType : "";
+    if (userMetadata == null || userMetadata.isEmpty())
+      this.userMetadata = Collections.emptyMap();
+    else
+      this.userMetadata = Collections.unmodifiableMap(new HashMap<String, String>(userMetadata));
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  public Date getLastModified() {
+    return new Date(lastModified);
+  }
+
+  public String getContentMD5() {
+    return contentMD5;
+  }
+
+  public Map<String, String> getUserMetadata() {
+    return userMetadata;
+  }
+
+  /**
+   * Not supported by the filesystem cloud
+   *
+   * @return null
+   */
+  public String getVersionID() {
+    return null;
+  }
+}
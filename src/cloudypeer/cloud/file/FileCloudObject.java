@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.file;
+
+import java.io.InputStream;
+
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * Implementation of CloudObject for the local filesystem cloud.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FileCloudObject implements CloudObject {
+
+  private FileCloudURI objectURI;
+  private InputStream in;
+  private FileCloudMetadata meta;
+
+  /**
+   * Creates a new <code>FileCloudObject</code> instance.
+   *
+   * @param objectURI URI of the object
+   * @param in Content input stream
+   * @param meta Object metadata
+   */
+  public FileCloudObject(FileCloudURI objectURI, InputStream in, FileCloudMetadata meta) {
+    if (objectURI == null) throw new IllegalArgumentException("Object URI not specified");
+    if (objectURI.getKey() == null) throw new IllegalArgumentException("Object key not specified!");
+
+    this.objectURI = objectURI;
+    this.in = in;
+    this.meta = meta;
+  }
+
+  public String getKey() {
+    return objectURI.getKey();
+  }
+
+  public final InputStream getInputStream() {
+    return in;
+  }
+
+  public final CloudURI getCloudURI() {
+    return objectURI;
+  }
+
+  public final CloudMetadata getMetadata() {
+    return meta;
+  }
+}
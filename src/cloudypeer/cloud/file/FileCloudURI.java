@@ -0,0 +1,56 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.file;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * CloudURI implementation for the local filesystem cloud. <br>
+ * The URI format is <code>file:///path/to/directory/bucket#key</code>: the last path component
+ * is the bucket, stored in a directory with the same name, and the optional fragment is the key
+ * (keys may contain slashes).
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FileCloudURI extends CloudURI {
+
+  public static String SCHEME = "file";
+
+  /**
+   * Creates a new <code>FileCloudURI</code> instance from an URI.
+   *
+   * @param cloudURI uri pointing to a cloud or cloud key.
+   */
+  public FileCloudURI(URI cloudURI) throws URISyntaxException {
+    if (!SCHEME.equals(cloudURI.getScheme()))
+      throw new IllegalArgumentException("Not a valid file cloud URI");
+
+    String path = cloudURI.getPath();
+    if (path == null || !path.startsWith("/"))
+      throw new IllegalArgumentException("URI path not absolute!");
+
+    while (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+    int slash = path.lastIndexOf('/');
+    String bucket = path.substring(slash + 1);
+    if (bucket.length() == 0) throw new IllegalArgumentException("Bucket not specified");
+
+    String directory = (slash > 0) ? path.substring(0, slash) : "/";
+    URI baseURI = new URI(SCHEME, null, directory, null);
+    initCloudURI(baseURI.normalize(), bucket, cloudURI.getFragment(), null);
+  }
+
+  public FileCloudURI(URI baseURI, String bucket, String key) throws URISyntaxException {
+    if (baseURI.getPath() == null || !baseURI.getPath().startsWith("/"))
+      throw new IllegalArgumentException("Path not absolute!");
+
+    URI finalBaseURI = new URI(SCHEME, null, baseURI.getPath(), null);
+    initCloudURI(finalBaseURI.normalize(), bucket, key, null);
+  }
+}
@@ -0,0 +1,602 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudPutRequest;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.utils.ByteBufferInputStream;
+import cloudypeer.utils.StripedLock;
+import org.apache.log4j.Logger;
+
+/**
+ * StorageCloud implementation storing objects on the local filesystem. <br>
+ * <br>
+ * The bucket is a directory. Each object is stored in a file named after the MD5 hash of its
+ * key, in a two level directory tree (<code>data/ab/cd/abcd...</code>) so that no directory
+ * grows too large. The object metadata (key included) are stored in a sidecar properties file
+ * with the <code>.meta</code> suffix. <br>
+ * Contents and metadata are written to temporary files and then renamed over the current ones,
+ * so readers never see a partially written object. The sidecar is renamed last: entries whose
+ * content doesn't match the sidecar length (e.g. after a crash between the two renames) are
+ * discarded on startup. <br>
+ * <br>
+ * All the metadata are kept in an in-memory index sorted by key, loaded from the sidecars on
+ * startup: listings and metadata requests never touch the disk. Object contents are returned
+ * as memory mapped streams. On platforms not allowing to replace or delete a mapped file (i.e.
+ * Windows) objects can't be overwritten while a stream returned for them is reachable.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FileStorageCloud extends StorageCloud {
+
+  static Logger logger = Logger.getLogger(FileStorageCloud.class);
+
+  protected static String DATA_DIRECTORY = "data";
+  protected static String TEMP_DIRECTORY = "tmp";
+  protected static String METADATA_SUFFIX = ".meta";
+
+  protected static String PROPERTY_KEY = "key";
+  protected static String PROPERTY_LAST_MODIFIED = "lastModified";
+  protected static String PROPERTY_CONTENT_LENGTH = "contentLength";
+  protected static String PROPERTY_CONTENT_MD5 = "contentMD5";
+  protected static String PROPERTY_CONTENT_TYPE = "contentType";
+  protected static String PROPERTY_USER_PREFIX = "user.";
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private FileCloudURI fileCloudURI;
+  private File root;
+  private File dataDirectory;
+  private File tempDirectory;
+
+  /**
+   * Metadata of all the objects, sorted by key
+   */
+  private TreeMap<String, FileCloudMetadata> index = new TreeMap<String, FileCloudMetadata>();
+  private ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+  /**
+   * Per key locks serializing the updates of the same object
+   */
+  private StripedLock locks = new StripedLock();
+
+  /* *********************************************************************
+   * Constructor implementation
+   ***********************************************************************/
+  public FileStorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    if (!(cloudURI instanceof FileCloudURI))
+      throw new IllegalArgumentException("CloudURI not supported");
+    if (cloudURI.getBucket() == null)
+      throw new IllegalArgumentException("Bucket not specified");
+
+    try {
+      fileCloudURI = new FileCloudURI(cloudURI.getBaseURI(), cloudURI.getBucket(), null);
+    } catch (URISyntaxException e) {
+      throw new CloudException("This should not be happening!", e);
+    }
+
+    root = new File(cloudURI.getBaseURI().getPath(), cloudURI.getBucket());
+    dataDirectory = new File(root, DATA_DIRECTORY);
+    tempDirectory = new File(root, TEMP_DIRECTORY);
+    dataDirectory.mkdirs();
+    tempDirectory.mkdirs();
+    if (!dataDirectory.isDirectory() || !tempDirectory.isDirectory())
+      throw new CloudException("Cannot create bucket directory " + root);
+
+    /* Leftovers of interrupted writes */
+    File leftovers[] = tempDirectory.listFiles();
+    if (leftovers != null) {
+      for (File f: leftovers) f.delete();
+    }
+
+    loadIndex();
+  }
+
+  /**
+   * Rebuilds the index from the sidecar files.
+   */
+  private void loadIndex() {
+    long start = System.currentTimeMillis();
+    int discarded = 0;
+
+    File level1[] = dataDirectory.listFiles();
+    if (level1 == null) return;
+    for (File dir1: level1) {
+      File level2[] = dir1.listFiles();
+      if (level2 == null) continue;
+      for (File dir2: level2) {
+        File files[] = dir2.listFiles();
+        if (files == null) continue;
+        for (File f: files) {
+          String name = f.getName();
+          if (!name.endsWith(METADATA_SUFFIX)) continue;
+
+          File data = new File(dir2, name.substring(0, name.length() - METADATA_SUFFIX.length()));
+          try {
+            Properties p = loadProperties(f);
+            String key = p.getProperty(PROPERTY_KEY);
+            FileCloudMetadata meta = toMetadata(p);
+            if (key == null || !data.isFile() || data.length() != meta.getContentLength()) {
+              logger.warn("Discarding inconsistent object " + f);
+              discarded++;
+              continue;
+            }
+            index.put(key, meta);
+          } catch (Exception e) {
+            logger.warn("Discarding unreadable object metadata " + f, e);
+            discarded++;
+          }
+        }
+      }
+    }
+
+    logger.info(String.format("Loaded %d objects (%d discarded) from %s in %d ms", index.size(),
+                              discarded, root, System.currentTimeMillis() - start));
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the directory holding the bucket.
+   *
+   * @return Bucket directory
+   */
+  public File getRoot() {
+    return root;
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static String hex(byte raw[]) {
+    StringBuilder hex = new StringBuilder(raw.length * 2);
+    for (byte b: raw) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+      hex.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("No MD5 algorithm found", e);
+    }
+  }
+
+  /**
+   * Returns the name of the files storing the specified key.
+   */
+  private static String fileName(String key) {
+    try {
+      return hex(md5().digest(key.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 not supported", e);
+    }
+  }
+
+  private File dataFile(String name) {
+    File dir = new File(new File(dataDirectory, name.substring(0, 2)), name.substring(2, 4));
+    return new File(dir, name);
+  }
+
+  private File metadataFile(String name) {
+    File data = dataFile(name);
+    return new File(data.getParentFile(), name + METADATA_SUFFIX);
+  }
+
+  /**
+   * Replaces a file with another one.
+   */
+  private static void rename(File from, File to) throws IOException {
+    if (from.renameTo(to)) return;
+
+    /* Some platforms don't replace an existing file */
+    if (to.exists() && to.delete() && from.renameTo(to)) return;
+    throw new IOException("Cannot rename " + from + " to " + to);
+  }
+
+  private static Properties loadProperties(File file) throws IOException {
+    Properties p = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    return p;
+  }
+
+  private static FileCloudMetadata toMetadata(Properties p) {
+    HashMap<String, String> userMetadata = new HashMap<String, String>();
+    for (Object o: p.keySet()) {
+      String name = (String) o;
+      if (name.startsWith(PROPERTY_USER_PREFIX))
+        userMetadata.put(name.substring(PROPERTY_USER_PREFIX.length()), p.getProperty(name));
+    }
+
+    return new FileCloudMetadata(Long.parseLong(p.getProperty(PROPERTY_CONTENT_LENGTH)),
+                                 new Date(Long.parseLong(p.getProperty(PROPERTY_LAST_MODIFIED))),
+                                 p.getProperty(PROPERTY_CONTENT_MD5),
+                                 p.getProperty(PROPERTY_CONTENT_TYPE),
+                                 userMetadata);
+  }
+
+  /**
+   * Writes the sidecar of an object to a temporary file.
+   *
+   * @return Temporary sidecar file
+   */
+  private File writeTempMetadata(String key, FileCloudMetadata meta) throws IOException {
+    Properties p = new Properties();
+    p.setProperty(PROPERTY_KEY, key);
+    p.setProperty(PROPERTY_LAST_MODIFIED, Long.toString(meta.getLastModified().getTime()));
+    p.setProperty(PROPERTY_CONTENT_LENGTH, Long.toString(meta.getContentLength()));
+    p.setProperty(PROPERTY_CONTENT_MD5, meta.getContentMD5());
+    p.setProperty(PROPERTY_CONTENT_TYPE, meta.getContentType());
+    for (Map.Entry<String, String> e: meta.getUserMetadata().entrySet())
+      p.setProperty(PROPERTY_USER_PREFIX + e.getKey(), e.getValue());
+
+    File tmp = File.createTempFile("meta", null, tempDirectory);
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      p.store(out, null);
+    } finally {
+      out.close();
+    }
+    return tmp;
+  }
+
+  private FileCloudMetadata indexGet(String key) {
+    indexLock.readLock().lock();
+    try {
+      return index.get(key);
+    } finally {
+      indexLock.readLock().unlock();
+    }
+  }
+
+  private void indexPut(String key, FileCloudMetadata meta) {
+    indexLock.writeLock().lock();
+    try {
+      if (meta != null) index.put(key, meta);
+      else index.remove(key);
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+
+  /* *********************************************************************
+   * StorageCloud abstract methods implementation
+   ***********************************************************************/
+
+  public CloudURI getCloudURI() {
+    return fileCloudURI;
+  }
+
+  public boolean supportsListByDate() {
+    return true;
+  }
+
+  public boolean supportsListByPrefix() {
+    return true;
+  }
+
+  /*
+   * Implementation of abstract method list. Keys are read from the index.
+   */
+  public String[] list(Date timestamp, String prefix) throws IOException, CloudException {
+    if (prefix == null) prefix = "";
+    long since = (timestamp != null) ? timestamp.getTime() : Long.MIN_VALUE;
+    ArrayList<String> keys = new ArrayList<String>();
+
+    indexLock.readLock().lock();
+    try {
+      for (Map.Entry<String, FileCloudMetadata> e: index.tailMap(prefix).entrySet()) {
+        if (!e.getKey().startsWith(prefix)) break;
+        if (e.getValue().getLastModified().getTime() > since) keys.add(e.getKey());
+      }
+    } finally {
+      indexLock.readLock().unlock();
+    }
+
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  /*
+   * Implementation of abstract method get. The content is memory mapped.
+   */
+  public CloudObject get(String key) throws IOException, CloudException {
+    FileCloudMetadata meta;
+    MappedByteBuffer content;
+
+    /* The key lock guarantees that content and metadata belong to the same version */
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      meta = indexGet(key);
+      if (meta == null) return null;
+
+      RandomAccessFile file = new RandomAccessFile(dataFile(fileName(key)), "r");
+      try {
+        FileChannel channel = file.getChannel();
+        if (channel.size() > Integer.MAX_VALUE)
+          throw new CloudException("Object too large to be mapped: " + key);
+        content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        /* The mapping stays valid after the file is closed */
+        file.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      return new FileCloudObject(new FileCloudURI(fileCloudURI.getBaseURI(),
+                                                  fileCloudURI.getBucket(), key),
+                                 new ByteBufferInputStream(content), meta);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Error creating object cloud URI", e);
+    }
+  }
+
+  /*
+   * Implementation of abstract method getMetadata. Metadata are read from the index.
+   */
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    return indexGet(key);
+  }
+
+  /*
+   * Implementation of abstract method put. The content is written to a temporary file, renamed
+   * once complete.
+   */
+  public void put(String key, String contentType, InputStream valueInputStream,
+                  Map<String, String> userMetadata) throws IOException, CloudException
+  {
+    String name = fileName(key);
+    File tmpData = File.createTempFile("data", null, tempDirectory);
+    File tmpMeta = null;
+    boolean renamed = false;
+
+    try {
+      MessageDigest md5 = md5();
+      long length = 0;
+      DigestOutputStream out = new DigestOutputStream(new FileOutputStream(tmpData), md5);
+      try {
+        byte buff[] = new byte[8192];
+        int read;
+        while ((read = valueInputStream.read(buff)) > 0) {
+          out.write(buff, 0, read);
+          length += read;
+        }
+      } finally {
+        out.close();
+      }
+
+      Lock lock = locks.getLock(key);
+      lock.lock();
+      try {
+        FileCloudMetadata meta = new FileCloudMetadata(length, new Date(), hex(md5.digest()),
+                                                       contentType, userMetadata);
+        tmpMeta = writeTempMetadata(key, meta);
+
+        File data = dataFile(name);
+        data.getParentFile().mkdirs();
+        rename(tmpData, data);
+        rename(tmpMeta, metadataFile(name));
+        renamed = true;
+        indexPut(key, meta);
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      if (!renamed) {
+        tmpData.delete();
+        if (tmpMeta != null) tmpMeta.delete();
+      }
+    }
+  }
+
+  /*
+   * Implementation of abstract method putMetadata. Unknown keys are ignored.
+   */
+  public void putMetadata(String key, String contentType, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    String name = fileName(key);
+    File tmpMeta = null;
+    boolean renamed = false;
+
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      FileCloudMetadata meta = indexGet(key);
+      if (meta == null) return;
+
+      meta = new FileCloudMetadata(meta.getContentLength(), meta.getLastModified(),
+                                   meta.getContentMD5(), contentType, userMetadata);
+      tmpMeta = writeTempMetadata(key, meta);
+      rename(tmpMeta, metadataFile(name));
+      renamed = true;
+      indexPut(key, meta);
+    } finally {
+      lock.unlock();
+      if (tmpMeta != null && !renamed) tmpMeta.delete();
+    }
+  }
+
+  /*
+   * Implementation of abstract method remove.
+   */
+  public void remove(String key) throws IOException, CloudException {
+    String name = fileName(key);
+
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      indexPut(key, null);
+      /* Sidecar first: a content without sidecar is never loaded */
+      metadataFile(name).delete();
+      dataFile(name).delete();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* *********************************************************************
+   * StorageCloud methods overrides
+   ***********************************************************************/
+
+  /*
+   * Override of StorageCloud.get(key, offset, length). Only the requested region of the file is
+   * memory mapped.
+   */
+  public CloudObject get(String key, long offset, long length) throws IOException, CloudException {
+    checkRange(offset, length);
+
+    FileCloudMetadata meta;
+    MappedByteBuffer content;
+
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      meta = indexGet(key);
+      if (meta == null) return null;
+
+      RandomAccessFile file = new RandomAccessFile(dataFile(fileName(key)), "r");
+      try {
+        FileChannel channel = file.getChannel();
+        long size = Math.max(0, Math.min(length, channel.size() - offset));
+        if (size > Integer.MAX_VALUE)
+          throw new CloudException("Range too large to be mapped: " + key);
+        content = channel.map(FileChannel.MapMode.READ_ONLY, Math.min(offset, channel.size()),
+                              size);
+      } finally {
+        file.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      return new FileCloudObject(new FileCloudURI(fileCloudURI.getBaseURI(),
+                                                  fileCloudURI.getBucket(), key),
+                                 new ByteBufferInputStream(content), meta);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Error creating object cloud URI", e);
+    }
+  }
+
+  /*
+   * Override of StorageCloud.conditionalPut(request). The key lock is held from the check to
+   * the end of the write, so no other write of the key can slip in between.
+   */
+  protected CloudPutRequest.Result conditionalPut(CloudPutRequest request)
+    throws IOException, CloudException
+  {
+    Lock lock = locks.getLock(request.getKey());
+    lock.lock();
+    try {
+      FileCloudMetadata meta = indexGet(request.getKey());
+      CloudPutRequest.Result result;
+      result = request.evaluate((meta != null) ? meta.getContentMD5() : null);
+
+      /* Key locks are reentrant */
+      if (result == CloudPutRequest.Result.UPLOADED) {
+        put(request.getKey(), request.getContentType(), request.getInputStream(),
+            request.getUserMetadata());
+      } else if (result == CloudPutRequest.Result.UNCHANGED && !sameMetadata(meta, request)) {
+        putMetadata(request.getKey(), request.getContentType(), request.getUserMetadata());
+      }
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Override of StorageCloud.getMetadataAll(keys). Metadata are read from the index.
+   */
+  public Map<String, CloudMetadata> getMetadataAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    HashMap<String, CloudMetadata> metadata = new HashMap<String, CloudMetadata>(keys.size() * 2);
+    FileCloudMetadata meta;
+
+    indexLock.readLock().lock();
+    try {
+      for (String key: keys) {
+        meta = index.get(key);
+        if (meta != null) metadata.put(key, meta);
+      }
+    } finally {
+      indexLock.readLock().unlock();
+    }
+
+    return metadata;
+  }
+
+  /*
+   * Override of StorageCloud.listWithMetadata(prefix, timestamp). Metadata are read from the
+   * index.
+   */
+  public Map<String, CloudMetadata> listWithMetadata(String prefix, Date timestamp)
+    throws IOException, CloudException
+  {
+    if (prefix == null) prefix = "";
+    long since = (timestamp != null) ? timestamp.getTime() : Long.MIN_VALUE;
+    HashMap<String, CloudMetadata> metadata = new HashMap<String, CloudMetadata>();
+
+    indexLock.readLock().lock();
+    try {
+      for (Map.Entry<String, FileCloudMetadata> e: index.tailMap(prefix).entrySet()) {
+        if (!e.getKey().startsWith(prefix)) break;
+        if (e.getValue().getLastModified().getTime() > since)
+          metadata.put(e.getKey(), e.getValue());
+      }
+    } finally {
+      indexLock.readLock().unlock();
+    }
+
+    return metadata;
+  }
+}
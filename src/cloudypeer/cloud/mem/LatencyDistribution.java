@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mem;
+
+import java.util.Random;
+
+/**
+ * Distribution of the latency injected by the in-memory cloud. <br>
+ * Distributions can be built with the factory methods or parsed from a string:
+ * <ul>
+ *  <li><code>20</code>: constant latency of 20 ms</li>
+ *  <li><code>10-50</code>: latency uniformly distributed between 10 and 50 ms</li>
+ *  <li><code>exp:20</code>: exponentially distributed latency with mean 20 ms</li>
+ * </ul>
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public abstract class LatencyDistribution {
+
+  /**
+   * No latency
+   */
+  public static final LatencyDistribution NONE = constant(0);
+
+  /* *********************************************************************
+   * Factory methods
+   ***********************************************************************/
+
+  /**
+   * Returns a constant latency.
+   *
+   * @param millis Latency in milliseconds
+   * @return Latency distribution
+   */
+  public static LatencyDistribution constant(final double millis) {
+    if (millis < 0) throw new IllegalArgumentException("Negative latency");
+
+    return new LatencyDistribution() {
+      public double sample(Random random) {
+        return millis;
+      }
+
+      public String toString() {
+        return format(millis);
+      }
+    };
+  }
+
+  /**
+   * Returns a latency uniformly distributed in the specified range.
+   *
+   * @param min Minimum latency in milliseconds
+   * @param max Maximum latency in milliseconds
+   * @return Latency distribution
+   */
+  public static LatencyDistribution uniform(final double min, final double max) {
+    if (min < 0 || max < min) throw new IllegalArgumentException("Invalid latency range");
+
+    return new LatencyDistribution() {
+      public double sample(Random random) {
+        return min + random.nextDouble() * (max - min);
+      }
+
+      public String toString() {
+        return format(min) + "-" + format(max);
+      }
+    };
+  }
+
+  /**
+   * Returns an exponentially distributed latency, modelling occasional long delays.
+   *
+   * @param mean Mean latency in milliseconds
+   * @return Latency distribution
+   */
+  public static LatencyDistribution exponential(final double mean) {
+    if (mean < 0) throw new IllegalArgumentException("Negative latency");
+
+    return new LatencyDistribution() {
+      public double sample(Random random) {
+        return -mean * Math.log(1 - random.nextDouble());
+      }
+
+      public String toString() {
+        return "exp:" + format(mean);
+      }
+    };
+  }
+
+  /**
+   * Parses a latency distribution from its string representation.
+   *
+   * @param spec Distribution specification
+   * @return Latency distribution
+   * @exception IllegalArgumentException If the specification is not valid
+   */
+  public static LatencyDistribution parse(String spec) {
+    spec = spec.trim();
+    try {
+      if (spec.startsWith("exp:")) return exponential(Double.parseDouble(spec.substring(4)));
+
+      int dash = spec.indexOf('-', 1);
+      if (dash > 0)
+        return uniform(Double.parseDouble(spec.substring(0, dash)),
+                       Double.parseDouble(spec.substring(dash + 1)));
+
+      return constant(Double.parseDouble(spec));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid latency distribution: " + spec, e);
+    }
+  }
+
+  private static String format(double millis) {
+    return (millis == Math.floor(millis)) ? Long.toString((long) millis) : Double.toString(millis);
+  }
+
+  /* *********************************************************************
+   * Abstract methods
+   ***********************************************************************/
+
+  /**
+   * Draws a latency from this distribution.
+   *
+   * @param random Source of randomness
+   * @return Latency in milliseconds
+   */
+  public abstract double sample(Random random);
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mem;
+
+import java.io.InputStream;
+
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * Implementation of CloudObject for the in-memory cloud.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MemCloudObject implements CloudObject {
+
+  private MemCloudURI objectURI;
+  private InputStream in;
+  private MemCloudMetadata meta;
+
+  /**
+   * Creates a new <code>MemCloudObject</code> instance.
+   *
+   * @param objectURI URI of the object
+   * @param in Content input stream
+   * @param meta Object metadata
+   */
+  public MemCloudObject(MemCloudURI objectURI, InputStream in, MemCloudMetadata meta) {
+    if (objectURI == null) throw new IllegalArgumentException("Object URI not specified");
+    if (objectURI.getKey() == null) throw new IllegalArgumentException("Object key not specified!");
+
+    this.objectURI = objectURI;
+    this.in = in;
+    this.meta = meta;
+  }
+
+  public String getKey() {
+    return objectURI.getKey();
+  }
+
+  public final InputStream getInputStream() {
+    return in;
+  }
+
+  public final CloudURI getCloudURI() {
+    return objectURI;
+  }
+
+  public final CloudMetadata getMetadata() {
+    return meta;
+  }
+}
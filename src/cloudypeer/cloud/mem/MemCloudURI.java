@@ -0,0 +1,98 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mem;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.Properties;
+
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * CloudURI implementation for the in-memory cloud. <br>
+ * The URI format is <code>mem://name/bucket/key?parameters</code>: the host part names the
+ * cloud, the first path component is the bucket and the rest of the path, if any, is the key
+ * (keys may contain slashes). The query string parameters are made available through
+ * {@link #getParameters()}; see {@link MemStorageCloud} for the supported ones.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MemCloudURI extends CloudURI {
+
+  public static String SCHEME = "mem";
+
+  private Properties parameters = new Properties();
+
+  /**
+   * Creates a new <code>MemCloudURI</code> instance from an URI.
+   *
+   * @param cloudURI uri pointing to a cloud or cloud key.
+   */
+  public MemCloudURI(URI cloudURI) throws URISyntaxException {
+    if (!SCHEME.equals(cloudURI.getScheme()))
+      throw new IllegalArgumentException("Not a valid in-memory cloud URI");
+
+    String host = cloudURI.getHost();
+    if (host == null) throw new IllegalArgumentException("Cloud name not specified");
+
+    String path = cloudURI.getPath();
+    if (path == null || !path.startsWith("/"))
+      throw new IllegalArgumentException("URI path not absolute!");
+
+    String bucket = null;
+    String key = null;
+    int slash = path.indexOf('/', 1);
+    if (slash < 0) {
+      if (path.length() > 1) bucket = path.substring(1);
+    } else {
+      bucket = path.substring(1, slash);
+      if (slash + 1 < path.length()) key = path.substring(slash + 1);
+    }
+    if (bucket != null && bucket.length() == 0)
+      throw new IllegalArgumentException("Empty bucket name");
+
+    URI baseURI = new URI(SCHEME, null, host, -1, null, null, null);
+    initCloudURI(baseURI, bucket, key, null);
+
+    /* Parse the query string parameters */
+    String query = cloudURI.getRawQuery();
+    if (query != null) {
+      for (String param: query.split("&")) {
+        if (param.length() == 0) continue;
+        int eq = param.indexOf('=');
+        if (eq <= 0) throw new IllegalArgumentException("Invalid URI parameter: " + param);
+        parameters.setProperty(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+      }
+    }
+  }
+
+  public MemCloudURI(URI baseURI, String bucket, String key) throws URISyntaxException {
+    if (baseURI.getHost() == null) throw new IllegalArgumentException("Cloud name not specified");
+
+    URI finalBaseURI = new URI(SCHEME, null, baseURI.getHost(), -1, null, null, null);
+    initCloudURI(finalBaseURI, bucket, key, null);
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 not supported", e);
+    }
+  }
+
+  /**
+   * Returns the parameters specified in the query string of the URI.
+   *
+   * @return URI parameters (empty if none was specified)
+   */
+  public Properties getParameters() {
+    return parameters;
+  }
+}
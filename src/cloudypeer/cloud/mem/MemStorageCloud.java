@@ -0,0 +1,972 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cloudypeer.cloud.CloudChange;
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudPutRequest;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+
+/**
+ * StorageCloud implementation keeping the objects in memory, meant for tests and benchmarks. <br>
+ * <br>
+ * Buckets are registered JVM wide: all the instances created for the same bucket URI (e.g. by
+ * several peers running in the same JVM) share the same objects, settings and counters, as
+ * they would share a real cloud. <br>
+ * <br>
+ * Every operation is counted and can be slowed down and made to fail, so that the number of
+ * cloud operations performed by a protocol and its sensitivity to the cloud behaviour can be
+ * measured:
+ * <ul>
+ *  <li><b>latency:</b> each operation sleeps for a time drawn from a
+ *  {@link LatencyDistribution} before being performed</li>
+ *  <li><b>error rate:</b> probability that an operation fails with an IOException (after the
+ *  latency, without any effect)</li>
+ *  <li><b>bandwidth:</b> object contents are transferred over a link shared by all the
+ *  operations of the bucket, with the specified throughput in bytes per second</li>
+ *  <li><b>batching:</b> if disabled, multi-key operations are performed key by key as by
+ *  providers not supporting them</li>
+ * </ul>
+ * Settings can be changed at runtime or specified as URI parameters, e.g.
+ * <code>mem://test/bucket?latency=10-50&latency.put=exp:80&errorRate=0.01&bandwidth=1048576</code>.
+ * Per operation settings use the lowercase operation name as suffix. <br>
+ * <br>
+ * A change feed is recorded and never trimmed: each change retains a few tens of bytes.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MemStorageCloud extends StorageCloud {
+
+  public static final String PARAMETER_LATENCY = "latency";
+  public static final String PARAMETER_ERROR_RATE = "errorRate";
+  public static final String PARAMETER_BANDWIDTH = "bandwidth";
+  public static final String PARAMETER_BATCHING = "batching";
+  public static final String PARAMETER_SEED = "seed";
+
+  /**
+   * Cloud operations
+   */
+  public enum Operation {
+    LIST,
+    LIST_WITH_METADATA,
+    GET,
+    GET_RANGE,
+    GET_ALL,
+    GET_METADATA,
+    GET_METADATA_ALL,
+    PUT,
+    PUT_ALL,
+    PUT_CONDITIONAL,
+    PUT_ALL_CONDITIONAL,
+    PUT_METADATA,
+    REMOVE,
+    CHANGE_SEQUENCE,
+    CHANGES_SINCE
+  }
+
+  /**
+   * Registered buckets
+   */
+  private static HashMap<URI, Bucket> buckets = new HashMap<URI, Bucket>();
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private MemCloudURI memCloudURI;
+  private Bucket bucket;
+
+  /* *********************************************************************
+   * Constructor implementation
+   ***********************************************************************/
+  public MemStorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    if (!(cloudURI instanceof MemCloudURI))
+      throw new IllegalArgumentException("CloudURI not supported");
+    if (cloudURI.getBucket() == null)
+      throw new IllegalArgumentException("Bucket not specified");
+
+    try {
+      memCloudURI = new MemCloudURI(cloudURI.getBaseURI(), cloudURI.getBucket(), null);
+    } catch (URISyntaxException e) {
+      throw new CloudException("This should not be happening!", e);
+    }
+
+    synchronized (buckets) {
+      bucket = buckets.get(memCloudURI.getURI());
+      if (bucket == null) {
+        bucket = new Bucket();
+        buckets.put(memCloudURI.getURI(), bucket);
+      }
+    }
+
+    configure(((MemCloudURI) cloudURI).getParameters());
+  }
+
+  /**
+   * Applies the settings specified as URI parameters. Parameters are applied in name order, so
+   * that global settings precede the per operation ones.
+   */
+  private void configure(Properties parameters) {
+    TreeSet<String> names = new TreeSet<String>();
+    String value;
+
+    for (Object o: parameters.keySet()) names.add((String) o);
+    for (String name: names) {
+      value = parameters.getProperty(name);
+
+      if (name.equals(PARAMETER_LATENCY)) {
+        setLatency(LatencyDistribution.parse(value));
+      } else if (name.startsWith(PARAMETER_LATENCY + ".")) {
+        setLatency(operation(name), LatencyDistribution.parse(value));
+      } else if (name.equals(PARAMETER_ERROR_RATE)) {
+        setErrorRate(Double.parseDouble(value));
+      } else if (name.startsWith(PARAMETER_ERROR_RATE + ".")) {
+        setErrorRate(operation(name), Double.parseDouble(value));
+      } else if (name.equals(PARAMETER_BANDWIDTH)) {
+        setBandwidth(Long.parseLong(value));
+      } else if (name.equals(PARAMETER_BATCHING)) {
+        setBatching(Boolean.parseBoolean(value));
+      } else if (name.equals(PARAMETER_SEED)) {
+        setSeed(Long.parseLong(value));
+      } else {
+        throw new IllegalArgumentException("Unknown in-memory cloud parameter: " + name);
+      }
+    }
+  }
+
+  private static Operation operation(String parameter) {
+    String name = parameter.substring(parameter.indexOf('.') + 1);
+    try {
+      return Operation.valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown cloud operation: " + name);
+    }
+  }
+
+  /**
+   * Removes all the registered buckets. Instances already created keep working on their own
+   * bucket, while new instances start from an empty one.
+   */
+  public static void dropAll() {
+    synchronized (buckets) {
+      buckets.clear();
+    }
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the latency distribution of the specified operation.
+   *
+   * @param operation Cloud operation
+   * @return Latency distribution
+   */
+  public LatencyDistribution getLatency(Operation operation) {
+    return bucket.latency[operation.ordinal()];
+  }
+
+  /**
+   * Sets the latency distribution of the specified operation.
+   *
+   * @param operation Cloud operation
+   * @param latency Latency distribution
+   */
+  public void setLatency(Operation operation, LatencyDistribution latency) {
+    if (latency == null) throw new IllegalArgumentException("Null latency distribution");
+
+    synchronized (bucket) {
+      LatencyDistribution updated[] = bucket.latency.clone();
+      updated[operation.ordinal()] = latency;
+      bucket.latency = updated;
+    }
+  }
+
+  /**
+   * Sets the latency distribution of all the operations.
+   *
+   * @param latency Latency distribution
+   */
+  public void setLatency(LatencyDistribution latency) {
+    for (Operation op: Operation.values()) setLatency(op, latency);
+  }
+
+  /**
+   * Returns the probability that the specified operation fails.
+   *
+   * @param operation Cloud operation
+   * @return Error rate
+   */
+  public double getErrorRate(Operation operation) {
+    return bucket.errorRate[operation.ordinal()];
+  }
+
+  /**
+   * Sets the probability that the specified operation fails.
+   *
+   * @param operation Cloud operation
+   * @param errorRate Error rate, between 0 and 1
+   */
+  public void setErrorRate(Operation operation, double errorRate) {
+    if (errorRate < 0 || errorRate > 1)
+      throw new IllegalArgumentException("Error rate must be between 0 and 1");
+
+    synchronized (bucket) {
+      double updated[] = bucket.errorRate.clone();
+      updated[operation.ordinal()] = errorRate;
+      bucket.errorRate = updated;
+    }
+  }
+
+  /**
+   * Sets the probability that any operation fails.
+   *
+   * @param errorRate Error rate, between 0 and 1
+   */
+  public void setErrorRate(double errorRate) {
+    for (Operation op: Operation.values()) setErrorRate(op, errorRate);
+  }
+
+  /**
+   * Returns the bandwidth of the bucket.
+   *
+   * @return Bandwidth in bytes per second, 0 if unlimited
+   */
+  public long getBandwidth() {
+    return bucket.bandwidth;
+  }
+
+  /**
+   * Sets the bandwidth of the bucket, shared by all the transfers.
+   *
+   * @param bandwidth Bandwidth in bytes per second, 0 if unlimited
+   */
+  public void setBandwidth(long bandwidth) {
+    if (bandwidth < 0) throw new IllegalArgumentException("Negative bandwidth");
+    bucket.bandwidth = bandwidth;
+  }
+
+  /**
+   * Checks if multi-key operations are performed as a single operation.
+   *
+   * @return True if batching is enabled
+   */
+  public boolean isBatching() {
+    return bucket.batching;
+  }
+
+  /**
+   * Enables or disables multi-key operations. If disabled they are performed (and counted) key
+   * by key.
+   *
+   * @param batching True to enable batching
+   */
+  public void setBatching(boolean batching) {
+    bucket.batching = batching;
+  }
+
+  /**
+   * Sets the seed of the random generator used to draw latencies and errors, so that runs can
+   * be repeated.
+   *
+   * @param seed Random seed
+   */
+  public void setSeed(long seed) {
+    bucket.random.setSeed(seed);
+  }
+
+  /**
+   * Returns the number of times the specified operation was invoked, failed ones included.
+   *
+   * @param operation Cloud operation
+   * @return Invocations count
+   */
+  public long getOperationCount(Operation operation) {
+    return bucket.calls[operation.ordinal()].get();
+  }
+
+  /**
+   * Returns the total number of operations invoked, failed ones included.
+   *
+   * @return Invocations count
+   */
+  public long getOperationCount() {
+    long count = 0;
+    for (AtomicLong c: bucket.calls) count += c.get();
+    return count;
+  }
+
+  /**
+   * Returns the number of injected failures of the specified operation.
+   *
+   * @param operation Cloud operation
+   * @return Failures count
+   */
+  public long getErrorCount(Operation operation) {
+    return bucket.errors[operation.ordinal()].get();
+  }
+
+  /**
+   * Returns the total number of injected failures.
+   *
+   * @return Failures count
+   */
+  public long getErrorCount() {
+    long count = 0;
+    for (AtomicLong c: bucket.errors) count += c.get();
+    return count;
+  }
+
+  /**
+   * Returns the number of content bytes written to the bucket.
+   *
+   * @return Uploaded bytes
+   */
+  public long getBytesUploaded() {
+    return bucket.bytesUploaded.get();
+  }
+
+  /**
+   * Returns the number of content bytes read from the bucket.
+   *
+   * @return Downloaded bytes
+   */
+  public long getBytesDownloaded() {
+    return bucket.bytesDownloaded.get();
+  }
+
+  /**
+   * Resets all the counters.
+   */
+  public void resetCounters() {
+    for (Operation op: Operation.values()) {
+      bucket.calls[op.ordinal()].set(0);
+      bucket.errors[op.ordinal()].set(0);
+    }
+    bucket.bytesUploaded.set(0);
+    bucket.bytesDownloaded.set(0);
+  }
+
+  /**
+   * Returns a summary of the counters, listing only the operations invoked at least once.
+   *
+   * @return Counters summary
+   */
+  public String getStatistics() {
+    StringBuilder s = new StringBuilder();
+    long calls;
+    long errors;
+
+    for (Operation op: Operation.values()) {
+      calls = getOperationCount(op);
+      if (calls == 0) continue;
+      errors = getErrorCount(op);
+      s.append(op.name().toLowerCase()).append('=').append(calls);
+      if (errors > 0) s.append(" (").append(errors).append(" failed)");
+      s.append(", ");
+    }
+    s.append(String.format("up=%dB, down=%dB", getBytesUploaded(), getBytesDownloaded()));
+    return s.toString();
+  }
+
+  /**
+   * Returns the number of objects in the bucket.
+   *
+   * @return Objects count
+   */
+  public int size() {
+    bucket.lock.readLock().lock();
+    try {
+      return bucket.objects.size();
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Removes all the objects from the bucket, without affecting counters and settings. The
+   * removals are recorded in the change feed.
+   */
+  public void clear() {
+    bucket.lock.writeLock().lock();
+    try {
+      Date now = new Date();
+      for (String key: bucket.objects.keySet())
+        bucket.recordChange(key, CloudChange.Type.REMOVE, now);
+      bucket.objects.clear();
+    } finally {
+      bucket.lock.writeLock().unlock();
+    }
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static String hex(byte raw[]) {
+    StringBuilder hex = new StringBuilder(raw.length * 2);
+    for (byte b: raw) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+      hex.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static String md5(byte content[]) {
+    try {
+      return hex(MessageDigest.getInstance("MD5").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("No MD5 algorithm found", e);
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte buff[] = new byte[8192];
+    int read;
+    while ((read = in.read(buff)) > 0) out.write(buff, 0, read);
+    return out.toByteArray();
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    if (nanos <= 0) return;
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while simulating cloud latency");
+    }
+  }
+
+  /**
+   * Simulates the round trip of an operation: counts it, waits for its latency and injects a
+   * failure according to the error rate.
+   */
+  private void roundTrip(Operation operation) throws IOException {
+    int op = operation.ordinal();
+    bucket.calls[op].incrementAndGet();
+
+    double latency;
+    double draw;
+    synchronized (bucket.random) {
+      latency = bucket.latency[op].sample(bucket.random);
+      draw = bucket.random.nextDouble();
+    }
+    sleep((long) (latency * 1000000));
+
+    if (draw < bucket.errorRate[op]) {
+      bucket.errors[op].incrementAndGet();
+      throw new IOException(String.format("Injected %s failure on %s", operation,
+                                          memCloudURI.getURI()));
+    }
+  }
+
+  /**
+   * Simulates the transfer of the specified number of bytes over the bucket link.
+   */
+  private void transfer(long bytes) throws IOException {
+    long bandwidth = bucket.bandwidth;
+    if (bandwidth <= 0 || bytes == 0) return;
+
+    long now = System.nanoTime();
+    long end;
+    synchronized (bucket.random) {
+      long start = Math.max(now, bucket.linkFree);
+      end = start + bytes * 1000000000L / bandwidth;
+      bucket.linkFree = end;
+    }
+    sleep(end - now);
+  }
+
+  private MemCloudObject toCloudObject(String key, Entry entry) throws CloudException {
+    return toCloudObject(key, entry, 0, entry.content.length);
+  }
+
+  private MemCloudObject toCloudObject(String key, Entry entry, int offset, int length)
+    throws CloudException
+  {
+    try {
+      return new MemCloudObject(new MemCloudURI(memCloudURI.getBaseURI(),
+                                                memCloudURI.getBucket(), key),
+                                new ByteArrayInputStream(entry.content, offset, length),
+                                entry.meta);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Error creating object cloud URI", e);
+    }
+  }
+
+  private Entry entry(String key) {
+    bucket.lock.readLock().lock();
+    try {
+      return bucket.objects.get(key);
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stores an object. Must be called holding the write lock.
+   */
+  private void store(String key, String contentType, byte content[], String md5,
+                     Map<String, String> userMetadata, Date now)
+  {
+    long version = bucket.recordChange(key, CloudChange.Type.PUT, now);
+    bucket.objects.put(key, new Entry(content, new MemCloudMetadata(content.length, now, md5,
+                                                                    contentType, version,
+                                                                    userMetadata)));
+  }
+
+  /**
+   * Replaces the metadata of an object. Must be called holding the write lock.
+   */
+  private void storeMetadata(String key, Entry entry, String contentType,
+                             Map<String, String> userMetadata)
+  {
+    MemCloudMetadata meta = entry.meta;
+    long version = bucket.recordChange(key, CloudChange.Type.METADATA, meta.getLastModified());
+    bucket.objects.put(key, new Entry(entry.content,
+                                      new MemCloudMetadata(meta.getContentLength(),
+                                                           meta.getLastModified(),
+                                                           meta.getContentMD5(), contentType,
+                                                           version, userMetadata)));
+  }
+
+  /**
+   * Performs conditional puts holding the write lock, so that each check and the following
+   * write are atomic. The transfer of the uploaded contents is simulated once the lock is
+   * released, so that the other operations on the bucket aren't blocked meanwhile.
+   */
+  private CloudPutRequest.Result[] conditionalStore(CloudPutRequest requests[])
+    throws IOException
+  {
+    CloudPutRequest.Result results[] = new CloudPutRequest.Result[requests.length];
+    long length = 0;
+
+    bucket.lock.writeLock().lock();
+    try {
+      Date now = new Date();
+      for (int i = 0; i < requests.length; i++) {
+        CloudPutRequest r = requests[i];
+        Entry entry = bucket.objects.get(r.getKey());
+        results[i] = r.evaluate((entry != null) ? entry.meta.getContentMD5() : null);
+
+        if (results[i] == CloudPutRequest.Result.UPLOADED) {
+          byte content[] = readFully(r.getInputStream());
+          store(r.getKey(), r.getContentType(), content, md5(content), r.getUserMetadata(), now);
+          length += content.length;
+        } else if (results[i] == CloudPutRequest.Result.UNCHANGED &&
+                   !sameMetadata(entry.meta, r)) {
+          storeMetadata(r.getKey(), entry, r.getContentType(), r.getUserMetadata());
+        }
+      }
+    } finally {
+      bucket.lock.writeLock().unlock();
+    }
+
+    transfer(length);
+    bucket.bytesUploaded.addAndGet(length);
+    return results;
+  }
+
+  /* *********************************************************************
+   * StorageCloud abstract methods implementation
+   ***********************************************************************/
+
+  public CloudURI getCloudURI() {
+    return memCloudURI;
+  }
+
+  public boolean supportsListByDate() {
+    return true;
+  }
+
+  public boolean supportsListByPrefix() {
+    return true;
+  }
+
+  /*
+   * Implementation of abstract method list.
+   */
+  public String[] list(Date timestamp, String prefix) throws IOException, CloudException {
+    roundTrip(Operation.LIST);
+
+    if (prefix == null) prefix = "";
+    long since = (timestamp != null) ? timestamp.getTime() : Long.MIN_VALUE;
+    ArrayList<String> keys = new ArrayList<String>();
+
+    bucket.lock.readLock().lock();
+    try {
+      for (Map.Entry<String, Entry> e: bucket.objects.tailMap(prefix).entrySet()) {
+        if (!e.getKey().startsWith(prefix)) break;
+        if (e.getValue().meta.getLastModified().getTime() > since) keys.add(e.getKey());
+      }
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  /*
+   * Implementation of abstract method get.
+   */
+  public CloudObject get(String key) throws IOException, CloudException {
+    roundTrip(Operation.GET);
+
+    Entry entry = entry(key);
+    if (entry == null) return null;
+
+    transfer(entry.content.length);
+    bucket.bytesDownloaded.addAndGet(entry.content.length);
+    return toCloudObject(key, entry);
+  }
+
+  /*
+   * Implementation of abstract method getMetadata.
+   */
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    roundTrip(Operation.GET_METADATA);
+
+    Entry entry = entry(key);
+    return (entry != null) ? entry.meta : null;
+  }
+
+  /*
+   * Implementation of abstract method put. The content is read before the round trip, as it
+   * would be sent along with the request.
+   */
+  public void put(String key, String contentType, InputStream valueInputStream,
+                  Map<String, String> userMetadata) throws IOException, CloudException
+  {
+    byte content[] = readFully(valueInputStream);
+    String md5 = md5(content);
+
+    roundTrip(Operation.PUT);
+    transfer(content.length);
+    bucket.bytesUploaded.addAndGet(content.length);
+
+    bucket.lock.writeLock().lock();
+    try {
+      store(key, contentType, content, md5, userMetadata, new Date());
+    } finally {
+      bucket.lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Implementation of abstract method putMetadata. Missing keys are ignored.
+   */
+  public void putMetadata(String key, String contentType, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    roundTrip(Operation.PUT_METADATA);
+
+    bucket.lock.writeLock().lock();
+    try {
+      Entry entry = bucket.objects.get(key);
+      if (entry == null) return;
+
+      storeMetadata(key, entry, contentType, userMetadata);
+    } finally {
+      bucket.lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Implementation of abstract method remove.
+   */
+  public void remove(String key) throws IOException, CloudException {
+    roundTrip(Operation.REMOVE);
+
+    bucket.lock.writeLock().lock();
+    try {
+      if (bucket.objects.remove(key) != null)
+        bucket.recordChange(key, CloudChange.Type.REMOVE, new Date());
+    } finally {
+      bucket.lock.writeLock().unlock();
+    }
+  }
+
+  /* *********************************************************************
+   * Overridden StorageCloud methods
+   ***********************************************************************/
+
+  /*
+   * Single round trip, applying either all the requests or none.
+   */
+  public void putAll(CloudPutRequest requests[]) throws IOException, CloudException {
+    if (!bucket.batching) {
+      super.putAll(requests);
+      return;
+    }
+
+    byte contents[][] = new byte[requests.length][];
+    String md5s[] = new String[requests.length];
+    long length = 0;
+    for (int i = 0; i < requests.length; i++) {
+      contents[i] = readFully(requests[i].getInputStream());
+      md5s[i] = md5(contents[i]);
+      length += contents[i].length;
+    }
+
+    roundTrip(Operation.PUT_ALL);
+    transfer(length);
+    bucket.bytesUploaded.addAndGet(length);
+
+    bucket.lock.writeLock().lock();
+    try {
+      Date now = new Date();
+      for (int i = 0; i < requests.length; i++)
+        store(requests[i].getKey(), requests[i].getContentType(), contents[i], md5s[i],
+              requests[i].getUserMetadata(), now);
+    } finally {
+      bucket.lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Atomic: contents are read and transferred only if uploaded.
+   */
+  protected CloudPutRequest.Result conditionalPut(CloudPutRequest request)
+    throws IOException, CloudException
+  {
+    roundTrip(Operation.PUT_CONDITIONAL);
+    return conditionalStore(new CloudPutRequest[] {request})[0];
+  }
+
+  /*
+   * Single round trip, each request being atomic.
+   */
+  protected CloudPutRequest.Result[] conditionalPutAll(CloudPutRequest requests[])
+    throws IOException, CloudException
+  {
+    if (!bucket.batching) return super.conditionalPutAll(requests);
+
+    roundTrip(Operation.PUT_ALL_CONDITIONAL);
+    return conditionalStore(requests);
+  }
+
+  /*
+   * Only the requested range is transferred.
+   */
+  public CloudObject get(String key, long offset, long length) throws IOException, CloudException {
+    checkRange(offset, length);
+    roundTrip(Operation.GET_RANGE);
+
+    Entry entry = entry(key);
+    if (entry == null) return null;
+
+    int start = (int) Math.min(offset, entry.content.length);
+    int count = (int) Math.min(length, entry.content.length - start);
+    transfer(count);
+    bucket.bytesDownloaded.addAndGet(count);
+    return toCloudObject(key, entry, start, count);
+  }
+
+  /*
+   * Single round trip.
+   */
+  public Map<String, CloudObject> getAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    if (!bucket.batching) return super.getAll(keys);
+
+    roundTrip(Operation.GET_ALL);
+
+    HashMap<String, Entry> entries = new HashMap<String, Entry>(keys.size() * 2);
+    long length = 0;
+    bucket.lock.readLock().lock();
+    try {
+      Entry entry;
+      for (String key: keys) {
+        entry = bucket.objects.get(key);
+        if (entry == null) continue;
+        entries.put(key, entry);
+        length += entry.content.length;
+      }
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+
+    transfer(length);
+    bucket.bytesDownloaded.addAndGet(length);
+
+    HashMap<String, CloudObject> result = new HashMap<String, CloudObject>(entries.size() * 2);
+    for (Map.Entry<String, Entry> e: entries.entrySet())
+      result.put(e.getKey(), toCloudObject(e.getKey(), e.getValue()));
+    return result;
+  }
+
+  /*
+   * Single round trip.
+   */
+  public Map<String, CloudMetadata> getMetadataAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    if (!bucket.batching) return super.getMetadataAll(keys);
+
+    roundTrip(Operation.GET_METADATA_ALL);
+
+    HashMap<String, CloudMetadata> result = new HashMap<String, CloudMetadata>(keys.size() * 2);
+    bucket.lock.readLock().lock();
+    try {
+      Entry entry;
+      for (String key: keys) {
+        entry = bucket.objects.get(key);
+        if (entry != null) result.put(key, entry.meta);
+      }
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  /*
+   * Single round trip.
+   */
+  public Map<String, CloudMetadata> listWithMetadata(String prefix, Date timestamp)
+    throws IOException, CloudException
+  {
+    if (!bucket.batching) return super.listWithMetadata(prefix, timestamp);
+
+    roundTrip(Operation.LIST_WITH_METADATA);
+
+    if (prefix == null) prefix = "";
+    long since = (timestamp != null) ? timestamp.getTime() : Long.MIN_VALUE;
+    HashMap<String, CloudMetadata> result = new HashMap<String, CloudMetadata>();
+
+    bucket.lock.readLock().lock();
+    try {
+      for (Map.Entry<String, Entry> e: bucket.objects.tailMap(prefix).entrySet()) {
+        if (!e.getKey().startsWith(prefix)) break;
+        if (e.getValue().meta.getLastModified().getTime() > since)
+          result.put(e.getKey(), e.getValue().meta);
+      }
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+
+    return result;
+  }
+
+  public boolean supportsChangeFeed() {
+    return true;
+  }
+
+  public long getChangeSequence() throws IOException, CloudException {
+    roundTrip(Operation.CHANGE_SEQUENCE);
+
+    bucket.lock.readLock().lock();
+    try {
+      return bucket.changes.size();
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+  }
+
+  public CloudChange[] changesSince(long sequence, int limit) throws IOException, CloudException {
+    roundTrip(Operation.CHANGES_SINCE);
+
+    bucket.lock.readLock().lock();
+    try {
+      /* Sequence numbers are contiguous and start from 1 */
+      int from = (int) Math.max(0, Math.min(sequence, bucket.changes.size()));
+      int to = (int) Math.min((long) from + limit, bucket.changes.size());
+      List<CloudChange> page = bucket.changes.subList(from, to);
+      return page.toArray(new CloudChange[page.size()]);
+    } finally {
+      bucket.lock.readLock().unlock();
+    }
+  }
+
+  /* *********************************************************************
+   * Bucket state
+   ***********************************************************************/
+
+  /**
+   * Stored object: contents are never modified once stored, so they can be shared among the
+   * streams returned.
+   */
+  private static class Entry {
+    byte content[];
+    MemCloudMetadata meta;
+
+    Entry(byte content[], MemCloudMetadata meta) {
+      this.content = content;
+      this.meta = meta;
+    }
+  }
+
+  /**
+   * State shared by all the instances of the same bucket
+   */
+  private static class Bucket {
+    TreeMap<String, Entry> objects = new TreeMap<String, Entry>();
+    ArrayList<CloudChange> changes = new ArrayList<CloudChange>();
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* Settings arrays are replaced, never modified, when updated */
+    volatile LatencyDistribution latency[] = new LatencyDistribution[Operation.values().length];
+    volatile double errorRate[] = new double[Operation.values().length];
+    volatile long bandwidth = 0;
+    volatile boolean batching = true;
+    Random random = new Random();
+    long linkFree = 0;
+
+    AtomicLong calls[] = new AtomicLong[Operation.values().length];
+    AtomicLong errors[] = new AtomicLong[Operation.values().length];
+    AtomicLong bytesUploaded = new AtomicLong();
+    AtomicLong bytesDownloaded = new AtomicLong();
+
+    Bucket() {
+      Arrays.fill(latency, LatencyDistribution.NONE);
+      for (int i = 0; i < calls.length; i++) {
+        calls[i] = new AtomicLong();
+        errors[i] = new AtomicLong();
+      }
+    }
+
+    /**
+     * Records a change. Must be called holding the write lock.
+     *
+     * @return Sequence number of the change
+     */
+    long recordChange(String key, CloudChange.Type type, Date timestamp) {
+      long sequence = changes.size() + 1;
+      changes.add(new CloudChange(sequence, key, type, timestamp));
+      return sequence;
+    }
+  }
+}
@@ -0,0 +1,498 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mysql;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.utils.MD5InputStream;
+import cloudypeer.utils.RangeInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads and writes the values of a MySQL bucket split in fixed size chunks. <br>
+ * <br>
+ * Each chunk is a row of the chunk table holding its data and MD5, identified by the key, the
+ * generation and the index of the chunk. A new generation is drawn for every write, so the
+ * chunks of a value being written never mix with the ones of the current value: they become
+ * visible only when the metadata row, written last, points to their generation. The chunks of
+ * the replaced generation are deleted in the same transaction; chunks left behind by failed
+ * writes are removed by {@link #purgeOrphans}. <br>
+ * <br>
+ * Chunks are written with batched statements, a few chunks per batch, and read in parallel by
+ * up to <code>readThreads</code> connections, each chunk being checked against its MD5.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MySQLChunkStore {
+
+  static Logger logger = Logger.getLogger(MySQLChunkStore.class);
+
+  public static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  public static int DEFAULT_BATCH_SIZE = 4;
+  public static int DEFAULT_READ_THREADS = 4;
+
+  private static Random random = new Random();
+
+  private String table;
+  private String bucket;
+  private MySQLConnectionPool pool;
+  private int chunkSize;
+  private int batchSize;
+  private int readThreads;
+  private ThreadPoolExecutor readers;
+
+  /* *********************************************************************
+   * Constructor
+   ***********************************************************************/
+
+  /**
+   * Creates a new MySQLChunkStore instance.
+   *
+   * @param schema Schema of the bucket
+   * @param pool Pool providing the connections used by parallel reads
+   * @param chunkSize Size of the chunks written, or 0 to never split values (chunked values
+   * written by other peers are still read)
+   * @param batchSize Number of chunks sent by each batched statement
+   * @param readThreads Maximum number of connections used to read a value
+   */
+  public MySQLChunkStore(MySQLSchema schema, MySQLConnectionPool pool, int chunkSize,
+                         int batchSize, int readThreads)
+  {
+    if (chunkSize < 0) throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+    if (batchSize <= 0)
+      throw new IllegalArgumentException("Invalid chunk batch size: " + batchSize);
+    if (readThreads <= 0)
+      throw new IllegalArgumentException("Invalid chunk read threads: " + readThreads);
+
+    this.table = schema.getChunkTable();
+    this.bucket = schema.getBucket();
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    this.batchSize = batchSize;
+    this.readThreads = readThreads;
+
+    /* Threads are created on demand and expire when idle; when all are busy the reading thread
+       fetches the chunks itself */
+    final AtomicInteger count = new AtomicInteger();
+    readers = new ThreadPoolExecutor(0, readThreads, 60, TimeUnit.SECONDS,
+                                     new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                                         public Thread newThread(Runnable r) {
+                                           Thread t = new Thread(r, "MySQLChunkStore-reader-" +
+                                                                 count.incrementAndGet());
+                                           t.setDaemon(true);
+                                           return t;
+                                         }
+                                       }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the size of the chunks written.
+   *
+   * @return Chunk size in bytes, or 0 if values are never split
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  /**
+   * Draws a new generation number. Generation 0 is reserved to values not split in chunks.
+   *
+   * @return Non zero generation
+   */
+  public static long newGeneration() {
+    long generation;
+    do {
+      generation = random.nextLong();
+    } while (generation == 0);
+    return generation;
+  }
+
+  private static String md5(byte data[], int off, int len) throws IOException {
+    MD5InputStream in = new MD5InputStream(new ByteArrayInputStream(data, off, len));
+    byte buff[] = new byte[8192];
+    while (in.read(buff, 0, buff.length) >= 0);
+    in.close();
+    return in.getMD5();
+  }
+
+  /**
+   * Reads from the stream until the buffer is full or the stream ends.
+   *
+   * @return Number of bytes read
+   */
+  static int readFully(InputStream in, byte buff[]) throws IOException {
+    int read = 0;
+    int len;
+    while (read < buff.length && (len = in.read(buff, read, buff.length - read)) >= 0) {
+      read += len;
+    }
+    return read;
+  }
+
+  /* *********************************************************************
+   * Write methods
+   ***********************************************************************/
+
+  /**
+   * Returns the statement inserting a chunk.
+   */
+  private String insertQuery() {
+    return String.format("INSERT INTO %s (%s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?)",
+                         table, MySQLStorageCloud.FIELD_NAME_KEY,
+                         MySQLStorageCloud.FIELD_NAME_GENERATION,
+                         MySQLStorageCloud.FIELD_NAME_CHUNK_INDEX,
+                         MySQLStorageCloud.FIELD_NAME_CHUNK_MD5,
+                         MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED,
+                         MySQLStorageCloud.FIELD_NAME_CHUNK_DATA);
+  }
+
+  private void addChunk(PreparedStatement insert, String key, long generation, int index,
+                        byte data[], int off, int len, long timestamp)
+    throws SQLException, IOException
+  {
+    byte chunk[] = data;
+    if (off != 0 || len != data.length) {
+      chunk = new byte[len];
+      System.arraycopy(data, off, chunk, 0, len);
+    }
+
+    insert.setString(1, key);
+    insert.setLong(2, generation);
+    insert.setInt(3, index);
+    insert.setString(4, md5(chunk, 0, len));
+    insert.setLong(5, timestamp);
+    insert.setBytes(6, chunk);
+    insert.addBatch();
+  }
+
+  /**
+   * Writes the chunks of a value read from a stream, executing a batch every
+   * <code>batchSize</code> chunks. If the connection is in auto-commit mode every batch is
+   * committed on its own, so no transaction spans the whole value: the chunks stay invisible
+   * until a metadata row points to their generation. If an error occurs the chunks already
+   * written are deleted (best effort).
+   *
+   * @param conn Connection to use
+   * @param key Value key
+   * @param generation Generation of the chunks
+   * @param in Stream to read the value from (not closed)
+   * @param timestamp Write timestamp in seconds
+   * @return Number of chunks written
+   * @exception SQLException if an error occurs
+   * @exception IOException if an error occurs reading the stream
+   */
+  public int write(Connection conn, String key, long generation, InputStream in, long timestamp)
+    throws SQLException, IOException
+  {
+    PreparedStatement insert = conn.prepareStatement(insertQuery());
+    int index = 0;
+    try {
+      int pending = 0;
+      while (true) {
+        byte chunk[] = new byte[chunkSize];
+        int len = readFully(in, chunk);
+        if (len == 0) break;
+
+        addChunk(insert, key, generation, index++, chunk, 0, len, timestamp);
+        if (++pending == batchSize) {
+          insert.executeBatch();
+          pending = 0;
+        }
+        if (len < chunkSize) break;
+      }
+      if (pending > 0) insert.executeBatch();
+      logger.trace(String.format("Written %d chunks of %s", index, key));
+      return index;
+    } catch (SQLException e) {
+      discard(conn, key, generation);
+      throw e;
+    } catch (IOException e) {
+      discard(conn, key, generation);
+      throw e;
+    } finally {
+      try {
+        insert.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private void discard(Connection conn, String key, long generation) {
+    try {
+      if (conn.getAutoCommit()) delete(conn, key, generation);
+    } catch (SQLException e) {
+      logger.warn("Cannot delete the chunks of a failed write of " + key, e);
+    }
+  }
+
+  /**
+   * Returns the statement deleting a generation of chunks (key and generation parameters).
+   *
+   * @return Delete statement
+   */
+  public String deleteQuery() {
+    return String.format("DELETE FROM %s WHERE %s=? AND %s=?", table,
+                         MySQLStorageCloud.FIELD_NAME_KEY, MySQLStorageCloud.FIELD_NAME_GENERATION);
+  }
+
+  /**
+   * Deletes a generation of chunks.
+   *
+   * @param conn Connection to use
+   * @param key Value key
+   * @param generation Generation to delete
+   * @exception SQLException if an error occurs
+   */
+  public void delete(Connection conn, String key, long generation) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(deleteQuery());
+    try {
+      stmt.setString(1, key);
+      stmt.setLong(2, generation);
+      stmt.executeUpdate();
+    } finally {
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Deletes the chunks written before the specified time whose generation isn't referenced by
+   * any metadata row, left behind by interrupted writes. The time must leave enough margin for
+   * the writes in progress to complete.
+   *
+   * @param conn Connection to use
+   * @param before Time in seconds
+   * @return Number of chunks deleted
+   * @exception SQLException if an error occurs
+   */
+  public int purgeOrphans(Connection conn, long before) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(String.format(
+      "DELETE c FROM %s c LEFT JOIN %s b ON c.%3$s=b.%3$s AND c.%4$s=b.%4$s " +
+      "WHERE b.%3$s IS NULL AND c.%5$s < ?", table, bucket,
+      MySQLStorageCloud.FIELD_NAME_KEY, MySQLStorageCloud.FIELD_NAME_GENERATION,
+      MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED));
+    try {
+      stmt.setLong(1, before);
+      return stmt.executeUpdate();
+    } finally {
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /* *********************************************************************
+   * Read methods
+   ***********************************************************************/
+
+  /**
+   * Destination of the chunks fetched in parallel: a memory buffer or a spool file.
+   */
+  private static class Sink {
+    private byte buffer[];
+    private RandomAccessFile file;
+
+    Sink(long size, File spoolFile) throws IOException {
+      if (spoolFile == null) buffer = new byte[(int) size];
+      else file = new RandomAccessFile(spoolFile, "rw");
+    }
+
+    void write(long position, byte data[], int len) throws IOException {
+      if (buffer != null) {
+        System.arraycopy(data, 0, buffer, (int) position, len);
+      } else {
+        synchronized (file) {
+          file.seek(position);
+          file.write(data, 0, len);
+        }
+      }
+    }
+
+    void close() {
+      try {
+        if (file != null) file.close();
+      } catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Fetches a contiguous range of chunks, checking each one against its MD5.
+   */
+  private void fetch(String key, long generation, int chunkSize, int first, int from, int to,
+                     Sink sink) throws SQLException, IOException
+  {
+    String query = String.format("SELECT %s, %s, %s FROM %s WHERE %s=? AND %s=? AND %1$s " +
+                                 "BETWEEN ? AND ? ORDER BY %1$s",
+                                 MySQLStorageCloud.FIELD_NAME_CHUNK_INDEX,
+                                 MySQLStorageCloud.FIELD_NAME_CHUNK_MD5,
+                                 MySQLStorageCloud.FIELD_NAME_CHUNK_DATA, table,
+                                 MySQLStorageCloud.FIELD_NAME_KEY,
+                                 MySQLStorageCloud.FIELD_NAME_GENERATION);
+
+    Connection conn = pool.getConnection();
+    PreparedStatement stmt = null;
+    ResultSet result = null;
+    try {
+      stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      /* Rows are streamed instead of being fetched all at once */
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      stmt.setString(1, key);
+      stmt.setLong(2, generation);
+      stmt.setInt(3, from);
+      stmt.setInt(4, to);
+      result = stmt.executeQuery();
+
+      int expected = from;
+      while (result.next()) {
+        int index = result.getInt(1);
+        byte data[] = result.getBytes(3);
+        if (index != expected)
+          throw new CloudException(String.format("Missing chunk %d of %s", expected, key));
+        if (!md5(data, 0, data.length).equals(result.getString(2)))
+          throw new CloudException(String.format("Corrupted chunk %d of %s", index, key));
+
+        sink.write((long) (index - first) * chunkSize, data, data.length);
+        expected++;
+      }
+      if (expected <= to)
+        throw new CloudException(String.format("Missing chunk %d of %s", expected, key));
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (stmt != null) stmt.close();
+      } catch (SQLException e) {}
+
+      try {
+        conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Reads a range of a chunked value. Only the chunks overlapping the range are fetched, in
+   * parallel, and kept in memory if they don't exceed the buffer threshold, otherwise in a spool
+   * file. No connection must be held by the caller, to avoid exhausting the pool.
+   *
+   * @param key Value key
+   * @param generation Generation of the chunks, as read from the metadata row
+   * @param chunkSize Chunk size of the value, as read from the metadata row
+   * @param offset Index of the first byte to read
+   * @param length Number of bytes to read, within the value length
+   * @param bufferThreshold Ranges longer than this number of bytes are spooled to a file
+   * @param spoolDirectory Directory of the spool files, or null for the default temporary
+   * directory
+   * @return Stream over the requested range
+   * @exception IOException if an error occurs
+   * @exception CloudException if a chunk is missing or corrupted, or a query fails
+   */
+  public MySQLCloudObjectInputStream read(final String key, final long generation,
+                                          final int chunkSize, long offset, long length,
+                                          long bufferThreshold, File spoolDirectory)
+    throws IOException, CloudException
+  {
+    if (length <= 0) return new MySQLCloudObjectInputStream(new ByteArrayInputStream(new byte[0]),
+                                                            null, null);
+
+    final int first = (int) (offset / chunkSize);
+    int last = (int) ((offset + length - 1) / chunkSize);
+    long base = (long) first * chunkSize;
+    long size = (long) (last - first + 1) * chunkSize;
+
+    File spoolFile = null;
+    if (size > bufferThreshold || size > Integer.MAX_VALUE)
+      spoolFile = File.createTempFile("cloudypeer-mysql", ".value", spoolDirectory);
+
+    final Sink sink;
+    try {
+      sink = new Sink(size, spoolFile);
+    } catch (IOException e) {
+      if (spoolFile != null) spoolFile.delete();
+      throw e;
+    }
+
+    /* Contiguous ranges of chunks, one per reader: the first one is fetched by this thread */
+    int chunks = last - first + 1;
+    int tasks = Math.min(readThreads, chunks);
+    ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int t = 1; t < tasks; t++) {
+      final int from = first + (int) ((long) chunks * t / tasks);
+      final int to = first + (int) ((long) chunks * (t + 1) / tasks) - 1;
+      futures.add(readers.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            fetch(key, generation, chunkSize, first, from, to, sink);
+            return null;
+          }
+        }));
+    }
+
+    /* Every reader is waited for, even after a failure, before discarding the sink */
+    Throwable error = null;
+    try {
+      fetch(key, generation, chunkSize, first, first, first + chunks / tasks - 1, sink);
+    } catch (Throwable e) {
+      error = e;
+    }
+    for (Future<Void> future: futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        if (error == null) error = e;
+      } catch (ExecutionException e) {
+        if (error == null) error = e.getCause();
+      }
+    }
+    sink.close();
+
+    if (error != null) {
+      if (spoolFile != null) spoolFile.delete();
+      if (error instanceof CloudException) throw (CloudException) error;
+      if (error instanceof IOException) throw (IOException) error;
+      throw new CloudException("Error reading the chunks of " + key, error);
+    }
+
+    InputStream in;
+    if (spoolFile == null) {
+      in = new ByteArrayInputStream(sink.buffer, (int) (offset - base), (int) length);
+    } else {
+      in = new RangeInputStream(new BufferedInputStream(new FileInputStream(spoolFile)),
+                                offset - base, length);
+    }
+    return new MySQLCloudObjectInputStream(in, spoolFile, pool);
+  }
+}
@@ -21,14 +21,14 @@ import cloudypeer.cloud.CloudURI;
 public class MySQLCloudObject implements CloudObject {
 
   private MySQLCloudURI objectURI;
-  private MySQLCloudObjectInputStream in;
+  private InputStream in;
   private MySQLCloudMetadata meta;
 
   /**
    * Creates a new <code>MySQLCloudObject</code> instance.
    *
    */
-  public MySQLCloudObject(CloudURI objectURI, MySQLCloudObjectInputStream in, MySQLCloudMetadata meta)
+  public MySQLCloudObject(CloudURI objectURI, InputStream in, MySQLCloudMetadata meta)
     throws URISyntaxException
   {
     if (objectURI == null)
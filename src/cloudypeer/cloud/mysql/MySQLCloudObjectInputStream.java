@@ -5,51 +5,240 @@
  */
 package cloudypeer.cloud.mysql;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.ResultSet;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.SQLException;
 
+import org.apache.log4j.Logger;
+
 /**
- * InputStream wrapper which get the InputStream of the MySQL cloud value on demand.
+ * InputStream wrapper which get the InputStream of the MySQL cloud value on demand. <br>
+ * <br>
+ * The stream works in one of two modes:
+ * <ul>
+ *   <li><b>holding</b>: the value is read straight from the result set, so the connection,
+ *   statement and result set are kept open until the stream is closed;</li>
+ *   <li><b>releasing</b>: the value is read as soon as the stream is created, buffered in memory
+ *   up to a threshold and spooled to a temporary file beyond it, and the database resources are
+ *   released immediately. A slow reader doesn't hold a pooled connection for the whole
+ *   transfer.</li>
+ * </ul>
+ * Streams must be closed to return their connection or delete their temporary file. Streams
+ * created with a pool are tracked by it: if one is collected without being closed, the pool
+ * reports the leak and releases its resources (see {@link MySQLConnectionPool#track}).
  *
  * @author Andrea Zito <zito.andrea@gmail.com>
  * @version 1.0
  */
 public class MySQLCloudObjectInputStream extends InputStream {
 
-  private Connection conn = null;
-  private Statement stmt = null;
-  private ResultSet result = null;
+  static Logger logger = Logger.getLogger(MySQLCloudObjectInputStream.class);
+
+  /* *********************************************************************
+   * Utility classes
+   ***********************************************************************/
+
+  /**
+   * Resources released when the stream is closed. They're kept apart from the stream so that
+   * the pool can release them once a leaked stream has been collected.
+   */
+  private static class Resources implements Closeable {
+    Connection conn = null;
+    Statement stmt = null;
+    ResultSet result = null;
+    InputStream in = null;
+    File spoolFile = null;
+
+    public void close() {
+      closeResources(in, result, stmt, conn);
+      if (spoolFile != null && !spoolFile.delete() && spoolFile.exists())
+        logger.warn("Cannot delete spool file " + spoolFile);
+    }
+  }
+
+  private Resources resources = new Resources();
   private InputStream in = null;
+  private MySQLConnectionPool pool = null;
+  private Object handle = null;
+  private volatile boolean closed = false;
 
-  public MySQLCloudObjectInputStream(Connection conn, Statement stmt, ResultSet result, InputStream in) {
-    this.conn = conn;
-    this.stmt = stmt;
-    this.result = result;
+  /**
+   * Creates a stream in holding mode.
+   *
+   * @param conn Connection, closed along with the stream
+   * @param stmt Statement, closed along with the stream
+   * @param result Result set, closed along with the stream
+   * @param in Value stream
+   * @param pool Pool tracking the stream until it's closed, or null
+   */
+  public MySQLCloudObjectInputStream(Connection conn, Statement stmt, ResultSet result,
+                                     InputStream in, MySQLConnectionPool pool)
+  {
+    resources.conn = conn;
+    resources.stmt = stmt;
+    resources.result = result;
+    resources.in = in;
     this.in = in;
+    track(pool);
   }
 
-  public void close() throws IOException {
+  /**
+   * Creates a stream in releasing mode. The value is read and the connection, statement and
+   * result set are closed before returning, even if an error occurs.
+   *
+   * @param conn Connection to close
+   * @param stmt Statement to close
+   * @param result Result set to close
+   * @param in Value stream, or null for an empty value
+   * @param bufferThreshold Values longer than this number of bytes are spooled to a file
+   * @param spoolDirectory Directory of the spool files, or null for the default temporary
+   * directory
+   * @param pool Pool tracking the stream until it's closed if the value is spooled, or null
+   * @exception IOException if an error occurs reading or spooling the value
+   */
+  public MySQLCloudObjectInputStream(Connection conn, Statement stmt, ResultSet result,
+                                     InputStream in, long bufferThreshold, File spoolDirectory,
+                                     MySQLConnectionPool pool)
+    throws IOException
+  {
     try {
-      in.close();
+      this.in = drain(in, bufferThreshold, spoolDirectory);
+    } finally {
+      closeResources(in, result, stmt, conn);
+    }
+    resources.in = this.in;
+    if (resources.spoolFile != null) track(pool);
+  }
+
+  /**
+   * Creates a stream over a value already read from the database.
+   *
+   * @param in Value stream
+   * @param spoolFile File holding the value, deleted when the stream is closed, or null
+   * @param pool Pool tracking the stream until it's closed if the value is spooled, or null
+   */
+  public MySQLCloudObjectInputStream(InputStream in, File spoolFile, MySQLConnectionPool pool) {
+    this.in = in;
+    resources.in = in;
+    resources.spoolFile = spoolFile;
+    if (spoolFile != null) track(pool);
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Checks whether the stream keeps a database connection open.
+   *
+   * @return True if in holding mode and not yet closed
+   */
+  public boolean isHoldingConnection() {
+    return resources.conn != null && !closed;
+  }
+
+  /**
+   * Checks whether the value has been spooled to a temporary file.
+   *
+   * @return True if the value is read from a file
+   */
+  public boolean isSpooled() {
+    return resources.spoolFile != null;
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private void track(MySQLConnectionPool pool) {
+    if (pool == null) return;
+    this.pool = pool;
+    handle = pool.track(this, resources);
+  }
+
+  /**
+   * Reads the whole value, keeping it in memory up to the threshold and spooling it to a
+   * temporary file beyond it.
+   */
+  private InputStream drain(InputStream value, long bufferThreshold, File spoolDirectory)
+    throws IOException
+  {
+    if (value == null) return new ByteArrayInputStream(new byte[0]);
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte buff[] = new byte[8192];
+    int len;
+    while ((len = value.read(buff, 0, buff.length)) >= 0) {
+      buffer.write(buff, 0, len);
+      if (buffer.size() > bufferThreshold) break;
+    }
+    if (len < 0) return new ByteArrayInputStream(buffer.toByteArray());
+
+    File spoolFile = File.createTempFile("cloudypeer-mysql", ".value", spoolDirectory);
+    OutputStream out = new FileOutputStream(spoolFile);
+    try {
+      buffer.writeTo(out);
+      buffer = null;
+      while ((len = value.read(buff, 0, buff.length)) >= 0) {
+        out.write(buff, 0, len);
+      }
+    } catch (IOException e) {
+      try {
+        out.close();
+      } catch (IOException ex) {}
+      spoolFile.delete();
+      throw e;
+    }
+    out.close();
+    resources.spoolFile = spoolFile;
+
+    logger.trace("Spooled value to " + spoolFile);
+    return new BufferedInputStream(new FileInputStream(spoolFile));
+  }
+
+  private static void closeResources(InputStream in, ResultSet result, Statement stmt,
+                                     Connection conn)
+  {
+    try {
+      if (in != null) in.close();
     } catch (IOException e) {}
 
     try {
-      result.close();
+      if (result != null) result.close();
     } catch (SQLException e) {}
 
     try {
-      stmt.close();
+      if (stmt != null) stmt.close();
     } catch (SQLException e) {}
 
     try {
-      conn.close();
+      if (conn != null) conn.close();
     } catch (SQLException e) {}
   }
 
+  /* *********************************************************************
+   * InputStream methods
+   ***********************************************************************/
+
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    if (pool != null) pool.untrack(handle);
+    resources.close();
+  }
+
   public int read() throws IOException {
     if (in == null) throw new IllegalStateException("Not yet opened");
     return in.read();
@@ -65,6 +254,11 @@ public class MySQLCloudObjectInputStream extends InputStream {
     return in.read(b, off, len);
   }
 
+  public int available() throws IOException {
+    if (in == null) throw new IllegalStateException("Not yet opened");
+    return in.available();
+  }
+
   public boolean markSupported() {
     if (in == null) throw new IllegalStateException("Not yet opened");
     return in.markSupported();
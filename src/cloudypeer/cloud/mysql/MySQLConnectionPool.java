@@ -0,0 +1,612 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mysql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloudypeer.cloud.CloudException;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections. <br>
+ * <ul>
+ *   <li>At most <code>maxActive</code> connections are open at once; callers exceeding the bound
+ *   wait up to <code>maxWait</code> milliseconds for a connection to be returned.</li>
+ *   <li>Connections idle for more than <code>validationInterval</code> milliseconds are checked
+ *   with <code>SELECT 1</code> before being handed out.</li>
+ *   <li>Connections idle for more than <code>minEvictableIdleTime</code> milliseconds are closed
+ *   in background; at most <code>maxIdle</code> connections are kept idle.</li>
+ * </ul>
+ * Connections handed out by the pool are proxies: closing them returns the underlying
+ * connection to the pool, rolling back any pending transaction and restoring auto-commit.<br>
+ * <br>
+ * Objects holding resources which must be closed explicitly (e.g. a connection kept open by an
+ * object stream) can be {@link #track tracked} by the pool: if such an object is collected
+ * without being closed, the leak is reported and its resources are released the next time a
+ * connection is borrowed or idle connections are evicted.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MySQLConnectionPool {
+
+  static Logger logger = Logger.getLogger(MySQLConnectionPool.class);
+
+  public static final String PROPERTY_MAX_ACTIVE = "pool.maxActive";
+  public static final String PROPERTY_MAX_IDLE = "pool.maxIdle";
+  public static final String PROPERTY_MAX_WAIT = "pool.maxWait";
+  public static final String PROPERTY_VALIDATION_INTERVAL = "pool.validationInterval";
+  public static final String PROPERTY_MIN_EVICTABLE_IDLE_TIME = "pool.minEvictableIdleTime";
+
+  public static int DEFAULT_MAX_ACTIVE = 8;
+  public static int DEFAULT_MAX_IDLE = 8;
+  public static long DEFAULT_MAX_WAIT = 10000;
+  public static long DEFAULT_VALIDATION_INTERVAL = 30000;
+  public static long DEFAULT_MIN_EVICTABLE_IDLE_TIME = 60000;
+
+  /**
+   * Whether the stack trace of the code creating a tracked object is recorded, to be reported
+   * if the object leaks. Recording it has a cost, so it's meant for debugging.
+   */
+  public static boolean TRACK_LEAKS = false;
+
+  private static final String VALIDATION_QUERY = "SELECT 1";
+
+  private static final ScheduledExecutorService evictor =
+    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "MySQLConnectionPool-evictor");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /* *********************************************************************
+   * Utility classes
+   ***********************************************************************/
+
+  /**
+   * Physical connection kept by the pool
+   */
+  private static class PooledConnection {
+    final Connection connection;
+    long lastUsed;
+
+    PooledConnection(Connection connection) {
+      this.connection = connection;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Reference to a tracked object, enqueued once the object has been collected. It holds the
+   * resources of the object, not the object itself, so they can still be released.
+   */
+  private static class LeakReference extends PhantomReference<Object> {
+    final Closeable resources;
+    final String owner;
+    final Throwable opener;
+
+    LeakReference(Object owner, Closeable resources, ReferenceQueue<Object> queue) {
+      super(owner, queue);
+      this.resources = resources;
+      this.owner = owner.getClass().getSimpleName();
+      this.opener = TRACK_LEAKS ? new Throwable("Opened here") : null;
+    }
+  }
+
+  /**
+   * Connection proxy returning the physical connection to the pool on close
+   */
+  private class ConnectionHandler implements InvocationHandler {
+    private PooledConnection pooled;
+
+    ConnectionHandler(PooledConnection pooled) {
+      this.pooled = pooled;
+    }
+
+    public Object invoke(Object proxy, Method method, Object args[]) throws Throwable {
+      String name = method.getName();
+      synchronized (this) {
+        if (name.equals("close")) {
+          if (pooled != null) release(pooled);
+          pooled = null;
+          return null;
+        }
+        if (name.equals("isClosed") && pooled == null) return Boolean.TRUE;
+        if (name.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+        if (name.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+        if (name.equals("toString")) return "Pooled connection " + pooled;
+        if (pooled == null) throw new SQLException("Connection already returned to the pool");
+      }
+
+      try {
+        return method.invoke(pooled.connection, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private String url;
+  private String username;
+  private String password;
+
+  private int maxActive;
+  private volatile int maxIdle = DEFAULT_MAX_IDLE;
+  private volatile long maxWait = DEFAULT_MAX_WAIT;
+  private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+  private volatile long minEvictableIdleTime = DEFAULT_MIN_EVICTABLE_IDLE_TIME;
+
+  /**
+   * Permits to open or borrow a connection
+   */
+  private Semaphore permits;
+
+  /**
+   * Idle connections, most recently used first
+   */
+  private LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+  private ScheduledFuture<?> evictionTask;
+  private volatile boolean closed = false;
+
+  private AtomicInteger active = new AtomicInteger();
+  private AtomicLong borrowed = new AtomicLong();
+  private AtomicLong created = new AtomicLong();
+  private AtomicLong destroyed = new AtomicLong();
+  private AtomicLong validationFailures = new AtomicLong();
+  private AtomicLong timeouts = new AtomicLong();
+  private AtomicLong totalWaitTime = new AtomicLong();
+  private AtomicLong maxWaitTime = new AtomicLong();
+  private AtomicLong leaked = new AtomicLong();
+
+  /**
+   * References of the tracked objects not yet closed, kept here so they stay reachable
+   */
+  private Set<LeakReference> tracked = Collections.synchronizedSet(new HashSet<LeakReference>());
+  private ReferenceQueue<Object> leaks = new ReferenceQueue<Object>();
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>MySQLConnectionPool</code> instance.
+   *
+   * @param url JDBC URL
+   * @param username Database user
+   * @param password Database password
+   * @param conf Pool configuration (see the <code>PROPERTY_*</code> constants), or null to use
+   * the default values
+   */
+  public MySQLConnectionPool(String url, String username, String password, Properties conf) {
+    this.url = url;
+    this.username = username;
+    this.password = password;
+
+    maxActive = DEFAULT_MAX_ACTIVE;
+    if (conf != null) {
+      maxActive = (int) getLong(conf, PROPERTY_MAX_ACTIVE, DEFAULT_MAX_ACTIVE);
+      maxIdle = (int) getLong(conf, PROPERTY_MAX_IDLE, DEFAULT_MAX_IDLE);
+      maxWait = getLong(conf, PROPERTY_MAX_WAIT, DEFAULT_MAX_WAIT);
+      validationInterval = getLong(conf, PROPERTY_VALIDATION_INTERVAL, DEFAULT_VALIDATION_INTERVAL);
+      minEvictableIdleTime = getLong(conf, PROPERTY_MIN_EVICTABLE_IDLE_TIME,
+                                     DEFAULT_MIN_EVICTABLE_IDLE_TIME);
+    }
+    if (maxActive <= 0) throw new IllegalArgumentException("Invalid pool size: " + maxActive);
+
+    permits = new Semaphore(maxActive, true);
+    scheduleEviction();
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the maximum number of open connections.
+   *
+   * @return Max active connections
+   */
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  /**
+   * Returns the maximum time a caller waits for a connection.
+   *
+   * @return Max wait in milliseconds
+   */
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * Sets the maximum time a caller waits for a connection.
+   *
+   * @param maxWait Max wait in milliseconds
+   */
+  public void setMaxWait(long maxWait) {
+    this.maxWait = maxWait;
+  }
+
+  /**
+   * Returns the number of connections currently handed out.
+   *
+   * @return Active connections
+   */
+  public int getActive() {
+    return active.get();
+  }
+
+  /**
+   * Returns the number of idle connections.
+   *
+   * @return Idle connections
+   */
+  public synchronized int getIdle() {
+    return idle.size();
+  }
+
+  /**
+   * Returns the number of connections handed out since the pool creation.
+   *
+   * @return Borrowed connections
+   */
+  public long getBorrowed() {
+    return borrowed.get();
+  }
+
+  /**
+   * Returns the number of physical connections opened.
+   *
+   * @return Created connections
+   */
+  public long getCreated() {
+    return created.get();
+  }
+
+  /**
+   * Returns the number of physical connections closed (evicted, invalid or in excess).
+   *
+   * @return Destroyed connections
+   */
+  public long getDestroyed() {
+    return destroyed.get();
+  }
+
+  /**
+   * Returns the number of idle connections found broken by the validation query.
+   *
+   * @return Validation failures
+   */
+  public long getValidationFailures() {
+    return validationFailures.get();
+  }
+
+  /**
+   * Returns the number of requests which didn't get a connection within the max wait.
+   *
+   * @return Timeouts
+   */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /**
+   * Returns the total time spent waiting for a free connection.
+   *
+   * @return Total wait time in milliseconds
+   */
+  public long getTotalWaitTime() {
+    return totalWaitTime.get() / 1000000;
+  }
+
+  /**
+   * Returns the longest time spent waiting for a free connection.
+   *
+   * @return Max wait time in milliseconds
+   */
+  public long getMaxWaitTime() {
+    return maxWaitTime.get() / 1000000;
+  }
+
+  /**
+   * Returns the average time spent waiting for a connection.
+   *
+   * @return Average wait time in milliseconds
+   */
+  public double getAverageWaitTime() {
+    long n = borrowed.get();
+    return (n > 0) ? totalWaitTime.get() / 1000000.0 / n : 0;
+  }
+
+  /**
+   * Returns the number of tracked objects collected without being closed.
+   *
+   * @return Leaked objects
+   */
+  public long getLeaked() {
+    return leaked.get();
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static long getLong(Properties conf, String name, long defaultValue) {
+    String value = conf.getProperty(name);
+    if (value == null) return defaultValue;
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  /**
+   * Schedules the eviction of idle connections. The task doesn't keep the pool reachable, so
+   * that unused pools can be collected.
+   */
+  private void scheduleEviction() {
+    final WeakReference<MySQLConnectionPool> ref = new WeakReference<MySQLConnectionPool>(this);
+    long period = Math.max(1000, minEvictableIdleTime / 2);
+
+    evictionTask = evictor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          MySQLConnectionPool pool = ref.get();
+          if (pool == null) throw new RuntimeException("Pool collected: cancelling eviction");
+          pool.evictIdle();
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private void evictIdle() {
+    releaseLeaks();
+
+    LinkedList<PooledConnection> evicted = new LinkedList<PooledConnection>();
+    long threshold = System.currentTimeMillis() - minEvictableIdleTime;
+
+    synchronized (this) {
+      Iterator<PooledConnection> i = idle.iterator();
+      while (i.hasNext()) {
+        PooledConnection c = i.next();
+        if (c.lastUsed < threshold) {
+          i.remove();
+          evicted.add(c);
+        }
+      }
+    }
+
+    for (PooledConnection c: evicted) destroy(c);
+    if (evicted.size() > 0) logger.debug("Evicted " + evicted.size() + " idle connections");
+  }
+
+  /**
+   * Reports and releases the resources of the tracked objects collected without being closed.
+   */
+  private void releaseLeaks() {
+    LeakReference ref;
+    while ((ref = (LeakReference) leaks.poll()) != null) {
+      if (!tracked.remove(ref)) continue;
+      leaked.incrementAndGet();
+
+      String message = ref.owner + " collected without being closed: releasing its resources";
+      if (ref.opener != null) logger.warn(message, ref.opener);
+      else logger.warn(message + " (set TRACK_LEAKS to find where it was opened)");
+      try {
+        ref.resources.close();
+      } catch (IOException e) {
+        logger.debug("Error releasing leaked resources", e);
+      }
+    }
+  }
+
+  private void destroy(PooledConnection c) {
+    destroyed.incrementAndGet();
+    try {
+      c.connection.close();
+    } catch (SQLException e) {}
+  }
+
+  private boolean validate(PooledConnection c) {
+    Statement stmt = null;
+    try {
+      stmt = c.connection.createStatement();
+      stmt.execute(VALIDATION_QUERY);
+      return true;
+    } catch (SQLException e) {
+      logger.debug("Pooled connection failed validation", e);
+      return false;
+    } finally {
+      if (stmt != null) try { stmt.close(); } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Returns an idle connection (validated if needed) or null if none is available.
+   */
+  private PooledConnection takeIdle() {
+    while (true) {
+      PooledConnection c;
+      synchronized (this) {
+        c = idle.poll();
+      }
+      if (c == null) return null;
+
+      if (System.currentTimeMillis() - c.lastUsed < validationInterval || validate(c)) return c;
+
+      validationFailures.incrementAndGet();
+      destroy(c);
+    }
+  }
+
+  private void release(PooledConnection c) {
+    active.decrementAndGet();
+    try {
+      boolean reusable = !closed;
+      try {
+        if (reusable && !c.connection.getAutoCommit()) {
+          c.connection.rollback();
+          c.connection.setAutoCommit(true);
+        }
+        reusable = reusable && !c.connection.isClosed();
+      } catch (SQLException e) {
+        reusable = false;
+      }
+
+      if (reusable) {
+        c.lastUsed = System.currentTimeMillis();
+        synchronized (this) {
+          if (idle.size() < maxIdle) {
+            idle.addFirst(c);
+            return;
+          }
+        }
+      }
+
+      destroy(c);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Borrows a connection from the pool. The connection must be closed to return it.
+   *
+   * @return Connection
+   * @exception CloudException if no connection is available within the max wait or the
+   * connection can't be opened
+   */
+  public Connection getConnection() throws CloudException {
+    if (closed) throw new CloudException("Connection pool closed");
+    releaseLeaks();
+
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+        timeouts.incrementAndGet();
+        throw new CloudException(String.format("No database connection available after %d ms " +
+                                               "(%d active)", maxWait, active.get()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CloudException("Interrupted while waiting for a database connection", e);
+    }
+
+    long wait = System.nanoTime() - start;
+    totalWaitTime.addAndGet(wait);
+    long max;
+    while ((max = maxWaitTime.get()) < wait && !maxWaitTime.compareAndSet(max, wait));
+
+    PooledConnection c;
+    try {
+      c = takeIdle();
+      if (c == null) {
+        c = new PooledConnection(DriverManager.getConnection(url, username, password));
+        created.incrementAndGet();
+      }
+    } catch (SQLException e) {
+      permits.release();
+      throw new CloudException("Cannot create connection to the database", e);
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+
+    active.incrementAndGet();
+    borrowed.incrementAndGet();
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                               new Class<?>[] {Connection.class},
+                                               new ConnectionHandler(c));
+  }
+
+  /**
+   * Tracks an object holding resources which must be released by closing it. If the object is
+   * collected before {@link #untrack} is called, the leak is reported and the resources are
+   * closed by the pool. The resources must not refer to the object, otherwise it's never
+   * collected.
+   *
+   * @param owner Object to track
+   * @param resources Resources of the object
+   * @return Handle to pass to {@link #untrack} once the object is closed
+   */
+  public Object track(Object owner, Closeable resources) {
+    LeakReference ref = new LeakReference(owner, resources, leaks);
+    tracked.add(ref);
+    return ref;
+  }
+
+  /**
+   * Stops tracking an object, because it has been closed.
+   *
+   * @param handle Handle returned by {@link #track}
+   */
+  public void untrack(Object handle) {
+    LeakReference ref = (LeakReference) handle;
+    tracked.remove(ref);
+    ref.clear();
+  }
+
+  /**
+   * Closes the idle connections and stops the pool. Connections still in use are closed when
+   * returned.
+   */
+  public void close() {
+    closed = true;
+    evictionTask.cancel(false);
+
+    LinkedList<PooledConnection> toClose;
+    synchronized (this) {
+      toClose = new LinkedList<PooledConnection>(idle);
+      idle.clear();
+    }
+    for (PooledConnection c: toClose) destroy(c);
+  }
+
+  public String toString() {
+    return String.format("active=%d idle=%d borrowed=%d created=%d destroyed=%d timeouts=%d " +
+                         "avgWait=%.2fms maxWait=%dms", getActive(), getIdle(), getBorrowed(),
+                         getCreated(), getDestroyed(), getTimeouts(), getAverageWaitTime(),
+                         getMaxWaitTime());
+  }
+}
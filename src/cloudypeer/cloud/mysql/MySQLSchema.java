@@ -0,0 +1,674 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.mysql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import cloudypeer.cloud.CloudException;
+import org.apache.log4j.Logger;
+
+/**
+ * Creates and migrates the tables backing a MySQL bucket. <br>
+ * <br>
+ * The layout of a bucket is recorded in the {@value #VERSION_TABLE} table, shared by all the
+ * buckets of a database. The following layouts exist:
+ * <ul>
+ *   <li><b>legacy</b>: a single table holding metadata and values, as created by hand before
+ *   schema management was introduced. It's used as it is, unless migration is enabled.</li>
+ *   <li><b>version 1</b>: the metadata table, named after the bucket, is indexed on (key,
+ *   timestamp) and on the timestamp alone, while the values are kept in a separate table
+ *   (suffix {@value #BLOB_SUFFIX}) so that listings and metadata scans never read value
+ *   pages.</li>
+ *   <li><b>version 2</b>: as version 1, with large values split in fixed size chunks kept in a
+ *   further table (suffix {@value #CHUNK_SUFFIX}, see {@link MySQLChunkStore}). The metadata
+ *   table records the chunk size and the generation of the chunks of each value. Version 1
+ *   buckets are upgraded in place when table creation is enabled: values already stored stay in
+ *   the blob table.</li>
+ * </ul>
+ * Settings (the <code>schema.*</code> properties of the MySQL cloud configuration):
+ * <ul>
+ *   <li><code>schema.create</code> (default true): creates the missing tables</li>
+ *   <li><code>schema.migrate</code> (default false): migrates a legacy bucket to the current
+ *   layout. The values are copied to the new table and the old column dropped: the migration
+ *   must be performed while no other peer is writing the bucket.</li>
+ *   <li><code>schema.changelog</code> (default true): creates the changelog table along with a
+ *   new bucket</li>
+ *   <li><code>schema.changelogPartitionDays</code> (default 0): if greater than 0, new changelog
+ *   tables are partitioned by time, one partition every this many days, so that old changes are
+ *   dropped a partition at a time (see {@link MySQLStorageCloud#trimChangelog})</li>
+ *   <li><code>schema.keyLength</code> (default 255): maximum key length of new tables</li>
+ *   <li><code>schema.explain</code> (default true): checks the plans of the main queries with
+ *   EXPLAIN once the schema is ready, logging a warning for each full table scan</li>
+ * </ul>
+ * Setups performed concurrently by several peers are serialized with a named lock.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MySQLSchema {
+
+  static Logger logger = Logger.getLogger(MySQLSchema.class);
+
+  public static final String PROPERTY_CREATE = "schema.create";
+  public static final String PROPERTY_MIGRATE = "schema.migrate";
+  public static final String PROPERTY_CHANGELOG = "schema.changelog";
+  public static final String PROPERTY_CHANGELOG_PARTITION_DAYS = "schema.changelogPartitionDays";
+  public static final String PROPERTY_KEY_LENGTH = "schema.keyLength";
+  public static final String PROPERTY_EXPLAIN = "schema.explain";
+
+  public static final String VERSION_TABLE = "cloudypeer_schema";
+  public static final String BLOB_SUFFIX = "_blob";
+  public static final String CHUNK_SUFFIX = "_chunk";
+  public static final String INDEX_KEY_TIMESTAMP = "cloud_key_timestamp";
+  public static final String INDEX_TIMESTAMP = "cloud_timestamp_idx";
+  public static final String PARTITION_MAX = "pmax";
+
+  /**
+   * Layout version of the buckets created or migrated by this class
+   */
+  public static final int CURRENT_VERSION = 2;
+
+  public static int DEFAULT_KEY_LENGTH = 255;
+
+  /**
+   * Number of changelog partitions kept ready ahead of the current one
+   */
+  public static int PARTITIONS_AHEAD = 4;
+
+  /**
+   * Full scans on tables estimated to hold fewer rows than this are not reported by EXPLAIN
+   * checks: the optimizer rightly prefers them on small tables
+   */
+  public static int EXPLAIN_MIN_ROWS = 1000;
+
+  /**
+   * Seconds to wait for the setup lock held by another peer
+   */
+  public static int LOCK_TIMEOUT = 60;
+
+  private static final long DAY = 24 * 60 * 60;
+
+  private String bucket;
+  private boolean create;
+  private boolean migrate;
+  private boolean changelog;
+  private int changelogPartitionDays;
+  private int keyLength;
+  private boolean explain;
+
+  /**
+   * Layout version of the bucket, or 0 for the legacy layout
+   */
+  private int version = 0;
+
+  /* *********************************************************************
+   * Constructor
+   ***********************************************************************/
+
+  /**
+   * Creates a new MySQLSchema instance.
+   *
+   * @param bucket Bucket name (a plain identifier)
+   * @param conf Schema configuration (see the <code>PROPERTY_*</code> constants), or null to use
+   * the default values
+   */
+  public MySQLSchema(String bucket, Properties conf) {
+    if (conf == null) conf = new Properties();
+
+    this.bucket = bucket;
+    create = getBoolean(conf, PROPERTY_CREATE, true);
+    migrate = getBoolean(conf, PROPERTY_MIGRATE, false);
+    changelog = getBoolean(conf, PROPERTY_CHANGELOG, true);
+    changelogPartitionDays = getInt(conf, PROPERTY_CHANGELOG_PARTITION_DAYS, 0);
+    keyLength = getInt(conf, PROPERTY_KEY_LENGTH, DEFAULT_KEY_LENGTH);
+    explain = getBoolean(conf, PROPERTY_EXPLAIN, true);
+
+    if (changelogPartitionDays < 0)
+      throw new IllegalArgumentException("Invalid changelog partition days: " +
+                                         changelogPartitionDays);
+    if (keyLength <= 0) throw new IllegalArgumentException("Invalid key length: " + keyLength);
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the name of the bucket, that is of its metadata table.
+   *
+   * @return Bucket name
+   */
+  public String getBucket() {
+    return bucket;
+  }
+
+  /**
+   * Returns the layout version of the bucket.
+   *
+   * @return Layout version, or 0 for the legacy layout
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Checks if values are kept in a separate table.
+   *
+   * @return True if values are in the table returned by {@link #getBlobTable}
+   */
+  public boolean hasSeparateBlobs() {
+    return version >= 1;
+  }
+
+  /**
+   * Checks if large values can be split in chunks.
+   *
+   * @return True if the chunk columns and the table returned by {@link #getChunkTable} exist
+   */
+  public boolean hasChunks() {
+    return version >= 2;
+  }
+
+  /**
+   * Returns the name of the table holding the value chunks.
+   *
+   * @return Chunk table name
+   */
+  public String getChunkTable() {
+    return bucket + CHUNK_SUFFIX;
+  }
+
+  /**
+   * Returns the name of the table holding the values when they're kept separately.
+   *
+   * @return Blob table name
+   */
+  public String getBlobTable() {
+    return bucket + BLOB_SUFFIX;
+  }
+
+  /**
+   * Returns the name of the changelog table.
+   *
+   * @return Changelog table name
+   */
+  public String getChangelogTable() {
+    return bucket + MySQLStorageCloud.CHANGELOG_SUFFIX;
+  }
+
+  /**
+   * Checks if query plans must be verified once the schema is ready.
+   *
+   * @return True if EXPLAIN checks are enabled
+   */
+  public boolean isExplainEnabled() {
+    return explain;
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static boolean getBoolean(Properties conf, String name, boolean defaultValue) {
+    String value = conf.getProperty(name);
+    return (value != null) ? Boolean.valueOf(value.trim()) : defaultValue;
+  }
+
+  private static int getInt(Properties conf, String name, int defaultValue) {
+    String value = conf.getProperty(name);
+    if (value == null) return defaultValue;
+
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  private static void execute(Connection conn, String sql) throws SQLException {
+    logger.debug("Executing: " + sql);
+    Statement stmt = conn.createStatement();
+    try {
+      stmt.execute(sql);
+    } finally {
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private static boolean tableExists(Connection conn, String table) throws SQLException {
+    ResultSet tables = conn.getMetaData().getTables(conn.getCatalog(), null, table, null);
+    try {
+      return tables.next();
+    } finally {
+      try {
+        tables.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private static boolean columnExists(Connection conn, String table, String column)
+    throws SQLException
+  {
+    ResultSet columns = conn.getMetaData().getColumns(conn.getCatalog(), null, table, column);
+    try {
+      return columns.next();
+    } finally {
+      try {
+        columns.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private String keyColumn() {
+    return String.format("%s VARCHAR(%d) CHARACTER SET utf8mb4 COLLATE utf8mb4_bin NOT NULL",
+                         MySQLStorageCloud.FIELD_NAME_KEY, keyLength);
+  }
+
+  /* *********************************************************************
+   * Schema setup
+   ***********************************************************************/
+
+  /**
+   * Creates or migrates the bucket tables as configured, and detects the bucket layout.
+   *
+   * @param conn Connection to use (in auto-commit mode)
+   * @exception SQLException if an error occurs
+   * @exception CloudException if the bucket doesn't exist and can't be created
+   */
+  public void setup(Connection conn) throws SQLException, CloudException {
+    String lock = "cloudypeer_schema_" + bucket;
+    PreparedStatement lockStmt = conn.prepareStatement("SELECT GET_LOCK(?, ?)");
+    ResultSet result = null;
+    try {
+      lockStmt.setString(1, lock);
+      lockStmt.setInt(2, LOCK_TIMEOUT);
+      result = lockStmt.executeQuery();
+      if (!result.next() || result.getInt(1) != 1)
+        throw new CloudException("Timeout waiting for the schema lock of bucket " + bucket);
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        lockStmt.close();
+      } catch (SQLException e) {}
+    }
+
+    try {
+      setupLocked(conn);
+    } finally {
+      PreparedStatement release = conn.prepareStatement("SELECT RELEASE_LOCK(?)");
+      try {
+        release.setString(1, lock);
+        release.executeQuery().close();
+      } finally {
+        try {
+          release.close();
+        } catch (SQLException e) {}
+      }
+    }
+  }
+
+  private void setupLocked(Connection conn) throws SQLException, CloudException {
+    if (create) {
+      execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s (" +
+                                  "bucket VARCHAR(64) NOT NULL PRIMARY KEY, " +
+                                  "schema_version INT NOT NULL, " +
+                                  "updated BIGINT NOT NULL) ENGINE=InnoDB", VERSION_TABLE));
+    }
+    int recorded = readVersion(conn);
+
+    if (recorded >= CURRENT_VERSION) {
+      version = recorded;
+    } else if (!tableExists(conn, bucket)) {
+      if (!create) throw new CloudException("Bucket table " + bucket + " doesn't exist");
+      createTables(conn);
+      version = CURRENT_VERSION;
+      writeVersion(conn);
+    } else if (!columnExists(conn, bucket, MySQLStorageCloud.FIELD_NAME_VALUE)) {
+      /* Split layout of an older version, or whose version wasn't recorded */
+      if (create) {
+        upgrade(conn);
+        version = CURRENT_VERSION;
+        writeVersion(conn);
+      } else {
+        boolean chunks = columnExists(conn, bucket, MySQLStorageCloud.FIELD_NAME_CHUNK_SIZE) &&
+          tableExists(conn, getChunkTable());
+        version = chunks ? 2 : 1;
+      }
+    } else if (migrate) {
+      migrate(conn);
+      upgrade(conn);
+      version = CURRENT_VERSION;
+      writeVersion(conn);
+    } else {
+      version = 0;
+      logger.info("Bucket " + bucket + " uses the legacy single table layout " +
+                  "(enable " + PROPERTY_MIGRATE + " to migrate it)");
+    }
+
+    if (changelogPartitionDays > 0 && tableExists(conn, getChangelogTable()))
+      addChangelogPartitions(conn);
+  }
+
+  private int readVersion(Connection conn) throws SQLException {
+    if (!tableExists(conn, VERSION_TABLE)) return 0;
+
+    PreparedStatement stmt = conn.prepareStatement(String.format(
+      "SELECT schema_version FROM %s WHERE bucket=?", VERSION_TABLE));
+    ResultSet result = null;
+    try {
+      stmt.setString(1, bucket);
+      result = stmt.executeQuery();
+      return result.next() ? result.getInt(1) : 0;
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private void writeVersion(Connection conn) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(String.format(
+      "INSERT INTO %s (bucket, schema_version, updated) VALUES (?, ?, ?) " +
+      "ON DUPLICATE KEY UPDATE schema_version=VALUES(schema_version), updated=VALUES(updated)",
+      VERSION_TABLE));
+    try {
+      stmt.setString(1, bucket);
+      stmt.setInt(2, version);
+      stmt.setLong(3, System.currentTimeMillis() / 1000);
+      stmt.executeUpdate();
+    } finally {
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private void createTables(Connection conn) throws SQLException {
+    logger.info("Creating tables of bucket " + bucket);
+
+    execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s (%s, " +
+                                "%s BIGINT NOT NULL, %s BIGINT NOT NULL, " +
+                                "%s VARCHAR(32) NOT NULL, %s VARCHAR(255) NOT NULL, " +
+                                "%s INT NOT NULL DEFAULT 0, %s BIGINT NOT NULL DEFAULT 0, " +
+                                "PRIMARY KEY (%s), INDEX %s (%s, %s), INDEX %s (%s)) " +
+                                "ENGINE=InnoDB ROW_FORMAT=DYNAMIC",
+                                bucket, keyColumn(),
+                                MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED,
+                                MySQLStorageCloud.FIELD_NAME_CONTENT_LENGTH,
+                                MySQLStorageCloud.FIELD_NAME_CONTENT_MD5,
+                                MySQLStorageCloud.FIELD_NAME_CONTENT_TYPE,
+                                MySQLStorageCloud.FIELD_NAME_CHUNK_SIZE,
+                                MySQLStorageCloud.FIELD_NAME_GENERATION,
+                                MySQLStorageCloud.FIELD_NAME_KEY,
+                                INDEX_KEY_TIMESTAMP, MySQLStorageCloud.FIELD_NAME_KEY,
+                                MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED,
+                                INDEX_TIMESTAMP, MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED));
+    createBlobTable(conn);
+    createChunkTable(conn);
+
+    if (changelog) createChangelogTable(conn);
+  }
+
+  private void createChunkTable(Connection conn) throws SQLException {
+    execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s (%s, %s BIGINT NOT NULL, " +
+                                "%s INT NOT NULL, %s VARCHAR(32) NOT NULL, %s BIGINT NOT NULL, " +
+                                "%s LONGBLOB NOT NULL, PRIMARY KEY (%s, %3$s, %4$s)) " +
+                                "ENGINE=InnoDB ROW_FORMAT=DYNAMIC",
+                                getChunkTable(), keyColumn(),
+                                MySQLStorageCloud.FIELD_NAME_GENERATION,
+                                MySQLStorageCloud.FIELD_NAME_CHUNK_INDEX,
+                                MySQLStorageCloud.FIELD_NAME_CHUNK_MD5,
+                                MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED,
+                                MySQLStorageCloud.FIELD_NAME_CHUNK_DATA,
+                                MySQLStorageCloud.FIELD_NAME_KEY));
+  }
+
+  /**
+   * Upgrades a bucket with the split layout to the current version. Each step can be repeated.
+   */
+  private void upgrade(Connection conn) throws SQLException {
+    if (!columnExists(conn, bucket, MySQLStorageCloud.FIELD_NAME_CHUNK_SIZE)) {
+      logger.info("Upgrading bucket " + bucket + " to layout version " + CURRENT_VERSION);
+      execute(conn, String.format("ALTER TABLE %s ADD COLUMN %s INT NOT NULL DEFAULT 0, " +
+                                  "ADD COLUMN %s BIGINT NOT NULL DEFAULT 0", bucket,
+                                  MySQLStorageCloud.FIELD_NAME_CHUNK_SIZE,
+                                  MySQLStorageCloud.FIELD_NAME_GENERATION));
+    }
+    createChunkTable(conn);
+  }
+
+  private void createBlobTable(Connection conn) throws SQLException {
+    execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s (%s, %s LONGBLOB, " +
+                                "PRIMARY KEY (%s)) ENGINE=InnoDB ROW_FORMAT=DYNAMIC",
+                                getBlobTable(), keyColumn(), MySQLStorageCloud.FIELD_NAME_VALUE,
+                                MySQLStorageCloud.FIELD_NAME_KEY));
+  }
+
+  private void createChangelogTable(Connection conn) throws SQLException {
+    StringBuilder sql = new StringBuilder();
+    sql.append(String.format("CREATE TABLE IF NOT EXISTS %s (" +
+                             "%s BIGINT NOT NULL AUTO_INCREMENT, %s, %s VARCHAR(16) NOT NULL, " +
+                             "%s BIGINT NOT NULL, ",
+                             getChangelogTable(),
+                             MySQLStorageCloud.FIELD_NAME_CHANGE_SEQUENCE, keyColumn(),
+                             MySQLStorageCloud.FIELD_NAME_CHANGE_TYPE,
+                             MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED));
+
+    if (changelogPartitionDays > 0) {
+      /* The partitioning column must be part of the primary key */
+      sql.append(String.format("PRIMARY KEY (%s, %s)) ENGINE=InnoDB PARTITION BY RANGE (%s) (",
+                               MySQLStorageCloud.FIELD_NAME_CHANGE_SEQUENCE,
+                               MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED,
+                               MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED));
+      long period = changelogPartitionDays * DAY;
+      long bound = periodStart(System.currentTimeMillis() / 1000) + period;
+      for (int i = 0; i <= PARTITIONS_AHEAD; i++, bound += period)
+        sql.append(partitionDefinition(bound)).append(", ");
+      sql.append(String.format("PARTITION %s VALUES LESS THAN MAXVALUE)", PARTITION_MAX));
+    } else {
+      sql.append(String.format("PRIMARY KEY (%s)) ENGINE=InnoDB",
+                               MySQLStorageCloud.FIELD_NAME_CHANGE_SEQUENCE));
+    }
+
+    execute(conn, sql.toString());
+  }
+
+  /**
+   * Migrates a legacy bucket. Each step can be repeated, so an interrupted migration is
+   * completed by the next setup.
+   */
+  private void migrate(Connection conn) throws SQLException {
+    long start = System.currentTimeMillis();
+    logger.info("Migrating bucket " + bucket + " to layout version " + CURRENT_VERSION);
+
+    createBlobTable(conn);
+    execute(conn, String.format("INSERT INTO %s (%s, %s) SELECT %2$s, %3$s FROM %s " +
+                                "ON DUPLICATE KEY UPDATE %3$s=VALUES(%3$s)",
+                                getBlobTable(), MySQLStorageCloud.FIELD_NAME_KEY,
+                                MySQLStorageCloud.FIELD_NAME_VALUE, bucket));
+    execute(conn, String.format("ALTER TABLE %s DROP COLUMN %s, ADD INDEX %s (%s, %s), " +
+                                "ADD INDEX %s (%s)",
+                                bucket, MySQLStorageCloud.FIELD_NAME_VALUE,
+                                INDEX_KEY_TIMESTAMP, MySQLStorageCloud.FIELD_NAME_KEY,
+                                MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED,
+                                INDEX_TIMESTAMP, MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED));
+
+    logger.info(String.format("Bucket %s migrated in %d ms", bucket,
+                              System.currentTimeMillis() - start));
+  }
+
+  /* *********************************************************************
+   * Changelog partitions
+   ***********************************************************************/
+
+  private long periodStart(long seconds) {
+    long period = changelogPartitionDays * DAY;
+    return seconds - seconds % period;
+  }
+
+  private static String partitionDefinition(long bound) {
+    /* Partitions are named after the first day they don't hold */
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return String.format("PARTITION p%s VALUES LESS THAN (%d)",
+                         format.format(new Date(bound * 1000)), bound);
+  }
+
+  /**
+   * Returns the upper bounds of the changelog partitions, in order, excluding
+   * {@value #PARTITION_MAX}. The list is empty if the table isn't partitioned.
+   */
+  private List<Long> partitionBounds(Connection conn, List<String> names) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(
+      "SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+      "WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=? AND PARTITION_NAME IS NOT NULL " +
+      "ORDER BY PARTITION_ORDINAL_POSITION");
+    ResultSet result = null;
+    ArrayList<Long> bounds = new ArrayList<Long>();
+    try {
+      stmt.setString(1, getChangelogTable());
+      result = stmt.executeQuery();
+      while (result.next()) {
+        if (PARTITION_MAX.equals(result.getString(1))) continue;
+        if (names != null) names.add(result.getString(1));
+        bounds.add(Long.parseLong(result.getString(2).trim()));
+      }
+      return bounds;
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Makes sure that {@link #PARTITIONS_AHEAD} partitions follow the current one, splitting them
+   * from the (empty) {@value #PARTITION_MAX} partition.
+   */
+  private void addChangelogPartitions(Connection conn) throws SQLException {
+    List<Long> bounds = partitionBounds(conn, null);
+    if (bounds.isEmpty()) return;
+
+    long period = changelogPartitionDays * DAY;
+    long last = bounds.get(bounds.size() - 1);
+    long target = periodStart(System.currentTimeMillis() / 1000) + (PARTITIONS_AHEAD + 1) * period;
+    if (last >= target) return;
+
+    StringBuilder sql = new StringBuilder();
+    sql.append(String.format("ALTER TABLE %s REORGANIZE PARTITION %s INTO (",
+                             getChangelogTable(), PARTITION_MAX));
+    for (long bound = last + period; bound <= target; bound += period)
+      sql.append(partitionDefinition(bound)).append(", ");
+    sql.append(String.format("PARTITION %s VALUES LESS THAN MAXVALUE)", PARTITION_MAX));
+    execute(conn, sql.toString());
+  }
+
+  /**
+   * Removes the changes recorded before the specified time: whole partitions are dropped if the
+   * changelog is partitioned, otherwise the rows are deleted. Partitions holding later changes
+   * are kept, so some older changes may survive.
+   *
+   * @param conn Connection to use (in auto-commit mode)
+   * @param before Time in seconds
+   * @return Number of partitions dropped, or of rows deleted
+   * @exception SQLException if an error occurs
+   */
+  public int trimChangelog(Connection conn, long before) throws SQLException {
+    ArrayList<String> names = new ArrayList<String>();
+    List<Long> bounds = partitionBounds(conn, names);
+
+    if (bounds.isEmpty()) {
+      PreparedStatement stmt = conn.prepareStatement(String.format(
+        "DELETE FROM %s WHERE %s < ?", getChangelogTable(),
+        MySQLStorageCloud.FIELD_NAME_LAST_MODIFIED));
+      try {
+        stmt.setLong(1, before);
+        return stmt.executeUpdate();
+      } finally {
+        try {
+          stmt.close();
+        } catch (SQLException e) {}
+      }
+    }
+
+    StringBuilder toDrop = new StringBuilder();
+    int dropped = 0;
+    for (int i = 0; i < bounds.size(); i++) {
+      if (bounds.get(i) > before) break;
+      toDrop.append((dropped++ == 0) ? "" : ", ").append(names.get(i));
+    }
+    if (dropped > 0) {
+      execute(conn, String.format("ALTER TABLE %s DROP PARTITION %s", getChangelogTable(),
+                                  toDrop));
+    }
+    if (changelogPartitionDays > 0) addChangelogPartitions(conn);
+    return dropped;
+  }
+
+  /* *********************************************************************
+   * Query plans
+   ***********************************************************************/
+
+  /**
+   * Explains a query and checks that no table is fully scanned.
+   *
+   * @param conn Connection to use
+   * @param name Name of the query, used in the warnings
+   * @param sql Query to explain, without parameters
+   * @return Warnings describing the full scans found (empty if none)
+   * @exception SQLException if an error occurs
+   */
+  public static List<String> explain(Connection conn, String name, String sql)
+    throws SQLException
+  {
+    ArrayList<String> warnings = new ArrayList<String>();
+    Statement stmt = conn.createStatement();
+    ResultSet result = null;
+    try {
+      result = stmt.executeQuery("EXPLAIN " + sql);
+      while (result.next()) {
+        String type = result.getString("type");
+        long rows = result.getLong("rows");
+        if ("ALL".equals(type) && rows >= EXPLAIN_MIN_ROWS) {
+          warnings.add(String.format("Query '%s' scans the whole table %s (%d rows estimated)",
+                                     name, result.getString("table"), rows));
+        }
+      }
+      return warnings;
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+}
@@ -5,22 +5,36 @@
  */
 package cloudypeer.cloud.mysql;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URISyntaxException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
 
+import cloudypeer.cloud.CloudChange;
 import cloudypeer.cloud.CloudException;
 import cloudypeer.cloud.CloudMetadata;
 import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudPutRequest;
 import cloudypeer.cloud.CloudURI;
 import cloudypeer.cloud.StorageCloud;
 import cloudypeer.utils.MD5InputStream;
@@ -30,16 +44,59 @@ import org.apache.log4j.Logger;
 /**
  * MySQL cloud implementation. <br>
  * This storage cloud can operate on any MySQL database. Each table is treated as a different
- * bucket. The format of a table used as bucket MUST respect the following structure:
+ * bucket. The tables of a bucket are created (and legacy buckets optionally migrated) on first
+ * use by {@link MySQLSchema}, according to the <code>schema.*</code> settings. The table named
+ * as the bucket holds the metadata:
  * <ul>
  *   <li>{@value #FIELD_NAME_KEY}: VARCHAR, primary key</li>
- *   <li>{@value #FIELD_NAME_VALUE}: BLOB </li>
  *   <li>{@value #FIELD_NAME_LAST_MODIFIED}: INT (stored as seconds)</li>
  *   <li>{@value #FIELD_NAME_CONTENT_LENGTH}: INT</li>
  *   <li>{@value #FIELD_NAME_CONTENT_MD5}: VARCHAR</li>
  *   <li>{@value #FIELD_NAME_CONTENT_TYPE}: VARCHAR</li>
+ *   <li>{@value #FIELD_NAME_CHUNK_SIZE}: INT, 0 if the value isn't split in chunks</li>
+ *   <li>{@value #FIELD_NAME_GENERATION}: BIGINT, generation of the chunks or 0</li>
  * <ul>
- * The table can have other fields but they must be <b>nullable</b>
+ * and is indexed on ({@value #FIELD_NAME_KEY}, {@value #FIELD_NAME_LAST_MODIFIED}) and on
+ * {@value #FIELD_NAME_LAST_MODIFIED}, so that listings by prefix and date are served by the
+ * indexes alone. The values ({@value #FIELD_NAME_VALUE}: LONGBLOB) are kept in a separate table,
+ * named as the bucket followed by {@value MySQLSchema#BLOB_SUFFIX}, and are read only when an
+ * object content is requested. Values longer than <code>chunk.size</code> bytes are instead
+ * split in chunks, written in batches and read in parallel, each chunk being verified with its
+ * MD5 (see {@link MySQLChunkStore}): the metadata row is written last, so a new value becomes
+ * visible atomically. Tables created by hand with the legacy layout, where the
+ * {@value #FIELD_NAME_VALUE} column is part of the bucket table, are still supported. In both
+ * layouts the tables can have other fields but they must be <b>nullable</b>. <br>
+ * <br>
+ * If a table named as the bucket followed by {@value #CHANGELOG_SUFFIX} exists, every put,
+ * metadata update and removal is also recorded there, in the same transaction, providing the
+ * change feed (see {@link StorageCloud#changesSince}). It may be partitioned by time, in which
+ * case old changes are dropped a partition at a time (see {@link #trimChangelog}). Its structure
+ * must be:
+ * <ul>
+ *   <li>{@value #FIELD_NAME_CHANGE_SEQUENCE}: BIGINT AUTO_INCREMENT, primary key (along with
+ *   {@value #FIELD_NAME_LAST_MODIFIED} if partitioned)</li>
+ *   <li>{@value #FIELD_NAME_KEY}: VARCHAR</li>
+ *   <li>{@value #FIELD_NAME_CHANGE_TYPE}: VARCHAR (PUT, METADATA or REMOVE)</li>
+ *   <li>{@value #FIELD_NAME_LAST_MODIFIED}: INT (stored as seconds)</li>
+ * <ul>
+ * <br>
+ * Connections are taken from a {@link MySQLConnectionPool}. The pool settings (the
+ * <code>pool.*</code> properties) are read from {@value #CONFIGURATION}, first the built-in
+ * one in this package and then the one in the root of the classpath, and can be overridden by
+ * the cloud URI query string, e.g. <code>mysql://user@host/db/table?pool.maxActive=16</code>.
+ * The same holds for the <code>schema.*</code>, <code>stream.*</code> and <code>chunk.*</code>
+ * properties. Other query string parameters are passed to the JDBC driver, overriding the defaults
+ * ({@value #JDBC_PARAMETERS}).<br>
+ * <br>
+ * The value of an object returned by {@link #get} is read at once, buffered in memory up to
+ * <code>stream.bufferThreshold</code> bytes and spooled to a temporary file (in
+ * <code>stream.spoolDirectory</code>) beyond it, so that the connection goes back to the pool
+ * before the object is returned (see {@link MySQLCloudObjectInputStream}).<br>
+ * <br>
+ * All the statements are parameterized: server side prepared statements are enabled and cached
+ * by the driver for each pooled connection, so every query is parsed once per connection. The
+ * bucket name, which can't be a statement parameter, must be a plain identifier (letters,
+ * digits, underscore and dollar sign).
  *
  * @author Andrea Zito <zito.andrea@gmail.com>
  * @version 1.0
@@ -54,9 +111,72 @@ public class MySQLStorageCloud extends StorageCloud {
   protected static String FIELD_NAME_CONTENT_LENGTH = "cloud_content_length";
   protected static String FIELD_NAME_CONTENT_MD5 = "cloud_content_md5";
   protected static String FIELD_NAME_CONTENT_TYPE = "cloud_content_type";
+  protected static String FIELD_NAME_CHUNK_SIZE = "cloud_chunk_size";
+  protected static String FIELD_NAME_GENERATION = "cloud_generation";
+  protected static String FIELD_NAME_CHUNK_INDEX = "chunk_index";
+  protected static String FIELD_NAME_CHUNK_MD5 = "chunk_md5";
+  protected static String FIELD_NAME_CHUNK_DATA = "chunk_data";
+  protected static String FIELD_NAME_CHANGE_SEQUENCE = "change_seq";
+  protected static String FIELD_NAME_CHANGE_TYPE = "change_type";
+
+  protected static String CHANGELOG_SUFFIX = "_changelog";
+
+  public static final String CONFIGURATION = "cloudypeer_mysqlcloud.properties";
+
+  public static final String PROPERTY_BUFFER_THRESHOLD = "stream.bufferThreshold";
+  public static final String PROPERTY_SPOOL_DIRECTORY = "stream.spoolDirectory";
+  public static final String PROPERTY_CHUNK_SIZE = "chunk.size";
+  public static final String PROPERTY_CHUNK_BATCH_SIZE = "chunk.batchSize";
+  public static final String PROPERTY_CHUNK_READ_THREADS = "chunk.readThreads";
+
+  /**
+   * Values returned by {@link #get} up to this number of bytes are buffered in memory, longer
+   * ones are spooled to a temporary file
+   */
+  public static long DEFAULT_BUFFER_THRESHOLD = 1024 * 1024;
+
+  /**
+   * Maximum number of attempts to lock the keys written by a transaction, retried when InnoDB
+   * detects a deadlock
+   */
+  public static int MAX_LOCK_ATTEMPTS = 3;
+
+  /**
+   * MD5 of the placeholder rows created by {@link #lockKeys}, never visible outside the
+   * transaction creating them
+   */
+  private static final String PLACEHOLDER_MD5 = "";
+
+  /**
+   * Maximum number of keys looked up by a single query in {@link #getAll} and
+   * {@link #getMetadataAll}
+   */
+  public static int BATCH_READ_SIZE = 100;
+
+  /**
+   * Default JDBC connection parameters: batched statements rewritten as multi-row statements and
+   * server side prepared statements cached per connection
+   */
+  public static final String JDBC_PARAMETERS = "rewriteBatchedStatements=true" +
+    "&useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=64&prepStmtCacheSqlLimit=2048";
 
   private MySQLCloudURI mysqlCloudURI;
   private String jdbcURL;
+  private MySQLConnectionPool pool;
+  private MySQLSchema schema;
+  private MySQLChunkStore chunks;
+  private long bufferThreshold;
+  private File spoolDirectory;
+
+  /**
+   * Whether the schema of the bucket has been set up
+   */
+  private volatile boolean schemaReady = false;
+
+  /**
+   * Whether the changelog table exists, lazily detected
+   */
+  private volatile Boolean changelogAvailable = null;
 
   /* *********************************************************************
    * Constructor implementation
@@ -91,24 +211,318 @@ public class MySQLStorageCloud extends StorageCloud {
     } catch (URISyntaxException e) {
       throw new CloudException("This should not be happening!", e);
     }
-    jdbcURL = String.format("jdbc:%s", mysqlCloudURI.getBaseURI().toString());
+    validateIdentifier(mysqlCloudURI.getBucket());
+
+    StringBuilder url = new StringBuilder();
+    url.append(String.format("jdbc:%s?%s", mysqlCloudURI.getBaseURI().toString(),
+                             JDBC_PARAMETERS));
+
+    Properties conf = loadConfiguration();
+    Properties params = ((MySQLCloudURI) cloudURI).getParameters();
+    for (Object param: params.keySet()) {
+      String name = (String) param;
+      if (name.startsWith("pool.") || name.startsWith("schema.") || name.startsWith("stream.") ||
+          name.startsWith("chunk."))
+        conf.setProperty(name, params.getProperty(name));
+      else url.append('&').append(name).append('=').append(params.getProperty(name));
+    }
+    jdbcURL = url.toString();
+
+    pool = new MySQLConnectionPool(jdbcURL, authInfo[0], authInfo[1], conf);
+    schema = new MySQLSchema(mysqlCloudURI.getBucket(), conf);
+
+    chunks = new MySQLChunkStore(schema, pool,
+                                 (int) getLong(conf, PROPERTY_CHUNK_SIZE,
+                                               MySQLChunkStore.DEFAULT_CHUNK_SIZE),
+                                 (int) getLong(conf, PROPERTY_CHUNK_BATCH_SIZE,
+                                               MySQLChunkStore.DEFAULT_BATCH_SIZE),
+                                 (int) getLong(conf, PROPERTY_CHUNK_READ_THREADS,
+                                               MySQLChunkStore.DEFAULT_READ_THREADS));
+
+    bufferThreshold = getLong(conf, PROPERTY_BUFFER_THRESHOLD, DEFAULT_BUFFER_THRESHOLD);
+    String directory = conf.getProperty(PROPERTY_SPOOL_DIRECTORY);
+    if (directory != null && directory.trim().length() > 0)
+      spoolDirectory = new File(directory.trim());
+  }
+
+  private static long getLong(Properties conf, String name, long defaultValue) {
+    String value = conf.getProperty(name);
+    if (value == null) return defaultValue;
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  /**
+   * Loads the built-in and external (root of the classpath) configuration.
+   */
+  private static Properties loadConfiguration() {
+    Properties conf = new Properties();
+    String resources[] = {CONFIGURATION, "/" + CONFIGURATION};
+
+    for (String resource: resources) {
+      InputStream in = MySQLStorageCloud.class.getResourceAsStream(resource);
+      if (in == null) continue;
+      try {
+        conf.load(in);
+      } catch (IOException e) {
+        logger.warn("Error reading MySQL cloud configuration " + resource, e);
+      } finally {
+        try { in.close(); } catch (IOException e) {}
+      }
+    }
+
+    return conf;
+  }
+
+  /**
+   * Returns the connection pool of this cloud, e.g. to inspect its metrics.
+   *
+   * @return Connection pool
+   */
+  public MySQLConnectionPool getConnectionPool() {
+    return pool;
+  }
+
+  /**
+   * Returns the size up to which values returned by {@link #get} are buffered in memory.
+   *
+   * @return Threshold in bytes, or a negative number if values are streamed from the database
+   */
+  public long getBufferThreshold() {
+    return bufferThreshold;
+  }
+
+  /**
+   * Sets the size up to which values returned by {@link #get} are buffered in memory; longer
+   * values are spooled to a temporary file. In both cases the connection is released before
+   * returning the object. <br>
+   * With a negative threshold values are streamed straight from the database instead, and the
+   * connection is held until the object stream is closed.
+   *
+   * @param bufferThreshold Threshold in bytes
+   */
+  public void setBufferThreshold(long bufferThreshold) {
+    this.bufferThreshold = bufferThreshold;
+  }
+
+  /**
+   * Returns the schema manager of this cloud's bucket.
+   *
+   * @return Bucket schema
+   */
+  public MySQLSchema getSchema() {
+    return schema;
   }
 
   /* *********************************************************************
    * Common method implementation
    ***********************************************************************/
   protected Connection getConnection() {
-    String credentials[] = mysqlCloudURI.getAuthenticationInfo();
+    Connection conn = pool.getConnection();
+    if (schemaReady) return conn;
 
-    Connection conn;
     try {
-      conn = DriverManager.getConnection(jdbcURL, credentials[0], credentials[1]);
+      setupSchema(conn);
     } catch (SQLException e) {
-      throw new CloudException("Cannot create connection to the database", e);
+      try {
+        conn.close();
+      } catch (SQLException ex) {}
+      throw new CloudException("Error setting up the schema of bucket " +
+                               mysqlCloudURI.getBucket(), e);
+    } catch (CloudException e) {
+      try {
+        conn.close();
+      } catch (SQLException ex) {}
+      throw e;
     }
     return conn;
   }
 
+  /**
+   * Sets up the bucket schema on first use, checking the query plans if requested.
+   */
+  private synchronized void setupSchema(Connection conn) throws SQLException {
+    if (schemaReady) return;
+
+    schema.setup(conn);
+    if (schema.isExplainEnabled()) {
+      for (String warning: checkQueryPlans(conn)) logger.warn(warning);
+    }
+    schemaReady = true;
+  }
+
+  /**
+   * Prepares a query reading a single value, whose rows are streamed by the driver instead of
+   * being fetched in memory at once.
+   */
+  private PreparedStatement prepareValueQuery(Connection conn, String query) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+                                                   ResultSet.CONCUR_READ_ONLY);
+    stmt.setFetchSize(Integer.MIN_VALUE);
+    return stmt;
+  }
+
+  /**
+   * Wraps the value read by a query in the stream returned to the caller. Unless the buffer
+   * threshold is negative the value is read at once and the database resources released.
+   *
+   * @exception CloudException if an error occurs reading the value (the resources are released)
+   */
+  private MySQLCloudObjectInputStream openValue(Connection conn, Statement stmt,
+                                                ResultSet result, InputStream in)
+    throws CloudException
+  {
+    if (bufferThreshold < 0) return new MySQLCloudObjectInputStream(conn, stmt, result, in, pool);
+
+    try {
+      return new MySQLCloudObjectInputStream(conn, stmt, result, in, bufferThreshold,
+                                             spoolDirectory, pool);
+    } catch (IOException e) {
+      throw new CloudException("Error reading object value", e);
+    }
+  }
+
+  /**
+   * Checks whether values longer than a chunk are split in chunks when written.
+   */
+  private boolean chunking() {
+    return chunks.getChunkSize() > 0 && schema.hasChunks();
+  }
+
+  /**
+   * Returns the chunk fields to select along with a value, if the bucket layout supports chunks.
+   */
+  private String chunkFields() {
+    if (!schema.hasChunks()) return "";
+    return String.format(", %s, %s", FIELD_NAME_CHUNK_SIZE, FIELD_NAME_GENERATION);
+  }
+
+  /**
+   * Reads a range of a value split in chunks, after releasing the database resources of the
+   * query that returned its metadata.
+   *
+   * @exception CloudException if an error occurs reading the value
+   */
+  private MySQLCloudObjectInputStream openChunks(Connection conn, Statement stmt,
+                                                 ResultSet result, String key, long generation,
+                                                 int chunkSize, long offset, long length)
+    throws CloudException
+  {
+    try {
+      if (result != null) result.close();
+    } catch (SQLException e) {}
+
+    try {
+      if (stmt != null) stmt.close();
+    } catch (SQLException e) {}
+
+    try {
+      if (conn != null) conn.close();
+    } catch (SQLException e) {}
+
+    try {
+      return chunks.read(key, generation, chunkSize, offset, length, bufferThreshold,
+                         spoolDirectory);
+    } catch (IOException e) {
+      throw new CloudException("Error reading object value", e);
+    }
+  }
+
+  /**
+   * Returns the table expression to read values from: the bucket table joined with the blob
+   * table, unless the bucket uses the legacy layout.
+   */
+  private String valueSource() {
+    if (!schema.hasSeparateBlobs()) return mysqlCloudURI.getBucket();
+    return String.format("%s LEFT JOIN %s USING (%s)", mysqlCloudURI.getBucket(),
+                         schema.getBlobTable(), FIELD_NAME_KEY);
+  }
+
+  /**
+   * Checks that the specified name can be safely used as a table name in a query.
+   *
+   * @param name Table name or null
+   * @exception IllegalArgumentException if the name is not a plain identifier
+   */
+  protected static void validateIdentifier(String name) throws IllegalArgumentException {
+    if (name == null) return;
+    if (name.length() == 0 || name.length() > 64 || !name.matches("[A-Za-z0-9_$]+"))
+      throw new IllegalArgumentException("Invalid MySQL table name: " + name);
+  }
+
+  /**
+   * Returns the name of the table holding the change feed of the bucket.
+   *
+   * @return Changelog table name
+   */
+  protected String getChangelogTable() {
+    return mysqlCloudURI.getBucket() + CHANGELOG_SUFFIX;
+  }
+
+  /**
+   * Checks whether the changelog table exists. The check is performed only once.
+   *
+   * @param conn Connection to use
+   * @return True if changes must be recorded
+   * @exception SQLException if an error occurs
+   */
+  protected boolean hasChangelog(Connection conn) throws SQLException {
+    Boolean available = changelogAvailable;
+    if (available != null) return available;
+
+    ResultSet tables = conn.getMetaData().getTables(null, null, getChangelogTable(), null);
+    try {
+      available = tables.next();
+    } finally {
+      try {
+        tables.close();
+      } catch (SQLException e) {}
+    }
+
+    if (!available) logger.info("No changelog table for bucket " + mysqlCloudURI.getBucket() +
+                                ": change feed disabled");
+    changelogAvailable = available;
+    return available;
+  }
+
+  /**
+   * Records the specified changes in the changelog, if present, as part of the current
+   * transaction of the connection.
+   *
+   * @param conn Connection to use
+   * @param keys Modified keys
+   * @param type Kind of modification
+   * @param timestamp Modification timestamp in seconds
+   * @exception SQLException if an error occurs
+   */
+  protected void logChanges(Connection conn, String keys[], CloudChange.Type type, long timestamp)
+    throws SQLException
+  {
+    if (!hasChangelog(conn)) return;
+
+    String query = String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)",
+                                 getChangelogTable(),
+                                 FIELD_NAME_KEY, FIELD_NAME_CHANGE_TYPE, FIELD_NAME_LAST_MODIFIED);
+    PreparedStatement insert = conn.prepareStatement(query);
+    try {
+      for (String key: keys) {
+        insert.setString(1, key);
+        insert.setString(2, type.name());
+        insert.setLong(3, timestamp);
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    } finally {
+      try {
+        insert.close();
+      } catch (SQLException e) {}
+    }
+  }
+
   /* *********************************************************************
    * StorageCloud abstract methods implementation
    ***********************************************************************/
@@ -128,53 +542,71 @@ public class MySQLStorageCloud extends StorageCloud {
    * Implementation of abstract method get
    */
   public CloudObject get(String key) throws CloudException {
-    String query = String.format("SELECT %s, %s, %s, %s, %s from %s WHERE %s='%s'",
+    Connection conn = getConnection();
+    String query = String.format("SELECT %s, %s, %s, %s, %s%s from %s WHERE %s=?",
                                  FIELD_NAME_VALUE,
                                  FIELD_NAME_CONTENT_LENGTH,
                                  FIELD_NAME_LAST_MODIFIED,
                                  FIELD_NAME_CONTENT_MD5,
                                  FIELD_NAME_CONTENT_TYPE,
-                                 mysqlCloudURI.getBucket(),
-                                 FIELD_NAME_KEY, key);
+                                 chunkFields(),
+                                 valueSource(),
+                                 FIELD_NAME_KEY);
 
     InputStream in = null;
     long lastModified = 0;
     String contentMD5 = null;
     long contentLength = 0;
     String contentType = null;
+    int chunkSize = 0;
+    long generation = 0;
 
-    Connection conn = getConnection();
-    Statement stmt = null;
+    PreparedStatement stmt = null;
     ResultSet result = null;
+    boolean found = false;
     try {
-      stmt = conn.createStatement();
-      result = stmt.executeQuery(query);
+      stmt = prepareValueQuery(conn, query);
+      stmt.setString(1, key);
+      result = stmt.executeQuery();
 
       if (result.next()) {
+        found = true;
         lastModified = result.getLong(FIELD_NAME_LAST_MODIFIED);
         contentLength = result.getLong(FIELD_NAME_CONTENT_LENGTH);
         contentMD5 = result.getString(FIELD_NAME_CONTENT_MD5);
         contentType = result.getString(FIELD_NAME_CONTENT_TYPE);
+        if (schema.hasChunks()) {
+          chunkSize = result.getInt(FIELD_NAME_CHUNK_SIZE);
+          generation = result.getLong(FIELD_NAME_GENERATION);
+        }
         in = result.getBinaryStream(FIELD_NAME_VALUE);
       }
     } catch (SQLException e) {
-      try {
-        if (result != null) result.close();
-      } catch (SQLException ex) {}
-
-      try {
-        if(stmt != null) stmt.close();
-      }  catch (SQLException ex) {}
+      found = false;
+      throw new CloudException("Error retrieving object", e);
+    } finally {
+      if (!found) {
+        try {
+          if (result != null) result.close();
+        } catch (SQLException ex) {}
 
-      try {
-        if (conn != null) conn.close();
-      } catch (SQLException ex) {}
+        try {
+          if (stmt != null) stmt.close();
+        }  catch (SQLException ex) {}
 
-      throw new CloudException("Error retrieving metadata", e);
+        try {
+          conn.close();
+        } catch (SQLException ex) {}
+      }
     }
+    if (!found) return null;
 
     MySQLCloudObjectInputStream mysqlIn;
-    mysqlIn = new MySQLCloudObjectInputStream(conn, stmt, result, in);
+    if (chunkSize > 0) {
+      mysqlIn = openChunks(conn, stmt, result, key, generation, chunkSize, 0, contentLength);
+    } else {
+      mysqlIn = openValue(conn, stmt, result, in);
+    }
 
     MySQLCloudMetadata meta = new MySQLCloudMetadata(contentLength, new Date(lastModified * 1000),
                                                      contentMD5, contentType);
@@ -194,13 +626,13 @@ public class MySQLStorageCloud extends StorageCloud {
    * Implementation of abstract method getMetadata
    */
   public CloudMetadata getMetadata(String key) throws CloudException {
-    String query = String.format("SELECT %s, %s, %s, %s from %s WHERE %s='%s'",
+    String query = String.format("SELECT %s, %s, %s, %s from %s WHERE %s=?",
                                  FIELD_NAME_CONTENT_LENGTH,
                                  FIELD_NAME_LAST_MODIFIED,
                                  FIELD_NAME_CONTENT_MD5,
                                  FIELD_NAME_CONTENT_TYPE,
                                  mysqlCloudURI.getBucket(),
-                                 FIELD_NAME_KEY, key);
+                                 FIELD_NAME_KEY);
 
     long lastModified = 0;
     String contentMD5 = null;
@@ -208,11 +640,12 @@ public class MySQLStorageCloud extends StorageCloud {
     String contentType = null;
 
     Connection conn = getConnection();
-    Statement stmt = null;
+    PreparedStatement stmt = null;
     ResultSet result = null;
     try {
-      stmt = conn.createStatement();
-      result = stmt.executeQuery(query);
+      stmt = conn.prepareStatement(query);
+      stmt.setString(1, key);
+      result = stmt.executeQuery();
 
       if (result.next()) {
         lastModified = result.getLong(FIELD_NAME_LAST_MODIFIED);
@@ -242,20 +675,44 @@ public class MySQLStorageCloud extends StorageCloud {
 
   public void remove(String key) throws CloudException {
     Connection conn = getConnection();
-    Statement stmt = null;
+    String query = String.format("DELETE from %s WHERE %s=?", mysqlCloudURI.getBucket(),
+                                 FIELD_NAME_KEY);
+    String blobQuery = String.format("DELETE from %s WHERE %s=?", schema.getBlobTable(),
+                                     FIELD_NAME_KEY);
+
+    PreparedStatement stmt = null;
+    PreparedStatement blobStmt = null;
     try {
-      stmt = conn.createStatement();
-      String query = String.format("DELETE from %s WHERE %s='%s'", mysqlCloudURI.getBucket(),
-                                   FIELD_NAME_KEY, key);
+      conn.setAutoCommit(false);
+      Map<String, Long> generations = lockGenerations(conn, new String[] {key});
+      stmt = conn.prepareStatement(query);
+      stmt.setString(1, key);
 
-      stmt.executeUpdate(query);
+      if (stmt.executeUpdate() > 0) {
+        logChanges(conn, new String[] {key}, CloudChange.Type.REMOVE,
+                   System.currentTimeMillis() / 1000);
+      }
+      if (schema.hasSeparateBlobs()) {
+        blobStmt = conn.prepareStatement(blobQuery);
+        blobStmt.setString(1, key);
+        blobStmt.executeUpdate();
+      }
+      if (generations.containsKey(key)) chunks.delete(conn, key, generations.get(key));
+      conn.commit();
     } catch (SQLException e) {
+      try {
+        conn.rollback();
+      } catch(SQLException e1) {}
       throw new CloudException("Error performing delete operation", e);
     } finally {
       try {
         if (stmt != null) stmt.close();
       } catch (SQLException e) {}
 
+      try {
+        if (blobStmt != null) blobStmt.close();
+      } catch (SQLException e) {}
+
       try {
         conn.close();
       } catch (SQLException e) {}
@@ -268,44 +725,98 @@ public class MySQLStorageCloud extends StorageCloud {
     logger.info("Putting entry: " + key);
     long timestamp = System.currentTimeMillis() / 1000;
 
-    /* Query that setup the key on the cloud */
-    String prepareQuery = String.format("INSERT INTO %s (%s, %s, %s, %s, %s, %s) " +
-                                        "VALUES ('%s', NULL, %d, 0, '0', '') ON DUPLICATE KEY UPDATE " +
-                                        " %4$s=%9$d",
-                                        mysqlCloudURI.getBucket(),
-                                        FIELD_NAME_KEY, FIELD_NAME_VALUE, FIELD_NAME_LAST_MODIFIED,
-                                        FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
-                                        FIELD_NAME_CONTENT_TYPE, key, timestamp);
-
-    /* Query that updates the value */
-    String valueQuery = String.format("UPDATE %s SET %s=? WHERE %s='%s'",
-                                      mysqlCloudURI.getBucket(),
-                                      FIELD_NAME_VALUE, FIELD_NAME_KEY, key);
-
-    /* Query that updates the metadata */
-    String metadataQuery = String.format("UPDATE %s SET %s=?, %s=?, %s='%s' WHERE %s='%s'",
-                                         mysqlCloudURI.getBucket(),
-                                         FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
-                                         FIELD_NAME_CONTENT_TYPE, contentType, FIELD_NAME_KEY,
-                                         key);
+    if (chunking()) {
+      /* Values longer than a chunk are split, shorter ones go to the blob table */
+      MD5InputStream in = new MD5InputStream(valueInputStream);
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      try {
+        byte buff[] = new byte[8192];
+        int len;
+        while (head.size() <= chunks.getChunkSize() &&
+               (len = in.read(buff, 0, buff.length)) >= 0) {
+          head.write(buff, 0, len);
+        }
+        if (head.size() > chunks.getChunkSize()) {
+          putChunks(key, contentType, in, head.toByteArray(), timestamp);
+          return;
+        }
+      } catch (IOException e) {
+        throw new CloudException("Error performing put operation", e);
+      } finally {
+        try {
+          in.close();
+        } catch (IOException e) {}
+      }
+      valueInputStream = new ByteArrayInputStream(head.toByteArray());
+    }
 
     Connection conn = null;
-    Statement insert = null;
+    PreparedStatement insert = null;
     PreparedStatement updateValue = null;
     PreparedStatement updateMetadata = null;
     MD5InputStream in = null;
     try {
       conn = getConnection();
       conn.setAutoCommit(false);
+      lockKeys(conn, new String[] {key});
+
+      /* Query that setup the key on the cloud */
+      String prepareQuery;
+      if (schema.hasSeparateBlobs()) {
+        prepareQuery = String.format("INSERT INTO %s (%s, %s, %s, %s, %s) " +
+                                     "VALUES (?, ?, 0, '0', '') ON DUPLICATE KEY UPDATE " +
+                                     " %3$s=VALUES(%3$s)",
+                                     mysqlCloudURI.getBucket(),
+                                     FIELD_NAME_KEY, FIELD_NAME_LAST_MODIFIED,
+                                     FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                                     FIELD_NAME_CONTENT_TYPE);
+      } else {
+        prepareQuery = String.format("INSERT INTO %s (%s, %s, %s, %s, %s, %s) " +
+                                     "VALUES (?, NULL, ?, 0, '0', '') ON DUPLICATE KEY UPDATE " +
+                                     " %4$s=VALUES(%4$s)",
+                                     mysqlCloudURI.getBucket(),
+                                     FIELD_NAME_KEY, FIELD_NAME_VALUE, FIELD_NAME_LAST_MODIFIED,
+                                     FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                                     FIELD_NAME_CONTENT_TYPE);
+      }
+
+      /* Query that updates the value (key and value parameters) */
+      String valueQuery;
+      if (schema.hasSeparateBlobs()) {
+        valueQuery = blobUpsertQuery();
+      } else {
+        valueQuery = String.format("UPDATE %s SET %s=? WHERE %s=?",
+                                   mysqlCloudURI.getBucket(),
+                                   FIELD_NAME_VALUE, FIELD_NAME_KEY);
+      }
+
+      /* Query that updates the metadata */
+      String metadataQuery = String.format("UPDATE %s SET %s=?, %s=?, %s=?%s WHERE %s=?",
+                                           mysqlCloudURI.getBucket(),
+                                           FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                                           FIELD_NAME_CONTENT_TYPE,
+                                           schema.hasChunks() ?
+                                           String.format(", %s=0, %s=0", FIELD_NAME_CHUNK_SIZE,
+                                                         FIELD_NAME_GENERATION) : "",
+                                           FIELD_NAME_KEY);
 
-      insert = conn.createStatement();
-      insert.executeUpdate(prepareQuery);
+      insert = conn.prepareStatement(prepareQuery);
+      insert.setString(1, key);
+      insert.setLong(2, timestamp);
+      insert.executeUpdate();
       insert.close();
+      Map<String, Long> generations = lockGenerations(conn, new String[] {key});
 
       in = new MD5InputStream(valueInputStream);
 
       updateValue = conn.prepareStatement(valueQuery);
-      updateValue.setBinaryStream(1, in);
+      if (schema.hasSeparateBlobs()) {
+        updateValue.setString(1, key);
+        updateValue.setBinaryStream(2, in);
+      } else {
+        updateValue.setBinaryStream(1, in);
+        updateValue.setString(2, key);
+      }
       updateValue.executeUpdate();
       updateValue.close();
 
@@ -316,9 +827,15 @@ public class MySQLStorageCloud extends StorageCloud {
       updateMetadata = conn.prepareStatement(metadataQuery);
       updateMetadata.setLong(1, length);
       updateMetadata.setString(2, md5);
+      updateMetadata.setString(3, (contentType != null) ? contentType : "");
+      updateMetadata.setString(4, key);
       updateMetadata.executeUpdate();
       updateMetadata.close();
 
+      /* The value replaced was split in chunks */
+      if (generations.containsKey(key)) chunks.delete(conn, key, generations.get(key));
+
+      logChanges(conn, new String[] {key}, CloudChange.Type.PUT, timestamp);
       conn.commit();
     } catch (Exception e) {
       if (conn != null) {
@@ -350,6 +867,80 @@ public class MySQLStorageCloud extends StorageCloud {
     }
   }
 
+  /**
+   * Writes a value longer than a chunk. The chunks are written first, a batch per transaction,
+   * under a new generation; then a single transaction writes the metadata row pointing to them,
+   * which makes the new value visible, and deletes the replaced one.
+   *
+   * @param in Value stream, already partially read in <code>head</code>
+   * @param head Bytes already read from the stream
+   */
+  private void putChunks(String key, String contentType, MD5InputStream in, byte head[],
+                         long timestamp) throws CloudException
+  {
+    long generation = MySQLChunkStore.newGeneration();
+    Connection conn = null;
+    PreparedStatement upsert = null;
+    PreparedStatement deleteBlob = null;
+    boolean written = false;
+    try {
+      conn = getConnection();
+      int count = chunks.write(conn, key, generation,
+                               new SequenceInputStream(new ByteArrayInputStream(head), in),
+                               timestamp);
+      in.close();
+      written = true;
+      logger.debug(String.format("Written %d chunks of %s", count, key));
+
+      /* The metadata row is written last */
+      conn.setAutoCommit(false);
+      lockKeys(conn, new String[] {key});
+      Map<String, Long> generations = lockGenerations(conn, new String[] {key});
+      upsert = conn.prepareStatement(upsertQuery());
+      addUpsert(upsert, key, contentType, null, timestamp, in.getLength(), in.getMD5(),
+                chunks.getChunkSize(), generation);
+      upsert.executeBatch();
+
+      deleteBlob = conn.prepareStatement(String.format("DELETE FROM %s WHERE %s=?",
+                                                       schema.getBlobTable(), FIELD_NAME_KEY));
+      deleteBlob.setString(1, key);
+      deleteBlob.executeUpdate();
+      if (generations.containsKey(key)) chunks.delete(conn, key, generations.get(key));
+
+      logChanges(conn, new String[] {key}, CloudChange.Type.PUT, timestamp);
+      conn.commit();
+      written = false;
+    } catch (Exception e) {
+      if (conn != null) {
+        try {
+          conn.rollback();
+          /* The chunks of a failed write are never referenced */
+          if (written) {
+            conn.setAutoCommit(true);
+            chunks.delete(conn, key, generation);
+          }
+        } catch(SQLException e1) {}
+      }
+      throw new CloudException("Error performing put operation", e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {}
+
+      try {
+        if (upsert != null) upsert.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (deleteBlob != null) deleteBlob.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
   public void putMetadata(String key, String contentType, Map<String, String> userMetadata)
     throws IOException, CloudException
   {
@@ -358,17 +949,28 @@ public class MySQLStorageCloud extends StorageCloud {
     }
 
     /* Query that updates the metadata */
-    String metadataQuery = String.format("UPDATE %s SET %s='%s' WHERE %s='%s'",
+    String metadataQuery = String.format("UPDATE %s SET %s=? WHERE %s=?",
                                          mysqlCloudURI.getBucket(),
-                                         FIELD_NAME_CONTENT_TYPE, contentType,
-                                         FIELD_NAME_KEY, key);
+                                         FIELD_NAME_CONTENT_TYPE, FIELD_NAME_KEY);
     Connection conn = null;
-    Statement updateStmt = null;
+    PreparedStatement updateStmt = null;
     try {
       conn = getConnection();
-      updateStmt = conn.createStatement();
-      updateStmt.executeUpdate(metadataQuery);
+      conn.setAutoCommit(false);
+      updateStmt = conn.prepareStatement(metadataQuery);
+      updateStmt.setString(1, (contentType != null) ? contentType : "");
+      updateStmt.setString(2, key);
+      if (updateStmt.executeUpdate() > 0) {
+        logChanges(conn, new String[] {key}, CloudChange.Type.METADATA,
+                   System.currentTimeMillis() / 1000);
+      }
+      conn.commit();
     } catch (SQLException e) {
+      if (conn != null) {
+        try {
+          conn.rollback();
+        } catch(SQLException e1) {}
+      }
       throw new CloudException("Error performing put operation", e);
     } finally {
       try {
@@ -381,12 +983,1173 @@ public class MySQLStorageCloud extends StorageCloud {
     }
   }
 
-  public boolean supportsListByPrefix() {
-    return true;
+  /*
+   * Override of StorageCloud.putAll(requests). <br>
+   * The whole batch is written in a single transaction using one batched upsert statement. Values
+   * up to a chunk are read in memory to compute their MD5 before the batch is sent, longer ones
+   * are streamed to the chunk table (see {@link ValueBatch#add}).
+   */
+  public void putAll(CloudPutRequest requests[]) throws IOException, CloudException {
+    if (requests.length == 0) return;
+    logger.info("Putting " + requests.length + " entries");
+    long timestamp = System.currentTimeMillis() / 1000;
+
+    String keys[] = new String[requests.length];
+    for (int i = 0; i < requests.length; i++) keys[i] = requests[i].getKey();
+
+    Connection conn = null;
+    ValueBatch batch = null;
+    try {
+      conn = getConnection();
+      conn.setAutoCommit(false);
+      lockKeys(conn, keys);
+      Map<String, Long> generations = lockGenerations(conn, keys);
+      batch = new ValueBatch(conn, timestamp);
+
+      for (CloudPutRequest r: requests) {
+        if (r.getUserMetadata() != null && r.getUserMetadata().size() > 0) {
+          logger.warn("User metadata not supported by MySQL cloud: dropping them.");
+        }
+
+        batch.add(r);
+      }
+
+      batch.execute(generations);
+      logChanges(conn, keys, CloudChange.Type.PUT, timestamp);
+      conn.commit();
+    } catch (Exception e) {
+      if (conn != null) {
+        try {
+          conn.rollback();
+        } catch(SQLException e1) {}
+      }
+      throw new CloudException("Error performing batch put operation", e);
+    } finally {
+      for (CloudPutRequest r: requests) {
+        try {
+          r.getInputStream().close();
+        } catch (IOException e) {}
+      }
+
+      if (batch != null) batch.close();
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
   }
 
-  public boolean supportsListByDate() {
-    return true;
+  /**
+   * Returns the statement writing the metadata of a key, along with its value if the bucket
+   * uses the legacy layout.
+   */
+  private String upsertQuery() {
+    if (schema.hasChunks()) {
+      return String.format("INSERT INTO %s (%s, %s, %s, %s, %s, %s, %s) " +
+                           "VALUES (?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE " +
+                           "%3$s=VALUES(%3$s), %4$s=VALUES(%4$s), %5$s=VALUES(%5$s), " +
+                           "%6$s=VALUES(%6$s), %7$s=VALUES(%7$s), %8$s=VALUES(%8$s)",
+                           mysqlCloudURI.getBucket(),
+                           FIELD_NAME_KEY, FIELD_NAME_LAST_MODIFIED,
+                           FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                           FIELD_NAME_CONTENT_TYPE, FIELD_NAME_CHUNK_SIZE,
+                           FIELD_NAME_GENERATION);
+    }
+
+    if (schema.hasSeparateBlobs()) {
+      return String.format("INSERT INTO %s (%s, %s, %s, %s, %s) " +
+                           "VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE " +
+                           "%3$s=VALUES(%3$s), %4$s=VALUES(%4$s), %5$s=VALUES(%5$s), " +
+                           "%6$s=VALUES(%6$s)",
+                           mysqlCloudURI.getBucket(),
+                           FIELD_NAME_KEY, FIELD_NAME_LAST_MODIFIED,
+                           FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                           FIELD_NAME_CONTENT_TYPE);
+    }
+
+    return String.format("INSERT INTO %s (%s, %s, %s, %s, %s, %s) " +
+                         "VALUES (?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE " +
+                         "%3$s=VALUES(%3$s), %4$s=VALUES(%4$s), %5$s=VALUES(%5$s), " +
+                         "%6$s=VALUES(%6$s), %7$s=VALUES(%7$s)",
+                         mysqlCloudURI.getBucket(),
+                         FIELD_NAME_KEY, FIELD_NAME_VALUE, FIELD_NAME_LAST_MODIFIED,
+                         FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                         FIELD_NAME_CONTENT_TYPE);
+  }
+
+  /**
+   * Returns the statement writing the value of a key in the blob table.
+   */
+  private String blobUpsertQuery() {
+    return String.format("INSERT INTO %s (%s, %s) VALUES (?, ?) " +
+                         "ON DUPLICATE KEY UPDATE %3$s=VALUES(%3$s)",
+                         schema.getBlobTable(), FIELD_NAME_KEY, FIELD_NAME_VALUE);
+  }
+
+  /**
+   * Adds a metadata row to a batch of the statement returned by {@link #upsertQuery}.
+   *
+   * @param value Value, bound only if the bucket uses the legacy layout
+   * @param chunkSize Chunk size of the value, or 0 if not split in chunks
+   * @param generation Generation of the chunks, or 0 if not split in chunks
+   */
+  private void addUpsert(PreparedStatement upsert, String key, String contentType, byte value[],
+                         long timestamp, long length, String md5, int chunkSize, long generation)
+    throws SQLException
+  {
+    int i = 1;
+    upsert.setString(i++, key);
+    if (!schema.hasSeparateBlobs()) upsert.setBytes(i++, value);
+    upsert.setLong(i++, timestamp);
+    upsert.setLong(i++, length);
+    upsert.setString(i++, md5);
+    upsert.setString(i++, (contentType != null) ? contentType : "");
+    if (schema.hasChunks()) {
+      upsert.setInt(i++, chunkSize);
+      upsert.setLong(i++, generation);
+    }
+    upsert.addBatch();
+  }
+
+  /**
+   * Locks the metadata rows of the keys written by a transaction, creating placeholder rows
+   * (with an empty MD5) for the missing ones. It must be the first statement of the transaction,
+   * which must then write or delete every placeholder before committing. <br>
+   * Rows are created or locked by a single upsert in key order, which takes exclusive record
+   * locks. Locking missing keys with SELECT ... FOR UPDATE would take gap locks instead, which
+   * don't exclude each other: two transactions inserting new keys in the same gap would then
+   * deadlock. If InnoDB still detects a deadlock, nothing has been written yet, so the locking is
+   * retried up to {@link #MAX_LOCK_ATTEMPTS} times.
+   *
+   * @param conn Connection to use, in a transaction
+   * @param keys Keys to lock
+   * @exception SQLException if an error occurs
+   */
+  private void lockKeys(Connection conn, String keys[]) throws SQLException {
+    String sorted[] = keys.clone();
+    Arrays.sort(sorted);
+    String query = String.format("INSERT INTO %s (%s, %s, %s, %s, %s) VALUES (?, 0, 0, '%s', '') " +
+                                 "ON DUPLICATE KEY UPDATE %2$s=%2$s",
+                                 mysqlCloudURI.getBucket(),
+                                 FIELD_NAME_KEY, FIELD_NAME_LAST_MODIFIED,
+                                 FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_CONTENT_MD5,
+                                 FIELD_NAME_CONTENT_TYPE, PLACEHOLDER_MD5);
+
+    for (int attempt = 1; ; attempt++) {
+      PreparedStatement stmt = conn.prepareStatement(query);
+      try {
+        for (String key: sorted) {
+          stmt.setString(1, key);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+        return;
+      } catch (SQLException e) {
+        if (!isDeadlock(e) || attempt >= MAX_LOCK_ATTEMPTS) throw e;
+        logger.debug("Deadlock locking " + keys.length + " keys: retrying");
+        conn.rollback();
+      } finally {
+        try {
+          stmt.close();
+        } catch (SQLException e) {}
+      }
+    }
+  }
+
+  /**
+   * Checks whether an error was raised because InnoDB detected a deadlock and rolled back the
+   * transaction.
+   */
+  private static boolean isDeadlock(Throwable e) {
+    for (; e != null; e = e.getCause()) {
+      if (!(e instanceof SQLException)) continue;
+      SQLException sqlError = (SQLException) e;
+      if ("40001".equals(sqlError.getSQLState()) || sqlError.getErrorCode() == 1213) return true;
+      if (sqlError.getNextException() != null && isDeadlock(sqlError.getNextException()))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the chunk generations referenced by the metadata rows of the specified keys, locking
+   * the rows until the end of the transaction.
+   *
+   * @param conn Connection to use, in a transaction
+   * @param keys Keys to look up
+   * @return Generation of each key whose value is split in chunks (empty if the bucket layout
+   * doesn't support chunks)
+   * @exception SQLException if an error occurs
+   */
+  private Map<String, Long> lockGenerations(Connection conn, String keys[]) throws SQLException {
+    HashMap<String, Long> generations = new HashMap<String, Long>();
+    if (!schema.hasChunks() || keys.length == 0) return generations;
+
+    String fields = String.format("%s, %s", FIELD_NAME_KEY, FIELD_NAME_GENERATION);
+    PreparedStatement stmt = conn.prepareStatement(inQuery(fields, keys.length, false) +
+                                                   " FOR UPDATE");
+    ResultSet result = null;
+    try {
+      for (int i = 0; i < keys.length; i++) stmt.setString(i + 1, keys[i]);
+      result = stmt.executeQuery();
+      while (result.next()) {
+        long generation = result.getLong(FIELD_NAME_GENERATION);
+        if (generation != 0) generations.put(result.getString(FIELD_NAME_KEY), generation);
+      }
+      return generations;
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Batch of values written in a single transaction: values longer than a chunk are split in
+   * chunks, the others go to the blob table (or the bucket table in the legacy layout). Chunks
+   * are written as soon as a value is added, blobs and metadata rows are sent last.
+   */
+  private class ValueBatch {
+    private Connection conn;
+    private long timestamp;
+    private boolean chunking;
+    private PreparedStatement upsert;
+    private PreparedStatement blobUpsert = null;
+    private ArrayList<String> keys = new ArrayList<String>();
+    private ArrayList<String> chunkedKeys = new ArrayList<String>();
+
+    ValueBatch(Connection conn, long timestamp) throws SQLException {
+      this.conn = conn;
+      this.timestamp = timestamp;
+      chunking = chunking();
+      upsert = conn.prepareStatement(upsertQuery());
+      if (schema.hasSeparateBlobs()) blobUpsert = conn.prepareStatement(blobUpsertQuery());
+    }
+
+    /**
+     * Reads the value of a request and adds it to the batch. At most a chunk is held in memory
+     * if chunking is enabled: longer values are streamed to the chunk table right away, within
+     * the batch transaction. Otherwise the whole value is held until the batch is sent.
+     *
+     * @return Closed stream holding MD5 and length of the value
+     */
+    MD5InputStream add(CloudPutRequest r) throws SQLException, IOException {
+      MD5InputStream in = new MD5InputStream(r.getInputStream());
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      int chunkSize = 0;
+      long generation = 0;
+      try {
+        byte buff[] = new byte[8192];
+        int len;
+        while ((!chunking || head.size() <= chunks.getChunkSize()) &&
+               (len = in.read(buff, 0, buff.length)) >= 0) {
+          head.write(buff, 0, len);
+        }
+
+        if (chunking && head.size() > chunks.getChunkSize()) {
+          chunkSize = chunks.getChunkSize();
+          generation = MySQLChunkStore.newGeneration();
+          chunks.write(conn, r.getKey(), generation,
+                       new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), in),
+                       timestamp);
+          chunkedKeys.add(r.getKey());
+        }
+      } finally {
+        in.close();
+      }
+
+      byte value[] = (chunkSize > 0) ? null : head.toByteArray();
+      if (chunkSize == 0 && blobUpsert != null) {
+        blobUpsert.setString(1, r.getKey());
+        blobUpsert.setBytes(2, value);
+        blobUpsert.addBatch();
+      }
+
+      addUpsert(upsert, r.getKey(), r.getContentType(), value, timestamp, in.getLength(),
+                in.getMD5(), chunkSize, generation);
+      keys.add(r.getKey());
+      return in;
+    }
+
+    /**
+     * Sends the batch and deletes the values replaced.
+     *
+     * @param generations Chunk generations referenced before the batch, as returned by
+     * {@link #lockGenerations}
+     */
+    void execute(Map<String, Long> generations) throws SQLException {
+      if (keys.isEmpty()) return;
+
+      if (blobUpsert != null && chunkedKeys.size() < keys.size()) blobUpsert.executeBatch();
+      upsert.executeBatch();
+
+      if (!chunkedKeys.isEmpty()) {
+        PreparedStatement deleteBlob = conn.prepareStatement(String.format(
+          "DELETE FROM %s WHERE %s=?", schema.getBlobTable(), FIELD_NAME_KEY));
+        try {
+          for (String key: chunkedKeys) {
+            deleteBlob.setString(1, key);
+            deleteBlob.addBatch();
+          }
+          deleteBlob.executeBatch();
+        } finally {
+          try {
+            deleteBlob.close();
+          } catch (SQLException e) {}
+        }
+      }
+
+      if (generations.isEmpty()) return;
+      boolean replaced = false;
+      PreparedStatement deleteChunks = conn.prepareStatement(chunks.deleteQuery());
+      try {
+        for (String key: keys) {
+          if (!generations.containsKey(key)) continue;
+          deleteChunks.setString(1, key);
+          deleteChunks.setLong(2, generations.get(key));
+          deleteChunks.addBatch();
+          replaced = true;
+        }
+        if (replaced) deleteChunks.executeBatch();
+      } finally {
+        try {
+          deleteChunks.close();
+        } catch (SQLException e) {}
+      }
+    }
+
+    void close() {
+      try {
+        upsert.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (blobUpsert != null) blobUpsert.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /*
+   * Override of StorageCloud.conditionalPut(request).
+   */
+  protected CloudPutRequest.Result conditionalPut(CloudPutRequest request)
+    throws IOException, CloudException
+  {
+    return conditionalPutAll(new CloudPutRequest[] {request})[0];
+  }
+
+  /*
+   * Override of StorageCloud.conditionalPutAll(requests). <br>
+   * The whole batch is performed in a single transaction: the rows of the requested keys are
+   * locked (see {@link #lockKeys}) while the conditions are checked, so no concurrent writer can
+   * slip in between. Only the values to upload are read and sent to the server.
+   */
+  protected CloudPutRequest.Result[] conditionalPutAll(CloudPutRequest requests[])
+    throws IOException, CloudException
+  {
+    CloudPutRequest.Result results[] = new CloudPutRequest.Result[requests.length];
+    if (requests.length == 0) return results;
+    long timestamp = System.currentTimeMillis() / 1000;
+
+    String typeQuery = String.format("UPDATE %s SET %s=? WHERE %s=?",
+                                     mysqlCloudURI.getBucket(),
+                                     FIELD_NAME_CONTENT_TYPE, FIELD_NAME_KEY);
+
+    String keys[] = new String[requests.length];
+    for (int i = 0; i < requests.length; i++) keys[i] = requests[i].getKey();
+
+    Connection conn = null;
+    PreparedStatement lockStmt = null;
+    ValueBatch batch = null;
+    PreparedStatement updateType = null;
+    ResultSet result = null;
+    try {
+      conn = getConnection();
+      conn.setAutoCommit(false);
+      lockKeys(conn, keys);
+
+      String fields = String.format("%s, %s, %s%s", FIELD_NAME_KEY, FIELD_NAME_CONTENT_MD5,
+                                    FIELD_NAME_CONTENT_TYPE,
+                                    schema.hasChunks() ? ", " + FIELD_NAME_GENERATION : "");
+      lockStmt = conn.prepareStatement(inQuery(fields, requests.length, false) + " FOR UPDATE");
+      for (int i = 0; i < requests.length; i++) lockStmt.setString(i + 1, requests[i].getKey());
+      result = lockStmt.executeQuery();
+      HashMap<String, String> md5s = new HashMap<String, String>(requests.length * 2);
+      HashMap<String, String> types = new HashMap<String, String>(requests.length * 2);
+      HashMap<String, Long> generations = new HashMap<String, Long>();
+      HashSet<String> placeholders = new HashSet<String>();
+      while (result.next()) {
+        if (PLACEHOLDER_MD5.equals(result.getString(FIELD_NAME_CONTENT_MD5))) {
+          placeholders.add(result.getString(FIELD_NAME_KEY));
+          continue;
+        }
+        md5s.put(result.getString(FIELD_NAME_KEY), result.getString(FIELD_NAME_CONTENT_MD5));
+        types.put(result.getString(FIELD_NAME_KEY), result.getString(FIELD_NAME_CONTENT_TYPE));
+        if (schema.hasChunks() && result.getLong(FIELD_NAME_GENERATION) != 0) {
+          generations.put(result.getString(FIELD_NAME_KEY),
+                          result.getLong(FIELD_NAME_GENERATION));
+        }
+      }
+
+      ArrayList<String> uploaded = new ArrayList<String>();
+      ArrayList<String> retyped = new ArrayList<String>();
+      batch = new ValueBatch(conn, timestamp);
+      updateType = conn.prepareStatement(typeQuery);
+      for (int i = 0; i < requests.length; i++) {
+        CloudPutRequest r = requests[i];
+        String contentType = (r.getContentType() != null) ? r.getContentType() : "";
+        if (r.getUserMetadata() != null && r.getUserMetadata().size() > 0) {
+          logger.warn("User metadata not supported by MySQL cloud: dropping them.");
+        }
+
+        results[i] = r.evaluate(md5s.get(r.getKey()));
+        if (results[i] == CloudPutRequest.Result.UPLOADED) {
+          MD5InputStream in = batch.add(r);
+          placeholders.remove(r.getKey());
+          md5s.put(r.getKey(), in.getMD5());
+          types.put(r.getKey(), contentType);
+          uploaded.add(r.getKey());
+        } else if (results[i] == CloudPutRequest.Result.UNCHANGED &&
+                   !contentType.equals(types.get(r.getKey()))) {
+          updateType.setString(1, contentType);
+          updateType.setString(2, r.getKey());
+          updateType.addBatch();
+          types.put(r.getKey(), contentType);
+          retyped.add(r.getKey());
+        }
+      }
+
+      if (!uploaded.isEmpty()) {
+        batch.execute(generations);
+        logChanges(conn, uploaded.toArray(new String[uploaded.size()]), CloudChange.Type.PUT,
+                   timestamp);
+      }
+      if (!retyped.isEmpty()) {
+        updateType.executeBatch();
+        logChanges(conn, retyped.toArray(new String[retyped.size()]), CloudChange.Type.METADATA,
+                   timestamp);
+      }
+      if (!placeholders.isEmpty()) deletePlaceholders(conn, placeholders);
+      conn.commit();
+    } catch (Exception e) {
+      if (conn != null) {
+        try {
+          conn.rollback();
+        } catch(SQLException e1) {}
+      }
+      throw new CloudException("Error performing conditional put operation", e);
+    } finally {
+      for (int i = 0; i < requests.length; i++) {
+        if (results[i] != CloudPutRequest.Result.UPLOADED) continue;
+        try {
+          requests[i].getInputStream().close();
+        } catch (IOException e) {}
+      }
+
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (lockStmt != null) lockStmt.close();
+      } catch (SQLException e) {}
+
+      if (batch != null) batch.close();
+
+      try {
+        if (updateType != null) updateType.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+
+    return results;
+  }
+
+  /**
+   * Deletes the placeholder rows created by {@link #lockKeys} for keys which haven't been
+   * written.
+   */
+  private void deletePlaceholders(Connection conn, Collection<String> keys) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(String.format(
+      "DELETE FROM %s WHERE %s=? AND %s='%s'", mysqlCloudURI.getBucket(), FIELD_NAME_KEY,
+      FIELD_NAME_CONTENT_MD5, PLACEHOLDER_MD5));
+    try {
+      for (String key: keys) {
+        stmt.setString(1, key);
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+    } finally {
+      try {
+        stmt.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  public boolean supportsListByPrefix() {
+    return true;
+  }
+
+  public boolean supportsListByDate() {
+    return true;
+  }
+
+  /*
+   * Override of StorageCloud.listIterator(timestamp, prefix, pageSize). <br>
+   * Keys are fetched in key order a page at a time, each page starting right after the last key
+   * of the previous one. No connection is held between pages.
+   */
+  public Iterator<String> listIterator(Date tstamp, String prefix, int pageSize)
+    throws IOException, CloudException
+  {
+    return new MySQLListIterator((tstamp != null) ? tstamp.getTime() / 1000 : 0,
+                                 (prefix != null) ? prefix : "", pageSize);
+  }
+
+  /**
+   * Keys iterator performing keyset pagination over the bucket table
+   */
+  private class MySQLListIterator implements Iterator<String> {
+
+    private long timestamp;
+    private String prefix;
+    private int pageSize;
+    private LinkedList<String> page = new LinkedList<String>();
+    private String lastKey = null;
+    private boolean exhausted = false;
+
+    MySQLListIterator(long timestamp, String prefix, int pageSize) {
+      if (pageSize <= 0) throw new IllegalArgumentException("Page size must be greater than 0");
+      this.timestamp = timestamp;
+      this.prefix = prefix;
+      this.pageSize = pageSize;
+    }
+
+    private void fetchPage() {
+      String query = String.format("SELECT %s FROM %s WHERE %s > ? AND %s LIKE ? %s " +
+                                   "ORDER BY %s LIMIT ?",
+                                   FIELD_NAME_KEY,
+                                   mysqlCloudURI.getBucket(),
+                                   FIELD_NAME_LAST_MODIFIED,
+                                   FIELD_NAME_KEY,
+                                   (lastKey != null) ? "AND " + FIELD_NAME_KEY + " > ?" : "",
+                                   FIELD_NAME_KEY);
+
+      Connection conn = null;
+      PreparedStatement queryStmt = null;
+      ResultSet result = null;
+      try {
+        conn = getConnection();
+        queryStmt = conn.prepareStatement(query);
+        int i = 1;
+        queryStmt.setLong(i++, timestamp);
+        queryStmt.setString(i++, escapeLike(prefix) + "%");
+        if (lastKey != null) queryStmt.setString(i++, lastKey);
+        queryStmt.setInt(i++, pageSize);
+        result = queryStmt.executeQuery();
+
+        while (result.next()) {
+          page.add(result.getString(FIELD_NAME_KEY));
+        }
+        if (page.size() < pageSize) exhausted = true;
+        if (page.size() > 0) lastKey = page.getLast();
+        logger.trace("Fetched a page of " + page.size() + " keys");
+      } catch (SQLException e) {
+        throw new CloudException("Error listing entries", e);
+      } finally {
+        try {
+          if (result != null) result.close();
+        } catch (SQLException e) {}
+
+        try {
+          if (queryStmt != null) queryStmt.close();
+        } catch (SQLException e) {}
+
+        try {
+          if (conn != null) conn.close();
+        } catch (SQLException e) {}
+      }
+    }
+
+    public boolean hasNext() {
+      if (page.isEmpty() && !exhausted) fetchPage();
+      return !page.isEmpty();
+    }
+
+    public String next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      return page.removeFirst();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /*
+   * Override of StorageCloud.listWithMetadata(prefix, timestamp). <br>
+   * Keys and metadata are retrieved with a single query.
+   */
+  public Map<String, CloudMetadata> listWithMetadata(String prefix, Date tstamp)
+    throws IOException, CloudException
+  {
+    String query = String.format("SELECT %s, %s, %s, %s, %s FROM %s WHERE %s > ? AND %s LIKE ?",
+                                 FIELD_NAME_KEY,
+                                 FIELD_NAME_CONTENT_LENGTH,
+                                 FIELD_NAME_LAST_MODIFIED,
+                                 FIELD_NAME_CONTENT_MD5,
+                                 FIELD_NAME_CONTENT_TYPE,
+                                 mysqlCloudURI.getBucket(),
+                                 FIELD_NAME_LAST_MODIFIED,
+                                 FIELD_NAME_KEY);
+
+    Connection conn = null;
+    PreparedStatement queryStmt = null;
+    ResultSet result = null;
+    try {
+      conn = getConnection();
+      queryStmt = conn.prepareStatement(query);
+      queryStmt.setLong(1, (tstamp != null) ? tstamp.getTime() / 1000 : 0);
+      queryStmt.setString(2, escapeLike((prefix != null) ? prefix : "") + "%");
+      result = queryStmt.executeQuery();
+
+      HashMap<String, CloudMetadata> metadata = new HashMap<String, CloudMetadata>();
+      while (result.next()) {
+        metadata.put(result.getString(FIELD_NAME_KEY),
+                     new MySQLCloudMetadata(result.getLong(FIELD_NAME_CONTENT_LENGTH),
+                                            new Date(result.getLong(FIELD_NAME_LAST_MODIFIED) * 1000),
+                                            result.getString(FIELD_NAME_CONTENT_MD5),
+                                            result.getString(FIELD_NAME_CONTENT_TYPE)));
+      }
+      logger.trace("Listed " + metadata.size() + " entries with metadata");
+      return metadata;
+    } catch (SQLException e) {
+      throw new CloudException("Error listing entries metadata", e);
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (queryStmt != null) queryStmt.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /*
+   * Override of StorageCloud.get(key, offset, length). <br>
+   * Only the requested range of the value is transferred, extracted by the server with
+   * SUBSTRING.
+   */
+  public CloudObject get(String key, long offset, long length) throws CloudException {
+    checkRange(offset, length);
+
+    Connection conn = getConnection();
+    String query = String.format("SELECT SUBSTRING(%s, ?, ?) AS %s, %s, %s, %s, %s%s from %s " +
+                                 "WHERE %s=?",
+                                 FIELD_NAME_VALUE,
+                                 FIELD_NAME_VALUE,
+                                 FIELD_NAME_CONTENT_LENGTH,
+                                 FIELD_NAME_LAST_MODIFIED,
+                                 FIELD_NAME_CONTENT_MD5,
+                                 FIELD_NAME_CONTENT_TYPE,
+                                 chunkFields(),
+                                 valueSource(),
+                                 FIELD_NAME_KEY);
+
+    InputStream in = null;
+    long lastModified = 0;
+    String contentMD5 = null;
+    long contentLength = 0;
+    String contentType = null;
+    int chunkSize = 0;
+    long generation = 0;
+
+    PreparedStatement stmt = null;
+    ResultSet result = null;
+    boolean found = false;
+    try {
+      stmt = prepareValueQuery(conn, query);
+      /* SUBSTRING positions start from 1 */
+      stmt.setLong(1, offset + 1);
+      stmt.setLong(2, length);
+      stmt.setString(3, key);
+      result = stmt.executeQuery();
+
+      if (result.next()) {
+        found = true;
+        lastModified = result.getLong(FIELD_NAME_LAST_MODIFIED);
+        contentLength = result.getLong(FIELD_NAME_CONTENT_LENGTH);
+        contentMD5 = result.getString(FIELD_NAME_CONTENT_MD5);
+        contentType = result.getString(FIELD_NAME_CONTENT_TYPE);
+        if (schema.hasChunks()) {
+          chunkSize = result.getInt(FIELD_NAME_CHUNK_SIZE);
+          generation = result.getLong(FIELD_NAME_GENERATION);
+        }
+        in = result.getBinaryStream(FIELD_NAME_VALUE);
+      }
+    } catch (SQLException e) {
+      found = false;
+      throw new CloudException("Error retrieving object range", e);
+    } finally {
+      if (!found) {
+        try {
+          if (result != null) result.close();
+        } catch (SQLException ex) {}
+
+        try {
+          if (stmt != null) stmt.close();
+        } catch (SQLException ex) {}
+
+        try {
+          conn.close();
+        } catch (SQLException ex) {}
+      }
+    }
+    if (!found) return null;
+
+    MySQLCloudObjectInputStream mysqlIn;
+    if (chunkSize > 0) {
+      /* Only the chunks overlapping the range are read */
+      mysqlIn = openChunks(conn, stmt, result, key, generation, chunkSize, offset,
+                           Math.max(0, Math.min(length, contentLength - offset)));
+    } else {
+      mysqlIn = openValue(conn, stmt, result, in);
+    }
+
+    MySQLCloudMetadata meta = new MySQLCloudMetadata(contentLength, new Date(lastModified * 1000),
+                                                     contentMD5, contentType);
+    try {
+      MySQLCloudURI uri = new MySQLCloudURI(mysqlCloudURI.getBaseURI(), mysqlCloudURI.getBucket(),
+                                            key, null);
+      return new MySQLCloudObject(uri, mysqlIn, meta);
+    } catch (URISyntaxException e) {
+      try {
+        mysqlIn.close();
+      } catch (IOException ex) {}
+      throw new CloudException("Error creating object cloud URI", e);
+    }
+  }
+
+  /**
+   * Builds a query selecting the specified fields of the rows matching a list of keys.
+   *
+   * @param fields Comma separated fields to select
+   * @param keys Number of keys in the list
+   * @param withValue Whether the value is among the selected fields
+   * @return Query with one parameter for each key
+   */
+  private String inQuery(String fields, int keys, boolean withValue) {
+    StringBuilder query = new StringBuilder();
+    query.append(String.format("SELECT %s FROM %s WHERE %s IN (", fields,
+                               withValue ? valueSource() : mysqlCloudURI.getBucket(),
+                               FIELD_NAME_KEY));
+    for (int i = 0; i < keys; i++) query.append((i == 0) ? "?" : ", ?");
+    query.append(')');
+    return query.toString();
+  }
+
+  /*
+   * Override of StorageCloud.getAll(keys). <br>
+   * Keys are looked up {@link #BATCH_READ_SIZE} at a time with a single connection. Rows are
+   * streamed from the server and each value is buffered in memory, so that the connection is
+   * released as soon as the last batch is read. Values split in chunks are read afterwards, one
+   * at a time, buffered or spooled as by {@link #get}.
+   */
+  public Map<String, CloudObject> getAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    ArrayList<String> keyList = new ArrayList<String>(keys);
+    HashMap<String, CloudObject> objects = new HashMap<String, CloudObject>(keyList.size() * 2);
+    if (keyList.isEmpty()) return objects;
+
+    /* Metadata and chunk references (generation, chunk size) of the values split in chunks */
+    HashMap<String, MySQLCloudMetadata> chunkedMeta = new HashMap<String, MySQLCloudMetadata>();
+    HashMap<String, long[]> chunkedRefs = new HashMap<String, long[]>();
+
+    Connection conn = null;
+    PreparedStatement queryStmt = null;
+    ResultSet result = null;
+    try {
+      conn = getConnection();
+      String fields = String.format("%s, %s, %s, %s, %s, %s%s", FIELD_NAME_KEY, FIELD_NAME_VALUE,
+                                    FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_LAST_MODIFIED,
+                                    FIELD_NAME_CONTENT_MD5, FIELD_NAME_CONTENT_TYPE,
+                                    chunkFields());
+      for (int offset = 0; offset < keyList.size(); offset += BATCH_READ_SIZE) {
+        int count = Math.min(BATCH_READ_SIZE, keyList.size() - offset);
+        queryStmt = conn.prepareStatement(inQuery(fields, count, true),
+                                          ResultSet.TYPE_FORWARD_ONLY,
+                                          ResultSet.CONCUR_READ_ONLY);
+        /* Rows are streamed instead of being fetched all at once */
+        queryStmt.setFetchSize(Integer.MIN_VALUE);
+        for (int i = 0; i < count; i++) queryStmt.setString(i + 1, keyList.get(offset + i));
+        result = queryStmt.executeQuery();
+
+        while (result.next()) {
+          String key = result.getString(FIELD_NAME_KEY);
+          byte value[] = result.getBytes(FIELD_NAME_VALUE);
+          MySQLCloudMetadata meta;
+          meta = new MySQLCloudMetadata(result.getLong(FIELD_NAME_CONTENT_LENGTH),
+                                        new Date(result.getLong(FIELD_NAME_LAST_MODIFIED) * 1000),
+                                        result.getString(FIELD_NAME_CONTENT_MD5),
+                                        result.getString(FIELD_NAME_CONTENT_TYPE));
+          if (schema.hasChunks() && result.getInt(FIELD_NAME_CHUNK_SIZE) > 0) {
+            chunkedMeta.put(key, meta);
+            chunkedRefs.put(key, new long[] {result.getLong(FIELD_NAME_GENERATION),
+                                             result.getInt(FIELD_NAME_CHUNK_SIZE)});
+            continue;
+          }
+
+          MySQLCloudURI uri = new MySQLCloudURI(mysqlCloudURI.getBaseURI(),
+                                                mysqlCloudURI.getBucket(), key, null);
+          InputStream in = new ByteArrayInputStream((value != null) ? value : new byte[0]);
+          objects.put(key, new MySQLCloudObject(uri, in, meta));
+        }
+
+        result.close();
+        result = null;
+        queryStmt.close();
+        queryStmt = null;
+      }
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving entries", e);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Error creating object cloud URI", e);
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (queryStmt != null) queryStmt.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+
+    /* Chunks are read with connections of their own, after releasing the one above */
+    try {
+      for (Map.Entry<String, long[]> ref: chunkedRefs.entrySet()) {
+        String key = ref.getKey();
+        MySQLCloudMetadata meta = chunkedMeta.get(key);
+        InputStream in = chunks.read(key, ref.getValue()[0], (int) ref.getValue()[1], 0,
+                                     meta.getContentLength(), bufferThreshold, spoolDirectory);
+        MySQLCloudURI uri = new MySQLCloudURI(mysqlCloudURI.getBaseURI(),
+                                              mysqlCloudURI.getBucket(), key, null);
+        objects.put(key, new MySQLCloudObject(uri, in, meta));
+      }
+    } catch (Exception e) {
+      for (String key: chunkedRefs.keySet()) {
+        if (!objects.containsKey(key)) continue;
+        try {
+          objects.get(key).getInputStream().close();
+        } catch (IOException ex) {}
+      }
+      if (e instanceof CloudException) throw (CloudException) e;
+      throw new CloudException("Error retrieving entries", e);
+    }
+
+    logger.trace(String.format("Retrieved %d of %d entries", objects.size(), keyList.size()));
+    return objects;
+  }
+
+  /*
+   * Override of StorageCloud.getMetadataAll(keys). <br>
+   * Keys are looked up {@link #BATCH_READ_SIZE} at a time with a single connection.
+   */
+  public Map<String, CloudMetadata> getMetadataAll(Collection<String> keys)
+    throws IOException, CloudException
+  {
+    String fields = String.format("%s, %s, %s, %s, %s", FIELD_NAME_KEY,
+                                  FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_LAST_MODIFIED,
+                                  FIELD_NAME_CONTENT_MD5, FIELD_NAME_CONTENT_TYPE);
+    ArrayList<String> keyList = new ArrayList<String>(keys);
+    HashMap<String, CloudMetadata> metadata =
+      new HashMap<String, CloudMetadata>(keyList.size() * 2);
+    if (keyList.isEmpty()) return metadata;
+
+    Connection conn = null;
+    PreparedStatement queryStmt = null;
+    ResultSet result = null;
+    try {
+      conn = getConnection();
+      for (int offset = 0; offset < keyList.size(); offset += BATCH_READ_SIZE) {
+        int count = Math.min(BATCH_READ_SIZE, keyList.size() - offset);
+        queryStmt = conn.prepareStatement(inQuery(fields, count, false));
+        for (int i = 0; i < count; i++) queryStmt.setString(i + 1, keyList.get(offset + i));
+        result = queryStmt.executeQuery();
+
+        while (result.next()) {
+          metadata.put(result.getString(FIELD_NAME_KEY),
+                       new MySQLCloudMetadata(result.getLong(FIELD_NAME_CONTENT_LENGTH),
+                                              new Date(result.getLong(FIELD_NAME_LAST_MODIFIED) * 1000),
+                                              result.getString(FIELD_NAME_CONTENT_MD5),
+                                              result.getString(FIELD_NAME_CONTENT_TYPE)));
+        }
+
+        result.close();
+        result = null;
+        queryStmt.close();
+        queryStmt = null;
+      }
+
+      logger.trace(String.format("Retrieved metadata of %d of %d entries", metadata.size(),
+                                 keyList.size()));
+      return metadata;
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving entries metadata", e);
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (queryStmt != null) queryStmt.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /*
+   * Override of StorageCloud.supportsChangeFeed(). <br>
+   * The change feed is available if the changelog table exists.
+   */
+  public boolean supportsChangeFeed() {
+    if (changelogAvailable != null) return changelogAvailable;
+
+    Connection conn = getConnection();
+    try {
+      return hasChangelog(conn);
+    } catch (SQLException e) {
+      throw new CloudException("Error checking changelog table", e);
+    } finally {
+      try {
+        conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /*
+   * Override of StorageCloud.getChangeSequence()
+   */
+  public long getChangeSequence() throws IOException, CloudException {
+    if (!supportsChangeFeed()) throw new CloudException("No changelog table for bucket " +
+                                                        mysqlCloudURI.getBucket());
+
+    String query = String.format("SELECT COALESCE(MAX(%s), 0) FROM %s",
+                                 FIELD_NAME_CHANGE_SEQUENCE, getChangelogTable());
+
+    Connection conn = null;
+    PreparedStatement queryStmt = null;
+    ResultSet result = null;
+    try {
+      conn = getConnection();
+      queryStmt = conn.prepareStatement(query);
+      result = queryStmt.executeQuery();
+      return result.next() ? result.getLong(1) : 0;
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving change sequence", e);
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (queryStmt != null) queryStmt.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /*
+   * Override of StorageCloud.changesSince(sequence, limit)
+   */
+  public CloudChange[] changesSince(long sequence, int limit) throws IOException, CloudException {
+    if (!supportsChangeFeed()) throw new CloudException("No changelog table for bucket " +
+                                                        mysqlCloudURI.getBucket());
+
+    String query = String.format("SELECT %s, %s, %s, %s FROM %s WHERE %1$s > ? ORDER BY %1$s LIMIT ?",
+                                 FIELD_NAME_CHANGE_SEQUENCE, FIELD_NAME_KEY,
+                                 FIELD_NAME_CHANGE_TYPE, FIELD_NAME_LAST_MODIFIED,
+                                 getChangelogTable());
+
+    Connection conn = null;
+    PreparedStatement queryStmt = null;
+    ResultSet result = null;
+    try {
+      conn = getConnection();
+      queryStmt = conn.prepareStatement(query);
+      queryStmt.setLong(1, sequence);
+      queryStmt.setInt(2, limit);
+      result = queryStmt.executeQuery();
+
+      ArrayList<CloudChange> changes = new ArrayList<CloudChange>();
+      while (result.next()) {
+        changes.add(new CloudChange(result.getLong(FIELD_NAME_CHANGE_SEQUENCE),
+                                    result.getString(FIELD_NAME_KEY),
+                                    CloudChange.Type.valueOf(result.getString(FIELD_NAME_CHANGE_TYPE)),
+                                    new Date(result.getLong(FIELD_NAME_LAST_MODIFIED) * 1000)));
+      }
+      return changes.toArray(new CloudChange[changes.size()]);
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving changes", e);
+    } finally {
+      try {
+        if (result != null) result.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (queryStmt != null) queryStmt.close();
+      } catch (SQLException e) {}
+
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Removes the changes recorded before the specified date from the changelog. If the changelog
+   * is partitioned by time only whole partitions are dropped, otherwise the old rows are deleted.
+   * <br>
+   * Followers whose change sequence points before the trimmed changes will miss them: they must
+   * fall back to a full listing.
+   *
+   * @param before Changes older than this date are removed
+   * @return Number of partitions dropped, or of rows deleted if the changelog isn't partitioned
+   * @exception CloudException if the bucket has no changelog or an error occurs
+   */
+  public int trimChangelog(Date before) throws CloudException {
+    if (!supportsChangeFeed()) throw new CloudException("No changelog table for bucket " +
+                                                        mysqlCloudURI.getBucket());
+
+    Connection conn = getConnection();
+    try {
+      int trimmed = schema.trimChangelog(conn, before.getTime() / 1000);
+      logger.info(String.format("Trimmed changelog of bucket %s before %s: %d removed",
+                                mysqlCloudURI.getBucket(), before, trimmed));
+      return trimmed;
+    } catch (SQLException e) {
+      throw new CloudException("Error trimming changelog", e);
+    } finally {
+      try {
+        conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Deletes the chunks left behind by writes interrupted before their metadata row was written
+   * (see {@link MySQLChunkStore}).
+   *
+   * @param before Only chunks written before this date are deleted: it must leave enough margin
+   * for the writes in progress to complete
+   * @return Number of chunks deleted
+   * @exception CloudException if an error occurs
+   */
+  public int purgeOrphanChunks(Date before) throws CloudException {
+    Connection conn = getConnection();
+    try {
+      if (!schema.hasChunks()) return 0;
+      int purged = chunks.purgeOrphans(conn, before.getTime() / 1000);
+      if (purged > 0) logger.info(String.format("Purged %d orphan chunks of bucket %s", purged,
+                                                mysqlCloudURI.getBucket()));
+      return purged;
+    } catch (SQLException e) {
+      throw new CloudException("Error purging orphan chunks", e);
+    } finally {
+      try {
+        conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  /**
+   * Checks with EXPLAIN that the listing and lookup queries of this cloud don't scan the whole
+   * bucket table.
+   *
+   * @return Warnings describing the full scans found (empty if none)
+   * @exception CloudException if an error occurs
+   */
+  public List<String> checkQueryPlans() throws CloudException {
+    Connection conn = getConnection();
+    try {
+      return checkQueryPlans(conn);
+    } catch (SQLException e) {
+      throw new CloudException("Error checking query plans", e);
+    } finally {
+      try {
+        conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private List<String> checkQueryPlans(Connection conn) throws SQLException {
+    String bucket = mysqlCloudURI.getBucket();
+    long recent = System.currentTimeMillis() / 1000 - 24 * 60 * 60;
+    String sample = "'cloudypeer/'";
+    String samplePrefix = "'cloudypeer/%'";
+
+    String queries[][] = {
+      {"list by prefix",
+       String.format("SELECT %s FROM %s WHERE %s > 0 AND %s LIKE %s", FIELD_NAME_KEY, bucket,
+                     FIELD_NAME_LAST_MODIFIED, FIELD_NAME_KEY, samplePrefix)},
+      {"list by date",
+       String.format("SELECT %s FROM %s WHERE %s > %d AND %s LIKE '%%'", FIELD_NAME_KEY, bucket,
+                     FIELD_NAME_LAST_MODIFIED, recent, FIELD_NAME_KEY)},
+      {"list page",
+       String.format("SELECT %s FROM %s WHERE %s > 0 AND %s LIKE %s AND %2$s > %s ORDER BY %2$s " +
+                     "LIMIT 100", FIELD_NAME_KEY, bucket, FIELD_NAME_LAST_MODIFIED,
+                     FIELD_NAME_KEY, samplePrefix, sample)},
+      {"list with metadata",
+       String.format("SELECT %s, %s, %s, %s, %s FROM %s WHERE %s > %d AND %1$s LIKE %s",
+                     FIELD_NAME_KEY, FIELD_NAME_CONTENT_LENGTH, FIELD_NAME_LAST_MODIFIED,
+                     FIELD_NAME_CONTENT_MD5, FIELD_NAME_CONTENT_TYPE, bucket,
+                     FIELD_NAME_LAST_MODIFIED, recent, samplePrefix)},
+      {"get metadata",
+       String.format("SELECT %s, %s FROM %s WHERE %s=%s", FIELD_NAME_CONTENT_MD5,
+                     FIELD_NAME_LAST_MODIFIED, bucket, FIELD_NAME_KEY, sample)},
+      {"get",
+       String.format("SELECT %s, %s FROM %s WHERE %s=%s", FIELD_NAME_VALUE,
+                     FIELD_NAME_CONTENT_MD5, valueSource(), FIELD_NAME_KEY, sample)}
+    };
+
+    ArrayList<String> warnings = new ArrayList<String>();
+    for (String query[]: queries) {
+      warnings.addAll(MySQLSchema.explain(conn, query[0], query[1]));
+    }
+    if (warnings.isEmpty()) logger.debug("Query plans of bucket " + bucket + " checked");
+    return warnings;
+  }
+
+  /**
+   * Escapes the LIKE wildcards contained in the specified string.
+   *
+   * @param s String to escape
+   * @return Escaped string
+   */
+  protected static String escapeLike(String s) {
+    return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
   }
 
   public String[] list(Date tstamp, String prefix) throws IOException, CloudException {
@@ -394,21 +2157,23 @@ public class MySQLStorageCloud extends StorageCloud {
     long timestamp = (tstamp != null) ? tstamp.getTime() : 0;
     if (prefix == null) prefix = "";
 
-    query = String.format("SELECT %s FROM %s WHERE %s > %d AND %s LIKE '%s%%'",
+    query = String.format("SELECT %s FROM %s WHERE %s > ? AND %s LIKE ?",
                           FIELD_NAME_KEY,
                           mysqlCloudURI.getBucket(),
-                          FIELD_NAME_LAST_MODIFIED, timestamp / 1000,
-                          FIELD_NAME_KEY, prefix);
+                          FIELD_NAME_LAST_MODIFIED,
+                          FIELD_NAME_KEY);
 
 
     Connection conn = null;
-    Statement queryStmt = null;
+    PreparedStatement queryStmt = null;
     ResultSet result = null;
     try {
       logger.trace("Listing cloud entries: " + query);
       conn = getConnection();
-      queryStmt = conn.createStatement();
-      result = queryStmt.executeQuery(query);
+      queryStmt = conn.prepareStatement(query);
+      queryStmt.setLong(1, timestamp / 1000);
+      queryStmt.setString(2, escapeLike(prefix) + "%");
+      result = queryStmt.executeQuery();
 
       ArrayList<String> keys = new ArrayList<String>();
       while (result.next()) {
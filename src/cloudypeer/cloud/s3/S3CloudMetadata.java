@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.s3;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudMetadata;
+
+/**
+ * Implementation of CloudMetadata for the S3 cloud.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class S3CloudMetadata implements CloudMetadata {
+
+  private long contentLength;
+  private long lastModified;
+  private String contentMD5;
+  private String contentType;
+  private String eTag;
+  private String versionID;
+  private Map<String, String> userMetadata;
+
+  /**
+   * Creates a new <code>S3CloudMetadata</code> instance.
+   *
+   * @param contentLength Object's content length
+   * @param lastModified Object's last modification date
+   * @param contentMD5 Object's MD5 hash
+   * @param contentType Object's content type
+   * @param eTag Object's entity tag
+   * @param versionID Object's version ID or null
+   * @param userMetadata Object's user metadata or null
+   */
+  public S3CloudMetadata(long contentLength, Date lastModified, String contentMD5,
+                         String contentType, String eTag, String versionID,
+                         Map<String, String> userMetadata)
+  {
+    if (contentLength < 0) throw new IllegalArgumentException("Illegal content length");
+    if (lastModified == null) throw new IllegalArgumentException("Null modification date");
+
+    this.contentLength = contentLength;
+    this.lastModified = lastModified.getTime();
+    this.contentMD5 = (contentMD5 != null) ? contentMD5.toLowerCase().trim() : null;
+    this.contentType = (contentType != null) ? contentType : "";
+    this.eTag = eTag;
+    this.versionID = versionID;
+    if (userMetadata == null || userMetadata.isEmpty())
+      this.userMetadata = Collections.emptyMap();
+    else
+      this.userMetadata = Collections.unmodifiableMap(new HashMap<String, String>(userMetadata));
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  public Date getLastModified() {
+    return new Date(lastModified);
+  }
+
+  public String getContentMD5() {
+    return contentMD5;
+  }
+
+  public Map<String, String> getUserMetadata() {
+    return userMetadata;
+  }
+
+  public String getVersionID() {
+    return versionID;
+  }
+
+  /**
+   * Returns the entity tag of the object, which changes whenever the content does.
+   *
+   * @return Entity tag (without quotes)
+   */
+  public String getETag() {
+    return eTag;
+  }
+}
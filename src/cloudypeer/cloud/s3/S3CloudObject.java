@@ -0,0 +1,58 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.s3;
+
+import java.io.InputStream;
+
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * Implementation of CloudObject for the S3 cloud. The input stream reads the HTTP response: it
+ * must be closed (after reading it fully, when possible) to let the connection be reused.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class S3CloudObject implements CloudObject {
+
+  private S3CloudURI objectURI;
+  private InputStream in;
+  private S3CloudMetadata meta;
+
+  /**
+   * Creates a new <code>S3CloudObject</code> instance.
+   *
+   * @param objectURI URI of the object
+   * @param in Content input stream
+   * @param meta Object metadata
+   */
+  public S3CloudObject(S3CloudURI objectURI, InputStream in, S3CloudMetadata meta) {
+    if (objectURI == null) throw new IllegalArgumentException("Object URI not specified");
+    if (objectURI.getKey() == null) throw new IllegalArgumentException("Object key not specified!");
+
+    this.objectURI = objectURI;
+    this.in = in;
+    this.meta = meta;
+  }
+
+  public String getKey() {
+    return objectURI.getKey();
+  }
+
+  public final InputStream getInputStream() {
+    return in;
+  }
+
+  public final CloudURI getCloudURI() {
+    return objectURI;
+  }
+
+  public final CloudMetadata getMetadata() {
+    return meta;
+  }
+}
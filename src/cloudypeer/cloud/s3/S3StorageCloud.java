@@ -0,0 +1,1009 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.cloud.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.utils.RangeInputStream;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * StorageCloud implementation for Amazon S3 and compatible clouds, built on the JDK HTTP
+ * client. <br>
+ * <br>
+ * Requests use path style addressing and are signed with AWS signature version 4 (unsigned
+ * payload, contents are protected by Content-MD5); if no access keys are specified requests are
+ * sent anonymously. The following URI parameters are supported:
+ * <ul>
+ *  <li><b>region:</b> region of the bucket, used for signing (default
+ *  {@value #DEFAULT_REGION_NAME})</li>
+ *  <li><b>partSize:</b> size in bytes of the multipart upload parts (default 8 MB, minimum
+ *  5 MB)</li>
+ * </ul>
+ * Objects larger than the part size are uploaded with a multipart upload, buffering a part at a
+ * time. Since the ETag of such objects is not the MD5 hash of their content, the hash is always
+ * stored in the <code>{@value #MD5_METADATA}</code> user metadata entry; user metadata names
+ * are case insensitive on S3. <br>
+ * <br>
+ * Connections are kept alive by the JDK HTTP client: every response is fully read and closed,
+ * and callers must close the streams of the returned objects. At most
+ * <code>http.maxConnections</code> (system property, default 5) idle connections per host are
+ * kept; raise it when many operations run concurrently. <br>
+ * <br>
+ * Listings are paginated and include the ETag of each object: {@link #listWithMetadata} only
+ * requests the metadata of the objects whose ETag or modification date changed since they were
+ * last seen.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class S3StorageCloud extends StorageCloud {
+
+  static Logger logger = Logger.getLogger(S3StorageCloud.class);
+
+  public static final String PARAMETER_REGION = "region";
+  public static final String PARAMETER_PART_SIZE = "partSize";
+
+  public static final String DEFAULT_REGION_NAME = "us-east-1";
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  /* Not defined by HttpURLConnection */
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  public static int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+  public static int DEFAULT_CONNECT_TIMEOUT = 10000;
+  public static int DEFAULT_READ_TIMEOUT = 60000;
+  public static int LIST_PAGE_SIZE = 1000;
+
+  /**
+   * User metadata entry holding the MD5 hash of the object content
+   */
+  public static final String MD5_METADATA = "cloudypeer-md5";
+
+  protected static final String USER_METADATA_PREFIX = "x-amz-meta-";
+  protected static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+  protected static final String SIGNING_ALGORITHM = "AWS4-HMAC-SHA256";
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private S3CloudURI s3CloudURI;
+  private String endpoint;
+  private String host;
+  private String bucket;
+  private String accessKey;
+  private String secretKey;
+  private String region = DEFAULT_REGION_NAME;
+  private int partSize = DEFAULT_PART_SIZE;
+
+  /**
+   * Metadata of the objects, with the ETag they were retrieved for
+   */
+  private ConcurrentHashMap<String, S3CloudMetadata> metadataCache =
+    new ConcurrentHashMap<String, S3CloudMetadata>();
+
+  /* *********************************************************************
+   * Constructor implementation
+   ***********************************************************************/
+  public S3StorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    if (!(cloudURI instanceof S3CloudURI))
+      throw new IllegalArgumentException("CloudURI not supported");
+    if (cloudURI.getBucket() == null)
+      throw new IllegalArgumentException("Bucket not specified");
+
+    String authInfo[] = cloudURI.getAuthenticationInfo();
+    if (authInfo != null && authInfo.length > 0) {
+      if (authInfo.length < 2) throw new IllegalArgumentException("Secret key not specified");
+      accessKey = authInfo[0];
+      secretKey = authInfo[1];
+    }
+
+    try {
+      s3CloudURI = new S3CloudURI(cloudURI.getBaseURI(), cloudURI.getBucket(), null, authInfo);
+    } catch (URISyntaxException e) {
+      throw new CloudException("This should not be happening!", e);
+    }
+
+    URL url;
+    try {
+      url = cloudURI.getBaseURI().toURL();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid endpoint " + cloudURI.getBaseURI());
+    }
+    /* Same Host header sent by the JDK HTTP client */
+    host = url.getHost();
+    if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) host += ":" + url.getPort();
+    endpoint = url.getProtocol() + "://" + host;
+    bucket = cloudURI.getBucket();
+
+    String value = ((S3CloudURI) cloudURI).getParameters().getProperty(PARAMETER_REGION);
+    if (value != null) region = value;
+    value = ((S3CloudURI) cloudURI).getParameters().getProperty(PARAMETER_PART_SIZE);
+    if (value != null) setPartSize(Integer.parseInt(value));
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the size of the multipart upload parts.
+   *
+   * @return Part size in bytes
+   */
+  public int getPartSize() {
+    return partSize;
+  }
+
+  /**
+   * Sets the size of the multipart upload parts. Objects not larger than a part are uploaded
+   * with a single request.
+   *
+   * @param partSize Part size in bytes, at least {@link #MIN_PART_SIZE}
+   */
+  public void setPartSize(int partSize) {
+    if (partSize < MIN_PART_SIZE)
+      throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE);
+    this.partSize = partSize;
+  }
+
+  /**
+   * Returns the region of the bucket.
+   *
+   * @return Region name
+   */
+  public String getRegion() {
+    return region;
+  }
+
+  /* *********************************************************************
+   * Request signing
+   ***********************************************************************/
+
+  private static String hex(byte raw[]) {
+    StringBuilder hex = new StringBuilder(raw.length * 2);
+    for (byte b: raw) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+      hex.append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private static final char BASE64[] =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private static String base64(byte raw[]) {
+    StringBuilder s = new StringBuilder((raw.length + 2) / 3 * 4);
+    for (int i = 0; i < raw.length; i += 3) {
+      int n = (raw[i] & 0xFF) << 16;
+      if (i + 1 < raw.length) n |= (raw[i + 1] & 0xFF) << 8;
+      if (i + 2 < raw.length) n |= raw[i + 2] & 0xFF;
+
+      s.append(BASE64[(n >> 18) & 0x3F]);
+      s.append(BASE64[(n >> 12) & 0x3F]);
+      s.append((i + 1 < raw.length) ? BASE64[(n >> 6) & 0x3F] : '=');
+      s.append((i + 2 < raw.length) ? BASE64[n & 0x3F] : '=');
+    }
+    return s.toString();
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 not supported", e);
+    }
+  }
+
+  private static MessageDigest digest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("No " + algorithm + " algorithm found", e);
+    }
+  }
+
+  private static byte[] hmac(byte key[], String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(utf8(data));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("No HmacSHA256 algorithm found", e);
+    } catch (InvalidKeyException e) {
+      throw new RuntimeException("Invalid signing key", e);
+    }
+  }
+
+  /**
+   * URI encodes a string as required by the signature: only unreserved characters are left
+   * as they are.
+   *
+   * @param keepSlash True to leave slashes unencoded (paths)
+   */
+  protected static String encode(String s, boolean keepSlash) {
+    StringBuilder encoded = new StringBuilder(s.length() + 16);
+    for (byte b: utf8(s)) {
+      char c = (char) (b & 0xFF);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+          c == '-' || c == '_' || c == '.' || c == '~' || (keepSlash && c == '/')) {
+        encoded.append(c);
+      } else {
+        encoded.append('%');
+        encoded.append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)));
+        encoded.append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+      }
+    }
+    return encoded.toString();
+  }
+
+  private static String canonicalQuery(SortedMap<String, String> query) {
+    StringBuilder s = new StringBuilder();
+    for (Map.Entry<String, String> e: query.entrySet()) {
+      if (s.length() > 0) s.append('&');
+      s.append(encode(e.getKey(), false)).append('=');
+      if (e.getValue() != null) s.append(encode(e.getValue(), false));
+    }
+    return s.toString();
+  }
+
+  /**
+   * Computes the AWS signature version 4 of a request.
+   *
+   * @param secretKey Secret access key
+   * @param region Region name
+   * @param method HTTP method
+   * @param path Encoded request path
+   * @param query Query string parameters
+   * @param headers Signed headers, with lowercase names (host included)
+   * @param payloadHash Value of the x-amz-content-sha256 header
+   * @param amzDate Request date, in the x-amz-date format
+   * @return Hex encoded signature
+   */
+  protected static String sign(String secretKey, String region, String method, String path,
+                               SortedMap<String, String> query, SortedMap<String, String> headers,
+                               String payloadHash, String amzDate)
+  {
+    StringBuilder canonicalHeaders = new StringBuilder();
+    for (Map.Entry<String, String> e: headers.entrySet())
+      canonicalHeaders.append(e.getKey()).append(':').append(e.getValue().trim()).append('\n');
+
+    String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery(query) + "\n" +
+      canonicalHeaders + "\n" + signedHeaders(headers) + "\n" + payloadHash;
+
+    String date = amzDate.substring(0, 8);
+    String scope = date + "/" + region + "/s3/aws4_request";
+    String stringToSign = SIGNING_ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" +
+      hex(digest("SHA-256").digest(utf8(canonicalRequest)));
+
+    byte key[] = hmac(utf8("AWS4" + secretKey), date);
+    key = hmac(key, region);
+    key = hmac(key, "s3");
+    key = hmac(key, "aws4_request");
+    return hex(hmac(key, stringToSign));
+  }
+
+  private static String signedHeaders(SortedMap<String, String> headers) {
+    StringBuilder s = new StringBuilder();
+    for (String name: headers.keySet()) {
+      if (s.length() > 0) s.append(';');
+      s.append(name);
+    }
+    return s.toString();
+  }
+
+  /* *********************************************************************
+   * HTTP utils
+   ***********************************************************************/
+
+  private String path(String key) {
+    String path = "/" + encode(bucket, false);
+    if (key != null) path += "/" + encode(key, true);
+    return path;
+  }
+
+  /**
+   * Sends a request and waits for the response status.
+   *
+   * @param method HTTP method
+   * @param key Object key or null for bucket requests
+   * @param query Query string parameters or null
+   * @param headers Request headers, with lowercase names, or null
+   * @param body Request body or null
+   * @param length Number of body bytes to send
+   * @return Connection with the response available
+   */
+  private HttpURLConnection request(String method, String key, SortedMap<String, String> query,
+                                    SortedMap<String, String> headers, byte body[], int length)
+    throws IOException
+  {
+    if (query == null) query = new TreeMap<String, String>();
+    String path = path(key);
+    String queryString = canonicalQuery(query);
+    URL url = new URL(endpoint + path + ((queryString.length() > 0) ? "?" + queryString : ""));
+
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String amzDate = format.format(new Date());
+
+    TreeMap<String, String> signed = new TreeMap<String, String>();
+    if (headers != null) signed.putAll(headers);
+    signed.put("host", host);
+    signed.put("x-amz-date", amzDate);
+    signed.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod(method);
+    conn.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
+    conn.setReadTimeout(DEFAULT_READ_TIMEOUT);
+    conn.setUseCaches(false);
+    conn.setInstanceFollowRedirects(false);
+    for (Map.Entry<String, String> e: signed.entrySet()) {
+      /* The Host header is set by the HTTP client */
+      if (!e.getKey().equals("host")) conn.setRequestProperty(e.getKey(), e.getValue());
+    }
+
+    if (accessKey != null) {
+      String signature = sign(secretKey, region, method, path, query, signed, UNSIGNED_PAYLOAD,
+                              amzDate);
+      conn.setRequestProperty("Authorization", String.format(
+        "%s Credential=%s/%s/%s/s3/aws4_request, SignedHeaders=%s, Signature=%s",
+        SIGNING_ALGORITHM, accessKey, amzDate.substring(0, 8), region, signedHeaders(signed),
+        signature));
+    }
+
+    try {
+      if (body != null) {
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(length);
+        OutputStream out = conn.getOutputStream();
+        try {
+          out.write(body, 0, length);
+        } finally {
+          out.close();
+        }
+      }
+      conn.getResponseCode();
+    } catch (IOException e) {
+      conn.disconnect();
+      throw e;
+    }
+    return conn;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buff[] = new byte[8192];
+      int read;
+      while ((read = in.read(buff)) > 0) out.write(buff, 0, read);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Reads and closes the response body, so that the connection can be reused.
+   *
+   * @return Response body
+   */
+  private static byte[] readResponse(HttpURLConnection conn) throws IOException {
+    InputStream in = (conn.getResponseCode() < 400) ? conn.getInputStream() : conn.getErrorStream();
+    if (in == null) return new byte[0];
+    return readFully(in);
+  }
+
+  /**
+   * Checks that a request succeeded, otherwise consumes the error response and raises an
+   * IOException for server errors (usually transient) or a CloudException.
+   */
+  private void check(HttpURLConnection conn, String operation, String key)
+    throws IOException, CloudException
+  {
+    int status = conn.getResponseCode();
+    if (status >= 200 && status < 300) return;
+
+    String message = String.format("S3 %s of %s failed: %d %s", operation,
+                                   (key != null) ? key : bucket, status,
+                                   conn.getResponseMessage());
+    byte body[] = readResponse(conn);
+    if (body.length > 0) {
+      try {
+        Element error = parseXML(body);
+        message += String.format(" (%s: %s)", childText(error, "Code"),
+                                 childText(error, "Message"));
+      } catch (CloudException e) {
+        /* Not an S3 error document */
+      }
+    }
+
+    if (status >= 500) throw new IOException(message);
+    throw new CloudException(message);
+  }
+
+  /**
+   * Checks the body of a successful response, which may still carry an error (e.g. copy and
+   * multipart completion requests).
+   */
+  private Element checkBody(HttpURLConnection conn, String operation, String key)
+    throws IOException, CloudException
+  {
+    Element root = parseXML(readResponse(conn));
+    if (root.getTagName().equals("Error"))
+      throw new IOException(String.format("S3 %s of %s failed: %s: %s", operation, key,
+                                          childText(root, "Code"), childText(root, "Message")));
+    return root;
+  }
+
+  private static Element parseXML(byte content[]) throws CloudException {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      return factory.newDocumentBuilder().parse(new ByteArrayInputStream(content))
+        .getDocumentElement();
+    } catch (Exception e) {
+      throw new CloudException("Invalid S3 response", e);
+    }
+  }
+
+  private static String childText(Element element, String name) {
+    NodeList nodes = element.getElementsByTagName(name);
+    if (nodes.getLength() == 0) return null;
+    return nodes.item(0).getTextContent();
+  }
+
+  private static String unquote(String eTag) {
+    if (eTag != null && eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\""))
+      return eTag.substring(1, eTag.length() - 1);
+    return eTag;
+  }
+
+  private static Date parseISODate(String date) throws CloudException {
+    String formats[] = {"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", "yyyy-MM-dd'T'HH:mm:ss'Z'"};
+    for (String f: formats) {
+      SimpleDateFormat format = new SimpleDateFormat(f);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      try {
+        return format.parse(date);
+      } catch (ParseException e) {
+        /* Try the next format */
+      }
+    }
+    throw new CloudException("Invalid date in S3 response: " + date);
+  }
+
+  /**
+   * Builds the object metadata from the response headers.
+   *
+   * @param contentLength Length of the whole object
+   */
+  private static S3CloudMetadata toMetadata(HttpURLConnection conn, long contentLength) {
+    HashMap<String, String> userMetadata = new HashMap<String, String>();
+    String md5 = null;
+    String name;
+
+    for (Map.Entry<String, List<String>> e: conn.getHeaderFields().entrySet()) {
+      if (e.getKey() == null || e.getValue().isEmpty()) continue;
+      name = e.getKey().toLowerCase();
+      if (!name.startsWith(USER_METADATA_PREFIX)) continue;
+
+      name = name.substring(USER_METADATA_PREFIX.length());
+      if (name.equals(MD5_METADATA)) md5 = e.getValue().get(0);
+      else userMetadata.put(name, e.getValue().get(0));
+    }
+
+    String eTag = unquote(conn.getHeaderField("ETag"));
+    /* Objects not written by this class: the ETag of single part uploads is the MD5 hash */
+    if (md5 == null && eTag != null && eTag.length() == 32 && eTag.indexOf('-') < 0) md5 = eTag;
+
+    return new S3CloudMetadata(contentLength, new Date(conn.getLastModified()), md5,
+                               conn.getContentType(), eTag,
+                               conn.getHeaderField("x-amz-version-id"), userMetadata);
+  }
+
+  private static long contentLength(HttpURLConnection conn) throws CloudException {
+    String length = conn.getHeaderField("Content-Length");
+    try {
+      return (length != null) ? Long.parseLong(length.trim()) : 0;
+    } catch (NumberFormatException e) {
+      throw new CloudException("Invalid content length in S3 response: " + length);
+    }
+  }
+
+  private static TreeMap<String, String> metadataHeaders(String contentType,
+                                                         Map<String, String> userMetadata,
+                                                         String md5)
+  {
+    TreeMap<String, String> headers = new TreeMap<String, String>();
+    headers.put("content-type", (contentType != null && contentType.length() > 0) ?
+                contentType : "application/octet-stream");
+    if (userMetadata != null) {
+      for (Map.Entry<String, String> e: userMetadata.entrySet())
+        headers.put(USER_METADATA_PREFIX + e.getKey().toLowerCase(), e.getValue());
+    }
+    if (md5 != null) headers.put(USER_METADATA_PREFIX + MD5_METADATA, md5);
+    return headers;
+  }
+
+  private S3CloudObject toCloudObject(String key, InputStream in, S3CloudMetadata meta)
+    throws CloudException
+  {
+    try {
+      return new S3CloudObject(new S3CloudURI(s3CloudURI.getBaseURI(), bucket, key, null),
+                               in, meta);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Error creating object cloud URI", e);
+    }
+  }
+
+  /* *********************************************************************
+   * Listing
+   ***********************************************************************/
+
+  /**
+   * Object described by a listing
+   */
+  private static class ListEntry {
+    String key;
+    String eTag;
+    Date lastModified;
+  }
+
+  /**
+   * Requests a page of the listing.
+   *
+   * @param marker Key after which the listing starts, or null
+   * @param entries List to which the page entries are added
+   * @return Key after which the next page starts, or null if this was the last page
+   */
+  private String listPage(String prefix, String marker, int maxKeys, List<ListEntry> entries)
+    throws IOException, CloudException
+  {
+    TreeMap<String, String> query = new TreeMap<String, String>();
+    if (prefix != null && prefix.length() > 0) query.put("prefix", prefix);
+    if (marker != null) query.put("marker", marker);
+    query.put("max-keys", Integer.toString(maxKeys));
+
+    HttpURLConnection conn = request("GET", null, query, null, null, 0);
+    check(conn, "list", null);
+    Element result = parseXML(readResponse(conn));
+
+    NodeList contents = result.getElementsByTagName("Contents");
+    String last = null;
+    for (int i = 0; i < contents.getLength(); i++) {
+      Element e = (Element) contents.item(i);
+      ListEntry entry = new ListEntry();
+      entry.key = childText(e, "Key");
+      entry.eTag = unquote(childText(e, "ETag"));
+      entry.lastModified = parseISODate(childText(e, "LastModified"));
+      entries.add(entry);
+      last = entry.key;
+    }
+
+    if (!"true".equals(childText(result, "IsTruncated"))) return null;
+    String next = childText(result, "NextMarker");
+    return (next != null) ? next : last;
+  }
+
+  /**
+   * Iterator fetching the listing a page at a time
+   */
+  private class PageIterator implements Iterator<String> {
+    private String prefix;
+    private long since;
+    private int pageSize;
+    private String marker = null;
+    private boolean completed = false;
+    private LinkedList<String> page = new LinkedList<String>();
+
+    PageIterator(Date timestamp, String prefix, int pageSize) {
+      this.prefix = prefix;
+      this.since = (timestamp != null) ? timestamp.getTime() : Long.MIN_VALUE;
+      this.pageSize = Math.max(1, Math.min(pageSize, LIST_PAGE_SIZE));
+    }
+
+    public boolean hasNext() {
+      while (page.isEmpty() && !completed) {
+        ArrayList<ListEntry> entries = new ArrayList<ListEntry>(pageSize);
+        try {
+          marker = listPage(prefix, marker, pageSize, entries);
+        } catch (IOException e) {
+          throw new CloudException("Input/Output error listing the bucket", e);
+        }
+        completed = (marker == null);
+        for (ListEntry entry: entries) {
+          if (entry.lastModified.getTime() > since) page.add(entry.key);
+        }
+      }
+      return !page.isEmpty();
+    }
+
+    public String next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      return page.removeFirst();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /* *********************************************************************
+   * Multipart upload
+   ***********************************************************************/
+
+  /**
+   * Reads up to a part of the stream.
+   *
+   * @return Bytes read (empty at the end of the stream)
+   */
+  private byte[] readPart(InputStream in, MessageDigest md5) throws IOException {
+    ByteArrayOutputStream part = new ByteArrayOutputStream(Math.min(partSize, 65536));
+    byte buff[] = new byte[8192];
+    int read;
+    while (part.size() < partSize &&
+           (read = in.read(buff, 0, Math.min(buff.length, partSize - part.size()))) > 0) {
+      part.write(buff, 0, read);
+      md5.update(buff, 0, read);
+    }
+    return part.toByteArray();
+  }
+
+  private void putObject(String key, String contentType, byte content[], String md5,
+                         Map<String, String> userMetadata) throws IOException, CloudException
+  {
+    TreeMap<String, String> headers = metadataHeaders(contentType, userMetadata, md5);
+    headers.put("content-md5", base64(digest("MD5").digest(content)));
+
+    HttpURLConnection conn = request("PUT", key, null, headers, content, content.length);
+    check(conn, "put", key);
+    readResponse(conn);
+  }
+
+  private String uploadPart(String key, String uploadId, int number, byte content[])
+    throws IOException, CloudException
+  {
+    TreeMap<String, String> query = new TreeMap<String, String>();
+    query.put("partNumber", Integer.toString(number));
+    query.put("uploadId", uploadId);
+    TreeMap<String, String> headers = new TreeMap<String, String>();
+    headers.put("content-md5", base64(digest("MD5").digest(content)));
+
+    HttpURLConnection conn = request("PUT", key, query, headers, content, content.length);
+    check(conn, "upload part", key);
+    readResponse(conn);
+    String eTag = conn.getHeaderField("ETag");
+    if (eTag == null) throw new CloudException("Missing ETag of uploaded part " + number);
+    return eTag;
+  }
+
+  private void multipartUpload(String key, String contentType, byte first[], byte second[],
+                               InputStream in, MessageDigest md5,
+                               Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    TreeMap<String, String> query = new TreeMap<String, String>();
+    query.put("uploads", null);
+    HttpURLConnection conn = request("POST", key, query,
+                                     metadataHeaders(contentType, userMetadata, null),
+                                     new byte[0], 0);
+    check(conn, "initiate upload", key);
+    String uploadId = childText(checkBody(conn, "initiate upload", key), "UploadId");
+    if (uploadId == null) throw new CloudException("Missing upload ID for " + key);
+
+    boolean completed = false;
+    try {
+      ArrayList<String> eTags = new ArrayList<String>();
+      eTags.add(uploadPart(key, uploadId, 1, first));
+      first = null;
+      eTags.add(uploadPart(key, uploadId, 2, second));
+      second = null;
+
+      byte part[];
+      while ((part = readPart(in, md5)).length > 0)
+        eTags.add(uploadPart(key, uploadId, eTags.size() + 1, part));
+
+      StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+      for (int i = 0; i < eTags.size(); i++) {
+        xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>");
+        xml.append(eTags.get(i).replace("&", "&amp;").replace("\"", "&quot;"));
+        xml.append("</ETag></Part>");
+      }
+      xml.append("</CompleteMultipartUpload>");
+
+      query = new TreeMap<String, String>();
+      query.put("uploadId", uploadId);
+      byte body[] = utf8(xml.toString());
+      conn = request("POST", key, query, null, body, body.length);
+      check(conn, "complete upload", key);
+      checkBody(conn, "complete upload", key);
+      completed = true;
+      logger.trace(String.format("Uploaded %s in %d parts", key, eTags.size()));
+    } finally {
+      if (!completed) abortUpload(key, uploadId);
+    }
+
+    /* The content hash is known only now: store it replacing the object metadata */
+    copyMetadata(key, contentType, userMetadata, hex(md5.digest()));
+  }
+
+  private void abortUpload(String key, String uploadId) {
+    TreeMap<String, String> query = new TreeMap<String, String>();
+    query.put("uploadId", uploadId);
+    try {
+      HttpURLConnection conn = request("DELETE", key, query, null, null, 0);
+      readResponse(conn);
+    } catch (IOException e) {
+      logger.warn("Cannot abort upload " + uploadId + " of " + key, e);
+    }
+  }
+
+  /**
+   * Replaces the metadata of an object by copying it over itself.
+   */
+  private void copyMetadata(String key, String contentType, Map<String, String> userMetadata,
+                            String md5) throws IOException, CloudException
+  {
+    TreeMap<String, String> headers = metadataHeaders(contentType, userMetadata, md5);
+    headers.put("x-amz-copy-source", path(key));
+    headers.put("x-amz-metadata-directive", "REPLACE");
+
+    HttpURLConnection conn = request("PUT", key, null, headers, new byte[0], 0);
+    check(conn, "copy", key);
+    checkBody(conn, "copy", key);
+  }
+
+  /* *********************************************************************
+   * StorageCloud abstract methods implementation
+   ***********************************************************************/
+
+  public CloudURI getCloudURI() {
+    return s3CloudURI;
+  }
+
+  /*
+   * Listings are filtered by date on the client
+   */
+  public boolean supportsListByDate() {
+    return true;
+  }
+
+  public boolean supportsListByPrefix() {
+    return true;
+  }
+
+  /*
+   * Implementation of abstract method list.
+   */
+  public String[] list(Date timestamp, String prefix) throws IOException, CloudException {
+    ArrayList<String> keys = new ArrayList<String>();
+    Iterator<String> it = listIterator(timestamp, prefix, LIST_PAGE_SIZE);
+    while (it.hasNext()) keys.add(it.next());
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  /*
+   * Implementation of abstract method get. The returned stream reads the HTTP response.
+   */
+  public CloudObject get(String key) throws IOException, CloudException {
+    HttpURLConnection conn = request("GET", key, null, null, null, 0);
+    if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+      readResponse(conn);
+      metadataCache.remove(key);
+      return null;
+    }
+    check(conn, "get", key);
+
+    S3CloudMetadata meta = toMetadata(conn, contentLength(conn));
+    metadataCache.put(key, meta);
+    return toCloudObject(key, conn.getInputStream(), meta);
+  }
+
+  /*
+   * Override of StorageCloud.get(key, offset, length). <br>
+   * Only the requested range is transferred, using a Range header. A range starting past the end
+   * of the object is answered with 416 by the server: in that case the metadata are retrieved
+   * separately and an empty content is returned.
+   */
+  public CloudObject get(String key, long offset, long length) throws IOException, CloudException {
+    checkRange(offset, length);
+
+    TreeMap<String, String> headers = new TreeMap<String, String>();
+    headers.put("range", String.format("bytes=%d-%d", offset, offset + length - 1));
+    HttpURLConnection conn = request("GET", key, null, headers, null, 0);
+    int status = conn.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+      readResponse(conn);
+      metadataCache.remove(key);
+      return null;
+    }
+    if (status == HTTP_RANGE_NOT_SATISFIABLE) {
+      readResponse(conn);
+      S3CloudMetadata meta = (S3CloudMetadata) getMetadata(key);
+      if (meta == null) return null;
+      return toCloudObject(key, new ByteArrayInputStream(new byte[0]), meta);
+    }
+    check(conn, "get", key);
+
+    if (status != HttpURLConnection.HTTP_PARTIAL) {
+      /* The server ignored the Range header and is sending the whole object */
+      S3CloudMetadata meta = toMetadata(conn, contentLength(conn));
+      return toCloudObject(key, new RangeInputStream(conn.getInputStream(), offset, length), meta);
+    }
+
+    /* Content-Range: bytes first-last/total */
+    long total = contentLength(conn);
+    String range = conn.getHeaderField("Content-Range");
+    if (range != null && range.indexOf('/') > 0) {
+      try {
+        total = Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+      } catch (NumberFormatException e) {
+        /* Unknown total length */
+      }
+    }
+
+    return toCloudObject(key, conn.getInputStream(), toMetadata(conn, total));
+  }
+
+  /*
+   * Implementation of abstract method getMetadata.
+   */
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    HttpURLConnection conn = request("HEAD", key, null, null, null, 0);
+    if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+      readResponse(conn);
+      metadataCache.remove(key);
+      return null;
+    }
+    check(conn, "head", key);
+
+    S3CloudMetadata meta = toMetadata(conn, contentLength(conn));
+    readResponse(conn);
+    metadataCache.put(key, meta);
+    return meta;
+  }
+
+  /*
+   * Implementation of abstract method put. Values larger than the part size are uploaded with
+   * a multipart upload.
+   */
+  public void put(String key, String contentType, InputStream valueInputStream,
+                  Map<String, String> userMetadata) throws IOException, CloudException
+  {
+    metadataCache.remove(key);
+
+    MessageDigest md5 = digest("MD5");
+    byte first[] = readPart(valueInputStream, md5);
+    byte second[] = (first.length < partSize) ? new byte[0] : readPart(valueInputStream, md5);
+
+    if (second.length == 0)
+      putObject(key, contentType, first, hex(md5.digest()), userMetadata);
+    else
+      multipartUpload(key, contentType, first, second, valueInputStream, md5, userMetadata);
+  }
+
+  /*
+   * Implementation of abstract method putMetadata. Missing keys are ignored.
+   */
+  public void putMetadata(String key, String contentType, Map<String, String> userMetadata)
+    throws IOException, CloudException
+  {
+    CloudMetadata meta = getMetadata(key);
+    if (meta == null) return;
+
+    metadataCache.remove(key);
+    copyMetadata(key, contentType, userMetadata, meta.getContentMD5());
+  }
+
+  /*
+   * Implementation of abstract method remove.
+   */
+  public void remove(String key) throws IOException, CloudException {
+    metadataCache.remove(key);
+
+    HttpURLConnection conn = request("DELETE", key, null, null, null, 0);
+    if (conn.getResponseCode() != HttpURLConnection.HTTP_NOT_FOUND) check(conn, "remove", key);
+    readResponse(conn);
+  }
+
+  /* *********************************************************************
+   * Overridden StorageCloud methods
+   ***********************************************************************/
+
+  /*
+   * Pages of the listing are requested as the iterator advances.
+   */
+  public Iterator<String> listIterator(Date timestamp, String prefix, int pageSize)
+    throws IOException, CloudException
+  {
+    return new PageIterator(timestamp, prefix, pageSize);
+  }
+
+  /*
+   * Metadata are requested only for the objects whose ETag or modification date changed since
+   * they were last seen.
+   */
+  public Map<String, CloudMetadata> listWithMetadata(String prefix, Date timestamp)
+    throws IOException, CloudException
+  {
+    long since = (timestamp != null) ? timestamp.getTime() : Long.MIN_VALUE;
+    HashMap<String, CloudMetadata> result = new HashMap<String, CloudMetadata>();
+    ArrayList<ListEntry> entries = new ArrayList<ListEntry>(LIST_PAGE_SIZE);
+    String marker = null;
+    int requested = 0;
+    S3CloudMetadata meta;
+
+    do {
+      entries.clear();
+      marker = listPage(prefix, marker, LIST_PAGE_SIZE, entries);
+
+      for (ListEntry entry: entries) {
+        if (entry.lastModified.getTime() <= since) continue;
+
+        meta = metadataCache.get(entry.key);
+        /* Dates in HEAD responses have a resolution of a second */
+        if (meta == null || !entry.eTag.equals(meta.getETag()) ||
+            meta.getLastModified().getTime() / 1000 != entry.lastModified.getTime() / 1000) {
+          meta = (S3CloudMetadata) getMetadata(entry.key);
+          requested++;
+          /* The key may have been removed in the meantime */
+          if (meta == null) continue;
+        }
+        result.put(entry.key, meta);
+      }
+    } while (marker != null);
+
+    /* Forget the keys not present anymore */
+    if (timestamp == null) {
+      HashSet<String> stale = new HashSet<String>();
+      for (String key: metadataCache.keySet()) {
+        if ((prefix == null || key.startsWith(prefix)) && !result.containsKey(key)) stale.add(key);
+      }
+      metadataCache.keySet().removeAll(stale);
+    }
+
+    logger.trace(String.format("Listed %d keys, requested metadata of %d", result.size(),
+                               requested));
+    return result;
+  }
+}
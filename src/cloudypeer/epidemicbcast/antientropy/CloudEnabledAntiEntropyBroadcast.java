@@ -10,6 +10,8 @@ import java.util.Map;
 import cloudypeer.DynamicProviderHelper;
 import cloudypeer.PeerNode;
 import cloudypeer.PeerSelector;
+import cloudypeer.cloud.AsyncStorageCloud;
+import cloudypeer.cloud.MeteredStorageCloud;
 import cloudypeer.epidemicbcast.EpidemicBroadcast;
 import cloudypeer.store.Store;
 
@@ -47,6 +49,16 @@ public abstract class CloudEnabledAntiEntropyBroadcast extends EpidemicBroadcast
    */
   protected Store cloudStore;
 
+  /**
+   * Metered cloud backing the cloud store, or null if the cloud usage isn't accounted
+   */
+  protected MeteredStorageCloud meteredCloud = null;
+
+  /**
+   * Asynchronous facade of the cloud backing the cloud store, or null if not set
+   */
+  protected AsyncStorageCloud asyncCloud = null;
+
   /* *********************************************************************
    * Constructors implementation
    ***********************************************************************/
@@ -67,6 +79,49 @@ public abstract class CloudEnabledAntiEntropyBroadcast extends EpidemicBroadcast
     this.cloudStore = cloudStore;
   }
 
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the metered cloud backing the cloud store.
+   *
+   * @return Metered cloud, or null if not set
+   */
+  public MeteredStorageCloud getMeteredCloud() {
+    return meteredCloud;
+  }
+
+  /**
+   * Sets the metered cloud backing the cloud store. Each synchronization with the cloud starts a
+   * new accounting cycle, and is deferred to a later cycle while the cloud budget is exhausted.
+   *
+   * @param meteredCloud Metered cloud, or null to disable the accounting
+   */
+  public void setMeteredCloud(MeteredStorageCloud meteredCloud) {
+    this.meteredCloud = meteredCloud;
+  }
+
+  /**
+   * Returns the asynchronous facade of the cloud backing the cloud store.
+   *
+   * @return Asynchronous cloud, or null if not set
+   */
+  public AsyncStorageCloud getAsyncCloud() {
+    return asyncCloud;
+  }
+
+  /**
+   * Sets the asynchronous facade of the cloud backing the cloud store. Cloud transfers are run
+   * through it, so they share its per-cloud concurrency limit with the other operations
+   * submitted to the same facade.
+   *
+   * @param asyncCloud Asynchronous cloud, or null to let the protocol bound its transfers
+   */
+  public void setAsyncCloud(AsyncStorageCloud asyncCloud) {
+    this.asyncCloud = asyncCloud;
+  }
+
   /* *********************************************************************
    * Implementation of instantiation methods
    ***********************************************************************/
@@ -7,14 +7,24 @@ package cloudypeer.epidemicbcast.antientropy;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cloudypeer.CloudNode;
 import cloudypeer.GossipProtocolException;
 import cloudypeer.Node;
 import cloudypeer.PeerNode;
 import cloudypeer.PeerSelector;
+import cloudypeer.cloud.AsyncStorageCloud;
+import cloudypeer.cloud.CloudBudgetExceededException;
+import cloudypeer.cloud.MeteredStorageCloud;
 import cloudypeer.network.NetworkClient;
 import cloudypeer.network.NetworkConnection;
 import cloudypeer.network.NetworkException;
@@ -26,6 +36,8 @@ import cloudypeer.store.StoreEntryDiff;
 import cloudypeer.store.StoreEntryDiffData;
 import cloudypeer.store.StoreEntryMetadata;
 import cloudypeer.store.StoreException;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
+import cloudypeer.utils.BoundedExecutor;
 import org.apache.log4j.Logger;
 import java.net.SocketTimeoutException;
 
@@ -44,6 +56,9 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
   private static final int CONNECTION_TIMEOUT = 5000;
   private static final int RECEIVE_TIMEOUT = 5000;
   private static final int BOOTSTRAP_PERIOD = 1000;
+  private static final int TRANSFER_PAGE_SIZE = 50;
+
+  public static int DEFAULT_TRANSFER_CONCURRENCY = 4;
 
   /* *********************************************************************
    * Instance variables
@@ -64,6 +79,19 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
    */
   private boolean bootstrap = true;
 
+  /**
+   * Runs the cloud transfers on the shared cloud I/O executor, bounding the number of pages
+   * concurrently transferred with the cloud, when no asynchronous cloud is set
+   */
+  private BoundedExecutor transferExecutor =
+    new BoundedExecutor(AsyncStorageCloud.getDefaultExecutor(), DEFAULT_TRANSFER_CONCURRENCY);
+
+  /**
+   * Number of entries of the current cloud sync left to a later cycle because the cloud budget
+   * is exhausted
+   */
+  private AtomicInteger deferred = new AtomicInteger();
+
   /* *********************************************************************
    * Constructors
    ***********************************************************************/
@@ -81,6 +109,31 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
     super(localNode, peerSelector, store, cloudStore);
   }
 
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the maximum number of pages concurrently transferred with the cloud.
+   *
+   * @return Transfer concurrency
+   */
+  public int getTransferConcurrency() {
+    return transferExecutor.getMaxConcurrency();
+  }
+
+  /**
+   * Sets the maximum number of pages concurrently transferred with the cloud. With a value of 1
+   * pulls and pushes are performed one page at a time. The default value is
+   * {@value #DEFAULT_TRANSFER_CONCURRENCY}. While an asynchronous cloud is set (see {@link
+   * #setAsyncCloud}) its concurrency limit applies instead.
+   *
+   * @param concurrency Transfer concurrency
+   */
+  public void setTransferConcurrency(int concurrency) {
+    transferExecutor.setMaxConcurrency(concurrency);
+  }
+
   /* *********************************************************************
    * Implementation of NetworkClient's methods
    ***********************************************************************/
@@ -102,55 +155,185 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
     return (delta > 0) ? delta : 0;
   }
 
+  /**
+   * Returns the page of keys (at most {@value #TRANSFER_PAGE_SIZE} keys) starting at offset.
+   */
+  private static String[] page(String[] keys, int offset) {
+    String[] page = new String[Math.min(TRANSFER_PAGE_SIZE, keys.length - offset)];
+    System.arraycopy(keys, offset, page, 0, page.length);
+    return page;
+  }
+
   /* *********************************************************************
    * Implementation of resolveDifference functions
    ***********************************************************************/
+  /**
+   * Submits a cloud transfer to the asynchronous cloud, within its per-cloud concurrency limit,
+   * or to the transfer executor if no asynchronous cloud is set.
+   */
+  private void submitTransfer(List<Future<Integer>> transfers, Callable<Integer> task) {
+    AsyncStorageCloud async = asyncCloud;
+    if (async != null) {
+      transfers.add(async.submit(task));
+      return;
+    }
+
+    FutureTask<Integer> future = new FutureTask<Integer>(task);
+    transfers.add(future);
+    transferExecutor.execute(future);
+  }
+
+  /**
+   * Pulls a page of entries fresher on the cloud.
+   */
+  private Callable<Integer> pullTask(final String keys[]) {
+    return new Callable<Integer>() {
+      public Integer call() {
+        if (deferTransfer(keys)) return 0;
+        StoreEntry[] toPull = cloudStore.getStoreEntries(keys);
+        logger.trace(String.format("Read %d entries from cloud", toPull.length));
+        store.updateStoreEntries(toPull);
+        return toPull.length;
+      }
+    };
+  }
+
+  /**
+   * Pushes a page of entries fresher locally.
+   */
+  private Callable<Integer> pushTask(final String keys[]) {
+    return new Callable<Integer>() {
+      public Integer call() {
+        if (deferTransfer(keys)) return 0;
+        StoreEntry[] toPush = store.getStoreEntries(keys);
+        logger.trace(String.format("Pushing %d entries to cloud", toPush.length));
+        cloudStore.updateStoreEntries(toPush);
+        return toPush.length;
+      }
+    };
+  }
+
+  /**
+   * Checks whether a page of entries must be left to a later cycle because the cloud budget is
+   * exhausted. The entries still differ at the next sync, so they'll be transferred then.
+   */
+  private boolean deferTransfer(String keys[]) {
+    if (meteredCloud == null || !meteredCloud.isOverBudget()) return false;
+    deferred.addAndGet(keys.length);
+    return true;
+  }
+
+  /**
+   * Logs a failed cloud operation, unless it was refused by the cloud budget.
+   *
+   * @return True if the operation was refused by the cloud budget
+   */
+  private boolean operationFailed(Throwable e) {
+    CloudBudgetExceededException budget = CloudBudgetExceededException.find(e);
+    if (budget == null) {
+      logger.warn("Error performing a store operation", e);
+      return false;
+    }
+    logger.debug("Cloud operation deferred: " + budget.getMessage());
+    return true;
+  }
+
+  /**
+   * Waits for the completion of the submitted transfers. If a transfer fails the others are
+   * still completed.
+   *
+   * @return Number of entries transferred, or -1 if interrupted
+   */
+  private int awaitTransfers(List<Future<Integer>> transfers) {
+    int transferred = 0;
+    for (int i = 0; i < transfers.size(); i++) {
+      try {
+        transferred += transfers.get(i).get();
+      } catch (ExecutionException e) {
+        /* Something has gone bad, or the page was refused by the cloud budget */
+        operationFailed(e.getCause());
+      } catch (InterruptedException e) {
+        for (int j = i; j < transfers.size(); j++) transfers.get(j).cancel(false);
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+    return transferred;
+  }
+
   private void resolveDifferenceCloud(CloudNode c) {
     HashMap<String, StoreEntryMetadata> metadataToUpdate;
-    /* Obtain cloud entries metadata and compare them with local store */
-    logger.trace("Resolve difference cloud");
-    HashMap<String, StoreEntryMetadata> entriesMetadata = cloudStore.getStoreEntriesMetadata();
-    logger.trace(String.format("Cloud has %d entries", entriesMetadata.size()));
-    StoreCompareResult cmpresult = store.compareStoreEntries(entriesMetadata);
-
+    long start = System.currentTimeMillis();
+    MeteredStorageCloud metered = meteredCloud;
+    if (metered != null) {
+      if (metered.isOverBudget()) {
+        logger.info("Cloud budget exhausted: sync deferred to a later cycle");
+        return;
+      }
+      metered.startCycle();
+    }
+    deferred.set(0);
 
+    /* Cloud updates (metadata, pulls and pushes) are performed concurrently: they involve
+     * disjoint sets of keys */
+    List<Future<Integer>> transfers = new ArrayList<Future<Integer>>();
     try {
-      /* Step 1: update local metadata if there's any fresher on the cloud */
-      String[] metadataChangedOnRemote = cmpresult.getMetadataChangedOnRemoteNode();
-      if (metadataChangedOnRemote.length > 0) {
-        metadataToUpdate = new HashMap<String, StoreEntryMetadata>();
-        logger.trace(String.format("Updating local metadata for %d entries",
-                                   metadataChangedOnRemote.length));
-        for (String key: metadataChangedOnRemote)
-          metadataToUpdate.put(key, entriesMetadata.get(key));
-        store.updateMetadatas(metadataToUpdate);
-      }
+      /* Obtain cloud entries metadata and compare them with local store */
+      logger.trace("Resolve difference cloud");
+      Map<String, StoreEntryMetadata> entriesMetadata = cloudStore.getStoreEntriesMetadata();
+      logger.trace(String.format("Cloud has %d entries", entriesMetadata.size()));
+      StoreCompareResult cmpresult = store.compareStoreEntries(entriesMetadata);
 
-      /* Step 2: update cloud metadata if there's any fresher locally */
+      /* Step 1: update cloud metadata if there's any fresher locally */
       String[] metadataChangedOnLocal = cmpresult.getMetadataChangedOnLocalNode();
       if (metadataChangedOnLocal.length > 0) {
-        metadataToUpdate = new HashMap<String, StoreEntryMetadata>();
+        final HashMap<String, StoreEntryMetadata> cloudMetadataToUpdate =
+          new HashMap<String, StoreEntryMetadata>();
         logger.trace(String.format("Updating cloud metadata for %d entries",
                                    metadataChangedOnLocal.length));
         for (String key: metadataChangedOnLocal)
-          metadataToUpdate.put(key, store.getStoreEntryMetadata(key));
-        cloudStore.updateMetadatas(metadataToUpdate);
+          cloudMetadataToUpdate.put(key, store.getStoreEntryMetadata(key));
+        submitTransfer(transfers, new Callable<Integer>() {
+            public Integer call() {
+              cloudStore.updateMetadatas(cloudMetadataToUpdate);
+              return 0;
+            }
+          });
       }
 
-      /* Step 3: reading cloud's fresher entries */
-      StoreEntry[] toPull = cloudStore.getStoreEntries(cmpresult.getKeysFresherOnRemoteNode());
-      logger.trace(String.format("Read %d entries from cloud", toPull.length));
-
-      /* Step 4: pushing locally fresher entries */
-      StoreEntry[] toPush = store.getStoreEntries(cmpresult.getKeyFresherOnLocalNode());
-      logger.trace(String.format("Pushing %d entries to cloud", toPush.length));
-      cloudStore.updateStoreEntries(toPush);
+      /* Step 2 and 3: reading cloud's fresher entries and pushing locally fresher ones a page
+       * at a time, so that only a bounded number of cloud streams is open at once. Pulls and
+       * pushes are interleaved so that both directions progress together. */
+      String[] keysToPull = cmpresult.getKeysFresherOnRemoteNode();
+      String[] keysToPush = cmpresult.getKeyFresherOnLocalNode();
+      for (int i = 0; i < keysToPull.length || i < keysToPush.length; i += TRANSFER_PAGE_SIZE) {
+        if (i < keysToPull.length) submitTransfer(transfers, pullTask(page(keysToPull, i)));
+        if (i < keysToPush.length) submitTransfer(transfers, pushTask(page(keysToPush, i)));
+      }
 
-      logger.trace("Updating the local store...");
-      store.updateStoreEntries(toPull);
+      /* Step 4: update local metadata if there's any fresher on the cloud */
+      String[] metadataChangedOnRemote = cmpresult.getMetadataChangedOnRemoteNode();
+      if (metadataChangedOnRemote.length > 0) {
+        metadataToUpdate = new HashMap<String, StoreEntryMetadata>();
+        logger.trace(String.format("Updating local metadata for %d entries",
+                                   metadataChangedOnRemote.length));
+        for (String key: metadataChangedOnRemote)
+          metadataToUpdate.put(key, entriesMetadata.get(key));
+        store.updateMetadatas(metadataToUpdate);
+      }
     } catch (StoreException e) {
       /* Something has gone bad */
-      logger.warn("Error performing a store operation", e);
+      operationFailed(e);
+    } catch (RuntimeException e) {
+      /* Cloud errors are wrapped by the store */
+      if (CloudBudgetExceededException.find(e) == null) throw e;
+      operationFailed(e);
+    } finally {
+      int transferred = awaitTransfers(transfers);
+      logger.debug(String.format("Cloud sync completed in %d ms (%d entries transferred, " +
+                                 "%d deferred)", System.currentTimeMillis() - start,
+                                 transferred, deferred.get()));
+      if (metered != null) logger.debug("Cloud usage: " + metered.getCycleUsage());
     }
   }
 
@@ -161,12 +344,12 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
     Map<String, StoreEntryMetadata> metadataToUpdate;
     try {
       logger.trace("Resolving difference with " + p);
-      HashMap<String, StoreEntryMetadata> entriesMetadata = store.getStoreEntriesMetadata();
+      Map<String, StoreEntryMetadata> entriesMetadata = store.getStoreEntriesMetadata();
 
       /* PUSH phase: out Map<String, StoreEntryMetadata>, in StoreEntryDiffData[], out
        * StoreEntryDiff[]  */
       logger.trace("Performing push active phase...");
-      conn.send(entriesMetadata);
+      conn.send(CompactStoreEntryMetadata.toWireMap(entriesMetadata));
       StoreEntryDiffData[] diffDataIn = (StoreEntryDiffData[]) conn.receive(timeUntillNextActiveCycle());
       if (diffDataIn == null) return;
       StoreEntryDiff[] toPush = store.diffStoreEntries(diffDataIn);
@@ -215,8 +398,8 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
       /* PULL phase: in Map<String, StoreEntryMetadata>, out StoreEntryDiffData[],
        * in  StoreEntryDiff[] */
       logger.trace("Performing pull passive phase...");
-      HashMap<String, StoreEntryMetadata> remoteMetadata;
-      remoteMetadata = (HashMap<String, StoreEntryMetadata>) conn.receive(timeUntillNextActiveCycle());
+      Map<String, StoreEntryMetadata> remoteMetadata;
+      remoteMetadata = (Map<String, StoreEntryMetadata>) conn.receive(timeUntillNextActiveCycle());
       StoreCompareResult cmpresult = store.compareStoreEntries(remoteMetadata);
       StoreEntryDiffData[] diffDataOut = store.produceStoreEntriesDiffData(cmpresult.getKeysFresherOnRemoteNode());
       conn.send(diffDataOut);
@@ -232,7 +415,7 @@ public class CloudPushPullAntiEntropyBroadcast extends CloudEnabledAntiEntropyBr
         metadataToUpdate = new HashMap<String, StoreEntryMetadata>();
         for (String key: metadataChangedOnLocal)
           metadataToUpdate.put(key, store.getStoreEntryMetadata(key));
-        conn.send(metadataToUpdate);
+        conn.send(CompactStoreEntryMetadata.toWireMap(metadataToUpdate));
       } else {
         conn.send(null);
       }
@@ -27,6 +27,7 @@ import cloudypeer.store.StoreEntryDiff;
 import cloudypeer.store.StoreEntryDiffData;
 import cloudypeer.store.StoreEntryMetadata;
 import cloudypeer.store.StoreUpdateHandler;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
 import org.apache.log4j.Logger;
 
 
@@ -131,9 +132,9 @@ public class FeedbackCounterPushRumorMongering
       }
 
       String newsKeys[] = knownKeys.toArray(new String[knownKeys.size()]);
-      HashMap<String, StoreEntryMetadata> entriesMetadata = store.getStoreEntriesMetadata(newsKeys);
+      Map<String, StoreEntryMetadata> entriesMetadata = store.getStoreEntriesMetadata(newsKeys);
       logger.trace("Pushing news: sending metadata");
-      conn.send(entriesMetadata);
+      conn.send(CompactStoreEntryMetadata.toWireMap(entriesMetadata));
       logger.trace("Pushing news: reading diff data");
       StoreEntryDiffData[] diffData = (StoreEntryDiffData[]) conn.receive(timeUntillNextActiveCycle());
       if (diffData == null) return;
@@ -182,9 +183,9 @@ public class FeedbackCounterPushRumorMongering
   private void receiveNews(NetworkConnection conn) {
     try {
       logger.info("Receiving news");
-      HashMap<String, StoreEntryMetadata> remoteMetadata;
+      Map<String, StoreEntryMetadata> remoteMetadata;
       logger.trace("Receiving news: reading metadata");
-      remoteMetadata = (HashMap<String, StoreEntryMetadata>) conn.receive(timeUntillNextActiveCycle());
+      remoteMetadata = (Map<String, StoreEntryMetadata>) conn.receive(timeUntillNextActiveCycle());
       StoreCompareResult cmpresult = store.compareStoreEntries(remoteMetadata);
       StoreEntryDiffData[] diffData = store.produceStoreEntriesDiffData(cmpresult.getKeysFresherOnRemoteNode());
       logger.trace("Receiving news: sending diff data");
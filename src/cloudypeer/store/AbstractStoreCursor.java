@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for StoreCursor implementations. <br>
+ * Subclasses only need to implement {@link #fetchNext()}, which returns the next element or null
+ * when there are no more elements.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public abstract class AbstractStoreCursor<E> implements StoreCursor<E> {
+
+  private int pageSize;
+  private E next;
+  private boolean closed = false;
+
+  /**
+   * Creates a new <code>AbstractStoreCursor</code> instance.
+   *
+   * @param pageSize Maximum number of elements returned by {@link #nextPage()}
+   */
+  protected AbstractStoreCursor(int pageSize) {
+    if (pageSize <= 0) throw new IllegalArgumentException("Page size must be greater than 0");
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Fetches the next element of the cursor.
+   *
+   * @return Next element or null if the cursor is exhausted
+   * @exception StoreException if an error occurs
+   */
+  protected abstract E fetchNext() throws StoreException;
+
+  /**
+   * Releases the resources held by the cursor. The default implementation does nothing.
+   */
+  protected void release() {}
+
+  public boolean hasNext() {
+    if (closed) return false;
+    if (next == null) next = fetchNext();
+    if (next == null) close();
+    return next != null;
+  }
+
+  public E next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    E e = next;
+    next = null;
+    return e;
+  }
+
+  public List<E> nextPage() throws StoreException {
+    List<E> page = new ArrayList<E>(pageSize);
+    while (page.size() < pageSize && hasNext()) page.add(next());
+    return page;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException("Store cursors don't support removal");
+  }
+
+  public void close() {
+    if (closed) return;
+    closed = true;
+    next = null;
+    release();
+  }
+}
@@ -50,20 +50,42 @@ public interface Store {
   public String[] listStoreEntries(Date thresholdTimestamp) throws StoreException;
 
   /**
-   * Returns a map of the hash value associated to each key in this store.
+   * Returns a cursor over the keys of the entries matching the specified query.
+   *
+   * @param query Filter on the entries to list
+   * @return Cursor over the matching keys
+   */
+  public StoreCursor<String> listStoreEntries(StoreQuery query) throws StoreException;
+
+  /**
+   * Returns a map of the hash value associated to each key in this store. <br>
+   * The returned map may be a compact in-memory representation: protocols send it to remote
+   * peers converted with {@link cloudypeer.store.simple.CompactStoreEntryMetadata#toWireMap}.
+   * The user metadata of the returned entries may be immutable.
    *
    * @return A map of the hash for this store's data.
    */
-  public HashMap<String, StoreEntryMetadata> getStoreEntriesMetadata()
+  public Map<String, StoreEntryMetadata> getStoreEntriesMetadata()
     throws StoreException;
 
   /**
-   * Returns the metadata corresponding to the specified keys.
+   * Returns the metadata corresponding to the specified keys. <br>
+   * As for {@link #getStoreEntriesMetadata()}, the map is converted before being sent to remote
+   * peers and its user metadata may be immutable.
    *
    * @param keys Entry keys to retrieve
    * @return Requested metadata
    */
-  public HashMap<String, StoreEntryMetadata> getStoreEntriesMetadata(String keys[])
+  public Map<String, StoreEntryMetadata> getStoreEntriesMetadata(String keys[])
+    throws StoreException;
+
+  /**
+   * Returns a cursor over the metadata of the entries matching the specified query.
+   *
+   * @param query Filter on the entries to list
+   * @return Cursor over the (key, metadata) pairs of the matching entries
+   */
+  public StoreCursor<Map.Entry<String, StoreEntryMetadata>> getStoreEntriesMetadata(StoreQuery query)
     throws StoreException;
 
   /**
@@ -83,7 +105,8 @@ public interface Store {
 
 
   /**
-   * Returns the entries corresponding to the specified keys.
+   * Returns the entries corresponding to the specified keys. Keys not present in the store are
+   * skipped.
    *
    * @param keys Entry keys to retrieve
    * @return Requested store entries
@@ -91,6 +114,15 @@ public interface Store {
   public StoreEntry[] getStoreEntries(String[] keys) throws StoreException;
 
 
+  /**
+   * Returns a cursor over the entries matching the specified query. The content of each entry
+   * is opened only when the entry is fetched from the cursor.
+   *
+   * @param query Filter on the entries to return
+   * @return Cursor over the matching entries
+   */
+  public StoreCursor<StoreEntry> getStoreEntries(StoreQuery query) throws StoreException;
+
   /**
    * Returns the entry corresponding to the specified key
    *
@@ -99,6 +131,18 @@ public interface Store {
    */
   public StoreEntry getStoreEntry(String key) throws StoreException;
 
+  /**
+   * Returns a range of the content of the entry corresponding to the specified key. The metadata
+   * of the returned entry describe the whole entry; if the range exceeds the end of the content
+   * only the available bytes are returned.
+   *
+   * @param key Entry key to retrieve
+   * @param offset Index of the first byte to read
+   * @param length Maximum number of bytes to read
+   * @return Requested store entry or null
+   */
+  public StoreEntry getStoreEntry(String key, long offset, long length) throws StoreException;
+
 
   /**
    * Sets the value of the specified store entry reading it from input stream.
@@ -112,6 +156,15 @@ public interface Store {
                             HashMap<String,String> userMetadata)
     throws StoreException;
 
+  /**
+   * Puts all the specified entries in the store, overwriting the ones already present. <br>
+   * The entries are persisted as a single batch and the update handlers are notified only once
+   * for the whole batch.
+   *
+   * @param entries Entries to put
+   */
+  public void putStoreEntries(StoreEntry[] entries) throws StoreException;
+
   /**
    * Checks whether the specified store entry is present in the store
    *
@@ -162,7 +215,7 @@ public interface Store {
    * @param remoteMetadata Metadata of remote entries
    * @return The result of the comparison
    */
-  public StoreCompareResult compareStoreEntries(HashMap<String, StoreEntryMetadata> remoteMetadata)
+  public StoreCompareResult compareStoreEntries(Map<String, StoreEntryMetadata> remoteMetadata)
     throws StoreException;
 
   /**
@@ -0,0 +1,36 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Cursor over the entries of a Store. <br>
+ * Elements are fetched lazily from the underlying persistence, a page at a time, so that the
+ * whole key space is never materialized. A cursor can be consumed one element at a time (as an
+ * Iterator) or one page at a time. Cursors don't support removal.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public interface StoreCursor<E> extends Iterator<E> {
+
+  /**
+   * Returns the next page of elements. The page holds at most the page size specified by the
+   * query that created this cursor.
+   *
+   * @return Next elements or an empty list if the cursor is exhausted
+   * @exception StoreException if an error occurs fetching the elements
+   */
+  public List<E> nextPage() throws StoreException;
+
+  /**
+   * Releases the resources held by this cursor. Further calls to the cursor methods behave as if
+   * the cursor was exhausted.
+   */
+  public void close();
+}
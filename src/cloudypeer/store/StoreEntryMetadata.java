@@ -18,7 +18,8 @@ import java.util.Map;
 public interface StoreEntryMetadata extends Serializable {
 
   /**
-   * Returns the user metadata associated to the entry.
+   * Returns the user metadata associated to the entry. The returned map may be immutable (the
+   * metadata kept by the stores are): callers wanting to change it must work on a copy.
    *
    * @return User metadata
    */
@@ -0,0 +1,110 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store;
+
+import java.util.Date;
+
+/**
+ * Filter used by the cursor based methods of {@link Store} to select the entries to iterate. <br>
+ * Entries are selected if their key starts with the prefix and their modification timestamp is
+ * in the range (since, until]. Each of the filters can be null to disable it.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class StoreQuery {
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  private String prefix;
+  private Date since;
+  private Date until;
+  private int pageSize;
+
+  /**
+   * Creates a query selecting all the entries with the default page size.
+   */
+  public StoreQuery() {
+    this(null, null, null, DEFAULT_PAGE_SIZE);
+  }
+
+  /**
+   * Creates a new <code>StoreQuery</code> instance.
+   *
+   * @param prefix Key prefix or null
+   * @param since Select only entries modified after this date, or null
+   * @param until Select only entries modified up to this date, or null
+   * @param pageSize Number of entries fetched at once
+   */
+  public StoreQuery(String prefix, Date since, Date until, int pageSize) {
+    if (pageSize <= 0) throw new IllegalArgumentException("Page size must be greater than 0");
+    if (since != null && until != null && until.before(since))
+      throw new IllegalArgumentException("Empty modification time range");
+
+    this.prefix = prefix;
+    this.since = since;
+    this.until = until;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Returns the key prefix.
+   *
+   * @return Key prefix or null
+   */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Returns the lower bound (exclusive) of the modification time range.
+   *
+   * @return Lower bound or null
+   */
+  public Date getSince() {
+    return since;
+  }
+
+  /**
+   * Returns the upper bound (inclusive) of the modification time range.
+   *
+   * @return Upper bound or null
+   */
+  public Date getUntil() {
+    return until;
+  }
+
+  /**
+   * Returns the number of entries fetched at once.
+   *
+   * @return Page size
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Checks whether the specified key matches the prefix filter.
+   *
+   * @param key Key to check
+   * @return True if key matches
+   */
+  public boolean matchesKey(String key) {
+    return prefix == null || key.startsWith(prefix);
+  }
+
+  /**
+   * Checks whether the specified modification timestamp matches the time range filter.
+   *
+   * @param timestamp Modification timestamp in milliseconds
+   * @return True if the timestamp is in range
+   */
+  public boolean matchesTimestamp(long timestamp) {
+    if (since != null && timestamp <= since.getTime()) return false;
+    if (until != null && timestamp > until.getTime()) return false;
+    return true;
+  }
+}
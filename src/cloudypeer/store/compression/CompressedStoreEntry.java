@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.StoreException;
+import cloudypeer.store.simple.SimpleStoreEntry;
+
+/**
+ * StoreEntry holding its content as a compressed frame. <br>
+ * The metadata (MD5 and content length included) describe the decompressed content, which is
+ * what {@link #getInputStream()} returns. The frame is serialized as is, so entries sent to other
+ * peers are not decompressed and compressed again: handlers supporting compression store the
+ * received frame directly. Entries are sent this way only to peers advertising the codec (see
+ * {@link cloudypeer.store.diff.FakeDiffData}); other peers receive the {@link #decompressed()}
+ * entry.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CompressedStoreEntry implements StoreEntry {
+
+  private String key;
+  private StoreEntryMetadata metadata;
+  private String codecName;
+  private byte frame[];
+
+  /**
+   * Creates a new <code>CompressedStoreEntry</code> instance.
+   *
+   * @param key Entry key
+   * @param metadata Metadata of the decompressed content
+   * @param codec Codec which produced the frame
+   * @param frame Compressed content
+   */
+  public CompressedStoreEntry(String key, StoreEntryMetadata metadata, CompressionCodec codec,
+                              byte frame[])
+  {
+    this.key = key;
+    this.metadata = metadata;
+    this.codecName = codec.getName();
+    this.frame = frame;
+  }
+
+  /**
+   * Returns the name of the codec which produced the frame.
+   *
+   * @return Codec name
+   */
+  public String getCodecName() {
+    return codecName;
+  }
+
+  /**
+   * Returns a codec able to decompress the frame.
+   *
+   * @return Codec or null if no codec is registered for the frame format
+   */
+  public CompressionCodec getCodec() {
+    return CompressionCodecs.get(codecName);
+  }
+
+  /**
+   * Returns the compressed content. The array is not copied and must not be modified.
+   *
+   * @return Compressed frame
+   */
+  public byte[] getCompressedData() {
+    return frame;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public StoreEntryMetadata getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * Returns the decompressed content.
+   *
+   * @return Content input stream
+   */
+  public InputStream getInputStream() {
+    CompressionCodec codec = getCodec();
+    if (codec == null) throw new StoreException("Unsupported compression codec: " + codecName);
+
+    try {
+      return codec.decompress(new ByteArrayInputStream(frame));
+    } catch (IOException e) {
+      throw new StoreException("Error decompressing entry " + key, e);
+    }
+  }
+
+  /**
+   * Returns a plain entry with the same key and metadata, whose stream decompresses the frame.
+   * Used when sending the entry to peers which can't decode the frame.
+   *
+   * @return Decompressed entry
+   */
+  public StoreEntry decompressed() {
+    return new SimpleStoreEntry(key, getInputStream(), metadata);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (key == null || metadata == null || frame == null)
+      throw new InvalidObjectException("Incomplete compressed entry");
+    if (getCodec() == null)
+      throw new InvalidObjectException("Unsupported compression codec: " + codecName);
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compression algorithm used to store entry contents. <br>
+ * Compressed frames are identified by the codec name only, so every codec sharing a name must
+ * produce frames that any of them can decompress (e.g. different compression levels of the same
+ * algorithm).
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public interface CompressionCodec {
+
+  /**
+   * Returns the name identifying the frame format of this codec.
+   *
+   * @return Codec name
+   */
+  public String getName();
+
+  /**
+   * Compresses the specified data.
+   *
+   * @param data Data to compress
+   * @return Compressed frame
+   * @exception IOException if an error occurs
+   */
+  public byte[] compress(byte data[]) throws IOException;
+
+  /**
+   * Returns a stream decompressing the specified frame.
+   *
+   * @param in Compressed frame stream
+   * @return Decompressed data stream
+   * @exception IOException if an error occurs
+   */
+  public InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.compression;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the codecs able to decompress received frames, looked up by name. The Deflate codec
+ * is always registered.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CompressionCodecs {
+
+  private static ConcurrentHashMap<String, CompressionCodec> codecs =
+    new ConcurrentHashMap<String, CompressionCodec>();
+
+  static {
+    register(new DeflateCodec());
+  }
+
+  private CompressionCodecs() {}
+
+  /**
+   * Registers a codec, replacing any codec with the same name.
+   *
+   * @param codec Codec to register
+   */
+  public static void register(CompressionCodec codec) {
+    codecs.put(codec.getName(), codec);
+  }
+
+  /**
+   * Returns the codec with the specified name.
+   *
+   * @param name Codec name
+   * @return Registered codec or null if none is registered with this name
+   */
+  public static CompressionCodec get(String name) {
+    return codecs.get(name);
+  }
+
+  /**
+   * Returns the names of the registered codecs.
+   *
+   * @return Codec names
+   */
+  public static String[] getNames() {
+    return codecs.keySet().toArray(new String[0]);
+  }
+}
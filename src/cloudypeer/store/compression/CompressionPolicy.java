@@ -0,0 +1,170 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.compression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which entries are compressed and with which codec. <br>
+ * Rules associate a content type prefix (e.g. <code>text/</code> or
+ * <code>application/json</code>) to a codec, or to no codec to exclude already compressed
+ * formats. The longest matching prefix wins; contents without a matching rule use the default
+ * codec. Contents smaller than the minimum size, or not shrinking below the maximum ratio, are
+ * stored uncompressed.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CompressionPolicy {
+
+  public static int DEFAULT_MIN_SIZE = 512;
+  public static double DEFAULT_MAX_RATIO = 0.9;
+
+  /**
+   * Content type rule
+   */
+  private static class Rule {
+    final String prefix;
+    final CompressionCodec codec;
+
+    Rule(String prefix, CompressionCodec codec) {
+      this.prefix = prefix;
+      this.codec = codec;
+    }
+  }
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private List<Rule> rules = new ArrayList<Rule>();
+  private CompressionCodec defaultCodec;
+  private int minSize = DEFAULT_MIN_SIZE;
+  private double maxRatio = DEFAULT_MAX_RATIO;
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>CompressionPolicy</code> instance.
+   *
+   * @param defaultCodec Codec used for content types without a rule, or null to leave them
+   * uncompressed
+   */
+  public CompressionPolicy(CompressionCodec defaultCodec) {
+    this.defaultCodec = defaultCodec;
+  }
+
+  /**
+   * Returns a policy compressing textual contents (text, JSON, XML, JavaScript) with the fast
+   * Deflate codec and leaving everything else uncompressed.
+   *
+   * @return Text compression policy
+   */
+  public static CompressionPolicy textPolicy() {
+    CompressionCodec codec = new DeflateCodec();
+    CompressionPolicy policy = new CompressionPolicy(null);
+    policy.addRule("text/", codec);
+    policy.addRule("application/json", codec);
+    policy.addRule("application/xml", codec);
+    policy.addRule("application/javascript", codec);
+    return policy;
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the minimum size of a compressed content.
+   *
+   * @return Minimum size in bytes
+   */
+  public int getMinSize() {
+    return minSize;
+  }
+
+  /**
+   * Sets the minimum size of a compressed content. The default value is
+   * {@value #DEFAULT_MIN_SIZE} bytes.
+   *
+   * @param minSize Minimum size in bytes
+   */
+  public void setMinSize(int minSize) {
+    this.minSize = minSize;
+  }
+
+  /**
+   * Returns the maximum compressed/original size ratio for which the compressed frame is kept.
+   *
+   * @return Maximum ratio
+   */
+  public double getMaxRatio() {
+    return maxRatio;
+  }
+
+  /**
+   * Sets the maximum compressed/original size ratio for which the compressed frame is kept. The
+   * default value is {@value #DEFAULT_MAX_RATIO}.
+   *
+   * @param maxRatio Maximum ratio in (0, 1]
+   */
+  public void setMaxRatio(double maxRatio) {
+    if (maxRatio <= 0 || maxRatio > 1) throw new IllegalArgumentException("Invalid ratio: " + maxRatio);
+    this.maxRatio = maxRatio;
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Adds a content type rule.
+   *
+   * @param contentTypePrefix Content type prefix (case insensitive)
+   * @param codec Codec used for the matching contents, or null to leave them uncompressed
+   */
+  public synchronized void addRule(String contentTypePrefix, CompressionCodec codec) {
+    if (contentTypePrefix == null) throw new IllegalArgumentException("Null content type prefix");
+    rules.add(new Rule(contentTypePrefix.toLowerCase(), codec));
+  }
+
+  /**
+   * Returns the codec to use for the specified content.
+   *
+   * @param contentType Content type (parameters such as the charset are ignored)
+   * @param length Content length
+   * @return Codec or null if the content must not be compressed
+   */
+  public synchronized CompressionCodec getCodec(String contentType, long length) {
+    if (length < minSize) return null;
+
+    String type = (contentType != null) ? contentType.toLowerCase() : "";
+    int params = type.indexOf(';');
+    if (params >= 0) type = type.substring(0, params).trim();
+
+    Rule match = null;
+    for (Rule r: rules) {
+      if (type.startsWith(r.prefix) && (match == null || r.prefix.length() > match.prefix.length()))
+        match = r;
+    }
+
+    return (match != null) ? match.codec : defaultCodec;
+  }
+
+  /**
+   * Checks whether a compressed frame is worth keeping.
+   *
+   * @param length Original length
+   * @param compressedLength Compressed frame length
+   * @return True if the frame should be stored instead of the original data
+   */
+  public boolean accept(long length, long compressedLength) {
+    return compressedLength <= length * maxRatio;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codec using the zlib (Deflate) format. Low levels favour speed, high levels favour size; the
+ * frames of any level are decompressed the same way.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class DeflateCodec implements CompressionCodec {
+
+  public static final String NAME = "deflate";
+
+  private int level;
+
+  /**
+   * Creates a new <code>DeflateCodec</code> instance favouring speed.
+   */
+  public DeflateCodec() {
+    this(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * Creates a new <code>DeflateCodec</code> instance.
+   *
+   * @param level Compression level, from {@link Deflater#BEST_SPEED} to
+   * {@link Deflater#BEST_COMPRESSION}
+   */
+  public DeflateCodec(int level) {
+    if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    this.level = level;
+  }
+
+  /**
+   * Returns the compression level.
+   *
+   * @return Compression level
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  public String getName() {
+    return NAME;
+  }
+
+  public byte[] compress(byte data[]) throws IOException {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+      byte buff[] = new byte[8192];
+      while (!deflater.finished()) {
+        int len = deflater.deflate(buff);
+        out.write(buff, 0, len);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public InputStream decompress(InputStream in) throws IOException {
+    return new InflaterInputStream(in);
+  }
+}
@@ -5,23 +5,75 @@
  */
 package cloudypeer.store.diff;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
+
 import cloudypeer.store.StoreEntryDiffData;
 
 /**
- * This class just carries the key of the entries to diff.
+ * This class just carries the key of the entries to diff. <br>
+ * It also advertises the compression codecs the requesting peer can decode, so that compressed
+ * entries are sent to it as is. The codec names are written as optional data after the key:
+ * peers running older versions skip them, and diff data received from them accept no codec.
  *
  * @author Andrea Zito <zito.andrea@gmail.com>
  * @version 1.0
  */
 public class FakeDiffData implements StoreEntryDiffData {
 
+  /* Default serialVersionUID of the class before the codecs were added, kept for older peers */
+  private static final long serialVersionUID = 6214380787388547921L;
+
   private String key;
+  private transient String acceptedCodecs[];
 
   public FakeDiffData(String key) {
+    this(key, null);
+  }
+
+  /**
+   * Creates a new <code>FakeDiffData</code> instance.
+   *
+   * @param key Key of the entry to diff
+   * @param acceptedCodecs Names of the compression codecs accepted, or null if none
+   */
+  public FakeDiffData(String key, String acceptedCodecs[]) {
     this.key = key;
+    this.acceptedCodecs = acceptedCodecs;
   }
 
   public String getKey() {
     return key;
   }
+
+  /**
+   * Checks whether the requesting peer can decode frames of the specified codec.
+   *
+   * @param codecName Codec name
+   * @return True if the codec has been advertised
+   */
+  public boolean acceptsCodec(String codecName) {
+    if (acceptedCodecs == null) return false;
+    for (String accepted: acceptedCodecs)
+      if (accepted.equals(codecName)) return true;
+    return false;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeObject(acceptedCodecs);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    try {
+      acceptedCodecs = (String[]) in.readObject();
+    } catch (OptionalDataException e) {
+      /* Written by an older peer: no codec advertised */
+      if (!e.eof) throw e;
+      acceptedCodecs = null;
+    }
+  }
 }
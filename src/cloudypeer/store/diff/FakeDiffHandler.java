@@ -9,6 +9,8 @@ package cloudypeer.store.diff;
 import cloudypeer.store.StoreEntry;
 import cloudypeer.store.StoreEntryDiff;
 import cloudypeer.store.StoreEntryDiffData;
+import cloudypeer.store.compression.CompressedStoreEntry;
+import cloudypeer.store.compression.CompressionCodecs;
 import cloudypeer.store.simple.StoreEntryDiffHandler;
 import cloudypeer.store.simple.SimpleStore;
 import org.apache.log4j.Logger;
@@ -27,13 +29,20 @@ public class FakeDiffHandler implements StoreEntryDiffHandler {
 
   public StoreEntryDiffData produceStoreEntryDiffData(String key, StoreEntry e) throws RuntimeException  {
     logger.trace("Producing diff data for entry " + key);
-    return new FakeDiffData(key);
+    return new FakeDiffData(key, CompressionCodecs.getNames());
   }
 
   public StoreEntryDiff produceStoreEntryDiff(StoreEntry e, StoreEntryDiffData diffData)
     throws RuntimeException
   {
     logger.trace("Diffing entry " + e.getKey());
+    if (e instanceof CompressedStoreEntry) {
+      /* Send the frame as is only if the requesting peer can decode it */
+      CompressedStoreEntry compressed = (CompressedStoreEntry) e;
+      if (!(diffData instanceof FakeDiffData) ||
+          !((FakeDiffData) diffData).acceptsCodec(compressed.getCodecName()))
+        e = compressed.decompressed();
+    }
     return new FakeDiff(e);
   }
 
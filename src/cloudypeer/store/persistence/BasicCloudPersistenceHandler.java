@@ -5,25 +5,40 @@
  */
 package cloudypeer.store.persistence;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import cloudypeer.cloud.CloudChange;
 import cloudypeer.cloud.CloudException;
 import cloudypeer.cloud.CloudMetadata;
 import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudPutRequest;
 import cloudypeer.cloud.StorageCloud;
 import cloudypeer.store.StoreEntry;
 import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
 import cloudypeer.store.simple.SimpleStoreEntry;
-import cloudypeer.store.simple.SimpleStoreEntryMetadata;
 import cloudypeer.store.simple.StoreEntryPersistenceHandler;
+import cloudypeer.utils.ExpiringCache;
+import cloudypeer.utils.MD5InputStream;
+import cloudypeer.utils.RangeInputStream;
+import cloudypeer.utils.StripedLock;
 import org.apache.log4j.Logger;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Simple implementation of cloud persistence.
@@ -37,42 +52,26 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
 
   public static int DEFAULT_KEY_REFRESH_THRESHOLD = 10;
   public static int DEFAULT_METADATA_REFRESH_THRESHOLD = 10;
-
-
-  /* *********************************************************************
-   * Utility classes
-   ***********************************************************************/
+  public static int DEFAULT_METADATA_CACHE_SIZE = 100000;
+  public static int CHANGE_FEED_PAGE_SIZE = 1000;
 
   /**
-   * Cointainer for cached entry/metadata
+   * Batches keep their keys locked for a whole cloud request: many stripes are used so that
+   * concurrent batches of different keys seldom share one
    */
-  private class CachedData<E> {
-
-    private E data;
-    private long refreshTimestamp;
-
-    public CachedData(E data) {
-      this.data = data;
-      this.refreshTimestamp = System.currentTimeMillis();
-    }
+  public static int DEFAULT_LOCK_STRIPES = 4096;
 
-    public void refresh(E data) {
-      this.data = data;
-      this.refreshTimestamp = System.currentTimeMillis();
-    }
-
-    public E getData() {
-      return data;
-    }
-
-    public long getTimestamp() {
-      return refreshTimestamp;
-    }
-
-    public boolean needsRefresh(long refreshThreshold) {
-      return (System.currentTimeMillis() - refreshTimestamp) >= refreshThreshold;
-    }
-  }
+  /**
+   * Executor shared by all the handlers to refresh cached metadata ahead of expiration
+   */
+  private static final ExecutorService refreshExecutor =
+    Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "BasicCloudPersistenceHandler-refresh");
+          t.setDaemon(true);
+          return t;
+        }
+      });
 
   /* *********************************************************************
    * Instance variables
@@ -89,31 +88,51 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
   private String baseKey;
 
   /**
-   * Cache of the keys on the cloud
+   * Cache of the keys on the cloud. Replaced as a whole on each refresh.
    */
-  private Set<String> keysCache = new HashSet<String>();
+  private volatile ConcurrentHashMap<String, Boolean> keysCache =
+    new ConcurrentHashMap<String, Boolean>();
 
   /**
    * Last keys cache refresh timestamp
    */
-  private long keysCacheLastRefresh = 0;
+  private volatile long keysCacheLastRefresh = 0;
+
+  /**
+   * Set while a thread is refreshing the keys cache
+   */
+  private AtomicBoolean refreshingKeys = new AtomicBoolean(false);
+
+  /**
+   * Sequence number of the last cloud change applied to the caches, or -1 if the change feed is
+   * not followed
+   */
+  private long changeSequence = -1;
+
+  /**
+   * Time at which the current hole in the change sequence was first seen, or 0
+   */
+  private long gapDetected = 0;
 
   /**
    * Treshold after which refresh the keys cache
    */
-  private int keysRefreshThreshold = DEFAULT_KEY_REFRESH_THRESHOLD * 1000;
+  private volatile int keysRefreshThreshold = DEFAULT_KEY_REFRESH_THRESHOLD * 1000;
 
   /**
-   * Cache of cloud metadata
+   * Cache of cloud metadata. Absent keys are cached as well.
    */
-  private HashMap<String, CachedData<StoreEntryMetadata>> metadataCache =
-    new HashMap<String, CachedData<StoreEntryMetadata>>();
+  private ExpiringCache<String, StoreEntryMetadata> metadataCache;
 
   /**
-   * Treshold after which refresh metadata
+   * Optional cache of entry contents
    */
-  private int metadataRefreshThreshold = DEFAULT_METADATA_REFRESH_THRESHOLD * 1000;
+  private ContentCache contentCache = null;
 
+  /**
+   * Per key locks serializing the writes of the same entry
+   */
+  private StripedLock locks = new StripedLock(DEFAULT_LOCK_STRIPES);
 
   /* *********************************************************************
    * Constructor
@@ -128,6 +147,15 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
     this.baseKey = baseKey;
     if (this.baseKey == null) this.baseKey = "";
 
+    this.metadataCache = new ExpiringCache<String, StoreEntryMetadata>(
+      new ExpiringCache.Loader<String, StoreEntryMetadata>() {
+        public StoreEntryMetadata load(String key) {
+          return loadMetadata(key);
+        }
+      },
+      DEFAULT_METADATA_CACHE_SIZE, DEFAULT_METADATA_REFRESH_THRESHOLD * 1000,
+      DEFAULT_METADATA_REFRESH_THRESHOLD * 1000, refreshExecutor);
+
     logger.trace(String.format("Configured with baseKey '%s' for cloud '%s'",
                                this.baseKey, cloud.getCloudURI()));
   }
@@ -151,7 +179,7 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
    * @param threshold Keys refresh threshold in seconds
    */
   public void setKeysRefreshThreshold(int threshold) {
-    this.keysRefreshThreshold = threshold;
+    this.keysRefreshThreshold = threshold * 1000;
   }
 
 
@@ -161,7 +189,7 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
    * @return Metadta refresh threshold in seconds
    */
   public int getMetadataRefreshThreshold() {
-    return metadataRefreshThreshold / 1000;
+    return (int) (metadataCache.getTTL() / 1000);
   }
 
   /**
@@ -170,64 +198,225 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
    * @param threshold Metadata refresh threshold in seconds
    */
   public void setMetadataRefreshThreshold(int threshold) {
-    this.metadataRefreshThreshold = threshold;
+    metadataCache.setTTL(threshold * 1000L);
+    metadataCache.setNegativeTTL(threshold * 1000L);
+  }
+
+  /**
+   * Returns the cache of cloud metadata, mainly to inspect its statistics.
+   *
+   * @return Metadata cache
+   */
+  public ExpiringCache<String, StoreEntryMetadata> getMetadataCache() {
+    return metadataCache;
+  }
+
+  /**
+   * Returns the content cache in use.
+   *
+   * @return Content cache or null if contents are not cached
+   */
+  public ContentCache getContentCache() {
+    return contentCache;
+  }
+
+  /**
+   * Sets the cache used to serve reads of unchanged entries without downloading them again. A
+   * cached content is used only if its MD5 matches the one of the current entry metadata.
+   *
+   * @param contentCache Content cache or null to disable caching
+   */
+  public void setContentCache(ContentCache contentCache) {
+    this.contentCache = contentCache;
   }
 
   /* *********************************************************************
    * Utils methods
    ***********************************************************************/
   /**
-   * Checks if the keys cache is up to date and otherwise updates it
+   * Converts the metadata returned by the cloud in store entry metadata.
+   */
+  private static StoreEntryMetadata toStoreEntryMetadata(CloudMetadata cloudMeta) {
+    return new CompactStoreEntryMetadata(cloudMeta.getLastModified(),
+                                         cloudMeta.getContentLength(),
+                                         cloudMeta.getContentMD5(),
+                                         cloudMeta.getContentType(),
+                                         cloudMeta.getUserMetadata());
+  }
+
+  /**
+   * Checks if the keys cache is up to date and otherwise updates it. If the cloud provides a
+   * change feed the caches are updated with the changes recorded since the last refresh,
+   * otherwise keys and metadata are retrieved with a single listing, refreshing the whole
+   * metadata cache in one round trip. If another thread is already refreshing, the current
+   * caches are used.
+   *
+   * @return True if the caches have just been refreshed
    */
-  private void checkKeysCache() {
-    if ((System.currentTimeMillis() - keysCacheLastRefresh) > keysRefreshThreshold) {
+  private boolean checkKeysCache() {
+    if ((System.currentTimeMillis() - keysCacheLastRefresh) <= keysRefreshThreshold) return false;
+    if (!refreshingKeys.compareAndSet(false, true)) return false;
+
+    try {
       logger.trace("Time to update keys cache");
-      String currentKeys[];
+      long refreshTime = System.currentTimeMillis();
 
+      boolean refreshed;
       try {
-        currentKeys = storageCloud.list(null, baseKey);
-        logger.trace(String.format("There are %d keys on the cloud", currentKeys.length));
-        keysCache.clear();
-        for (String key: currentKeys) {
-          if (key != null) keysCache.add(key);
-        }
-
-        keysCacheLastRefresh = System.currentTimeMillis();
+        refreshed = (changeSequence >= 0) ? followChanges() : refreshAll();
       } catch (IOException e)  {
         logger.warn("Input/Output error updating cloud key cache", e);
+        return false;
       } catch (CloudException e) {
         logger.warn("Error updating cloud key cache", e);
+        return false;
       }
+
+      if (refreshed) keysCacheLastRefresh = refreshTime;
+      return refreshed;
+    } finally {
+      refreshingKeys.set(false);
     }
   }
 
-  private CachedData<StoreEntryMetadata> addMetadataToCache(String key, StoreEntryMetadata newMeta)
-  {
-    CachedData<StoreEntryMetadata> cachedMeta = metadataCache.get(key);
-    if (cachedMeta == null) {
-      cachedMeta = new CachedData<StoreEntryMetadata>(newMeta);
-      synchronized (metadataCache) {
-        metadataCache.put(key, cachedMeta);
+  /**
+   * Rebuilds keys and metadata caches from a full listing. If the cloud provides a change feed,
+   * its current position is recorded so that following refreshes are incremental.
+   */
+  private boolean refreshAll() throws IOException, CloudException {
+    /* Position taken before listing: changes racing with the listing are applied again later */
+    long sequence = storageCloud.supportsChangeFeed() ? storageCloud.getChangeSequence() : -1;
+    Map<String, CloudMetadata> current = storageCloud.listWithMetadata(baseKey, null);
+    logger.trace(String.format("There are %d keys on the cloud", current.size()));
+
+    ConcurrentHashMap<String, Boolean> keys =
+      new ConcurrentHashMap<String, Boolean>(current.size() * 2);
+    String key;
+    for (Map.Entry<String, CloudMetadata> e: current.entrySet()) {
+      key = e.getKey();
+      if (key == null || !key.startsWith(baseKey)) continue;
+      key = key.substring(baseKey.length());
+
+      keys.put(key, Boolean.TRUE);
+      metadataCache.put(key, toStoreEntryMetadata(e.getValue()));
+    }
+
+    metadataCache.retainAll(keys.keySet());
+    keysCache = keys;
+    changeSequence = sequence;
+    return true;
+  }
+
+  /**
+   * Applies to the caches the changes recorded since the last refresh. <br>
+   * A hole in the sequence numbers may be a change whose transaction is not yet committed: the
+   * position is not moved past a hole until it's older than the keys refresh threshold, so that
+   * the late change is not missed (applying a change twice is harmless).
+   */
+  private boolean followChanges() throws IOException, CloudException {
+    long sequence = changeSequence;
+    long stableSequence = -1;
+    int applied = 0;
+    CloudChange changes[];
+
+    do {
+      changes = storageCloud.changesSince(sequence, CHANGE_FEED_PAGE_SIZE);
+      for (CloudChange change: changes) {
+        if (change.getSequence() > sequence + 1 && stableSequence < 0) {
+          long now = System.currentTimeMillis();
+          if (gapDetected == 0) gapDetected = now;
+
+          if (now - gapDetected < keysRefreshThreshold) {
+            stableSequence = sequence;
+          } else {
+            logger.trace("Skipping change sequence hole after " + sequence);
+            gapDetected = 0;
+          }
+        }
+
+        applyChange(change);
+        sequence = change.getSequence();
+        applied++;
       }
+    } while (changes.length == CHANGE_FEED_PAGE_SIZE);
+
+    if (stableSequence < 0) {
+      gapDetected = 0;
+      changeSequence = sequence;
     } else {
-      cachedMeta.refresh(newMeta);
+      changeSequence = stableSequence;
     }
 
-    synchronized (keysCache) {
-      keysCache.add(key);
-    }
+    logger.trace(String.format("Applied %d cloud changes, now at sequence %d", applied,
+                               changeSequence));
+    return true;
+  }
+
+  private void applyChange(CloudChange change) {
+    String key = change.getKey();
+    if (!key.startsWith(baseKey)) return;
+    key = key.substring(baseKey.length());
 
-    return cachedMeta;
+    if (change.getType() == CloudChange.Type.REMOVE) {
+      keysCache.remove(key);
+      metadataCache.put(key, null);
+      if (contentCache != null) contentCache.invalidate(key);
+    } else {
+      keysCache.put(key, Boolean.TRUE);
+      metadataCache.invalidate(key);
+    }
   }
 
-  private void removeMetadataFromCache(String key) {
-    synchronized (metadataCache) {
-      metadataCache.remove(key);
+  /**
+   * Retrieves the metadata of the specified key from the cloud. Used as loader of the metadata
+   * cache.
+   *
+   * @param key Entry key
+   * @return Entry metadata or null if the entry is not on the cloud
+   */
+  private StoreEntryMetadata loadMetadata(String key) {
+    logger.trace("Refreshing metadata for key " + key);
+    CloudMetadata cloudMeta;
+
+    try {
+      cloudMeta = storageCloud.getMetadata(baseKey + key);
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error retrieving metadata from cloud: " + key , e);
+    } catch (CloudException e) {
+      throw new RuntimeException("Error retrieving metadata from cloud:" + key, e);
     }
 
-    synchronized (keysCache) {
+    if (cloudMeta == null) {
       keysCache.remove(key);
+      if (contentCache != null) contentCache.invalidate(key);
+      return null;
     }
+
+    keysCache.put(key, Boolean.TRUE);
+    return toStoreEntryMetadata(cloudMeta);
+  }
+
+  /**
+   * Records in the caches that the specified key is not on the cloud.
+   */
+  private void removeFromCache(String key) {
+    keysCache.remove(key);
+    metadataCache.put(key, null);
+    if (contentCache != null) contentCache.invalidate(key);
+  }
+
+  /**
+   * Prepends the base key to the specified keys.
+   */
+  private ArrayList<String> cloudKeys(ArrayList<String> keys) {
+    ArrayList<String> cloudKeys = new ArrayList<String>(keys.size());
+    for (String key: keys) cloudKeys.add(baseKey + key);
+    return cloudKeys;
+  }
+
+  private void addMetadataToCache(String key, StoreEntryMetadata newMeta) {
+    metadataCache.put(key, newMeta);
+    keysCache.put(key, Boolean.TRUE);
   }
 
   /* *********************************************************************
@@ -235,29 +424,157 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
    ***********************************************************************/
   public boolean contains(String key) throws RuntimeException {
     checkKeysCache();
-    return keysCache.contains(key);
+    return keysCache.containsKey(key);
   }
 
   public void write(String key, InputStream in, String contentType,
                     Map<String,String> userMetadata) throws RuntimeException
   {
+    Lock lock = locks.getLock(key);
+    lock.lock();
     try {
+      if (contentCache != null) contentCache.invalidate(key);
+      metadataCache.invalidate(key);
+      keysCache.put(key, Boolean.TRUE);
+
       storageCloud.put(baseKey + key, contentType, in, userMetadata);
     } catch (IOException e)  {
       throw new RuntimeException("Input/Output error putting cloud entry: " + key, e);
     } catch (CloudException e) {
       throw new RuntimeException("Error putting entry: " + key, e);
+    } finally {
+      lock.unlock();
     }
   }
 
 
   public void write(StoreEntry entry) throws RuntimeException {
     StoreEntryMetadata meta = entry.getMetadata();
-    write(entry.getKey(), entry.getInputStream(), meta.getContentType(), meta.getUserMetadata());
-    addMetadataToCache(entry.getKey(), meta);
+    Lock lock = locks.getLock(entry.getKey());
+    lock.lock();
+    try {
+      write(entry.getKey(), entry.getInputStream(), meta.getContentType(), meta.getUserMetadata());
+      addMetadataToCache(entry.getKey(), meta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void write(StoreEntry entries[]) throws RuntimeException {
+    String keys[] = new String[entries.length];
+    for (int i = 0; i < entries.length; i++) keys[i] = entries[i].getKey();
+
+    Lock locked[] = locks.lockAll(keys);
+    try {
+      writeBatch(entries);
+    } finally {
+      StripedLock.unlockAll(locked);
+    }
+  }
+
+  public boolean[] compareAndWrite(StoreEntry entries[], StoreEntryMetadata expected[])
+    throws RuntimeException
+  {
+    boolean written[] = new boolean[entries.length];
+    String keys[] = new String[entries.length];
+    for (int i = 0; i < entries.length; i++) keys[i] = entries[i].getKey();
+
+    Lock locked[] = locks.lockAll(keys);
+    try {
+      ArrayList<Integer> matching = new ArrayList<Integer>(entries.length);
+      for (int i = 0; i < entries.length; i++) {
+        if (CompactStoreEntryMetadata.sameVersion(readMetadata(keys[i]), expected[i]))
+          matching.add(i);
+      }
+
+      if (!matching.isEmpty()) conditionalWriteBatch(entries, expected, matching, written);
+    } finally {
+      StripedLock.unlockAll(locked);
+    }
+
+    return written;
+  }
+
+  /**
+   * Writes the specified entries with a single conditional cloud request, so that the cloud
+   * enforces the expected versions (cached metadata may be stale) and skips the upload of the
+   * contents it already holds. The caller must hold the entry locks.
+   *
+   * @param entries Entries
+   * @param expected Expected current metadata of each entry
+   * @param indexes Indexes of the entries to write
+   * @param written Set to true for each entry written
+   */
+  private void conditionalWriteBatch(StoreEntry entries[], StoreEntryMetadata expected[],
+                                     List<Integer> indexes, boolean written[])
+    throws RuntimeException
+  {
+    CloudPutRequest requests[] = new CloudPutRequest[indexes.size()];
+    StoreEntry entry;
+    StoreEntryMetadata meta;
+    for (int i = 0; i < requests.length; i++) {
+      entry = entries[indexes.get(i)];
+      meta = entry.getMetadata();
+      String expectedMD5 = (expected[indexes.get(i)] != null) ?
+        expected[indexes.get(i)].getContentMD5() : null;
+      requests[i] = new CloudPutRequest(baseKey + entry.getKey(), meta.getContentType(),
+                                        entry.getInputStream(), meta.getUserMetadata(),
+                                        meta.getContentMD5(), expectedMD5);
+      if (contentCache != null) contentCache.invalidate(entry.getKey());
+    }
+
+    CloudPutRequest.Result results[];
+    try {
+      results = storageCloud.putAllConditional(requests);
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error putting " + requests.length + " cloud entries", e);
+    } catch (CloudException e) {
+      throw new RuntimeException("Error putting " + requests.length + " entries", e);
+    }
+
+    for (int i = 0; i < requests.length; i++) {
+      entry = entries[indexes.get(i)];
+      if (results[i] == CloudPutRequest.Result.UPLOADED) {
+        addMetadataToCache(entry.getKey(), entry.getMetadata());
+      } else {
+        /* Either the cloud version differs from the cached one, or the cloud kept its own
+         * modification date: reload the metadata */
+        metadataCache.invalidate(entry.getKey());
+      }
+      written[indexes.get(i)] = results[i] != CloudPutRequest.Result.REJECTED;
+    }
+  }
+
+  /**
+   * Writes the entries with a single cloud request. The caller must hold the entry locks.
+   */
+  private void writeBatch(StoreEntry entries[]) throws RuntimeException {
+    CloudPutRequest requests[] = new CloudPutRequest[entries.length];
+    StoreEntryMetadata meta;
+    for (int i = 0; i < entries.length; i++) {
+      meta = entries[i].getMetadata();
+      requests[i] = new CloudPutRequest(baseKey + entries[i].getKey(), meta.getContentType(),
+                                        entries[i].getInputStream(), meta.getUserMetadata());
+    }
+
+    if (contentCache != null) {
+      for (StoreEntry entry: entries) contentCache.invalidate(entry.getKey());
+    }
+
+    try {
+      storageCloud.putAll(requests);
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error putting " + entries.length + " cloud entries", e);
+    } catch (CloudException e) {
+      throw new RuntimeException("Error putting " + entries.length + " entries", e);
+    }
+
+    for (StoreEntry entry: entries) addMetadataToCache(entry.getKey(), entry.getMetadata());
   }
 
   public void writeMetadata(String key, StoreEntryMetadata meta) throws RuntimeException {
+    Lock lock = locks.getLock(key);
+    lock.lock();
     try {
       storageCloud.putMetadata(baseKey + key, meta.getContentType(), meta.getUserMetadata());
 
@@ -266,12 +583,26 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
       throw new RuntimeException("Input/Output error putting cloud entry metadata: " + key, e);
     } catch (CloudException e) {
       throw new RuntimeException("Error putting entry metadata: " + key, e);
+    } finally {
+      lock.unlock();
     }
   }
 
   public StoreEntry read(String key) throws RuntimeException {
     CloudObject cloudObject;
     CloudMetadata cloudMeta;
+
+    if (contentCache != null) {
+      StoreEntryMetadata cachedMeta = readMetadata(key);
+      if (cachedMeta == null) return null;
+
+      InputStream in = contentCache.get(key, cachedMeta.getContentMD5());
+      if (in != null) {
+        logger.trace("Serving cached content for key " + key);
+        return new SimpleStoreEntry(key, in, cachedMeta);
+      }
+    }
+
     try {
       cloudObject = storageCloud.get(baseKey + key);
     } catch (IOException e)  {
@@ -279,57 +610,223 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
     }  catch (CloudException e) {
       throw new RuntimeException("Error retrieving entry from cloud: " + key, e);
     }
+    if (cloudObject == null) {
+      /* Not on the cloud (anymore): drop the cached metadata */
+      removeFromCache(key);
+      return null;
+    }
 
     StoreEntryMetadata metadata;
-    HashMap<String, String> userMeta;
 
     cloudMeta = cloudObject.getMetadata();
-    userMeta = new HashMap<String,String>(cloudMeta.getUserMetadata());
-    metadata = new SimpleStoreEntryMetadata(cloudMeta.getLastModified(),
-                                           cloudMeta.getContentLength(),
-                                           cloudMeta.getContentMD5(),
-                                           cloudMeta.getContentType(),
-                                           userMeta);
+    metadata = toStoreEntryMetadata(cloudMeta);
     addMetadataToCache(key, metadata);
+
+    if (contentCache != null && metadata.getContentLength() <= contentCache.getMaxEntrySize()) {
+      byte[] data = readAndCache(key, cloudObject.getInputStream(), metadata);
+      return new SimpleStoreEntry(key, new ByteArrayInputStream(data), metadata);
+    }
+
     return new SimpleStoreEntry(key, cloudObject.getInputStream(), metadata);
   }
 
+  /*
+   * Cached contents are served from the cache, otherwise only the requested range is retrieved
+   * from the cloud. A partial content is never added to the content cache.
+   */
+  public StoreEntry read(String key, long offset, long length) throws RuntimeException {
+    CloudObject cloudObject;
 
+    if (contentCache != null) {
+      StoreEntryMetadata cachedMeta = readMetadata(key);
+      if (cachedMeta == null) return null;
 
-  public StoreEntryMetadata readMetadata(String key) throws RuntimeException {
-    CachedData<StoreEntryMetadata> cachedMeta = metadataCache.get(key);
+      InputStream in = contentCache.get(key, cachedMeta.getContentMD5());
+      if (in != null) {
+        logger.trace("Serving cached content range for key " + key);
+        return new SimpleStoreEntry(key, new RangeInputStream(in, offset, length), cachedMeta);
+      }
+    }
 
-    if (cachedMeta == null || cachedMeta.needsRefresh(metadataRefreshThreshold)) {
-      logger.trace("Refreshing metadata for key " + key);
-      HashMap<String, String> userMeta;
-      StoreEntryMetadata newMeta;
-      CloudMetadata cloudMeta;
+    try {
+      cloudObject = storageCloud.get(baseKey + key, offset, length);
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error retrieving entry from cloud: " + key , e);
+    }  catch (CloudException e) {
+      throw new RuntimeException("Error retrieving entry from cloud: " + key, e);
+    }
+    if (cloudObject == null) {
+      removeFromCache(key);
+      return null;
+    }
 
+    StoreEntryMetadata metadata = toStoreEntryMetadata(cloudObject.getMetadata());
+    addMetadataToCache(key, metadata);
+
+    return new SimpleStoreEntry(key, cloudObject.getInputStream(), metadata);
+  }
+
+  /**
+   * Reads the whole content of an entry and, if its MD5 matches the metadata, stores it in the
+   * content cache.
+   *
+   * @param key Entry key
+   * @param in Content input stream (closed by this method)
+   * @param metadata Entry metadata
+   * @return Entry content
+   */
+  private byte[] readAndCache(String key, InputStream in, StoreEntryMetadata metadata) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) metadata.getContentLength());
+    MD5InputStream md5In = new MD5InputStream(in);
+    byte buff[] = new byte[8192];
+    int read;
+
+    try {
       try {
-        cloudMeta = storageCloud.getMetadata(baseKey + key);
-      } catch (IOException e)  {
-        throw new RuntimeException("Input/Output error retrieving metadata from cloud: " + key , e);
-      } catch (CloudException e) {
-        throw new RuntimeException("Error retrieving metadata from cloud:" + key, e);
+        while ((read = md5In.read(buff)) > 0) out.write(buff, 0, read);
+      } finally {
+        md5In.close();
       }
+    } catch (IOException e) {
+      throw new RuntimeException("Input/Output error reading entry from cloud: " + key, e);
+    }
 
-      if (cloudMeta == null) {
-        removeMetadataFromCache(key);
-        return null;
-      }
+    byte data[] = out.toByteArray();
+    if (md5In.getMD5().equalsIgnoreCase(metadata.getContentMD5())) {
+      contentCache.put(key, metadata.getContentMD5(), data);
+    } else {
+      logger.warn("Content MD5 mismatch for key " + key + ": not caching it");
+    }
+
+    return data;
+  }
 
-      userMeta = new HashMap<String,String>(cloudMeta.getUserMetadata());
-      newMeta = new SimpleStoreEntryMetadata(cloudMeta.getLastModified(),
-                                             cloudMeta.getContentLength(),
-                                             cloudMeta.getContentMD5(),
-                                             cloudMeta.getContentType(),
-                                             userMeta);
-      cachedMeta = addMetadataToCache(key, newMeta);
+
+
+  public StoreEntryMetadata readMetadata(String key) throws RuntimeException {
+    if (!metadataCache.isCached(key)) {
+      /* If the whole metadata cache is (or has just been) refreshed, an absent key is not on
+         the cloud, consistently with contains(key) */
+      checkKeysCache();
+      if (keysCacheLastRefresh > 0 && !keysCache.containsKey(key)) return null;
+    }
+
+    return metadataCache.get(key);
+  }
+
+  public StoreEntry[] read(String keys[]) throws RuntimeException {
+    ArrayList<StoreEntry> entries = new ArrayList<StoreEntry>(keys.length);
+    ArrayList<String> toRead = new ArrayList<String>(keys.length);
+
+    if (contentCache != null) {
+      Map<String, StoreEntryMetadata> cachedMeta = readMetadata(keys);
+      StoreEntryMetadata meta;
+      InputStream in;
+      for (String key: keys) {
+        meta = cachedMeta.get(key);
+        if (meta == null) continue;
+
+        in = contentCache.get(key, meta.getContentMD5());
+        if (in != null) entries.add(new SimpleStoreEntry(key, in, meta));
+        else toRead.add(key);
+      }
+      logger.trace(String.format("Serving %d cached contents", entries.size()));
     } else {
-      logger.trace("Using cached metadata for key " + key);
+      for (String key: keys) toRead.add(key);
+    }
+
+    if (toRead.isEmpty()) return entries.toArray(new StoreEntry[entries.size()]);
+
+    Map<String, CloudObject> objects;
+    try {
+      objects = storageCloud.getAll(cloudKeys(toRead));
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error retrieving " + toRead.size() +
+                                 " entries from cloud", e);
+    }  catch (CloudException e) {
+      throw new RuntimeException("Error retrieving " + toRead.size() + " entries from cloud", e);
+    }
+
+    CloudObject cloudObject;
+    StoreEntryMetadata metadata;
+    for (String key: toRead) {
+      cloudObject = objects.get(baseKey + key);
+      if (cloudObject == null) {
+        removeFromCache(key);
+        continue;
+      }
+
+      metadata = toStoreEntryMetadata(cloudObject.getMetadata());
+      addMetadataToCache(key, metadata);
+
+      if (contentCache != null && metadata.getContentLength() <= contentCache.getMaxEntrySize()) {
+        byte[] data = readAndCache(key, cloudObject.getInputStream(), metadata);
+        entries.add(new SimpleStoreEntry(key, new ByteArrayInputStream(data), metadata));
+      } else {
+        entries.add(new SimpleStoreEntry(key, cloudObject.getInputStream(), metadata));
+      }
     }
 
-    return cachedMeta.getData();
+    return entries.toArray(new StoreEntry[entries.size()]);
+  }
+
+  public Map<String, StoreEntryMetadata> readMetadata(String keys[]) throws RuntimeException {
+    HashMap<String, StoreEntryMetadata> metadata =
+      new HashMap<String, StoreEntryMetadata>(keys.length * 2);
+    ArrayList<String> toLoad = new ArrayList<String>();
+    StoreEntryMetadata meta;
+
+    for (String key: keys) {
+      if (metadataCache.isCached(key)) {
+        meta = metadataCache.get(key);
+        if (meta != null) metadata.put(key, meta);
+      } else {
+        toLoad.add(key);
+      }
+    }
+
+    if (toLoad.isEmpty()) return metadata;
+
+    /* As in readMetadata(key), keys absent from a refreshed keys cache are not on the cloud */
+    checkKeysCache();
+    ArrayList<String> toRead = new ArrayList<String>(toLoad.size());
+    for (String key: toLoad) {
+      if (metadataCache.isCached(key)) {
+        meta = metadataCache.get(key);
+        if (meta != null) metadata.put(key, meta);
+      } else if (keysCacheLastRefresh == 0 || keysCache.containsKey(key)) {
+        toRead.add(key);
+      }
+    }
+
+    if (toRead.isEmpty()) return metadata;
+
+    Map<String, CloudMetadata> cloudMeta;
+    try {
+      cloudMeta = storageCloud.getMetadataAll(cloudKeys(toRead));
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error retrieving metadata of " + toRead.size() +
+                                 " entries from cloud", e);
+    } catch (CloudException e) {
+      throw new RuntimeException("Error retrieving metadata of " + toRead.size() +
+                                 " entries from cloud", e);
+    }
+
+    CloudMetadata m;
+    for (String key: toRead) {
+      m = cloudMeta.get(baseKey + key);
+      if (m == null) {
+        removeFromCache(key);
+        continue;
+      }
+
+      meta = toStoreEntryMetadata(m);
+      addMetadataToCache(key, meta);
+      metadata.put(key, meta);
+    }
+
+    logger.trace(String.format("Retrieved metadata of %d keys from cloud", toRead.size()));
+    return metadata;
   }
 
   public String[] listEntries(Date timestamp) throws RuntimeException {
@@ -353,4 +850,49 @@ public class BasicCloudPersistenceHandler implements StoreEntryPersistenceHandle
       throw new RuntimeException("Error listing cloud entries", e);
     }
   }
+
+  public Iterator<String> listEntries(String prefix, Date since, final Date until, int pageSize)
+    throws RuntimeException
+  {
+    final Iterator<String> cloudKeys;
+    try {
+      cloudKeys = storageCloud.listIterator(since, baseKey + ((prefix != null) ? prefix : ""),
+                                            pageSize);
+    } catch (IOException e)  {
+      throw new RuntimeException("Input/Output error listing cloud entries", e);
+    } catch (CloudException e) {
+      throw new RuntimeException("Error listing cloud entries", e);
+    }
+
+    /* The cloud can't filter by upper bound: it's checked against the (cached) metadata */
+    return new Iterator<String>() {
+      private String next = null;
+
+      public boolean hasNext() {
+        while (next == null && cloudKeys.hasNext()) {
+          String k = cloudKeys.next();
+          if (!k.startsWith(baseKey)) continue;
+          k = k.substring(baseKey.length());
+
+          if (until != null) {
+            StoreEntryMetadata meta = readMetadata(k);
+            if (meta == null || meta.getModifiedTimestamp().after(until)) continue;
+          }
+          next = k;
+        }
+        return next != null;
+      }
+
+      public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String key = next;
+        next = null;
+        return key;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
 }
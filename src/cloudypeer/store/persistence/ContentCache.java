@@ -0,0 +1,262 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Base class for bounded entry content caches. <br>
+ * Contents are identified by the pair (key, MD5) so that a cached content is served only if it
+ * matches the current version of the entry. When the total size of the cached contents exceeds
+ * the maximum size the least recently used contents are evicted. <br>
+ * <br>
+ * Subclasses define where the contents are actually kept by implementing {@link #storeContent},
+ * {@link #loadContent} and {@link #deleteContent}.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public abstract class ContentCache {
+
+  static Logger logger = Logger.getLogger(ContentCache.class);
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  /**
+   * LRU index of the cached contents: content id -> content size
+   */
+  private LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+  /**
+   * Ids of the cached contents of each key
+   */
+  private Map<String, List<String>> keyIds = new HashMap<String, List<String>>();
+
+  private long maxSize;
+  private long maxEntrySize;
+  private long size = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>ContentCache</code> instance.
+   *
+   * @param maxSize Maximum number of bytes kept by the cache
+   * @param maxEntrySize Maximum size of a single cached content
+   */
+  protected ContentCache(long maxSize, long maxEntrySize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("Cache size must be greater than 0");
+    if (maxEntrySize <= 0 || maxEntrySize > maxSize)
+      throw new IllegalArgumentException("Invalid max entry size: " + maxEntrySize);
+
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+  }
+
+  /* *********************************************************************
+   * Abstract methods
+   ***********************************************************************/
+
+  /**
+   * Stores the specified content.
+   *
+   * @param id Content id
+   * @param data Content
+   * @exception IOException if an error occurs
+   */
+  protected abstract void storeContent(String id, byte[] data) throws IOException;
+
+  /**
+   * Opens the specified content.
+   *
+   * @param id Content id
+   * @return Content input stream or null if the content is not available
+   * @exception IOException if an error occurs
+   */
+  protected abstract InputStream loadContent(String id) throws IOException;
+
+  /**
+   * Deletes the specified content.
+   *
+   * @param id Content id
+   */
+  protected abstract void deleteContent(String id);
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static String contentId(String key, String md5) {
+    return md5 + ":" + key;
+  }
+
+  private void removeId(String id) {
+    Long contentSize = index.remove(id);
+    if (contentSize == null) return;
+
+    size -= contentSize;
+    String key = id.substring(id.indexOf(':') + 1);
+    List<String> ids = keyIds.get(key);
+    if (ids != null) {
+      ids.remove(id);
+      if (ids.isEmpty()) keyIds.remove(key);
+    }
+    deleteContent(id);
+  }
+
+  private void evict() {
+    while (size > maxSize && !index.isEmpty()) {
+      /* Access ordered map: the first id is the least recently used */
+      removeId(index.keySet().iterator().next());
+      evictions++;
+    }
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Returns the cached content of the specified entry version.
+   *
+   * @param key Entry key
+   * @param md5 MD5 of the requested content
+   * @return Content input stream or null if not cached
+   */
+  public synchronized InputStream get(String key, String md5) {
+    String id = contentId(key, md5);
+    if (index.get(id) == null) {
+      misses++;
+      return null;
+    }
+
+    try {
+      InputStream in = loadContent(id);
+      if (in != null) {
+        hits++;
+        return in;
+      }
+    } catch (IOException e) {
+      logger.warn("Error loading cached content for key " + key, e);
+    }
+
+    removeId(id);
+    misses++;
+    return null;
+  }
+
+  /**
+   * Caches the specified entry content. Previous versions of the same entry are discarded.
+   *
+   * @param key Entry key
+   * @param md5 MD5 of the content
+   * @param data Content
+   */
+  public synchronized void put(String key, String md5, byte[] data) {
+    if (data.length > maxEntrySize) return;
+
+    invalidate(key);
+    String id = contentId(key, md5);
+    try {
+      storeContent(id, data);
+    } catch (IOException e) {
+      logger.warn("Error caching content for key " + key, e);
+      return;
+    }
+
+    index.put(id, (long) data.length);
+    List<String> ids = keyIds.get(key);
+    if (ids == null) {
+      ids = new ArrayList<String>(1);
+      keyIds.put(key, ids);
+    }
+    ids.add(id);
+    size += data.length;
+    evict();
+  }
+
+  /**
+   * Discards all the cached contents of the specified entry.
+   *
+   * @param key Entry key
+   */
+  public synchronized void invalidate(String key) {
+    List<String> ids = keyIds.get(key);
+    if (ids == null) return;
+
+    for (String id: new ArrayList<String>(ids)) removeId(id);
+  }
+
+  /**
+   * Returns the maximum size of a cacheable content.
+   *
+   * @return Max entry size in bytes
+   */
+  public long getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  /**
+   * Returns the maximum number of bytes kept by the cache.
+   *
+   * @return Max size in bytes
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the number of bytes currently cached.
+   *
+   * @return Cache size in bytes
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the number of requests served by the cache.
+   *
+   * @return Number of hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of requests not served by the cache.
+   *
+   * @return Number of misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of contents evicted to respect the size bound.
+   *
+   * @return Number of evictions
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+}
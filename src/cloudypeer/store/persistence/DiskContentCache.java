@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * ContentCache keeping the cached contents as files in a local directory. <br>
+ * The cache index is not persisted: files left in the directory by a previous instance are
+ * deleted on creation.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class DiskContentCache extends ContentCache {
+
+  private static final String FILE_PREFIX = "content-";
+
+  private File directory;
+  private HashMap<String, File> files = new HashMap<String, File>();
+  private long nextFile = 0;
+
+  /**
+   * Creates a new <code>DiskContentCache</code> instance. Contents bigger than one eighth of the
+   * cache size are not cached.
+   *
+   * @param directory Directory in which store the cached contents
+   * @param maxSize Maximum number of bytes kept by the cache
+   * @exception IOException if the directory can't be created
+   */
+  public DiskContentCache(File directory, long maxSize) throws IOException {
+    this(directory, maxSize, Math.max(maxSize / 8, 1));
+  }
+
+  /**
+   * Creates a new <code>DiskContentCache</code> instance.
+   *
+   * @param directory Directory in which store the cached contents
+   * @param maxSize Maximum number of bytes kept by the cache
+   * @param maxEntrySize Maximum size of a single cached content
+   * @exception IOException if the directory can't be created
+   */
+  public DiskContentCache(File directory, long maxSize, long maxEntrySize) throws IOException {
+    super(maxSize, maxEntrySize);
+
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create cache directory " + directory);
+    this.directory = directory;
+
+    File stale[] = directory.listFiles();
+    if (stale != null) {
+      for (File f: stale) {
+        if (f.getName().startsWith(FILE_PREFIX)) f.delete();
+      }
+    }
+  }
+
+  /* *********************************************************************
+   * Implementation of ContentCache abstract methods
+   ***********************************************************************/
+
+  protected void storeContent(String id, byte[] data) throws IOException {
+    File f = new File(directory, FILE_PREFIX + (nextFile++));
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(data);
+    } catch (IOException e) {
+      try { out.close(); } catch (IOException ex) {}
+      f.delete();
+      throw e;
+    }
+    out.close();
+    files.put(id, f);
+  }
+
+  protected InputStream loadContent(String id) throws IOException {
+    File f = files.get(id);
+    if (f == null) return null;
+
+    try {
+      return new BufferedInputStream(new FileInputStream(f));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  protected void deleteContent(String id) {
+    File f = files.remove(id);
+    if (f != null) f.delete();
+  }
+}
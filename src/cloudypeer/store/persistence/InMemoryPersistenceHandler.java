@@ -5,34 +5,103 @@
  */
 package cloudypeer.store.persistence;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import cloudypeer.store.StoreEntry;
 import cloudypeer.store.StoreEntryMetadata;
 import cloudypeer.store.StoreException;
+import cloudypeer.store.compression.CompressedStoreEntry;
+import cloudypeer.store.compression.CompressionCodec;
+import cloudypeer.store.compression.CompressionPolicy;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
 import cloudypeer.store.simple.SimpleStoreEntry;
-import cloudypeer.store.simple.SimpleStoreEntryMetadata;
 import cloudypeer.store.simple.StoreEntryPersistenceHandler;
+import cloudypeer.utils.ByteBufferInputStream;
 import cloudypeer.utils.MD5InputStream;
+import cloudypeer.utils.RangeInputStream;
+import cloudypeer.utils.StripedLock;
 import java.util.Map;
+import org.apache.log4j.Logger;
 
 /**
  * Simple store persistence handler that keeps entry in memory and cleans them when their last
- * modification date overcomes a specified threshold.
+ * modification date overcomes a specified threshold. <br>
+ * <br>
+ * The handler content can be periodically saved to a snapshot file (see {@link
+ * #enableSnapshots}) and restored at startup (see {@link #restore}), so that a restarted peer
+ * only needs to synchronize the changes occurred after the snapshot. Restored entry data is
+ * memory mapped and read from the file on demand.
  *
  * @author Andrea Zito <zito.andrea@gmail.com>
  * @version 1.0
  */
 public class InMemoryPersistenceHandler implements StoreEntryPersistenceHandler {
 
+  static Logger logger = Logger.getLogger(InMemoryPersistenceHandler.class);
+
   public static int DEFAULT_CLEAN_THRESHOLD = 60 * 60 * 24;
 
+  private static final int SNAPSHOT_MAGIC = 0x43505331;
+  private static final int SNAPSHOT_FOOTER_SIZE = 24;
+
+  /* *********************************************************************
+   * Utility classes
+   ***********************************************************************/
+
+  /**
+   * Location of an entry data inside the mapped snapshot
+   */
+  private static class SnapshotSlice {
+    final ByteBuffer snapshot;
+    final int offset;
+    final int length;
+
+    SnapshotSlice(ByteBuffer snapshot, int offset, int length) {
+      this.snapshot = snapshot;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    InputStream getInputStream() {
+      return new ByteBufferInputStream(snapshot, offset, length);
+    }
+  }
+
+  /**
+   * Compressed entry content
+   */
+  private static class CompressedData {
+    final CompressionCodec codec;
+    final byte frame[];
+
+    CompressedData(CompressionCodec codec, byte frame[]) {
+      this.codec = codec;
+      this.frame = frame;
+    }
+  }
+
   /* *********************************************************************
    * Instance variables
    ***********************************************************************/
@@ -40,19 +109,50 @@ public class InMemoryPersistenceHandler implements StoreEntryPersistenceHandler
   /**
    * Store of entry's data
    */
-  private HashMap<String, byte[]> storeData = new HashMap<String, byte[]>();
+  private ConcurrentHashMap<String, byte[]> storeData = new ConcurrentHashMap<String, byte[]>();
+
+
+  /**
+   * Store of the compressed entry's data. An entry's data is kept either here or in storeData.
+   */
+  private ConcurrentHashMap<String, CompressedData> compressedData =
+    new ConcurrentHashMap<String, CompressedData>();
+
+  /**
+   * Policy selecting the entries to compress, or null to disable compression
+   */
+  private volatile CompressionPolicy compressionPolicy = null;
+
+  /**
+   * Store of entry's metadata. Concurrent so that keys can be iterated lazily while the store is
+   * being updated.
+   */
+  private ConcurrentHashMap<String, StoreEntryMetadata> storeMetadata =
+    new ConcurrentHashMap<String, StoreEntryMetadata>();
 
+  /**
+   * Data of the restored entries not yet overwritten, read from the mapped snapshot
+   */
+  private ConcurrentHashMap<String, SnapshotSlice> snapshotData =
+    new ConcurrentHashMap<String, SnapshotSlice>();
 
   /**
-   * Store of entry's metadata
+   * Per key locks serializing the writes of the same entry
    */
-  private HashMap<String, StoreEntryMetadata> storeMetadata = new HashMap<String, StoreEntryMetadata>();
+  private StripedLock locks = new StripedLock();
 
   /**
    * Entry clean threshold
    */
   private int cleanThreshold = DEFAULT_CLEAN_THRESHOLD * 1000;
 
+  /**
+   * Date of the last snapshot taken or restored
+   */
+  private volatile Date snapshotTimestamp = null;
+
+  private ScheduledExecutorService snapshotter = null;
+
   /* *********************************************************************
    * Getters/Setters
    ***********************************************************************/
@@ -75,6 +175,28 @@ public class InMemoryPersistenceHandler implements StoreEntryPersistenceHandler
     this.cleanThreshold = threshold;
   }
 
+  /**
+   * Returns the policy used to compress the written entries.
+   *
+   * @return Compression policy or null if compression is disabled
+   */
+  public CompressionPolicy getCompressionPolicy() {
+    return compressionPolicy;
+  }
+
+  /**
+   * Sets the policy used to compress the written entries. Entries already stored are not
+   * affected. Metadata (MD5 and content length included) always describe the uncompressed
+   * content. <br>
+   * Entries received already compressed ({@link CompressedStoreEntry}) are stored as they are,
+   * even if compression is disabled.
+   *
+   * @param compressionPolicy Compression policy or null to disable compression
+   */
+  public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+    this.compressionPolicy = compressionPolicy;
+  }
+
   /* *********************************************************************
    * Utils methods
    ***********************************************************************/
@@ -109,11 +231,357 @@ public class InMemoryPersistenceHandler implements StoreEntryPersistenceHandler
     }
   }
 
+  /**
+   * Returns the data input stream of the specified entry.
+   *
+   * @param key Entry key
+   * @return Data input stream or null if the entry is not present
+   */
+  private InputStream dataInputStream(String key) {
+    byte data[] = storeData.get(key);
+    if (data != null) return new ByteArrayInputStream(data);
+
+    CompressedData compressed = compressedData.get(key);
+    if (compressed != null) {
+      try {
+        return compressed.codec.decompress(new ByteArrayInputStream(compressed.frame));
+      } catch (IOException e) {
+        throw new StoreException("Error decompressing entry " + key, e);
+      }
+    }
+
+    SnapshotSlice slice = snapshotData.get(key);
+    return (slice != null) ? slice.getInputStream() : null;
+  }
+
+  private void removeEntry(String key) {
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      storeMetadata.remove(key);
+      storeData.remove(key);
+      compressedData.remove(key);
+      snapshotData.remove(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores the entry data, either as is or compressed. The new data is put before removing the
+   * old one, so that concurrent readers always find the entry.
+   */
+  private void putEntry(String key, byte data[], CompressedData compressed,
+                        StoreEntryMetadata meta)
+  {
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      if (compressed != null) {
+        compressedData.put(key, compressed);
+        storeData.remove(key);
+      } else {
+        storeData.put(key, data);
+        compressedData.remove(key);
+      }
+      snapshotData.remove(key);
+      storeMetadata.put(key, meta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores the entry data, compressing it if required by the compression policy.
+   */
+  private void storeEntry(String key, byte data[], StoreEntryMetadata meta) throws IOException {
+    CompressionPolicy policy = compressionPolicy;
+    CompressionCodec codec = null;
+    if (policy != null) codec = policy.getCodec(meta.getContentType(), data.length);
+
+    if (codec != null) {
+      byte frame[] = codec.compress(data);
+      if (policy.accept(data.length, frame.length)) {
+        putEntry(key, null, new CompressedData(codec, frame), meta);
+        return;
+      }
+    }
+
+    putEntry(key, data, null, meta);
+  }
+
+  /**
+   * Stores the entry. Compressed entries are stored without decompressing them.
+   */
+  private void storeEntry(StoreEntry entry) throws IOException {
+    StoreEntryMetadata meta = CompactStoreEntryMetadata.valueOf(entry.getMetadata());
+
+    if (entry instanceof CompressedStoreEntry) {
+      CompressedStoreEntry compressed = (CompressedStoreEntry) entry;
+      CompressionCodec codec = compressed.getCodec();
+      if (codec != null) {
+        putEntry(entry.getKey(), null, new CompressedData(codec, compressed.getCompressedData()),
+                 meta);
+        return;
+      }
+    }
+
+    storeEntry(entry.getKey(), readData(entry.getInputStream()), meta);
+  }
+
+  /* *********************************************************************
+   * Snapshot methods
+   ***********************************************************************/
+
+  private static void writeSnapshotMetadata(DataOutputStream out, String key,
+                                            StoreEntryMetadata meta) throws IOException
+  {
+    out.writeUTF(key);
+    out.writeLong(meta.getModifiedTimestamp().getTime());
+    out.writeLong(meta.getContentLength());
+    out.writeUTF(meta.getContentMD5());
+    out.writeUTF((meta.getContentType() != null) ? meta.getContentType() : "");
+
+    Map<String, String> userMeta = meta.getUserMetadata();
+    out.writeInt((userMeta != null) ? userMeta.size() : 0);
+    if (userMeta != null) {
+      for (Map.Entry<String, String> e: userMeta.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeUTF(e.getValue());
+      }
+    }
+  }
+
+  private static StoreEntryMetadata readSnapshotMetadata(DataInputStream in) throws IOException {
+    long timestamp = in.readLong();
+    long length = in.readLong();
+    String md5 = in.readUTF();
+    String contentType = in.readUTF();
+
+    int userMetaSize = in.readInt();
+    HashMap<String, String> userMeta = null;
+    if (userMetaSize > 0) {
+      userMeta = new HashMap<String, String>(userMetaSize * 2);
+      for (int i = 0; i < userMetaSize; i++) {
+        String k = in.readUTF();
+        userMeta.put(k, in.readUTF());
+      }
+    }
+
+    return new CompactStoreEntryMetadata(new Date(timestamp), length, md5, contentType, userMeta);
+  }
+
+  /**
+   * Saves all the entries in the specified snapshot file. The handler is not locked as a whole:
+   * each entry is read under its own lock, so its metadata always match its data, and entries
+   * written while the snapshot is being taken may or may not be included. The file is replaced
+   * atomically only once the snapshot is complete. <br>
+   * File layout: magic, entries data, entries index (metadata and data location), footer
+   * (index offset, entries count, snapshot date, magic).
+   *
+   * @param file Snapshot file
+   * @exception IOException if an error occurs
+   */
+  public synchronized void snapshot(File file) throws IOException {
+    long start = System.currentTimeMillis();
+    Date timestamp = new Date();
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+
+    ArrayList<String> keys = new ArrayList<String>();
+    ArrayList<StoreEntryMetadata> metas = new ArrayList<StoreEntryMetadata>();
+    ArrayList<long[]> locations = new ArrayList<long[]>();
+    byte buff[] = new byte[8192];
+
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      long offset = 4;
+
+      for (String key: storeMetadata.keySet()) {
+        StoreEntryMetadata meta;
+        InputStream data;
+
+        /* Metadata and data are updated under the entry lock. The stream reads the data stored
+         * when it was opened, so it's copied after releasing the lock */
+        Lock lock = locks.getLock(key);
+        lock.lock();
+        try {
+          meta = storeMetadata.get(key);
+          data = dataInputStream(key);
+        } finally {
+          lock.unlock();
+        }
+        if (meta == null || data == null) continue;
+
+        long length = 0;
+        int read;
+        while ((read = data.read(buff)) > 0) {
+          out.write(buff, 0, read);
+          length += read;
+        }
+        if (offset + length > Integer.MAX_VALUE)
+          throw new IOException("Snapshot exceeds the maximum supported size (2GB)");
+
+        keys.add(key);
+        metas.add(meta);
+        locations.add(new long[] {offset, length});
+        offset += length;
+      }
+
+      long indexOffset = offset;
+      for (int i = 0; i < keys.size(); i++) {
+        writeSnapshotMetadata(out, keys.get(i), metas.get(i));
+        out.writeInt((int) locations.get(i)[0]);
+        out.writeInt((int) locations.get(i)[1]);
+      }
+
+      out.writeLong(indexOffset);
+      out.writeInt(keys.size());
+      out.writeLong(timestamp.getTime());
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      try { out.close(); } catch (IOException e) {}
+    }
+
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to replace snapshot " + file);
+    }
+
+    snapshotTimestamp = timestamp;
+    logger.info(String.format("Snapshot of %d entries saved to %s in %d ms", keys.size(), file,
+                              System.currentTimeMillis() - start));
+  }
+
+  /**
+   * Loads the entries saved in the specified snapshot file. The file is memory mapped: metadata
+   * are loaded immediately, data is read from the file only when the entry is accessed. Entries
+   * already present in the handler are not overwritten.
+   *
+   * @param file Snapshot file
+   * @return Date of the snapshot, or null if the file does not exist
+   * @exception IOException if the file can't be read or is corrupted
+   */
+  public Date restore(File file) throws IOException {
+    if (!file.exists()) return null;
+
+    long start = System.currentTimeMillis();
+    FileInputStream fileIn = new FileInputStream(file);
+    ByteBuffer snapshot;
+    try {
+      FileChannel channel = fileIn.getChannel();
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("Snapshot exceeds the maximum supported size (2GB)");
+      snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      /* The mapping stays valid after the channel is closed */
+      try { fileIn.close(); } catch (IOException e) {}
+    }
+
+    int size = snapshot.capacity();
+    if (size < 4 + SNAPSHOT_FOOTER_SIZE || snapshot.getInt(0) != SNAPSHOT_MAGIC ||
+        snapshot.getInt(size - 4) != SNAPSHOT_MAGIC)
+      throw new IOException("Invalid or truncated snapshot " + file);
+
+    int footer = size - SNAPSHOT_FOOTER_SIZE;
+    long indexOffset = snapshot.getLong(footer);
+    int count = snapshot.getInt(footer + 8);
+    Date timestamp = new Date(snapshot.getLong(footer + 12));
+    if (indexOffset < 4 || indexOffset > footer)
+      throw new IOException("Invalid snapshot index offset in " + file);
+
+    DataInputStream in = new DataInputStream(new ByteBufferInputStream(snapshot, (int) indexOffset,
+                                                                       footer - (int) indexOffset));
+    int restored = 0;
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      StoreEntryMetadata meta = readSnapshotMetadata(in);
+      int offset = in.readInt();
+      int length = in.readInt();
+      if (offset < 4 || (long) offset + length > indexOffset)
+        throw new IOException("Invalid data location for key " + key + " in " + file);
+
+      if (storeMetadata.containsKey(key)) continue;
+      snapshotData.put(key, new SnapshotSlice(snapshot, offset, length));
+      storeMetadata.put(key, meta);
+      restored++;
+    }
+
+    snapshotTimestamp = timestamp;
+    logger.info(String.format("Restored %d entries from snapshot %s (taken %s) in %d ms", restored,
+                              file, timestamp, System.currentTimeMillis() - start));
+    return timestamp;
+  }
+
+  /**
+   * Restores the specified snapshot file, if present, and saves a new snapshot there every
+   * interval seconds in a background thread.
+   *
+   * @param file Snapshot file
+   * @param interval Seconds between two snapshots
+   * @return Date of the restored snapshot or null if none was restored
+   */
+  public synchronized Date enableSnapshots(final File file, int interval) {
+    if (snapshotter != null) throw new IllegalStateException("Snapshots already enabled");
+    if (interval <= 0) throw new IllegalArgumentException("Invalid snapshot interval");
+
+    Date restored = null;
+    try {
+      restored = restore(file);
+    } catch (IOException e) {
+      logger.warn("Unable to restore snapshot " + file + ": starting empty", e);
+    }
+
+    snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "InMemoryPersistenceHandler-snapshot");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    snapshotter.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            snapshot(file);
+          } catch (IOException e) {
+            logger.warn("Error saving snapshot " + file, e);
+          } catch (RuntimeException e) {
+            logger.warn("Error saving snapshot " + file, e);
+          }
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+
+    return restored;
+  }
+
+  /**
+   * Stops the periodic snapshots.
+   */
+  public synchronized void disableSnapshots() {
+    if (snapshotter == null) return;
+    snapshotter.shutdown();
+    snapshotter = null;
+  }
+
+  /**
+   * Returns the date of the last snapshot taken or restored. Entries modified after this date are
+   * the ones a restarted peer needs to synchronize.
+   *
+   * @return Snapshot date or null
+   */
+  public Date getSnapshotTimestamp() {
+    return snapshotTimestamp;
+  }
+
   /* *********************************************************************
    * Implementation of StoreEntryPersistenceHandler interface
    ***********************************************************************/
   public boolean contains(String key) throws RuntimeException {
-    return storeData.containsKey(key);
+    return storeData.containsKey(key) || compressedData.containsKey(key) ||
+      snapshotData.containsKey(key);
   }
 
   public void write(String key, InputStream in, String contentType,
@@ -129,42 +597,120 @@ public class InMemoryPersistenceHandler implements StoreEntryPersistenceHandler
       throw new RuntimeException("Input/Output error reading entry data", e);
     }
 
-    meta = new SimpleStoreEntryMetadata(new Date(), md5In.getLength(), md5In.getMD5(),
-                                        contentType, userMetadata);
+    meta = new CompactStoreEntryMetadata(new Date(), md5In.getLength(), md5In.getMD5(),
+                                         contentType, userMetadata);
 
-    storeData.put(key, data);
-    storeMetadata.put(key, meta);
+    try {
+      storeEntry(key, data, meta);
+    } catch (IOException e) {
+      throw new RuntimeException("Input/Output error compressing entry data", e);
+    }
   }
 
 
   public void write(StoreEntry entry) throws RuntimeException {
     try {
-      storeData.put(entry.getKey(), readData(entry.getInputStream()));
-      storeMetadata.put(entry.getKey(), entry.getMetadata());
+      storeEntry(entry);
     } catch (IOException e) {
       throw new StoreException("Error reading entry data", e);
     }
   }
 
+  public void write(StoreEntry entries[]) throws RuntimeException {
+    for (StoreEntry entry: entries) write(entry);
+  }
+
+  public boolean[] compareAndWrite(StoreEntry entries[], StoreEntryMetadata expected[])
+    throws RuntimeException
+  {
+    boolean written[] = new boolean[entries.length];
+
+    for (int i = 0; i < entries.length; i++) {
+      String key = entries[i].getKey();
+      Lock lock = locks.getLock(key);
+      lock.lock();
+      try {
+        if (!CompactStoreEntryMetadata.sameVersion(storeMetadata.get(key), expected[i])) continue;
+
+        storeEntry(entries[i]);
+        written[i] = true;
+      } catch (IOException e) {
+        throw new StoreException("Error reading entry data", e);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    return written;
+  }
+
   public StoreEntry read(String key) throws RuntimeException {
-    byte data[] = storeData.get(key);
+    CompressedData compressed = compressedData.get(key);
+    if (compressed != null) {
+      /* Keep the frame compressed: it's decompressed only if the content is actually read */
+      StoreEntryMetadata metadata = readMetadata(key);
+      if (metadata != null)
+        return new CompressedStoreEntry(key, metadata, compressed.codec, compressed.frame);
+    }
+
+    InputStream data = dataInputStream(key);
+    if (data == null) return null;
+
+    StoreEntryMetadata metadata = readMetadata(key);
+    return new SimpleStoreEntry(key, data, metadata);
+  }
+
+  /*
+   * Compressed entries are decompressed up to the end of the range.
+   */
+  public StoreEntry read(String key, long offset, long length) throws RuntimeException {
+    InputStream data = dataInputStream(key);
     if (data == null) return null;
 
     StoreEntryMetadata metadata = readMetadata(key);
-    return new SimpleStoreEntry(key, new ByteArrayInputStream(data), metadata);
+    return new SimpleStoreEntry(key, new RangeInputStream(data, offset, length), metadata);
   }
 
   public final void writeMetadata(String key, StoreEntryMetadata meta) throws RuntimeException {
-    if (!storeMetadata.containsKey(key))
-      throw new RuntimeException("Cannot write metadata for unknown entry: " + key);
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      if (!storeMetadata.containsKey(key))
+        throw new RuntimeException("Cannot write metadata for unknown entry: " + key);
 
-    storeMetadata.put(key, meta);
+      storeMetadata.put(key, CompactStoreEntryMetadata.valueOf(meta));
+    } finally {
+      lock.unlock();
+    }
   }
 
   public StoreEntryMetadata readMetadata(String key) throws RuntimeException {
     return storeMetadata.get(key);
   }
 
+  public StoreEntry[] read(String keys[]) throws RuntimeException {
+    ArrayList<StoreEntry> entries = new ArrayList<StoreEntry>(keys.length);
+    StoreEntry entry;
+    for (String key: keys) {
+      entry = read(key);
+      if (entry != null) entries.add(entry);
+    }
+
+    return entries.toArray(new StoreEntry[entries.size()]);
+  }
+
+  public Map<String, StoreEntryMetadata> readMetadata(String keys[]) throws RuntimeException {
+    HashMap<String, StoreEntryMetadata> metadata =
+      new HashMap<String, StoreEntryMetadata>(keys.length * 2);
+    StoreEntryMetadata meta;
+    for (String key: keys) {
+      meta = storeMetadata.get(key);
+      if (meta != null) metadata.put(key, meta);
+    }
+
+    return metadata;
+  }
+
   public String[] listEntries(Date timestamp) throws RuntimeException {
     ArrayList<String> list = new ArrayList<String>();
     ArrayList<String> toClean = new ArrayList<String>();
@@ -179,14 +725,48 @@ public class InMemoryPersistenceHandler implements StoreEntryPersistenceHandler
         continue;
       }
 
-      if (meta.getModifiedTimestamp().getTime() > timestamp.getTime()) list.add(key);
+      if (timestamp == null || meta.getModifiedTimestamp().getTime() > timestamp.getTime())
+        list.add(key);
     }
 
-    for (String key: toClean) {
-      storeMetadata.remove(key);
-      storeData.remove(key);
-    }
+    for (String key: toClean) removeEntry(key);
 
     return list.toArray(new String[list.size()]);
   }
+
+  public Iterator<String> listEntries(final String prefix, final Date since, final Date until,
+                                      int pageSize) throws RuntimeException
+  {
+    final Iterator<Map.Entry<String, StoreEntryMetadata>> entries =
+      storeMetadata.entrySet().iterator();
+
+    /* Entries are filtered while iterating: the page size is irrelevant for in memory data */
+    return new Iterator<String>() {
+      private String next = null;
+
+      public boolean hasNext() {
+        while (next == null && entries.hasNext()) {
+          Map.Entry<String, StoreEntryMetadata> e = entries.next();
+          long timestamp = e.getValue().getModifiedTimestamp().getTime();
+
+          if (prefix != null && !e.getKey().startsWith(prefix)) continue;
+          if (since != null && timestamp <= since.getTime()) continue;
+          if (until != null && timestamp > until.getTime()) continue;
+          next = e.getKey();
+        }
+        return next != null;
+      }
+
+      public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String key = next;
+        next = null;
+        return key;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
 }
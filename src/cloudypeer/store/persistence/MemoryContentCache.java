@@ -0,0 +1,58 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * ContentCache keeping the cached contents on the heap.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MemoryContentCache extends ContentCache {
+
+  private HashMap<String, byte[]> contents = new HashMap<String, byte[]>();
+
+  /**
+   * Creates a new <code>MemoryContentCache</code> instance. Contents bigger than one eighth of
+   * the cache size are not cached.
+   *
+   * @param maxSize Maximum number of bytes kept by the cache
+   */
+  public MemoryContentCache(long maxSize) {
+    this(maxSize, Math.max(maxSize / 8, 1));
+  }
+
+  /**
+   * Creates a new <code>MemoryContentCache</code> instance.
+   *
+   * @param maxSize Maximum number of bytes kept by the cache
+   * @param maxEntrySize Maximum size of a single cached content
+   */
+  public MemoryContentCache(long maxSize, long maxEntrySize) {
+    super(maxSize, maxEntrySize);
+  }
+
+  /* *********************************************************************
+   * Implementation of ContentCache abstract methods
+   ***********************************************************************/
+
+  protected void storeContent(String id, byte[] data) {
+    contents.put(id, data);
+  }
+
+  protected InputStream loadContent(String id) {
+    byte[] data = contents.get(id);
+    return (data != null) ? new ByteArrayInputStream(data) : null;
+  }
+
+  protected void deleteContent(String id) {
+    contents.remove(id);
+  }
+}
@@ -0,0 +1,733 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.StoreQuery;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
+import cloudypeer.store.simple.SimpleStoreEntry;
+import cloudypeer.store.simple.StoreEntryPersistenceHandler;
+import cloudypeer.utils.MD5InputStream;
+import cloudypeer.utils.StripedLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistence handler buffering the writes directed to another (slow) persistence handler. <br>
+ * Writes are kept in memory, only the latest version of each key, and flushed to the underlying
+ * handler as a single batch every flush interval or as soon as the buffer exceeds its size
+ * thresholds. This way the number of writes reaching the underlying storage follows the number
+ * of distinct updated keys instead of the raw update rate. Buffered entries are visible to reads
+ * and listings of this handler. <br>
+ * <br>
+ * Buffered writes are lost if the process dies before a flush, unless a journal is used (see
+ * {@link Durability}). At startup the journal is replayed and its entries flushed.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class WriteBehindPersistenceHandler implements StoreEntryPersistenceHandler {
+
+  static Logger logger = Logger.getLogger(WriteBehindPersistenceHandler.class);
+
+  public static int DEFAULT_FLUSH_INTERVAL = 5;
+  public static int DEFAULT_MAX_PENDING_ENTRIES = 1000;
+  public static long DEFAULT_MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * Durability guarantees of the buffered writes
+   */
+  public enum Durability {
+    /**
+     * Buffered writes are kept only in memory
+     */
+    NONE,
+
+    /**
+     * Buffered writes are appended to a local journal, flushed to the operating system on each
+     * write. Survives a process crash.
+     */
+    JOURNAL,
+
+    /**
+     * Buffered writes are appended to a local journal, synced to disk on each write. Survives an
+     * operating system crash.
+     */
+    JOURNAL_SYNC
+  }
+
+  /* *********************************************************************
+   * Utility classes
+   ***********************************************************************/
+
+  /**
+   * A buffered write
+   */
+  private static class PendingWrite {
+    final String key;
+    final byte[] data;
+    final StoreEntryMetadata metadata;
+
+    PendingWrite(String key, byte[] data, StoreEntryMetadata metadata) {
+      this.key = key;
+      this.data = data;
+      this.metadata = metadata;
+    }
+
+    StoreEntry toStoreEntry() {
+      return new SimpleStoreEntry(key, new ByteArrayInputStream(data), metadata);
+    }
+  }
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private StoreEntryPersistenceHandler handler;
+  private Durability durability;
+  private File journalFile;
+  private DataOutputStream journal;
+  private FileOutputStream journalFileStream;
+
+  /**
+   * Buffered writes not yet flushed
+   */
+  private LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+  private long pendingBytes = 0;
+
+  /**
+   * Writes being flushed
+   */
+  private HashMap<String, PendingWrite> flushing = new HashMap<String, PendingWrite>();
+
+  /**
+   * Serializes flushes
+   */
+  private final Object flushLock = new Object();
+
+  /**
+   * Per key locks serializing the writes of the same entry
+   */
+  private StripedLock locks = new StripedLock();
+
+  private ScheduledExecutorService flusher;
+  private AtomicBoolean flushRequested = new AtomicBoolean(false);
+  private volatile boolean closed = false;
+
+  private int maxPendingEntries = DEFAULT_MAX_PENDING_ENTRIES;
+  private long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+
+  private AtomicLong writes = new AtomicLong();
+  private AtomicLong coalescedWrites = new AtomicLong();
+  private AtomicLong flushedWrites = new AtomicLong();
+  private AtomicLong flushes = new AtomicLong();
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>WriteBehindPersistenceHandler</code> keeping buffered writes only in
+   * memory and flushing them every {@value #DEFAULT_FLUSH_INTERVAL} seconds.
+   *
+   * @param handler Handler receiving the flushed writes
+   */
+  public WriteBehindPersistenceHandler(StoreEntryPersistenceHandler handler) {
+    this(handler, DEFAULT_FLUSH_INTERVAL, Durability.NONE, null);
+  }
+
+  /**
+   * Creates a new <code>WriteBehindPersistenceHandler</code> instance. If the journal already
+   * exists its entries are replayed in the buffer.
+   *
+   * @param handler Handler receiving the flushed writes
+   * @param flushInterval Seconds between two flushes
+   * @param durability Durability guarantees of the buffered writes
+   * @param journalFile Journal file (ignored if durability is NONE)
+   * @exception RuntimeException if the journal can't be read or created
+   */
+  public WriteBehindPersistenceHandler(StoreEntryPersistenceHandler handler, int flushInterval,
+                                       Durability durability, File journalFile)
+  {
+    if (handler == null) throw new IllegalArgumentException("Null persistence handler");
+    if (flushInterval <= 0) throw new IllegalArgumentException("Invalid flush interval");
+    if (durability == null) durability = Durability.NONE;
+    if (durability != Durability.NONE && journalFile == null)
+      throw new IllegalArgumentException("Journal file not specified");
+
+    this.handler = handler;
+    this.durability = durability;
+
+    if (durability != Durability.NONE) {
+      this.journalFile = journalFile;
+      try {
+        replayJournal();
+        rewriteJournal();
+      } catch (IOException e) {
+        throw new RuntimeException("Error opening write-behind journal " + journalFile, e);
+      }
+    }
+
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "WriteBehindPersistenceHandler-flush");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          flushQuietly();
+        }
+      }, flushInterval, flushInterval, TimeUnit.SECONDS);
+
+    logger.trace(String.format("Write-behind every %d seconds, durability %s", flushInterval,
+                               durability));
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Sets the number of buffered entries triggering an early flush.
+   *
+   * @param maxPendingEntries Entries threshold
+   */
+  public void setMaxPendingEntries(int maxPendingEntries) {
+    this.maxPendingEntries = maxPendingEntries;
+  }
+
+  /**
+   * Sets the amount of buffered data triggering an early flush.
+   *
+   * @param maxPendingBytes Bytes threshold
+   */
+  public void setMaxPendingBytes(long maxPendingBytes) {
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Returns the number of writes received.
+   *
+   * @return Received writes
+   */
+  public long getWrites() {
+    return writes.get();
+  }
+
+  /**
+   * Returns the number of buffered writes superseded by a later write of the same key before
+   * being flushed.
+   *
+   * @return Coalesced writes
+   */
+  public long getCoalescedWrites() {
+    return coalescedWrites.get();
+  }
+
+  /**
+   * Returns the number of writes flushed to the underlying handler.
+   *
+   * @return Flushed writes
+   */
+  public long getFlushedWrites() {
+    return flushedWrites.get();
+  }
+
+  /**
+   * Returns the number of flushes performed.
+   *
+   * @return Number of flushes
+   */
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  /**
+   * Returns the number of writes currently buffered.
+   *
+   * @return Buffered writes
+   */
+  public synchronized int getPendingWrites() {
+    return pending.size();
+  }
+
+  /* *********************************************************************
+   * Journal methods
+   ***********************************************************************/
+
+  private static void writeRecord(DataOutputStream out, PendingWrite w) throws IOException {
+    StoreEntryMetadata meta = w.metadata;
+    out.writeUTF(w.key);
+    out.writeLong(meta.getModifiedTimestamp().getTime());
+    out.writeUTF(meta.getContentMD5());
+    out.writeUTF((meta.getContentType() != null) ? meta.getContentType() : "");
+
+    Map<String, String> userMeta = meta.getUserMetadata();
+    out.writeInt((userMeta != null) ? userMeta.size() : 0);
+    if (userMeta != null) {
+      for (Map.Entry<String, String> e: userMeta.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeUTF(e.getValue());
+      }
+    }
+
+    out.writeInt(w.data.length);
+    out.write(w.data);
+  }
+
+  private static PendingWrite readRecord(DataInputStream in) throws IOException {
+    String key = in.readUTF();
+    long timestamp = in.readLong();
+    String md5 = in.readUTF();
+    String contentType = in.readUTF();
+
+    int userMetaSize = in.readInt();
+    HashMap<String, String> userMeta = new HashMap<String, String>(userMetaSize * 2);
+    for (int i = 0; i < userMetaSize; i++) {
+      String k = in.readUTF();
+      userMeta.put(k, in.readUTF());
+    }
+
+    byte data[] = new byte[in.readInt()];
+    in.readFully(data);
+
+    return new PendingWrite(key, data, new CompactStoreEntryMetadata(new Date(timestamp),
+                                                                     data.length, md5,
+                                                                     contentType, userMeta));
+  }
+
+  /**
+   * Loads in the buffer the writes recorded in the journal. A truncated trailing record (written
+   * while crashing) is ignored.
+   */
+  private void replayJournal() throws IOException {
+    if (!journalFile.exists()) return;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+    int replayed = 0;
+    try {
+      while (true) {
+        PendingWrite w = readRecord(in);
+        buffer(w);
+        replayed++;
+      }
+    } catch (EOFException e) {
+      /* End of journal */
+    } finally {
+      try { in.close(); } catch (IOException e) {}
+    }
+
+    if (replayed > 0) {
+      logger.info(String.format("Replayed %d writes (%d keys) from journal %s", replayed,
+                                pending.size(), journalFile));
+    }
+  }
+
+  /**
+   * Replaces the journal with one holding only the currently buffered writes.
+   */
+  private synchronized void rewriteJournal() throws IOException {
+    if (journal != null) {
+      try { journal.close(); } catch (IOException e) {}
+    }
+
+    File tmp = new File(journalFile.getPath() + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    for (PendingWrite w: pending.values()) writeRecord(out, w);
+    out.flush();
+    fileOut.getFD().sync();
+    out.close();
+
+    if (!tmp.renameTo(journalFile))
+      throw new IOException("Unable to replace journal " + journalFile);
+
+    journalFileStream = new FileOutputStream(journalFile, true);
+    journal = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+  }
+
+  private void appendToJournal(PendingWrite w) {
+    try {
+      writeRecord(journal, w);
+      journal.flush();
+      if (durability == Durability.JOURNAL_SYNC) journalFileStream.getFD().sync();
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing write-behind journal for key " + w.key, e);
+    }
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  /**
+   * Adds the write to the buffer, replacing any previous write of the same key.
+   */
+  private synchronized void buffer(PendingWrite w) {
+    PendingWrite old = pending.remove(w.key);
+    if (old != null) {
+      pendingBytes -= old.data.length;
+      coalescedWrites.incrementAndGet();
+    }
+    pending.put(w.key, w);
+    pendingBytes += w.data.length;
+  }
+
+  private void enqueue(PendingWrite w) {
+    boolean full;
+    Lock lock = locks.getLock(w.key);
+    lock.lock();
+    try {
+      writes.incrementAndGet();
+      synchronized (this) {
+        if (closed) throw new IllegalStateException("Write-behind handler closed");
+        if (journal != null) appendToJournal(w);
+        buffer(w);
+        full = pending.size() >= maxPendingEntries || pendingBytes >= maxPendingBytes;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (full && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(new Runnable() {
+          public void run() {
+            flushRequested.set(false);
+            flushQuietly();
+          }
+        });
+    }
+  }
+
+  /**
+   * Returns the buffered (or being flushed) write of the key.
+   */
+  private synchronized PendingWrite buffered(String key) {
+    PendingWrite w = pending.get(key);
+    return (w != null) ? w : flushing.get(key);
+  }
+
+  private static byte[] readData(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buff[] = new byte[4096];
+      int len;
+      while ((len = in.read(buff, 0, buff.length)) >= 0) out.write(buff, 0, len);
+    } finally {
+      try { in.close(); } catch (IOException e) {}
+    }
+    return out.toByteArray();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      logger.warn("Error flushing buffered writes, will retry", e);
+    }
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Writes all the buffered entries to the underlying handler as a single batch. If the batch
+   * fails the entries not superseded in the meantime are buffered again.
+   *
+   * @exception RuntimeException if the underlying handler fails
+   */
+  public void flush() throws RuntimeException {
+    synchronized (flushLock) {
+      PendingWrite batch[];
+      synchronized (this) {
+        if (pending.isEmpty()) return;
+
+        batch = pending.values().toArray(new PendingWrite[pending.size()]);
+        flushing.putAll(pending);
+        pending = new LinkedHashMap<String, PendingWrite>();
+        pendingBytes = 0;
+      }
+
+      StoreEntry entries[] = new StoreEntry[batch.length];
+      for (int i = 0; i < batch.length; i++) entries[i] = batch[i].toStoreEntry();
+
+      boolean success = false;
+      try {
+        handler.write(entries);
+        success = true;
+        flushes.incrementAndGet();
+        flushedWrites.addAndGet(batch.length);
+        logger.trace("Flushed " + batch.length + " buffered writes");
+      } finally {
+        synchronized (this) {
+          if (!success) {
+            LinkedHashMap<String, PendingWrite> retry = new LinkedHashMap<String, PendingWrite>();
+            for (PendingWrite w: batch) {
+              if (!pending.containsKey(w.key)) {
+                retry.put(w.key, w);
+                pendingBytes += w.data.length;
+              }
+            }
+            retry.putAll(pending);
+            pending = retry;
+          }
+          flushing.clear();
+
+          if (success && journal != null) {
+            try {
+              rewriteJournal();
+            } catch (IOException e) {
+              logger.warn("Error compacting write-behind journal", e);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes the buffered writes and stops the background flushes. Further writes are refused.
+   *
+   * @exception RuntimeException if the final flush fails (the journal, if any, still holds the
+   * writes)
+   */
+  public void close() throws RuntimeException {
+    flusher.shutdown();
+    try {
+      flush();
+    } finally {
+      synchronized (this) {
+        closed = true;
+        if (journal != null) {
+          try { journal.close(); } catch (IOException e) {}
+          journal = null;
+        }
+      }
+    }
+  }
+
+  /* *********************************************************************
+   * Implementation of StoreEntryPersistenceHandler interface
+   ***********************************************************************/
+  public boolean contains(String key) throws RuntimeException {
+    return buffered(key) != null || handler.contains(key);
+  }
+
+  public void write(String key, InputStream in, String contentType,
+                    Map<String,String> userMetadata) throws RuntimeException
+  {
+    MD5InputStream md5In = new MD5InputStream(in);
+    byte data[];
+    try {
+      data = readData(md5In);
+    } catch (IOException e) {
+      throw new RuntimeException("Input/Output error reading entry data", e);
+    }
+
+    enqueue(new PendingWrite(key, data,
+                             new CompactStoreEntryMetadata(new Date(), md5In.getLength(),
+                                                           md5In.getMD5(), contentType,
+                                                           userMetadata)));
+  }
+
+  public void write(StoreEntry entry) throws RuntimeException {
+    try {
+      enqueue(new PendingWrite(entry.getKey(), readData(entry.getInputStream()),
+                               CompactStoreEntryMetadata.valueOf(entry.getMetadata())));
+    } catch (IOException e) {
+      throw new RuntimeException("Input/Output error reading entry data: " + entry.getKey(), e);
+    }
+  }
+
+  public void write(StoreEntry entries[]) throws RuntimeException {
+    for (StoreEntry entry: entries) write(entry);
+  }
+
+  public boolean[] compareAndWrite(StoreEntry entries[], StoreEntryMetadata expected[])
+    throws RuntimeException
+  {
+    boolean written[] = new boolean[entries.length];
+
+    for (int i = 0; i < entries.length; i++) {
+      Lock lock = locks.getLock(entries[i].getKey());
+      lock.lock();
+      try {
+        if (!CompactStoreEntryMetadata.sameVersion(readMetadata(entries[i].getKey()), expected[i]))
+          continue;
+
+        write(entries[i]);
+        written[i] = true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    return written;
+  }
+
+  public void writeMetadata(String key, StoreEntryMetadata meta) throws RuntimeException {
+    Lock lock = locks.getLock(key);
+    lock.lock();
+    try {
+      PendingWrite w = buffered(key);
+
+      /* A buffered entry would overwrite the metadata when flushed: update the buffered one */
+      if (w != null) {
+        enqueue(new PendingWrite(key, w.data, CompactStoreEntryMetadata.valueOf(meta)));
+      } else {
+        handler.writeMetadata(key, meta);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public StoreEntry read(String key) throws RuntimeException {
+    PendingWrite w = buffered(key);
+    return (w != null) ? w.toStoreEntry() : handler.read(key);
+  }
+
+  public StoreEntry read(String key, long offset, long length) throws RuntimeException {
+    PendingWrite w = buffered(key);
+    if (w == null) return handler.read(key, offset, length);
+
+    int start = (int) Math.min(offset, w.data.length);
+    int count = (int) Math.min(length, w.data.length - start);
+    return new SimpleStoreEntry(key, new ByteArrayInputStream(w.data, start, count), w.metadata);
+  }
+
+  public StoreEntryMetadata readMetadata(String key) throws RuntimeException {
+    PendingWrite w = buffered(key);
+    return (w != null) ? w.metadata : handler.readMetadata(key);
+  }
+
+  public StoreEntry[] read(String keys[]) throws RuntimeException {
+    /* Buffered entries are served from the buffer, the others read with a single batch */
+    ArrayList<StoreEntry> entries = new ArrayList<StoreEntry>(keys.length);
+    ArrayList<String> toRead = new ArrayList<String>(keys.length);
+    PendingWrite w;
+    for (String key: keys) {
+      w = buffered(key);
+      if (w != null) entries.add(w.toStoreEntry());
+      else toRead.add(key);
+    }
+
+    if (!toRead.isEmpty()) {
+      for (StoreEntry e: handler.read(toRead.toArray(new String[toRead.size()]))) entries.add(e);
+    }
+
+    return entries.toArray(new StoreEntry[entries.size()]);
+  }
+
+  public Map<String, StoreEntryMetadata> readMetadata(String keys[]) throws RuntimeException {
+    HashMap<String, StoreEntryMetadata> metadata =
+      new HashMap<String, StoreEntryMetadata>(keys.length * 2);
+    ArrayList<String> toRead = new ArrayList<String>(keys.length);
+    PendingWrite w;
+    for (String key: keys) {
+      w = buffered(key);
+      if (w != null) metadata.put(key, w.metadata);
+      else toRead.add(key);
+    }
+
+    if (!toRead.isEmpty())
+      metadata.putAll(handler.readMetadata(toRead.toArray(new String[toRead.size()])));
+
+    return metadata;
+  }
+
+  public String[] listEntries(Date timestamp) throws RuntimeException {
+    LinkedHashSet<String> keys = new LinkedHashSet<String>();
+    for (String key: handler.listEntries(timestamp)) keys.add(key);
+
+    synchronized (this) {
+      ArrayList<PendingWrite> buffered = new ArrayList<PendingWrite>(flushing.values());
+      buffered.addAll(pending.values());
+      for (PendingWrite w: buffered) {
+        if (timestamp == null || w.metadata.getModifiedTimestamp().after(timestamp))
+          keys.add(w.key);
+      }
+    }
+
+    return keys.toArray(new String[keys.size()]);
+  }
+
+  public Iterator<String> listEntries(String prefix, Date since, Date until, int pageSize)
+    throws RuntimeException
+  {
+    StoreQuery query = new StoreQuery(prefix, since, until, pageSize);
+    final LinkedHashSet<String> bufferedKeys = new LinkedHashSet<String>();
+
+    synchronized (this) {
+      ArrayList<PendingWrite> buffered = new ArrayList<PendingWrite>(flushing.values());
+      buffered.addAll(pending.values());
+      for (PendingWrite w: buffered) {
+        if (query.matchesKey(w.key) &&
+            query.matchesTimestamp(w.metadata.getModifiedTimestamp().getTime()))
+          bufferedKeys.add(w.key);
+      }
+    }
+
+    final Iterator<String> handlerKeys = handler.listEntries(prefix, since, until, pageSize);
+
+    /* Keys of the underlying handler first (skipping the buffered ones), then the buffered keys */
+    return new Iterator<String>() {
+      private Iterator<String> buffered = bufferedKeys.iterator();
+      private String next = null;
+
+      public boolean hasNext() {
+        while (next == null && handlerKeys.hasNext()) {
+          String k = handlerKeys.next();
+          if (!bufferedKeys.contains(k)) next = k;
+        }
+        if (next == null && buffered.hasNext()) next = buffered.next();
+        return next != null;
+      }
+
+      public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String key = next;
+        next = null;
+        return key;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -0,0 +1,820 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.sharded;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cloudypeer.store.AbstractStoreCursor;
+import cloudypeer.store.Store;
+import cloudypeer.store.StoreCompareResult;
+import cloudypeer.store.StoreCursor;
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryDiff;
+import cloudypeer.store.StoreEntryDiffData;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.StoreException;
+import cloudypeer.store.StoreQuery;
+import cloudypeer.store.StoreUpdateHandler;
+import cloudypeer.store.simple.CompactMetadataMap;
+import cloudypeer.store.simple.SimpleStore;
+import cloudypeer.store.simple.StoreEntryDiffHandler;
+import cloudypeer.store.simple.StoreEntryPersistenceHandler;
+import org.apache.log4j.Logger;
+
+/**
+ * Store partitioning its keys among several inner stores (shards). <br>
+ * Every key is assigned to a shard by hashing, and each shard is guarded by its own read/write
+ * lock. Batch operations (compare, diff, patch and bulk reads/writes) are split by shard and run
+ * in parallel on an executor; the partial results are then merged, so that large reconciliations
+ * are not limited to the calling thread. <br>
+ * Update notifications of the shards are forwarded to the handlers of this store, with this
+ * store as source.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class ShardedStore implements Store {
+
+  static Logger logger = Logger.getLogger(ShardedStore.class);
+
+  /**
+   * Executor shared by the instances not providing their own
+   */
+  private static final ExecutorService defaultExecutor =
+    Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ShardedStore-worker");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private Store shards[];
+  private ReentrantReadWriteLock locks[];
+  private ExecutorService executor;
+
+  /**
+   * Update handler list for this instance
+   */
+  private List<StoreUpdateHandler> handlers = new ArrayList<StoreUpdateHandler>();
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>ShardedStore</code> instance backed by one {@link SimpleStore} for each
+   * of the specified persistence handlers.
+   *
+   * @param persistenceHandlers Persistence handlers of the shards
+   * @param diffHandler Handler responsible of the entry diffing/patching
+   */
+  public ShardedStore(StoreEntryPersistenceHandler persistenceHandlers[],
+                      StoreEntryDiffHandler diffHandler)
+  {
+    this(createShards(persistenceHandlers, diffHandler), defaultExecutor);
+  }
+
+  /**
+   * Creates a new <code>ShardedStore</code> instance using the shared executor.
+   *
+   * @param shards Inner stores
+   */
+  public ShardedStore(Store shards[]) {
+    this(shards, defaultExecutor);
+  }
+
+  /**
+   * Creates a new <code>ShardedStore</code> instance.
+   *
+   * @param shards Inner stores. The key to shard assignment depends on the order of the array,
+   * which must therefore be the same every time the store is created on the same data.
+   * @param executor Executor running the per shard tasks
+   */
+  public ShardedStore(Store shards[], ExecutorService executor) {
+    if (shards == null || shards.length == 0) throw new IllegalArgumentException("No shards");
+    if (executor == null) throw new IllegalArgumentException("Null executor");
+
+    this.shards = shards.clone();
+    this.executor = executor;
+    this.locks = new ReentrantReadWriteLock[shards.length];
+
+    StoreUpdateHandler forwarder = new StoreUpdateHandler() {
+        public void notifyUpdate(String keys[], Store source) {
+          notifyUpdates(keys);
+        }
+      };
+
+    for (int i = 0; i < shards.length; i++) {
+      if (shards[i] == null) throw new IllegalArgumentException("Null shard: " + i);
+      locks[i] = new ReentrantReadWriteLock();
+      shards[i].addUpdateHandler(forwarder);
+    }
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the number of shards.
+   *
+   * @return Number of shards
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the shard responsible of the specified key.
+   *
+   * @param key Entry key
+   * @return Shard storing the key
+   */
+  public Store getShard(String key) {
+    return shards[shardIndex(key)];
+  }
+
+  /* *********************************************************************
+   * Utility classes
+   ***********************************************************************/
+
+  /**
+   * Operation performed on a single shard while holding its lock
+   */
+  private abstract class ShardTask<T> implements Callable<T> {
+    private int shard;
+    private boolean write;
+
+    ShardTask(int shard, boolean write) {
+      this.shard = shard;
+      this.write = write;
+    }
+
+    public T call() {
+      Lock lock = write ? locks[shard].writeLock() : locks[shard].readLock();
+      lock.lock();
+      try {
+        return run(shards[shard]);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    protected abstract T run(Store store);
+  }
+
+  /**
+   * Cursor concatenating the cursors of all the shards. Shard cursors are opened lazily, one at
+   * a time.
+   */
+  private abstract class ShardsCursor<E> extends AbstractStoreCursor<E> {
+    private int nextShard = 0;
+    private StoreCursor<E> current;
+
+    ShardsCursor(int pageSize) {
+      super(pageSize);
+    }
+
+    protected abstract StoreCursor<E> open(Store store);
+
+    protected E fetchNext() {
+      while (true) {
+        if (current != null) {
+          if (current.hasNext()) return current.next();
+          current.close();
+          current = null;
+        }
+        if (nextShard >= shards.length) return null;
+
+        Lock lock = locks[nextShard].readLock();
+        lock.lock();
+        try {
+          current = open(shards[nextShard]);
+        } finally {
+          lock.unlock();
+        }
+        nextShard++;
+      }
+    }
+
+    protected void release() {
+      if (current != null) current.close();
+      current = null;
+    }
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private static Store[] createShards(StoreEntryPersistenceHandler persistenceHandlers[],
+                                      StoreEntryDiffHandler diffHandler)
+  {
+    if (persistenceHandlers == null) throw new IllegalArgumentException("Null persistence handlers");
+
+    Store shards[] = new Store[persistenceHandlers.length];
+    for (int i = 0; i < shards.length; i++)
+      shards[i] = new SimpleStore(persistenceHandlers[i], diffHandler);
+    return shards;
+  }
+
+  /**
+   * Returns the index of the shard responsible of the key.
+   */
+  private int shardIndex(String key) {
+    int h = key.hashCode();
+    /* Spread the high bits, as String hashes of similar keys differ mostly in the low ones */
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return (h & 0x7fffffff) % shards.length;
+  }
+
+  private <T> List<List<T>> newPartitions() {
+    List<List<T>> partitions = new ArrayList<List<T>>(shards.length);
+    for (int i = 0; i < shards.length; i++) partitions.add(new ArrayList<T>());
+    return partitions;
+  }
+
+  private Lock lockFor(String key, boolean write) {
+    ReentrantReadWriteLock lock = locks[shardIndex(key)];
+    return write ? lock.writeLock() : lock.readLock();
+  }
+
+  /**
+   * Runs the tasks in parallel and returns their results in the same order. A single task is run
+   * on the calling thread.
+   */
+  private <T> List<T> fanOut(List<ShardTask<T>> tasks, String operation) throws StoreException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    if (tasks.size() == 0) return results;
+
+    if (tasks.size() == 1) {
+      try {
+        results.add(tasks.get(0).call());
+      } catch (RuntimeException e) {
+        throw new StoreException("Error " + operation, e);
+      }
+      return results;
+    }
+
+    List<Future<T>> futures;
+    try {
+      futures = executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StoreException("Interrupted while " + operation, e);
+    }
+
+    StoreException error = null;
+    for (Future<T> f: futures) {
+      try {
+        results.add(f.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new StoreException("Interrupted while " + operation, e);
+      } catch (ExecutionException e) {
+        if (error == null) error = new StoreException("Error " + operation, e.getCause());
+        else logger.warn("Error " + operation, e.getCause());
+      }
+    }
+
+    if (error != null) throw error;
+    return results;
+  }
+
+  /**
+   * Notifies all the update handlers associated to this instance
+   *
+   * @param keys The key that were updated
+   */
+  protected void notifyUpdates(String keys[]) {
+    synchronized (handlers) {
+      for (StoreUpdateHandler h: handlers) {
+        h.notifyUpdate(keys, this);
+      }
+    }
+  }
+
+  private static String[] concat(List<String[]> arrays) {
+    int size = 0;
+    for (String a[]: arrays) size += a.length;
+
+    String result[] = new String[size];
+    int pos = 0;
+    for (String a[]: arrays) {
+      System.arraycopy(a, 0, result, pos, a.length);
+      pos += a.length;
+    }
+    return result;
+  }
+
+  /* *********************************************************************
+   * Implementation of Store interface
+   ***********************************************************************/
+
+  /*
+   * Implementation of Store.addUpdateHandler(handler)
+   */
+  public void addUpdateHandler(StoreUpdateHandler handler) {
+    synchronized (handlers) {
+      handlers.add(handler);
+    }
+  }
+
+  /*
+   * Implementation of Store.removeUpdateHandler(handler)
+   */
+  public void removeUpdateHandler(StoreUpdateHandler handler) {
+    synchronized (handlers) {
+      Iterator<StoreUpdateHandler> i = handlers.iterator();
+      while(i.hasNext()) {
+        if (i.next().equals(handler)) {
+          i.remove();
+          return;
+        }
+      }
+    }
+  }
+
+  /*
+   * Implementation of Store.listStoreEntries()
+   */
+  public String[] listStoreEntries() throws StoreException {
+    List<ShardTask<String[]>> tasks = new ArrayList<ShardTask<String[]>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      tasks.add(new ShardTask<String[]>(i, false) {
+          protected String[] run(Store store) {
+            return store.listStoreEntries();
+          }
+        });
+    }
+
+    return concat(fanOut(tasks, "listing entries"));
+  }
+
+  /*
+   * Implementation of Store.listStoreEntries(timestamp)
+   */
+  public String[] listStoreEntries(final Date timestamp) throws StoreException {
+    List<ShardTask<String[]>> tasks = new ArrayList<ShardTask<String[]>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      tasks.add(new ShardTask<String[]>(i, false) {
+          protected String[] run(Store store) {
+            return store.listStoreEntries(timestamp);
+          }
+        });
+    }
+
+    return concat(fanOut(tasks, "listing entries"));
+  }
+
+  /*
+   * Implementation of Store.listStoreEntries(query)
+   */
+  public StoreCursor<String> listStoreEntries(final StoreQuery query) throws StoreException {
+    return new ShardsCursor<String>(query.getPageSize()) {
+      protected StoreCursor<String> open(Store store) {
+        return store.listStoreEntries(query);
+      }
+    };
+  }
+
+  /*
+   * Implementation of Store.getStoreEntriesMetadata()
+   */
+  public Map<String, StoreEntryMetadata> getStoreEntriesMetadata() throws StoreException {
+    List<ShardTask<Map<String, StoreEntryMetadata>>> tasks;
+    tasks = new ArrayList<ShardTask<Map<String, StoreEntryMetadata>>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      tasks.add(new ShardTask<Map<String, StoreEntryMetadata>>(i, false) {
+          protected Map<String, StoreEntryMetadata> run(Store store) {
+            return store.getStoreEntriesMetadata();
+          }
+        });
+    }
+
+    return mergeMetadata(fanOut(tasks, "retrieving metadata"));
+  }
+
+  /*
+   * Implementation of Store.getStoreEntriesMetadata(keys)
+   */
+  public Map<String, StoreEntryMetadata> getStoreEntriesMetadata(String keys[])
+    throws StoreException
+  {
+    List<List<String>> partitions = newPartitions();
+    for (String key: keys) partitions.get(shardIndex(key)).add(key);
+
+    List<ShardTask<Map<String, StoreEntryMetadata>>> tasks;
+    tasks = new ArrayList<ShardTask<Map<String, StoreEntryMetadata>>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<String> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<Map<String, StoreEntryMetadata>>(i, false) {
+          protected Map<String, StoreEntryMetadata> run(Store store) {
+            return store.getStoreEntriesMetadata(part.toArray(new String[part.size()]));
+          }
+        });
+    }
+
+    return mergeMetadata(fanOut(tasks, "retrieving metadata"));
+  }
+
+  private Map<String, StoreEntryMetadata> mergeMetadata(List<Map<String, StoreEntryMetadata>> maps) {
+    int size = 0;
+    for (Map<String, StoreEntryMetadata> m: maps) size += m.size();
+
+    CompactMetadataMap metaMap = new CompactMetadataMap(size);
+    for (Map<String, StoreEntryMetadata> m: maps) metaMap.putAll(m);
+    return metaMap;
+  }
+
+  /*
+   * Implementation of Store.getStoreEntriesMetadata(query)
+   */
+  public StoreCursor<Map.Entry<String, StoreEntryMetadata>> getStoreEntriesMetadata(final StoreQuery query)
+    throws StoreException
+  {
+    return new ShardsCursor<Map.Entry<String, StoreEntryMetadata>>(query.getPageSize()) {
+      protected StoreCursor<Map.Entry<String, StoreEntryMetadata>> open(Store store) {
+        return store.getStoreEntriesMetadata(query);
+      }
+    };
+  }
+
+  /*
+   * Implementation of Store.getStoreEntryMetadata(key)
+   */
+  public StoreEntryMetadata getStoreEntryMetadata(String key) throws StoreException {
+    Lock lock = lockFor(key, false);
+    lock.lock();
+    try {
+      return getShard(key).getStoreEntryMetadata(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Implementation of Store.getStoreEntries()
+   */
+  public StoreEntry[] getStoreEntries() throws StoreException {
+    List<ShardTask<StoreEntry[]>> tasks = new ArrayList<ShardTask<StoreEntry[]>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      tasks.add(new ShardTask<StoreEntry[]>(i, false) {
+          protected StoreEntry[] run(Store store) {
+            return store.getStoreEntries();
+          }
+        });
+    }
+
+    return concatEntries(fanOut(tasks, "retrieving entries"));
+  }
+
+  /*
+   * Implementation of Store.getStoreEntries(keys). Entries are grouped by shard, so the order of
+   * the keys is not preserved.
+   */
+  public StoreEntry[] getStoreEntries(String[] keys) throws StoreException {
+    List<List<String>> partitions = newPartitions();
+    for (String key: keys) partitions.get(shardIndex(key)).add(key);
+
+    List<ShardTask<StoreEntry[]>> tasks = new ArrayList<ShardTask<StoreEntry[]>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<String> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<StoreEntry[]>(i, false) {
+          protected StoreEntry[] run(Store store) {
+            return store.getStoreEntries(part.toArray(new String[part.size()]));
+          }
+        });
+    }
+
+    return concatEntries(fanOut(tasks, "retrieving entries"));
+  }
+
+  private static StoreEntry[] concatEntries(List<StoreEntry[]> arrays) {
+    int size = 0;
+    for (StoreEntry a[]: arrays) size += a.length;
+
+    StoreEntry result[] = new StoreEntry[size];
+    int pos = 0;
+    for (StoreEntry a[]: arrays) {
+      System.arraycopy(a, 0, result, pos, a.length);
+      pos += a.length;
+    }
+    return result;
+  }
+
+  /*
+   * Implementation of Store.getStoreEntries(query)
+   */
+  public StoreCursor<StoreEntry> getStoreEntries(final StoreQuery query) throws StoreException {
+    return new ShardsCursor<StoreEntry>(query.getPageSize()) {
+      protected StoreCursor<StoreEntry> open(Store store) {
+        return store.getStoreEntries(query);
+      }
+    };
+  }
+
+  /*
+   * Implementation of Store.getStoreEntry(key)
+   */
+  public StoreEntry getStoreEntry(String key) throws StoreException {
+    Lock lock = lockFor(key, false);
+    lock.lock();
+    try {
+      return getShard(key).getStoreEntry(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Implementation of Store.getStoreEntry(key, offset, length)
+   */
+  public StoreEntry getStoreEntry(String key, long offset, long length) throws StoreException {
+    Lock lock = lockFor(key, false);
+    lock.lock();
+    try {
+      return getShard(key).getStoreEntry(key, offset, length);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Implementation of Store.putStoreEntry(key, ...)
+   */
+  public void putStoreEntry(String key, InputStream in, String contentType,
+                            HashMap<String, String> userMetadata)
+    throws StoreException
+  {
+    Lock lock = lockFor(key, true);
+    lock.lock();
+    try {
+      getShard(key).putStoreEntry(key, in, contentType, userMetadata);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Implementation of Store.putStoreEntries(entries)
+   */
+  public void putStoreEntries(StoreEntry[] entries) throws StoreException {
+    List<List<StoreEntry>> partitions = newPartitions();
+    for (StoreEntry e: entries) partitions.get(shardIndex(e.getKey())).add(e);
+
+    List<ShardTask<Object>> tasks = new ArrayList<ShardTask<Object>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<StoreEntry> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<Object>(i, true) {
+          protected Object run(Store store) {
+            store.putStoreEntries(part.toArray(new StoreEntry[part.size()]));
+            return null;
+          }
+        });
+    }
+
+    fanOut(tasks, "putting entries");
+  }
+
+  /*
+   * Implementation of Store.containsStoreEntry(key)
+   */
+  public boolean containsStoreEntry(String key) throws StoreException {
+    Lock lock = lockFor(key, false);
+    lock.lock();
+    try {
+      return getShard(key).containsStoreEntry(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Implementation of Store.updateMetadatas(metadatas)
+   */
+  public void updateMetadatas(Map<String, StoreEntryMetadata> metadatas) throws StoreException {
+    List<Map<String, StoreEntryMetadata>> partitions;
+    partitions = new ArrayList<Map<String, StoreEntryMetadata>>(shards.length);
+    for (int i = 0; i < shards.length; i++) partitions.add(new CompactMetadataMap());
+    for (Map.Entry<String, StoreEntryMetadata> e: metadatas.entrySet())
+      partitions.get(shardIndex(e.getKey())).put(e.getKey(), e.getValue());
+
+    List<ShardTask<Object>> tasks = new ArrayList<ShardTask<Object>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final Map<String, StoreEntryMetadata> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<Object>(i, true) {
+          protected Object run(Store store) {
+            store.updateMetadatas(part);
+            return null;
+          }
+        });
+    }
+
+    fanOut(tasks, "updating metadata");
+  }
+
+  /*
+   * Implementation of Store.updateMetadata(key, metadata)
+   */
+  public void updateMetadata(String key, StoreEntryMetadata metadata) throws StoreException {
+    Lock lock = lockFor(key, true);
+    lock.lock();
+    try {
+      getShard(key).updateMetadata(key, metadata);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Implementation of Store.updateStoreEntries(entries)
+   */
+  public void updateStoreEntries(StoreEntry[] entries) throws StoreException {
+    List<List<StoreEntry>> partitions = newPartitions();
+    for (StoreEntry e: entries) partitions.get(shardIndex(e.getKey())).add(e);
+
+    List<ShardTask<Object>> tasks = new ArrayList<ShardTask<Object>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<StoreEntry> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<Object>(i, true) {
+          protected Object run(Store store) {
+            store.updateStoreEntries(part.toArray(new StoreEntry[part.size()]));
+            return null;
+          }
+        });
+    }
+
+    fanOut(tasks, "updating entries");
+  }
+
+  /*
+   * Implementation of Store.compareStoreEntries(remoteEntries)
+   */
+  public StoreCompareResult compareStoreEntries(StoreEntry[] remoteEntries) throws StoreException {
+    CompactMetadataMap remoteMeta = new CompactMetadataMap(remoteEntries.length);
+
+    for (StoreEntry e: remoteEntries) remoteMeta.put(e.getKey(), e.getMetadata());
+
+    return compareStoreEntries(remoteMeta);
+  }
+
+  /*
+   * Implementation of Store.compareStoreEntries(remoteMetadata). Every shard is compared, even
+   * without remote keys, to detect the keys existing only locally.
+   */
+  public StoreCompareResult compareStoreEntries(Map<String, StoreEntryMetadata> remoteMetadata)
+    throws StoreException
+  {
+    List<Map<String, StoreEntryMetadata>> partitions;
+    partitions = new ArrayList<Map<String, StoreEntryMetadata>>(shards.length);
+    for (int i = 0; i < shards.length; i++) partitions.add(new CompactMetadataMap());
+    for (Map.Entry<String, StoreEntryMetadata> e: remoteMetadata.entrySet())
+      partitions.get(shardIndex(e.getKey())).put(e.getKey(), e.getValue());
+
+    List<ShardTask<StoreCompareResult>> tasks;
+    tasks = new ArrayList<ShardTask<StoreCompareResult>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final Map<String, StoreEntryMetadata> part = partitions.get(i);
+      tasks.add(new ShardTask<StoreCompareResult>(i, false) {
+          protected StoreCompareResult run(Store store) {
+            return store.compareStoreEntries(part);
+          }
+        });
+    }
+
+    List<StoreCompareResult> results = fanOut(tasks, "comparing entries");
+
+    List<String[]> fresherOnLocal = new ArrayList<String[]>(results.size());
+    List<String[]> fresherOnRemote = new ArrayList<String[]>(results.size());
+    List<String[]> metaChangedOnLocal = new ArrayList<String[]>(results.size());
+    List<String[]> metaChangedOnRemote = new ArrayList<String[]>(results.size());
+    for (StoreCompareResult r: results) {
+      fresherOnLocal.add(r.getKeyFresherOnLocalNode());
+      fresherOnRemote.add(r.getKeysFresherOnRemoteNode());
+      metaChangedOnLocal.add(r.getMetadataChangedOnLocalNode());
+      metaChangedOnRemote.add(r.getMetadataChangedOnRemoteNode());
+    }
+
+    return new StoreCompareResult(concat(fresherOnLocal), concat(fresherOnRemote),
+                                  concat(metaChangedOnLocal), concat(metaChangedOnRemote));
+  }
+
+  /*
+   * Implementation of Store.produceStoreEntriesDiffData(keys)
+   */
+  public StoreEntryDiffData[] produceStoreEntriesDiffData(String keys[]) throws StoreException {
+    List<List<String>> partitions = newPartitions();
+    for (String key: keys) partitions.get(shardIndex(key)).add(key);
+
+    List<ShardTask<StoreEntryDiffData[]>> tasks;
+    tasks = new ArrayList<ShardTask<StoreEntryDiffData[]>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<String> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<StoreEntryDiffData[]>(i, false) {
+          protected StoreEntryDiffData[] run(Store store) {
+            return store.produceStoreEntriesDiffData(part.toArray(new String[part.size()]));
+          }
+        });
+    }
+
+    List<StoreEntryDiffData> diffData = new ArrayList<StoreEntryDiffData>(keys.length);
+    for (StoreEntryDiffData part[]: fanOut(tasks, "producing diff data"))
+      for (StoreEntryDiffData d: part) diffData.add(d);
+
+    return diffData.toArray(new StoreEntryDiffData[diffData.size()]);
+  }
+
+  /*
+   * Implementation of Store.diffStoreEntries(diffData)
+   */
+  public StoreEntryDiff[] diffStoreEntries(StoreEntryDiffData diffDataArray[])
+    throws StoreException
+  {
+    List<List<StoreEntryDiffData>> partitions = newPartitions();
+    for (StoreEntryDiffData diffData: diffDataArray) {
+      if (diffData == null) {
+        logger.warn("Null diff data... ignoring");
+        continue;
+      }
+      partitions.get(shardIndex(diffData.getKey())).add(diffData);
+    }
+
+    List<ShardTask<StoreEntryDiff[]>> tasks;
+    tasks = new ArrayList<ShardTask<StoreEntryDiff[]>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<StoreEntryDiffData> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<StoreEntryDiff[]>(i, false) {
+          protected StoreEntryDiff[] run(Store store) {
+            return store.diffStoreEntries(part.toArray(new StoreEntryDiffData[part.size()]));
+          }
+        });
+    }
+
+    List<StoreEntryDiff> diff = new ArrayList<StoreEntryDiff>(diffDataArray.length);
+    for (StoreEntryDiff part[]: fanOut(tasks, "producing diff"))
+      for (StoreEntryDiff d: part) diff.add(d);
+
+    return diff.toArray(new StoreEntryDiff[diff.size()]);
+  }
+
+  /*
+   * Implementation of Store.patchStoreEntries(diff)
+   */
+  public void patchStoreEntries(StoreEntryDiff diffArray[]) throws StoreException {
+    List<List<StoreEntryDiff>> partitions = newPartitions();
+    for (StoreEntryDiff diff: diffArray) partitions.get(shardIndex(diff.getKey())).add(diff);
+
+    List<ShardTask<Object>> tasks = new ArrayList<ShardTask<Object>>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      final List<StoreEntryDiff> part = partitions.get(i);
+      if (part.isEmpty()) continue;
+
+      tasks.add(new ShardTask<Object>(i, true) {
+          protected Object run(Store store) {
+            store.patchStoreEntries(part.toArray(new StoreEntryDiff[part.size()]));
+            return null;
+          }
+        });
+    }
+
+    fanOut(tasks, "patching entries");
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.simple;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import cloudypeer.store.StoreEntryMetadata;
+
+/**
+ * Columnar map of entry keys to their metadata. <br>
+ * Instead of keeping one metadata object (and one hash map entry) per key, each metadata field is
+ * stored in its own primitive array and the keys are indexed by an open addressing hash
+ * table. Metadata instances are materialized on demand by {@link #get(Object)} and by the entry
+ * set iterator. <br>
+ * <br>
+ * The map only supports insertions and updates: removals are not allowed.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CompactMetadataMap extends AbstractMap<String, StoreEntryMetadata>
+  implements Serializable
+{
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private transient int size;
+
+  private transient String[] keys;
+  private transient long[] timestamps;
+  private transient long[] lengths;
+  private transient long[] md5High;
+  private transient long[] md5Low;
+  private transient String[] contentTypes;
+
+  /**
+   * Raw MD5 strings, allocated only when a non hex hash is inserted
+   */
+  private transient String[] rawMD5;
+
+  /**
+   * Non empty user metadata maps, allocated only when needed
+   */
+  private transient Object[] userMetadata;
+
+  /**
+   * Hash index: each slot holds row + 1, 0 marks an empty slot
+   */
+  private transient int[] index;
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates an empty map.
+   */
+  public CompactMetadataMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates an empty map able to hold the specified number of entries without resizing.
+   *
+   * @param capacity Expected number of entries
+   */
+  public CompactMetadataMap(int capacity) {
+    allocate(Math.max(capacity, 1));
+  }
+
+  /**
+   * Creates a map holding the same mappings of the specified one.
+   *
+   * @param map Map to copy
+   */
+  public CompactMetadataMap(Map<String, ? extends StoreEntryMetadata> map) {
+    this(map.size());
+    for (Map.Entry<String, ? extends StoreEntryMetadata> e: map.entrySet())
+      put(e.getKey(), e.getValue());
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    timestamps = new long[capacity];
+    lengths = new long[capacity];
+    md5High = new long[capacity];
+    md5Low = new long[capacity];
+    contentTypes = new String[capacity];
+    rawMD5 = null;
+    userMetadata = null;
+
+    int indexSize = 2;
+    while (indexSize < capacity * 2) indexSize <<= 1;
+    index = new int[indexSize];
+  }
+
+  private static String[] grow(String[] a, int capacity) {
+    String[] b = new String[capacity];
+    System.arraycopy(a, 0, b, 0, a.length);
+    return b;
+  }
+
+  private static long[] grow(long[] a, int capacity) {
+    long[] b = new long[capacity];
+    System.arraycopy(a, 0, b, 0, a.length);
+    return b;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= keys.length) return;
+
+    int newCapacity = Math.max(capacity, keys.length * 2);
+    keys = grow(keys, newCapacity);
+    timestamps = grow(timestamps, newCapacity);
+    lengths = grow(lengths, newCapacity);
+    md5High = grow(md5High, newCapacity);
+    md5Low = grow(md5Low, newCapacity);
+    contentTypes = grow(contentTypes, newCapacity);
+    if (rawMD5 != null) rawMD5 = grow(rawMD5, newCapacity);
+    if (userMetadata != null) {
+      Object[] b = new Object[newCapacity];
+      System.arraycopy(userMetadata, 0, b, 0, userMetadata.length);
+      userMetadata = b;
+    }
+
+    if (index.length < newCapacity * 2) rehash(newCapacity * 2);
+  }
+
+  private void rehash(int minSize) {
+    int indexSize = index.length;
+    while (indexSize < minSize) indexSize <<= 1;
+
+    index = new int[indexSize];
+    for (int row = 0; row < size; row++) {
+      int slot = slotFor(keys[row]);
+      while (index[slot] != 0) slot = (slot + 1) & (index.length - 1);
+      index[slot] = row + 1;
+    }
+  }
+
+  private int slotFor(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & (index.length - 1);
+  }
+
+  /**
+   * Returns the row holding the specified key or -1.
+   */
+  private int rowOf(Object key) {
+    if (key == null) return -1;
+
+    int slot = slotFor(key);
+    int row;
+    while ((row = index[slot]) != 0) {
+      if (keys[row - 1].equals(key)) return row - 1;
+      slot = (slot + 1) & (index.length - 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the user metadata of a row, or null if empty.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, String> userMetadataAt(int row) {
+    return (userMetadata != null) ? (Map<String, String>) userMetadata[row] : null;
+  }
+
+  private StoreEntryMetadata metadataAt(int row) {
+    Map<String, String> userMeta = userMetadataAt(row);
+    if (userMeta == null) userMeta = CompactStoreEntryMetadata.EMPTY_USER_METADATA;
+
+    return new CompactStoreEntryMetadata(timestamps[row], lengths[row], md5High[row], md5Low[row],
+                                         (rawMD5 != null) ? rawMD5[row] : null,
+                                         contentTypes[row], userMeta);
+  }
+
+  private void setRow(int row, String key, CompactStoreEntryMetadata meta) {
+    keys[row] = key;
+    timestamps[row] = meta.getModifiedTime();
+    lengths[row] = meta.getContentLength();
+    md5High[row] = meta.getMD5High();
+    md5Low[row] = meta.getMD5Low();
+    contentTypes[row] = meta.getContentType();
+
+    if (meta.getRawMD5() != null && rawMD5 == null) rawMD5 = new String[keys.length];
+    if (rawMD5 != null) rawMD5[row] = meta.getRawMD5();
+
+    Map<String, String> userMeta = meta.getUserMetadata();
+    boolean empty = userMeta.size() == 0;
+    if (!empty && userMetadata == null) userMetadata = new Object[keys.length];
+    if (userMetadata != null) userMetadata[row] = empty ? null : userMeta;
+  }
+
+  /* *********************************************************************
+   * Map implementation
+   ***********************************************************************/
+
+  public int size() {
+    return size;
+  }
+
+  public boolean containsKey(Object key) {
+    return rowOf(key) >= 0;
+  }
+
+  public StoreEntryMetadata get(Object key) {
+    int row = rowOf(key);
+    return (row >= 0) ? metadataAt(row) : null;
+  }
+
+  public StoreEntryMetadata put(String key, StoreEntryMetadata meta) {
+    if (key == null) throw new NullPointerException("Null key");
+    if (meta == null) throw new NullPointerException("Null metadata");
+
+    CompactStoreEntryMetadata compact = CompactStoreEntryMetadata.valueOf(meta);
+    int row = rowOf(key);
+    if (row >= 0) {
+      StoreEntryMetadata old = metadataAt(row);
+      setRow(row, key, compact);
+      return old;
+    }
+
+    ensureCapacity(size + 1);
+    row = size++;
+    setRow(row, key, compact);
+
+    int slot = slotFor(key);
+    while (index[slot] != 0) slot = (slot + 1) & (index.length - 1);
+    index[slot] = row + 1;
+    return null;
+  }
+
+  public Set<Map.Entry<String, StoreEntryMetadata>> entrySet() {
+    return new AbstractSet<Map.Entry<String, StoreEntryMetadata>>() {
+      public int size() {
+        return size;
+      }
+
+      public Iterator<Map.Entry<String, StoreEntryMetadata>> iterator() {
+        return new RowIterator();
+      }
+    };
+  }
+
+  /**
+   * Entry view over a row of the map
+   */
+  private class Row implements Map.Entry<String, StoreEntryMetadata> {
+    private int row;
+
+    Row(int row) {
+      this.row = row;
+    }
+
+    public String getKey() {
+      return keys[row];
+    }
+
+    public StoreEntryMetadata getValue() {
+      return metadataAt(row);
+    }
+
+    public StoreEntryMetadata setValue(StoreEntryMetadata value) {
+      return put(keys[row], value);
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) return false;
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+    }
+
+    public int hashCode() {
+      return getKey().hashCode() ^ getValue().hashCode();
+    }
+  }
+
+  /**
+   * Iterator over the rows of the map
+   */
+  private class RowIterator implements Iterator<Map.Entry<String, StoreEntryMetadata>> {
+    private int next = 0;
+
+    public boolean hasNext() {
+      return next < size;
+    }
+
+    public Map.Entry<String, StoreEntryMetadata> next() {
+      if (next >= size) throw new NoSuchElementException();
+      return new Row(next++);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException("CompactMetadataMap doesn't support removals");
+    }
+  }
+
+  /* *********************************************************************
+   * Serialization
+   ***********************************************************************/
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    for (int row = 0; row < size; row++) {
+      out.writeUTF(keys[row]);
+      out.writeLong(timestamps[row]);
+      out.writeLong(lengths[row]);
+      out.writeLong(md5High[row]);
+      out.writeLong(md5Low[row]);
+      String raw = (rawMD5 != null) ? rawMD5[row] : null;
+      out.writeBoolean(raw != null);
+      if (raw != null) out.writeUTF(raw);
+      out.writeUTF(contentTypes[row]);
+      CompactStoreEntryMetadata.writeUserMetadata(out, userMetadataAt(row));
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int count = in.readInt();
+    allocate(Math.max(count, 1));
+
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      long timestamp = in.readLong();
+      long length = in.readLong();
+      long high = in.readLong();
+      long low = in.readLong();
+      String raw = in.readBoolean() ? in.readUTF() : null;
+      String contentType = CompactStoreEntryMetadata.internContentType(in.readUTF());
+      Map<String, String> userMeta = CompactStoreEntryMetadata.readUserMetadata(in);
+
+      put(key, new CompactStoreEntryMetadata(timestamp, length, high, low, raw, contentType,
+                                             userMeta));
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.simple;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cloudypeer.store.StoreEntryMetadata;
+
+/**
+ * Memory efficient StoreEntryMetadata implementation. <br>
+ * The modification timestamp is kept as a long, the MD5 hash as two longs, the content type is
+ * interned and entries without user metadata share a single immutable empty map. Instances are
+ * immutable.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CompactStoreEntryMetadata implements StoreEntryMetadata {
+
+  /**
+   * Immutable user metadata map shared by all the entries without user metadata
+   */
+  static final Map<String, String> EMPTY_USER_METADATA =
+    Collections.unmodifiableMap(new HashMap<String, String>(0));
+
+  /**
+   * Pool of the content types seen so far
+   */
+  private static final ConcurrentHashMap<String, String> contentTypes =
+    new ConcurrentHashMap<String, String>();
+
+  private long modifiedTimestamp;
+  private long contentLength;
+  private long md5High;
+  private long md5Low;
+
+  /**
+   * Content MD5 as a string. Used only if the hash is not a valid 32 digits hex string.
+   */
+  private String rawMD5;
+
+  private transient String contentType;
+  private transient Map<String, String> userMetadata;
+
+  /* *********************************************************************
+   * Utility methods
+   ***********************************************************************/
+
+  /**
+   * Returns the pooled instance of the specified content type.
+   *
+   * @param contentType Content type to intern
+   * @return Pooled content type ("" if null)
+   */
+  static String internContentType(String contentType) {
+    if (contentType == null) return "";
+
+    String pooled = contentTypes.putIfAbsent(contentType, contentType);
+    return (pooled != null) ? pooled : contentType;
+  }
+
+  /**
+   * Returns an immutable copy of the specified user metadata, or the shared empty map.
+   *
+   * @param userMetadata User metadata to copy or null
+   * @return Immutable user metadata
+   */
+  static Map<String, String> compactUserMetadata(Map<String, String> userMetadata) {
+    if (userMetadata == null || userMetadata.size() == 0) return EMPTY_USER_METADATA;
+    if (userMetadata.size() == 1) {
+      Map.Entry<String, String> e = userMetadata.entrySet().iterator().next();
+      return Collections.singletonMap(e.getKey(), e.getValue());
+    }
+
+    return Collections.unmodifiableMap(new HashMap<String, String>(userMetadata));
+  }
+
+  /**
+   * Parses the specified 16 hex digits starting at offset.
+   *
+   * @param md5 String holding the hex digits
+   * @param offset Index of the first digit
+   * @return Parsed value
+   * @exception NumberFormatException if a character is not an hex digit
+   */
+  private static long parseHexLong(String md5, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 16; i++) {
+      int digit = Character.digit(md5.charAt(i), 16);
+      if (digit < 0) throw new NumberFormatException("Not an hex digit: " + md5.charAt(i));
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  /**
+   * Appends the specified value as 16 hex digits.
+   *
+   * @param buff Buffer to append to
+   * @param value Value to format
+   */
+  private static void appendHexLong(StringBuilder buff, long value) {
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      buff.append(Character.forDigit((int) ((value >>> shift) & 0xF), 16));
+    }
+  }
+
+  /**
+   * Formats the two halves of an MD5 hash as a lower case hex string.
+   *
+   * @param high Most significant 64 bits
+   * @param low Least significant 64 bits
+   * @return MD5 hex string
+   */
+  static String formatMD5(long high, long low) {
+    StringBuilder buff = new StringBuilder(32);
+    appendHexLong(buff, high);
+    appendHexLong(buff, low);
+    return buff.toString();
+  }
+
+  /**
+   * Checks whether the specified string is a 32 digits hex MD5.
+   *
+   * @param md5 String to check
+   * @return True if the string can be packed in two longs
+   */
+  static boolean isPackableMD5(String md5) {
+    if (md5.length() != 32) return false;
+    for (int i = 0; i < 32; i++) {
+      if (Character.digit(md5.charAt(i), 16) < 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Copies a metadata map into the form sent to remote peers: a HashMap of
+   * SimpleStoreEntryMetadata. Compact metadata and CompactMetadataMap are in-memory
+   * representations which peers running older versions can't deserialize.
+   *
+   * @param map Metadata map to copy
+   * @return Serializable copy of the map
+   */
+  public static HashMap<String, StoreEntryMetadata>
+    toWireMap(Map<String, ? extends StoreEntryMetadata> map)
+  {
+    HashMap<String, StoreEntryMetadata> wire =
+      new HashMap<String, StoreEntryMetadata>(map.size() * 2);
+    for (Map.Entry<String, ? extends StoreEntryMetadata> e: map.entrySet())
+      wire.put(e.getKey(), toWire(e.getValue()));
+    return wire;
+  }
+
+  /**
+   * Converts a metadata into the form sent to remote peers, a SimpleStoreEntryMetadata. Used
+   * when serializing entries, whose metadata may be compact.
+   *
+   * @param meta Metadata to convert
+   * @return Serializable equivalent of meta, or null if meta is null
+   */
+  public static StoreEntryMetadata toWire(StoreEntryMetadata meta) {
+    if (meta == null || meta instanceof SimpleStoreEntryMetadata) return meta;
+
+    String md5 = (meta.getContentMD5() != null) ? meta.getContentMD5() : "";
+    return new SimpleStoreEntryMetadata(meta.getModifiedTimestamp(), meta.getContentLength(),
+                                        md5, meta.getContentType(), meta.getUserMetadata());
+  }
+
+  /**
+   * Returns a CompactStoreEntryMetadata equivalent to the specified metadata. If meta is already
+   * compact it's returned as is.
+   *
+   * @param meta Metadata to convert
+   * @return Compact metadata or null if meta is null
+   */
+  public static CompactStoreEntryMetadata valueOf(StoreEntryMetadata meta) {
+    if (meta == null) return null;
+    if (meta instanceof CompactStoreEntryMetadata) return (CompactStoreEntryMetadata) meta;
+
+    return new CompactStoreEntryMetadata(meta.getModifiedTimestamp(), meta.getContentLength(),
+                                         meta.getContentMD5(), meta.getContentType(),
+                                         meta.getUserMetadata());
+  }
+
+  /**
+   * Checks whether two metadata describe the same entry version, i.e. they have the same
+   * modified timestamp and content MD5. Two null metadata (absent entries) match.
+   *
+   * @param a First metadata or null
+   * @param b Second metadata or null
+   * @return True if the versions match
+   */
+  public static boolean sameVersion(StoreEntryMetadata a, StoreEntryMetadata b) {
+    if (a == null || b == null) return a == b;
+
+    return a.getModifiedTimestamp().getTime() == b.getModifiedTimestamp().getTime()
+      && a.getContentMD5().equals(b.getContentMD5());
+  }
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Builds a new CompactStoreEntryMetadata instance.
+   *
+   * @param modifiedTimestamp Modification timestamp
+   * @param contentLength Content length
+   * @param contentMD5 Content MD5
+   * @param contentType Content type
+   * @param userMetadata User metadata
+   */
+  public CompactStoreEntryMetadata(Date modifiedTimestamp, long contentLength, String contentMD5,
+                                   String contentType, Map<String,String> userMetadata)
+  {
+    if (modifiedTimestamp == null)
+      throw new IllegalArgumentException("Null modified timestamp");
+    if (contentMD5 == null)
+      throw new IllegalArgumentException("Null content MD5");
+
+    init(modifiedTimestamp.getTime(), contentLength, contentMD5.toLowerCase(),
+         internContentType(contentType), compactUserMetadata(userMetadata));
+  }
+
+  /**
+   * Builds a new instance from already compacted fields.
+   */
+  CompactStoreEntryMetadata(long modifiedTimestamp, long contentLength, long md5High, long md5Low,
+                            String rawMD5, String contentType, Map<String, String> userMetadata)
+  {
+    this.modifiedTimestamp = modifiedTimestamp;
+    this.contentLength = contentLength;
+    this.md5High = md5High;
+    this.md5Low = md5Low;
+    this.rawMD5 = rawMD5;
+    this.contentType = contentType;
+    this.userMetadata = userMetadata;
+  }
+
+  private void init(long modifiedTimestamp, long contentLength, String contentMD5,
+                    String contentType, Map<String, String> userMetadata)
+  {
+    if (contentLength < 0)
+      throw new IllegalArgumentException("Content length must be greater than or equal to 0");
+
+    this.modifiedTimestamp = modifiedTimestamp;
+    this.contentLength = contentLength;
+
+    if (isPackableMD5(contentMD5)) {
+      this.md5High = parseHexLong(contentMD5, 0);
+      this.md5Low = parseHexLong(contentMD5, 16);
+    } else {
+      this.rawMD5 = contentMD5;
+    }
+
+    this.contentType = contentType;
+    this.userMetadata = userMetadata;
+  }
+
+  /* *********************************************************************
+   * Getters
+   ***********************************************************************/
+
+  /**
+   * Returns the content type.
+   *
+   * @return Content type
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Returns the content length.
+   *
+   * @return Content length
+   */
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * Returns the user metadata. The returned map is immutable.
+   *
+   * @return User metadata
+   */
+  public Map<String, String> getUserMetadata() {
+    return userMetadata;
+  }
+
+  /**
+   * Returns the last date in which the associated entry was modified.
+   *
+   * @return Entry modification date
+   */
+  public Date getModifiedTimestamp() {
+    return new Date(modifiedTimestamp);
+  }
+
+  /**
+   * Returns the last modification timestamp in milliseconds without allocating a Date.
+   *
+   * @return Entry modification timestamp
+   */
+  public long getModifiedTime() {
+    return modifiedTimestamp;
+  }
+
+  /**
+   * Returns the content MD5 hash.
+   *
+   * @return Content MD5
+   */
+  public String getContentMD5() {
+    if (rawMD5 != null) return rawMD5;
+    return formatMD5(md5High, md5Low);
+  }
+
+  /**
+   * Checks whether this instance has the same content MD5 of the specified metadata, avoiding the
+   * string conversion when both are compact.
+   *
+   * @param other Metadata to compare
+   * @return True if the MD5 hashes match
+   */
+  public boolean sameContentMD5(StoreEntryMetadata other) {
+    if (other instanceof CompactStoreEntryMetadata) {
+      CompactStoreEntryMetadata o = (CompactStoreEntryMetadata) other;
+      if (rawMD5 != null || o.rawMD5 != null)
+        return getContentMD5().equals(o.getContentMD5());
+      return md5High == o.md5High && md5Low == o.md5Low;
+    }
+    return getContentMD5().equals(other.getContentMD5());
+  }
+
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof CompactStoreEntryMetadata)) return false;
+
+    CompactStoreEntryMetadata other = (CompactStoreEntryMetadata) o;
+    return modifiedTimestamp == other.modifiedTimestamp && contentLength == other.contentLength &&
+      sameContentMD5(other) && contentType.equals(other.contentType) &&
+      userMetadata.equals(other.userMetadata);
+  }
+
+  public int hashCode() {
+    return (int) (modifiedTimestamp ^ (modifiedTimestamp >>> 32)) ^ (int) md5Low;
+  }
+
+  long getMD5High() {
+    return md5High;
+  }
+
+  long getMD5Low() {
+    return md5Low;
+  }
+
+  String getRawMD5() {
+    return rawMD5;
+  }
+
+  /* *********************************************************************
+   * Serialization
+   ***********************************************************************/
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeUTF(contentType);
+    writeUserMetadata(out, userMetadata);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    this.contentType = internContentType(in.readUTF());
+    this.userMetadata = readUserMetadata(in);
+  }
+
+  /**
+   * Writes the user metadata in a compact form.
+   */
+  static void writeUserMetadata(ObjectOutputStream out, Map<String, String> userMetadata)
+    throws IOException
+  {
+    if (userMetadata == null) {
+      out.writeInt(0);
+      return;
+    }
+
+    out.writeInt(userMetadata.size());
+    for (Map.Entry<String, String> e: userMetadata.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeUTF(e.getValue());
+    }
+  }
+
+  /**
+   * Reads the user metadata written by {@link #writeUserMetadata}.
+   */
+  static Map<String, String> readUserMetadata(ObjectInputStream in) throws IOException {
+    int size = in.readInt();
+    if (size == 0) return EMPTY_USER_METADATA;
+
+    HashMap<String, String> userMetadata = new HashMap<String, String>(size * 2);
+    for (int i = 0; i < size; i++) {
+      String key = in.readUTF();
+      userMetadata.put(key, in.readUTF());
+    }
+    return compactUserMetadata(userMetadata);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.store.simple;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.compression.CompressedStoreEntry;
+
+/**
+ * StoreEntry wrapper keeping a copy of the content read through it, so that the entry can be
+ * written again after a failed batch write. <br>
+ * The content stream of an entry can be read only once: if a batch fails after reading some of
+ * its entries, {@link #retry} rebuilds them from the bytes already read followed by the unread
+ * rest of the original stream. Only the first <code>limit</code> bytes are kept: an entry read
+ * beyond them, or whose stream was closed before its end, can't be retried. <br>
+ * Compressed entries hold their whole frame and can be read again, so they are not wrapped:
+ * handlers supporting compression can then store the frame as is.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+class RetryableStoreEntry implements StoreEntry {
+
+  private StoreEntry entry;
+  private int limit;
+
+  private transient InputStream source = null;
+  private transient InputStream in = null;
+  private transient ByteArrayOutputStream copy = new ByteArrayOutputStream();
+  private boolean overflow = false;
+  private boolean ended = false;
+  private boolean closed = false;
+
+  /**
+   * Creates a new <code>RetryableStoreEntry</code> instance.
+   *
+   * @param entry Wrapped entry
+   * @param limit Maximum number of content bytes kept
+   */
+  RetryableStoreEntry(StoreEntry entry, int limit) {
+    this.entry = entry;
+    this.limit = limit;
+  }
+
+  /**
+   * Wraps each of the specified entries, except compressed ones.
+   *
+   * @param entries Entries to wrap
+   * @param limit Maximum number of content bytes kept for each entry
+   * @return Wrapped entries
+   */
+  static StoreEntry[] wrap(StoreEntry entries[], int limit) {
+    StoreEntry wrapped[] = new StoreEntry[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i] instanceof CompressedStoreEntry) wrapped[i] = entries[i];
+      else wrapped[i] = new RetryableStoreEntry(entries[i], limit);
+    }
+    return wrapped;
+  }
+
+  /**
+   * Returns an entry to write again in place of one returned by {@link #wrap}.
+   *
+   * @param entry Entry returned by wrap
+   * @return Entry to write again, or null if its content has been lost
+   */
+  static StoreEntry retry(StoreEntry entry) {
+    if (entry instanceof RetryableStoreEntry) return ((RetryableStoreEntry) entry).retry();
+    return entry;
+  }
+
+  /**
+   * Returns an entry with the same key, metadata and content of the wrapped one, readable from
+   * the beginning.
+   *
+   * @return Entry to write again, or null if its content has been lost
+   */
+  StoreEntry retry() {
+    if (in == null) return entry;
+    if (overflow) return null;
+
+    InputStream read = new ByteArrayInputStream(copy.toByteArray());
+    if (ended) return new SimpleStoreEntry(entry.getKey(), read, entry.getMetadata());
+    if (closed) return null;
+    return new SimpleStoreEntry(entry.getKey(), new SequenceInputStream(read, source),
+                                entry.getMetadata());
+  }
+
+  /* *********************************************************************
+   * StoreEntry methods
+   ***********************************************************************/
+
+  public String getKey() {
+    return entry.getKey();
+  }
+
+  public StoreEntryMetadata getMetadata() {
+    return entry.getMetadata();
+  }
+
+  public InputStream getInputStream() {
+    if (in == null) {
+      source = entry.getInputStream();
+      in = new InputStream() {
+          public int read() throws IOException {
+            byte b[] = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+          }
+
+          public int read(byte b[], int off, int len) throws IOException {
+            int read = source.read(b, off, len);
+            if (read < 0) {
+              ended = true;
+            } else if (!overflow) {
+              if (copy.size() + read > limit) {
+                overflow = true;
+                copy = null;
+              } else {
+                copy.write(b, off, read);
+              }
+            }
+            return read;
+          }
+
+          public int available() throws IOException {
+            return source.available();
+          }
+
+          public void close() throws IOException {
+            closed = true;
+            source.close();
+          }
+        };
+    }
+    return in;
+  }
+}
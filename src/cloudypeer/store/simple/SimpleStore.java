@@ -15,13 +15,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import cloudypeer.store.AbstractStoreCursor;
 import cloudypeer.store.Store;
 import cloudypeer.store.StoreCompareResult;
+import cloudypeer.store.StoreCursor;
 import cloudypeer.store.StoreEntry;
 import cloudypeer.store.StoreEntryDiff;
 import cloudypeer.store.StoreEntryDiffData;
 import cloudypeer.store.StoreEntryMetadata;
 import cloudypeer.store.StoreException;
+import cloudypeer.store.StoreQuery;
 import cloudypeer.store.StoreUpdateHandler;
 import org.apache.log4j.Logger;
 
@@ -37,6 +40,17 @@ public class SimpleStore implements Store {
 
   private static final int DEFAULT_LIST_THRESHOLD = 3600 * 24;
 
+  /**
+   * Maximum number of conditional write rounds performed by updateStoreEntries
+   */
+  public static int MAX_UPDATE_ATTEMPTS = 5;
+
+  /**
+   * Maximum content length of the entries which are written again one at a time if the batch
+   * writing them fails after reading their content
+   */
+  public static int MAX_RETRY_BUFFER = 256 * 1024;
+
   /* *********************************************************************
    * Instance variables
    ***********************************************************************/
@@ -106,10 +120,51 @@ public class SimpleStore implements Store {
     this.listThreshold = threshold * 1000;
   }
 
+  /* *********************************************************************
+   * Utility classes
+   ***********************************************************************/
+
+  /**
+   * Immutable (key, metadata) pair returned by metadata cursors
+   */
+  private static class MetadataEntry implements Map.Entry<String, StoreEntryMetadata> {
+    private String key;
+    private StoreEntryMetadata metadata;
+
+    MetadataEntry(String key, StoreEntryMetadata metadata) {
+      this.key = key;
+      this.metadata = metadata;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public StoreEntryMetadata getValue() {
+      return metadata;
+    }
+
+    public StoreEntryMetadata setValue(StoreEntryMetadata value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   /* *********************************************************************
    * Utils methods
    ***********************************************************************/
 
+  /**
+   * Returns a query selecting the active entries (see {@link #getListThreshold()}).
+   *
+   * @return Active entries query
+   */
+  protected StoreQuery activeEntriesQuery() {
+    Date since = null;
+    if (listThreshold > 0) since = new Date(System.currentTimeMillis() - listThreshold);
+
+    return new StoreQuery(null, since, null, StoreQuery.DEFAULT_PAGE_SIZE);
+  }
+
   /**
    * Notifies all the update handlers associated to this instance
    *
@@ -165,26 +220,88 @@ public class SimpleStore implements Store {
     if (listThreshold > 0) {
       return listStoreEntries(new Date(System.currentTimeMillis() - listThreshold));
     } else {
-      return listStoreEntries(null);
+      return listStoreEntries((Date) null);
     }
   }
 
   /*
    * Implementation of Store.getStoreEntriesMetadata()
    */
-  public HashMap getStoreEntriesMetadata() throws StoreException {
-    String[] keys = listStoreEntries();
-    logger.trace("Getting metadata for " + keys.length + " keys");
-    return getStoreEntriesMetadata(keys);
+  public Map<String, StoreEntryMetadata> getStoreEntriesMetadata() throws StoreException {
+    CompactMetadataMap metaMap = new CompactMetadataMap();
+
+    StoreCursor<Map.Entry<String, StoreEntryMetadata>> cursor;
+    cursor = getStoreEntriesMetadata(activeEntriesQuery());
+    try {
+      while (cursor.hasNext()) {
+        Map.Entry<String, StoreEntryMetadata> e = cursor.next();
+        metaMap.put(e.getKey(), e.getValue());
+      }
+    } finally {
+      cursor.close();
+    }
+
+    logger.trace("Got metadata for " + metaMap.size() + " keys");
+    return metaMap;
+  }
+
+  /*
+   * Implementation of Store.getStoreEntriesMetadata(query)
+   */
+  public StoreCursor<Map.Entry<String, StoreEntryMetadata>> getStoreEntriesMetadata(StoreQuery query)
+    throws StoreException
+  {
+    final StoreCursor<String> keys = listStoreEntries(query);
+    final int pageSize = query.getPageSize();
+
+    /* Metadata are read a page of keys at a time */
+    return new AbstractStoreCursor<Map.Entry<String, StoreEntryMetadata>>(pageSize) {
+      private Iterator<Map.Entry<String, StoreEntryMetadata>> page = null;
+
+      protected Map.Entry<String, StoreEntryMetadata> fetchNext() {
+        while (page == null || !page.hasNext()) {
+          if (!keys.hasNext()) return null;
+
+          ArrayList<String> pageKeys = new ArrayList<String>(pageSize);
+          while (pageKeys.size() < pageSize && keys.hasNext()) pageKeys.add(keys.next());
+
+          String keyArray[] = pageKeys.toArray(new String[pageKeys.size()]);
+          Map<String, StoreEntryMetadata> metadata = getStoreEntriesMetadata(keyArray);
+          ArrayList<Map.Entry<String, StoreEntryMetadata>> entries;
+          entries = new ArrayList<Map.Entry<String, StoreEntryMetadata>>(metadata.size());
+          for (String key: keyArray) {
+            StoreEntryMetadata meta = metadata.get(key);
+            if (meta != null) entries.add(new MetadataEntry(key, meta));
+          }
+          page = entries.iterator();
+        }
+        return page.next();
+      }
+
+      protected void release() {
+        keys.close();
+      }
+    };
   }
 
   /*
    * Implementation of Store.getStoreEntriesMetadata(keys)
    */
-  public HashMap<String, StoreEntryMetadata> getStoreEntriesMetadata(String keys[]) {
-    HashMap<String, StoreEntryMetadata> metaMap = new HashMap<String, StoreEntryMetadata>();
+  public Map<String, StoreEntryMetadata> getStoreEntriesMetadata(String keys[]) {
+    CompactMetadataMap metaMap = new CompactMetadataMap(keys.length);
 
     StoreEntryMetadata meta;
+    try {
+      Map<String, StoreEntryMetadata> metadata = persistenceHandler.readMetadata(keys);
+      for (String key: keys) {
+        meta = metadata.get(key);
+        if (meta != null) metaMap.put(key, meta);
+      }
+      return metaMap;
+    } catch (RuntimeException e) {
+      logger.warn("Error retrieving metadata for " + keys.length + " keys: retrying one by one", e);
+    }
+
     for (String key: keys) {
       try {
         meta = getStoreEntryMetadata(key);
@@ -219,15 +336,13 @@ public class SimpleStore implements Store {
       throw new IllegalArgumentException("No entry for the specified key: " + key);
 
     StoreEntryMetadata newMeta;
-    HashMap<String, String> userMetadata;
-
-    userMetadata = new HashMap<String, String>(meta.getUserMetadata());
+    Map<String, String> userMetadata = meta.getUserMetadata();
 
-    newMeta = new SimpleStoreEntryMetadata(meta.getModifiedTimestamp(),
-                                           oldMeta.getContentLength(),
-                                           oldMeta.getContentMD5(),
-                                           meta.getContentType(),
-                                           userMetadata);
+    newMeta = new CompactStoreEntryMetadata(meta.getModifiedTimestamp(),
+                                            oldMeta.getContentLength(),
+                                            oldMeta.getContentMD5(),
+                                            meta.getContentType(),
+                                            userMetadata);
     putStoreEntryMetadata(key, newMeta);
     logger.info("Updating metadata for key: " + key);
     boolean update = false;
@@ -246,20 +361,60 @@ public class SimpleStore implements Store {
    * Implementation of Store.getStoreEntries()
    */
   public StoreEntry[] getStoreEntries() {
-    String[] keys = listStoreEntries();
+    ArrayList<StoreEntry> dump = new ArrayList<StoreEntry>();
+
+    StoreCursor<StoreEntry> cursor = getStoreEntries(activeEntriesQuery());
+    try {
+      while (cursor.hasNext()) dump.add(cursor.next());
+    } finally {
+      cursor.close();
+    }
+
+    return dump.toArray(new StoreEntry[dump.size()]);
+  }
 
-    return getStoreEntries(keys);
+  /*
+   * Implementation of Store.getStoreEntries(query)
+   */
+  public StoreCursor<StoreEntry> getStoreEntries(StoreQuery query) throws StoreException {
+    final StoreCursor<String> keys = listStoreEntries(query);
+
+    return new AbstractStoreCursor<StoreEntry>(query.getPageSize()) {
+      protected StoreEntry fetchNext() {
+        while (keys.hasNext()) {
+          String key = keys.next();
+          try {
+            StoreEntry entry = getStoreEntry(key);
+            if (entry != null) return entry;
+          } catch (Exception e) {
+            logger.warn("Error retrieving entry for key: " + key, e);
+          }
+        }
+        return null;
+      }
+
+      protected void release() {
+        keys.close();
+      }
+    };
   }
 
   /*
    * Implementation of Store.getStoreEntries(keys)
    */
   public StoreEntry[] getStoreEntries(String[] keys) {
-    ArrayList<StoreEntry> dump = new ArrayList<StoreEntry>(keys.length);
+    try {
+      return persistenceHandler.read(keys);
+    } catch (RuntimeException e) {
+      logger.warn("Error retrieving " + keys.length + " entries: retrying one by one", e);
+    }
 
+    ArrayList<StoreEntry> dump = new ArrayList<StoreEntry>(keys.length);
+    StoreEntry entry;
     for (String key: keys) {
       try {
-        dump.add(getStoreEntry(key));
+        entry = getStoreEntry(key);
+        if (entry != null) dump.add(entry);
       } catch (Exception e) {
         logger.warn("Error retrieving metadata for key: " + key, e);
       }
@@ -286,44 +441,158 @@ public class SimpleStore implements Store {
 
 
   /*
-   * Implementation of Store.updateStoreEntries(entries)
+   * Implementation of Store.putStoreEntries(entries)
    */
-  public void updateStoreEntries(StoreEntry[] entries)  {
-    StoreEntryMetadata localMeta;
-    StoreEntryMetadata newMeta;
+  public void putStoreEntries(StoreEntry[] entries) throws StoreException {
+    if (entries.length == 0) return;
+
+    StoreEntry batch[] = RetryableStoreEntry.wrap(entries, MAX_RETRY_BUFFER);
+    try {
+      putStoreEntriesBatch(batch);
+    } catch (StoreException e) {
+      if (entries.length == 1) throw e;
+      logger.warn(String.format("Error writing %d entries: writing them one at a time",
+                                entries.length), e);
+      putStoreEntriesEach(batch);
+      return;
+    }
 
+    String keys[] = new String[entries.length];
+    for (int i = 0; i < entries.length; i++) keys[i] = entries[i].getKey();
+    notifyUpdates(keys);
+  }
 
+  /**
+   * Writes one at a time the entries of a failed batch, notifying those written.
+   *
+   * @exception StoreException If any of the entries can't be written
+   */
+  private void putStoreEntriesEach(StoreEntry batch[]) throws StoreException {
     List<String> keys = new ArrayList<String>();
-    for (StoreEntry e: entries) {
+    StoreException failure = null;
+    for (StoreEntry e: batch) {
+      StoreEntry entry = RetryableStoreEntry.retry(e);
       try {
-        localMeta = getStoreEntryMetadata(e.getKey());
-      } catch (Exception ex) {
-        logger.warn("Error retrieving metadata: skip update for " + e.getKey(), ex);
+        if (entry == null) throw new StoreException("Content already consumed by the batch");
+        putStoreEntry(entry);
+        keys.add(e.getKey());
+      } catch (StoreException ex) {
+        logger.warn("Error writing entry. Skipping " + e.getKey(), ex);
+        if (failure == null) failure = new StoreException("Error writing entry: " + e.getKey(), ex);
+      }
+    }
+
+    if (keys.size() > 0) notifyUpdates(keys.toArray(new String[keys.size()]));
+    if (failure != null) throw failure;
+  }
+
+  /**
+   * Conditionally writes one at a time the entries of a failed batch. Entries which can't be
+   * written are logged and marked as failed.
+   *
+   * @return Whether each entry has been written
+   */
+  private boolean[] compareAndPutEach(StoreEntry batch[], StoreEntryMetadata expected[],
+                                     boolean failed[])
+  {
+    boolean written[] = new boolean[batch.length];
+    for (int i = 0; i < batch.length; i++) {
+      StoreEntry entry = RetryableStoreEntry.retry(batch[i]);
+      if (entry == null) {
+        logger.warn("Error updating entry, its content can't be read again. Skipping " +
+                    batch[i].getKey());
+        failed[i] = true;
         continue;
       }
-      newMeta = e.getMetadata();
 
-      long timestamp = 0;
-      String md5 = null;
-      if (localMeta != null) {
-        timestamp = localMeta.getModifiedTimestamp().getTime();
-        md5 = localMeta.getContentMD5();
+      try {
+        written[i] = compareAndPutStoreEntries(new StoreEntry[] {entry},
+                                               new StoreEntryMetadata[] {expected[i]})[0];
+        /* The failed batch may have written the entry before failing */
+        if (!written[i])
+          written[i] = CompactStoreEntryMetadata.sameVersion(getStoreEntryMetadata(entry.getKey()),
+                                                             entry.getMetadata());
+      } catch (Exception ex) {
+        logger.warn("Error updating entry. Skipping " + batch[i].getKey(), ex);
+        failed[i] = true;
       }
+    }
+    return written;
+  }
+
+  /*
+   * Implementation of Store.updateStoreEntries(entries). <br>
+   * Entries fresher than the local ones are written conditionally on the local version read
+   * for the comparison: if a concurrent writer replaced the local entry in the meantime, the
+   * comparison is repeated against the new version, so an entry never goes back in time.
+   */
+  public void updateStoreEntries(StoreEntry[] entries)  {
+    List<StoreEntry> pending = new ArrayList<StoreEntry>(entries.length);
+    for (StoreEntry e: entries) pending.add(e);
 
+    List<String> updated = new ArrayList<String>();
+    for (int attempt = 1; !pending.isEmpty(); attempt++) {
+      List<StoreEntry> fresher = new ArrayList<StoreEntry>();
+      List<StoreEntryMetadata> expected = new ArrayList<StoreEntryMetadata>();
 
-      if (timestamp < newMeta.getModifiedTimestamp().getTime()) {
+      StoreEntryMetadata localMeta;
+      for (StoreEntry e: pending) {
         try {
-          logger.info("Putting entry " + e.getKey());
-          putStoreEntry(e);
-          keys.add(e.getKey());
+          localMeta = getStoreEntryMetadata(e.getKey());
         } catch (Exception ex) {
-        logger.warn("Error updating entry. Skipping " + e.getKey(), ex);
-        continue;
+          logger.warn("Error retrieving metadata: skip update for " + e.getKey(), ex);
+          continue;
         }
+
+        long timestamp = 0;
+        if (localMeta != null) timestamp = localMeta.getModifiedTimestamp().getTime();
+
+        if (timestamp < e.getMetadata().getModifiedTimestamp().getTime()) {
+          fresher.add(e);
+          expected.add(localMeta);
+        }
+      }
+
+      if (fresher.size() == 0) break;
+
+      /* If the batch fails its entries are written one at a time, so that a bad entry doesn't
+       * prevent the others from being written */
+      StoreEntry batch[] =
+        RetryableStoreEntry.wrap(fresher.toArray(new StoreEntry[fresher.size()]),
+                                 MAX_RETRY_BUFFER);
+      StoreEntryMetadata expectedMeta[] = expected.toArray(new StoreEntryMetadata[expected.size()]);
+      boolean written[];
+      boolean failed[] = new boolean[batch.length];
+      try {
+        written = compareAndPutStoreEntries(batch, expectedMeta);
+      } catch (Exception ex) {
+        if (batch.length == 1) {
+          logger.warn("Error updating entry. Skipping " + batch[0].getKey(), ex);
+          break;
+        }
+        logger.warn(String.format("Error updating %d entries: writing them one at a time",
+                                  batch.length), ex);
+        written = compareAndPutEach(batch, expectedMeta, failed);
+      }
+
+      pending.clear();
+      for (int i = 0; i < written.length; i++) {
+        if (written[i]) {
+          logger.info("Putting entry " + fresher.get(i).getKey());
+          updated.add(fresher.get(i).getKey());
+        } else if (!failed[i]) {
+          pending.add(fresher.get(i));
+        }
+      }
+
+      if (!pending.isEmpty() && attempt >= MAX_UPDATE_ATTEMPTS) {
+        logger.warn(String.format("Entries concurrently modified. Skipping %d entries",
+                                  pending.size()));
+        break;
       }
     }
 
-    if (keys.size() > 0) notifyUpdates(keys.toArray(new String[keys.size()]));
+    if (updated.size() > 0) notifyUpdates(updated.toArray(new String[updated.size()]));
   }
 
   /*
@@ -337,6 +606,29 @@ public class SimpleStore implements Store {
     }
   }
 
+  /*
+   * Implementation of Store.listStoreEntries(query)
+   */
+  public StoreCursor<String> listStoreEntries(StoreQuery query) throws StoreException {
+    final Iterator<String> keys;
+    try {
+      keys = persistenceHandler.listEntries(query.getPrefix(), query.getSince(), query.getUntil(),
+                                            query.getPageSize());
+    } catch (RuntimeException e) {
+      throw new StoreException("Error listing entries", e);
+    }
+
+    return new AbstractStoreCursor<String>(query.getPageSize()) {
+      protected String fetchNext() {
+        try {
+          return keys.hasNext() ? keys.next() : null;
+        } catch (RuntimeException e) {
+          throw new StoreException("Error listing entries", e);
+        }
+      }
+    };
+  }
+
   /*
    * Implementation of Store.getStoreEntryMetadata(key)
    */
@@ -359,6 +651,19 @@ public class SimpleStore implements Store {
     }
   }
 
+  /*
+   * Implementation of Store.getStoreEntry(key, offset, length)
+   */
+  public StoreEntry getStoreEntry(String key, long offset, long length) {
+    if (offset < 0 || length <= 0) throw new IllegalArgumentException("Invalid range");
+
+    try {
+      return persistenceHandler.read(key, offset, length);
+    } catch (RuntimeException e) {
+      throw new StoreException("Error reading entry range", e);
+    }
+  }
+
   /*
    * Implementation of Store.containsStoreEntry(key)
    */
@@ -389,11 +694,11 @@ public class SimpleStore implements Store {
       throw new IllegalArgumentException("No entry for the specified key");
 
 
-    newMeta = new SimpleStoreEntryMetadata(oldMeta.getModifiedTimestamp(),
-                                           oldMeta.getContentLength(),
-                                           oldMeta.getContentMD5(),
-                                           oldMeta.getContentType(),
-                                           userMetadata);
+    newMeta = new CompactStoreEntryMetadata(oldMeta.getModifiedTimestamp(),
+                                            oldMeta.getContentLength(),
+                                            oldMeta.getContentMD5(),
+                                            oldMeta.getContentType(),
+                                            userMetadata);
 
     try {
       persistenceHandler.writeMetadata(key, newMeta);
@@ -406,7 +711,7 @@ public class SimpleStore implements Store {
    * Implementation of Store.compareStoreEntries(remoteEntries)
    */
   public StoreCompareResult compareStoreEntries(StoreEntry[] remoteEntries) {
-    HashMap<String, StoreEntryMetadata> remoteMeta = new HashMap<String, StoreEntryMetadata>();
+    CompactMetadataMap remoteMeta = new CompactMetadataMap(remoteEntries.length);
 
     for (StoreEntry e: remoteEntries) remoteMeta.put(e.getKey(), e.getMetadata());
 
@@ -416,7 +721,7 @@ public class SimpleStore implements Store {
   /*
    * Implementation Store.compareStoreEntries(remoteMeta)
    */
-  public StoreCompareResult compareStoreEntries(HashMap<String, StoreEntryMetadata> remoteMetadata) {
+  public StoreCompareResult compareStoreEntries(Map<String, StoreEntryMetadata> remoteMetadata) {
     List<String> keysFresherOnRemote = new ArrayList<String>();
     List<String> keysFresherOnLocal = new ArrayList<String>();
     List<String> metaChangedOnRemote = new ArrayList<String>();
@@ -550,6 +855,30 @@ public class SimpleStore implements Store {
     }
   }
 
+  /*
+   * Implementation of putStoreEntriesBatch(entries)
+   */
+  protected void putStoreEntriesBatch(StoreEntry entries[]) throws StoreException {
+    try {
+      persistenceHandler.write(entries);
+    } catch (RuntimeException e) {
+      throw new StoreException(String.format("Error writing %d entries", entries.length), e);
+    }
+  }
+
+  /*
+   * Implementation of compareAndPutStoreEntries(entries, expected)
+   */
+  protected boolean[] compareAndPutStoreEntries(StoreEntry entries[], StoreEntryMetadata expected[])
+    throws StoreException
+  {
+    try {
+      return persistenceHandler.compareAndWrite(entries, expected);
+    } catch (RuntimeException e) {
+      throw new StoreException(String.format("Error writing %d entries", entries.length), e);
+    }
+  }
+
   /*
    * Implementation of putStoreEntry(entry)
    */
@@ -88,7 +88,7 @@ public class SimpleStoreEntry implements StoreEntry {
 
   private void writeObject(ObjectOutputStream out) throws IOException {
     out.writeUTF(key);
-    out.writeObject(metadata);
+    out.writeObject(CompactStoreEntryMetadata.toWire(metadata));
 
     long length = pipeData(this.in, out);
     if (length != metadata.getContentLength())
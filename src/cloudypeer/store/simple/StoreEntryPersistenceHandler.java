@@ -7,6 +7,7 @@ package cloudypeer.store.simple;
 
 import java.io.InputStream;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Map;
 
 import cloudypeer.store.StoreEntry;
@@ -42,6 +43,34 @@ public interface StoreEntryPersistenceHandler {
    */
   public void write(StoreEntry e) throws RuntimeException;
 
+  /**
+   * Persist all the specified entries (overwriting any matching entry already present in the
+   * store). <br>
+   * Implementations should persist the whole batch at once (i.e. in a single transaction) when
+   * the underlying storage allows it.
+   *
+   * @param entries Entries to persist
+   * @exception RuntimeException if an error occurs
+   */
+  public void write(StoreEntry entries[]) throws RuntimeException;
+
+  /**
+   * Persist each of the specified entries only if the entry currently stored matches the
+   * expected version (same modified timestamp and content MD5, see
+   * {@link CompactStoreEntryMetadata#sameVersion}). <br>
+   * The check and the write are atomic with respect to all the other writes performed through
+   * this handler. The content of an entry that isn't written is not consumed, so the entry can
+   * be submitted again.
+   *
+   * @param entries Entries to persist
+   * @param expected Expected current metadata of each entry (null if the entry is expected to be
+   * absent)
+   * @return For each entry, true if it has been written
+   * @exception RuntimeException if an error occurs
+   */
+  public boolean[] compareAndWrite(StoreEntry entries[], StoreEntryMetadata expected[])
+    throws RuntimeException;
+
   /**
    * Update the metadata of the already persistent entry associated to the specified key.
    *
@@ -60,6 +89,21 @@ public interface StoreEntryPersistenceHandler {
    */
   public StoreEntry read(String key) throws RuntimeException;
 
+  /**
+   * Read a range of the content of the entry associated to the specified key. The metadata of
+   * the returned entry describe the whole entry; if the range exceeds the end of the content only
+   * the available bytes are returned. <br>
+   * Implementations should transfer only the requested range when the underlying storage allows
+   * it.
+   *
+   * @param key Key to read
+   * @param offset Index of the first byte to read
+   * @param length Maximum number of bytes to read
+   * @return A StoreEntry instance or null if no such key was present
+   * @exception RuntimeException if an error occurs
+   */
+  public StoreEntry read(String key, long offset, long length) throws RuntimeException;
+
   /**
    * Read the entry metadata associated to the specified key.
    *
@@ -69,6 +113,29 @@ public interface StoreEntryPersistenceHandler {
    */
   public StoreEntryMetadata readMetadata(String key) throws RuntimeException;
 
+  /**
+   * Read the entries associated to the specified keys. Keys not present are skipped. <br>
+   * Implementations should read the whole batch at once (i.e. with a single request) when the
+   * underlying storage allows it.
+   *
+   * @param keys Keys to read
+   * @return Entries present, in no particular order
+   * @exception RuntimeException if an error occurs
+   */
+  public StoreEntry[] read(String keys[]) throws RuntimeException;
+
+  /**
+   * Read the metadata of the entries associated to the specified keys. Keys not present are
+   * skipped. <br>
+   * Implementations should read the whole batch at once (i.e. with a single request) when the
+   * underlying storage allows it.
+   *
+   * @param keys Keys to read
+   * @return Map of the keys present to their metadata
+   * @exception RuntimeException if an error occurs
+   */
+  public Map<String, StoreEntryMetadata> readMetadata(String keys[]) throws RuntimeException;
+
   /**
    * List all the entries' key that have a modification date greater than the specified
    * timestamp. If the timestamp is null, lists all the entries.
@@ -79,6 +146,20 @@ public interface StoreEntryPersistenceHandler {
    */
   public String[] listEntries(Date timestamp) throws RuntimeException;
 
+  /**
+   * Lazily iterates over the keys of the entries matching the specified filters. Keys are
+   * fetched from the underlying storage a page at a time.
+   *
+   * @param prefix Returns only keys starting with prefix, or null
+   * @param since Returns only entries modified after this date, or null
+   * @param until Returns only entries modified up to this date, or null
+   * @param pageSize Number of keys fetched at once
+   * @return Keys iterator
+   * @exception RuntimeException if an error occurs
+   */
+  public Iterator<String> listEntries(String prefix, Date since, Date until, int pageSize)
+    throws RuntimeException;
+
   /**
    * Checks if the specified entry is present
    *
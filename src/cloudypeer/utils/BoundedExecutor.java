@@ -0,0 +1,156 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.utils;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor limiting the number of tasks concurrently running on a shared executor. <br>
+ * Tasks exceeding the limit are queued and handed to the underlying executor as running tasks
+ * complete, so neither the submitting thread nor the threads of the shared executor are ever
+ * blocked waiting for a slot. Several instances can share the same executor, each one with its
+ * own limit (e.g. one per cloud).
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class BoundedExecutor implements Executor {
+
+  private Executor executor;
+  private int maxConcurrency;
+  private int active = 0;
+  private LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>BoundedExecutor</code> instance.
+   *
+   * @param executor Executor running the tasks
+   * @param maxConcurrency Maximum number of tasks running at once
+   */
+  public BoundedExecutor(Executor executor, int maxConcurrency) {
+    if (executor == null) throw new IllegalArgumentException("Null executor");
+    if (maxConcurrency <= 0)
+      throw new IllegalArgumentException("Concurrency limit must be greater than 0");
+
+    this.executor = executor;
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the maximum number of tasks running at once.
+   *
+   * @return Concurrency limit
+   */
+  public synchronized int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Sets the maximum number of tasks running at once. Raising the limit immediately starts the
+   * queued tasks fitting in it; lowering it lets the running tasks complete.
+   *
+   * @param maxConcurrency Concurrency limit
+   */
+  public void setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency <= 0)
+      throw new IllegalArgumentException("Concurrency limit must be greater than 0");
+
+    synchronized (this) {
+      this.maxConcurrency = maxConcurrency;
+    }
+    startQueued();
+  }
+
+  /**
+   * Returns the number of tasks currently running.
+   *
+   * @return Running tasks
+   */
+  public synchronized int getActive() {
+    return active;
+  }
+
+  /**
+   * Returns the number of tasks waiting for a slot.
+   *
+   * @return Queued tasks
+   */
+  public synchronized int getQueued() {
+    return queue.size();
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  /**
+   * Hands queued tasks to the executor while there are free slots.
+   */
+  private void startQueued() {
+    Runnable task;
+    while (true) {
+      synchronized (this) {
+        if (active >= maxConcurrency || queue.isEmpty()) return;
+        task = queue.removeFirst();
+        active++;
+      }
+      start(task);
+    }
+  }
+
+  private void start(final Runnable task) {
+    try {
+      executor.execute(new Runnable() {
+          public void run() {
+            try {
+              task.run();
+            } finally {
+              completed();
+            }
+          }
+        });
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        active--;
+      }
+      throw e;
+    }
+  }
+
+  private void completed() {
+    synchronized (this) {
+      active--;
+    }
+    startQueued();
+  }
+
+  /* *********************************************************************
+   * Implementation of Executor interface
+   ***********************************************************************/
+
+  public void execute(Runnable task) {
+    if (task == null) throw new NullPointerException("Null task");
+
+    synchronized (this) {
+      if (active >= maxConcurrency) {
+        queue.addLast(task);
+        return;
+      }
+      active++;
+    }
+    start(task);
+  }
+}
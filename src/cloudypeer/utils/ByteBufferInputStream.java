@@ -0,0 +1,91 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream reading the remaining bytes of a ByteBuffer. The buffer is duplicated, so its
+ * position is not affected and it can be shared among several streams.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  private ByteBuffer buffer;
+  private int mark;
+
+  /**
+   * Builds a new ByteBufferInputStream reading the remaining bytes of the specified buffer.
+   *
+   * @param buffer Source buffer
+   */
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+    this.mark = this.buffer.position();
+  }
+
+  /**
+   * Builds a new ByteBufferInputStream reading a region of the specified buffer.
+   *
+   * @param buffer Source buffer
+   * @param offset Index of the first byte to read
+   * @param length Number of bytes to read
+   */
+  public ByteBufferInputStream(ByteBuffer buffer, int offset, int length) {
+    this.buffer = buffer.duplicate();
+    this.buffer.limit(offset + length);
+    this.buffer.position(offset);
+    this.mark = offset;
+  }
+
+  @Override
+  public int read() {
+    if (!buffer.hasRemaining()) return -1;
+    return buffer.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte b[], int off, int len) {
+    if (len == 0) return 0;
+    if (!buffer.hasRemaining()) return -1;
+
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public long skip(long n) {
+    if (n <= 0) return 0;
+
+    int skipped = (int) Math.min(n, buffer.remaining());
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+    mark = buffer.position();
+  }
+
+  @Override
+  public void reset() {
+    buffer.position(mark);
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.utils;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread safe, size bounded cache whose entries expire after a fixed time to live. <br>
+ * <ul>
+ *   <li>Values are loaded through a {@link Loader}. Concurrent misses on the same key are
+ *   coalesced in a single load.</li>
+ *   <li>Absent values (null returned by the loader) are cached as well, for a separate negative
+ *   time to live.</li>
+ *   <li>If an executor is available, entries read when close to their expiration are reloaded in
+ *   background (refresh-ahead), so that hot keys never block on a load.</li>
+ *   <li>When the size bound is exceeded entries are evicted following the CLOCK (second chance)
+ *   policy: recently read entries survive one eviction round.</li>
+ *   <li>A value loaded before the key was invalidated, or before a newer value was put, is
+ *   discarded when the load completes.</li>
+ * </ul>
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class ExpiringCache<K, V> {
+
+  static Logger logger = Logger.getLogger(ExpiringCache.class);
+
+  /**
+   * Fraction of the time to live after which a read entry is refreshed ahead
+   */
+  public static final double DEFAULT_REFRESH_AHEAD_FACTOR = 0.8;
+
+  /**
+   * Loads the values of the cache.
+   */
+  public interface Loader<K, V> {
+
+    /**
+     * Loads the value associated to the specified key.
+     *
+     * @param key Key to load
+     * @return Loaded value or null if the key has no value
+     */
+    public V load(K key);
+  }
+
+  /**
+   * Cached value
+   */
+  private static class Entry<V> {
+    final V value;
+    final long sequence;
+    final long expireTime;
+    final long refreshTime;
+    volatile boolean referenced = true;
+    final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    Entry(V value, long sequence, long loadTime, long ttl, double refreshAheadFactor) {
+      this.value = value;
+      this.sequence = sequence;
+      this.expireTime = loadTime + ttl;
+      this.refreshTime = loadTime + (long) (ttl * refreshAheadFactor);
+    }
+  }
+
+  /* *********************************************************************
+   * Instance variables
+   ***********************************************************************/
+
+  private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+
+  /**
+   * In flight loads
+   */
+  private final ConcurrentHashMap<K, FutureTask<V>> loading =
+    new ConcurrentHashMap<K, FutureTask<V>>();
+
+  /**
+   * Orders loads, puts and invalidations: a value is stored only if no newer value or
+   * invalidation exists for its key
+   */
+  private final AtomicLong sequence = new AtomicLong(0);
+
+  /**
+   * Sequence of the last invalidation of the keys invalidated while being loaded
+   */
+  private final ConcurrentHashMap<K, Long> invalidations = new ConcurrentHashMap<K, Long>();
+
+  /**
+   * CLOCK hand: keys in insertion order
+   */
+  private final ConcurrentLinkedQueue<K> clock = new ConcurrentLinkedQueue<K>();
+  private final AtomicInteger clockLength = new AtomicInteger(0);
+  private final AtomicBoolean compacting = new AtomicBoolean(false);
+  private final AtomicInteger size = new AtomicInteger(0);
+
+  private final Loader<K, V> loader;
+  private final Executor refreshExecutor;
+  private final int maxSize;
+  private volatile long ttl;
+  private volatile long negativeTTL;
+  private volatile double refreshAheadFactor = DEFAULT_REFRESH_AHEAD_FACTOR;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>ExpiringCache</code> instance.
+   *
+   * @param loader Loader of the cache values
+   * @param maxSize Maximum number of cached entries
+   * @param ttl Time to live of the entries in milliseconds
+   * @param negativeTTL Time to live of the absent values in milliseconds (0 to disable negative
+   * caching)
+   * @param refreshExecutor Executor used to refresh entries ahead of expiration, or null to
+   * disable refresh-ahead
+   */
+  public ExpiringCache(Loader<K, V> loader, int maxSize, long ttl, long negativeTTL,
+                       Executor refreshExecutor)
+  {
+    if (loader == null) throw new IllegalArgumentException("Null loader");
+    if (maxSize <= 0) throw new IllegalArgumentException("Cache size must be greater than 0");
+
+    this.loader = loader;
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    this.negativeTTL = negativeTTL;
+    this.refreshExecutor = refreshExecutor;
+  }
+
+  /* *********************************************************************
+   * Getters/Setters
+   ***********************************************************************/
+
+  /**
+   * Returns the time to live of the entries.
+   *
+   * @return TTL in milliseconds
+   */
+  public long getTTL() {
+    return ttl;
+  }
+
+  /**
+   * Sets the time to live of the entries. Already cached entries are not affected.
+   *
+   * @param ttl TTL in milliseconds
+   */
+  public void setTTL(long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * Returns the time to live of the absent values.
+   *
+   * @return Negative TTL in milliseconds
+   */
+  public long getNegativeTTL() {
+    return negativeTTL;
+  }
+
+  /**
+   * Sets the time to live of the absent values. Already cached entries are not affected.
+   *
+   * @param negativeTTL Negative TTL in milliseconds (0 to disable negative caching)
+   */
+  public void setNegativeTTL(long negativeTTL) {
+    this.negativeTTL = negativeTTL;
+  }
+
+  /**
+   * Sets the fraction of the time to live after which a read entry is refreshed in background.
+   *
+   * @param factor Refresh-ahead factor in (0, 1]
+   */
+  public void setRefreshAheadFactor(double factor) {
+    if (factor <= 0 || factor > 1) throw new IllegalArgumentException("Invalid factor: " + factor);
+    this.refreshAheadFactor = factor;
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private Entry<V> newEntry(V value, long sequence, long loadTime) {
+    return new Entry<V>(value, sequence, loadTime, (value != null) ? ttl : negativeTTL,
+                        refreshAheadFactor);
+  }
+
+  /**
+   * Stores the entry unless a fresher one has been stored, or the key invalidated, in the
+   * meantime.
+   */
+  private void store(K key, Entry<V> entry) {
+    Entry<V> old;
+    while (true) {
+      old = entries.putIfAbsent(key, entry);
+      if (old == null) {
+        clock.offer(key);
+        if (clockLength.incrementAndGet() > 2 * maxSize) compactClock();
+        if (size.incrementAndGet() > maxSize) evict();
+        break;
+      }
+      if (old.sequence > entry.sequence) return;
+      if (entries.replace(key, old, entry)) break;
+    }
+
+    /* Checked after storing: invalidate() records the invalidation before removing the entry,
+     * so an invalidation racing with this store is always seen by one of the two */
+    Long invalidated = invalidations.get(key);
+    if (invalidated == null) return;
+    if (invalidated > entry.sequence) {
+      if (entries.remove(key, entry)) size.decrementAndGet();
+    } else {
+      invalidations.remove(key, invalidated);
+    }
+  }
+
+  /**
+   * Runs the CLOCK hand until the cache is back under its size bound.
+   */
+  private void evict() {
+    K key;
+    Entry<V> entry;
+    while (size.get() > maxSize && (key = clock.poll()) != null) {
+      clockLength.decrementAndGet();
+      entry = entries.get(key);
+      if (entry == null) continue;
+
+      if (entry.referenced && entry.expireTime > System.currentTimeMillis()) {
+        entry.referenced = false;
+        clock.offer(key);
+        clockLength.incrementAndGet();
+      } else if (entries.remove(key) != null) {
+        size.decrementAndGet();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Drops from the CLOCK queue the keys invalidated (and possibly cached again) since they were
+   * queued, so that the queue stays proportional to the cache size.
+   */
+  private void compactClock() {
+    if (!compacting.compareAndSet(false, true)) return;
+
+    try {
+      HashSet<K> seen = new HashSet<K>();
+      Iterator<K> i = clock.iterator();
+      K key;
+      while (i.hasNext()) {
+        key = i.next();
+        if (!entries.containsKey(key) || !seen.add(key)) {
+          i.remove();
+          clockLength.decrementAndGet();
+        }
+      }
+    } finally {
+      compacting.set(false);
+    }
+  }
+
+  /**
+   * Loads the value of the key, coalescing concurrent loads of the same key.
+   */
+  private V load(final K key) {
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+        public V call() {
+          long loadSequence = sequence.incrementAndGet();
+          long loadTime = System.currentTimeMillis();
+          V value = loader.load(key);
+          loads.incrementAndGet();
+          if (value != null || negativeTTL > 0)
+            store(key, newEntry(value, loadSequence, loadTime));
+          return value;
+        }
+      });
+
+    FutureTask<V> running = loading.putIfAbsent(key, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        loading.remove(key, task);
+      }
+    }
+
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while loading " + key, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException("Error loading " + key, cause);
+    }
+  }
+
+  private void refreshAhead(final K key, final Entry<V> entry) {
+    if (!entry.refreshing.compareAndSet(false, true)) return;
+
+    try {
+      refreshExecutor.execute(new Runnable() {
+          public void run() {
+            try {
+              load(key);
+              refreshes.incrementAndGet();
+            } catch (RuntimeException e) {
+              logger.warn("Error refreshing cached value for key " + key, e);
+            }
+          }
+        });
+    } catch (RejectedExecutionException e) {
+      entry.refreshing.set(false);
+    }
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Returns the value associated to the key, loading it if it's not cached or expired.
+   *
+   * @param key Key to retrieve
+   * @return Associated value or null if the key has no value
+   */
+  public V get(K key) {
+    Entry<V> entry = entries.get(key);
+    long now = System.currentTimeMillis();
+
+    if (entry != null && entry.expireTime > now) {
+      hits.incrementAndGet();
+      entry.referenced = true;
+      if (refreshExecutor != null && entry.value != null && entry.refreshTime <= now)
+        refreshAhead(key, entry);
+      return entry.value;
+    }
+
+    misses.incrementAndGet();
+    return load(key);
+  }
+
+  /**
+   * Checks whether a non expired entry (possibly negative) is cached for the key.
+   *
+   * @param key Key to check
+   * @return True if a value or an absence is cached for the key
+   */
+  public boolean isCached(K key) {
+    Entry<V> entry = entries.get(key);
+    return entry != null && entry.expireTime > System.currentTimeMillis();
+  }
+
+  /**
+   * Caches the specified value.
+   *
+   * @param key Key to update
+   * @param value New value or null to cache the key absence
+   */
+  public void put(K key, V value) {
+    store(key, newEntry(value, sequence.incrementAndGet(), System.currentTimeMillis()));
+  }
+
+  /**
+   * Removes the cached value of the key. A load of the key already in progress doesn't cache
+   * its result.
+   *
+   * @param key Key to invalidate
+   */
+  public void invalidate(K key) {
+    long invalidation = sequence.incrementAndGet();
+    if (loading.containsKey(key)) invalidations.put(key, invalidation);
+    if (entries.remove(key) != null) size.decrementAndGet();
+  }
+
+  /**
+   * Removes the cached values of all the keys not contained in the specified collection.
+   *
+   * @param keys Keys to retain
+   */
+  public void retainAll(Collection<K> keys) {
+    Iterator<K> i = entries.keySet().iterator();
+    K key;
+    while (i.hasNext()) {
+      key = i.next();
+      if (!keys.contains(key)) invalidate(key);
+    }
+  }
+
+  /**
+   * Returns the number of cached entries.
+   *
+   * @return Cache size
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Returns the number of reads served by the cache.
+   *
+   * @return Number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of reads requiring a load.
+   *
+   * @return Number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of loads performed, including refreshes.
+   *
+   * @return Number of loads
+   */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * Returns the number of entries refreshed ahead of their expiration.
+   *
+   * @return Number of refreshes
+   */
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  /**
+   * Returns the number of entries evicted to respect the size bound.
+   *
+   * @return Number of evictions
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+}
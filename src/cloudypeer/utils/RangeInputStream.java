@@ -0,0 +1,90 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream reading a range of the underlying input stream. The bytes preceding the range are
+ * skipped on the first read, and the stream ends after the range or at the end of the underlying
+ * stream, whichever comes first. Closing this stream closes the underlying one.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class RangeInputStream extends InputStream {
+
+  private InputStream in;
+  private long offset;
+  private long remaining;
+
+  /**
+   * Builds a new RangeInputStream.
+   *
+   * @param in Source input stream
+   * @param offset Number of bytes to skip
+   * @param length Maximum number of bytes to read
+   */
+  public RangeInputStream(InputStream in, long offset, long length) {
+    if (offset < 0 || length < 0) throw new IllegalArgumentException("Invalid range");
+
+    this.in = in;
+    this.offset = offset;
+    this.remaining = length;
+  }
+
+  /**
+   * Skips the bytes preceding the range.
+   */
+  private void skipOffset() throws IOException {
+    while (offset > 0) {
+      long skipped = in.skip(offset);
+      if (skipped <= 0) {
+        /* skip() may return 0 before the end of the stream */
+        if (in.read() < 0) {
+          remaining = 0;
+          offset = 0;
+          return;
+        }
+        skipped = 1;
+      }
+      offset -= skipped;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    skipOffset();
+    if (remaining <= 0) return -1;
+
+    int read = in.read();
+    if (read >= 0) remaining--;
+    return read;
+  }
+
+  @Override
+  public int read(byte b[], int off, int len) throws IOException {
+    if (len == 0) return 0;
+    skipOffset();
+    if (remaining <= 0) return -1;
+
+    int read = in.read(b, off, (int) Math.min(len, remaining));
+    if (read > 0) remaining -= read;
+    return read;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (offset > 0) return 0;
+    return (int) Math.min(in.available(), remaining);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
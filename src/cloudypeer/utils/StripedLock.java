@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudypeer.utils;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared among an unbounded set of keys. Every key is mapped to one lock
+ * (stripe) by hashing, so that operations on different keys seldom contend while memory usage
+ * stays constant. <br>
+ * Several keys can be locked at once with {@link #lockAll}: the stripes are always acquired in
+ * the same order, so concurrent multi-key locks can't deadlock.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class StripedLock {
+
+  public static int DEFAULT_STRIPES = 64;
+
+  private ReentrantLock stripes[];
+
+  /* *********************************************************************
+   * Constructors
+   ***********************************************************************/
+
+  /**
+   * Creates a new <code>StripedLock</code> instance with {@value #DEFAULT_STRIPES} stripes.
+   */
+  public StripedLock() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * Creates a new <code>StripedLock</code> instance.
+   *
+   * @param stripes Number of locks
+   */
+  public StripedLock(int stripes) {
+    if (stripes <= 0) throw new IllegalArgumentException("Stripes must be greater than 0");
+
+    this.stripes = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) this.stripes[i] = new ReentrantLock();
+  }
+
+  /* *********************************************************************
+   * Utils methods
+   ***********************************************************************/
+
+  private int stripeIndex(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return (h & 0x7fffffff) % stripes.length;
+  }
+
+  /* *********************************************************************
+   * Public methods
+   ***********************************************************************/
+
+  /**
+   * Returns the lock guarding the specified key.
+   *
+   * @param key Key
+   * @return Key lock
+   */
+  public Lock getLock(Object key) {
+    return stripes[stripeIndex(key)];
+  }
+
+  /**
+   * Acquires the locks guarding all the specified keys. Each stripe is acquired once, in stripe
+   * order.
+   *
+   * @param keys Keys to lock
+   * @return Acquired locks, to be released with {@link #unlockAll}
+   */
+  public Lock[] lockAll(Object keys[]) {
+    boolean selected[] = new boolean[stripes.length];
+    int count = 0;
+    for (Object key: keys) {
+      int i = stripeIndex(key);
+      if (!selected[i]) {
+        selected[i] = true;
+        count++;
+      }
+    }
+
+    Lock locked[] = new Lock[count];
+    int n = 0;
+    try {
+      for (int i = 0; i < stripes.length; i++) {
+        if (!selected[i]) continue;
+        stripes[i].lock();
+        locked[n++] = stripes[i];
+      }
+    } catch (RuntimeException e) {
+      while (n > 0) locked[--n].unlock();
+      throw e;
+    }
+
+    return locked;
+  }
+
+  /**
+   * Releases locks acquired with {@link #lockAll}.
+   *
+   * @param locks Locks to release
+   */
+  public static void unlockAll(Lock locks[]) {
+    for (int i = locks.length - 1; i >= 0; i--) locks[i].unlock();
+  }
+}
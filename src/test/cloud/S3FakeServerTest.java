@@ -0,0 +1,386 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package test.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.cloud.s3.S3StorageCloud;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test of S3StorageCloud against an in-process fake S3 server. <br>
+ * The server keeps the objects of a single bucket in memory and verifies the AWS signature
+ * version 4 of every request, answering 403 to requests whose signature doesn't match. The
+ * test checks:
+ * <ul>
+ *   <li>the signing algorithm against the example of the AWS documentation;</li>
+ *   <li>that signed requests are accepted, also for keys needing URL encoding, and that
+ *   requests signed with a wrong secret key fail;</li>
+ *   <li>that 404 responses are returned as null objects and metadata;</li>
+ *   <li>that listings are fetched a page at a time, following the markers.</li>
+ * </ul>
+ * Usage: S3FakeServerTest. Exits with status 1 on failure.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class S3FakeServerTest {
+
+  private static final String BUCKET = "bucket";
+  private static final String REGION = "eu-test-1";
+  private static final String ACCESS_KEY = "AKTEST";
+  private static final String SECRET_KEY = "secret/key";
+
+  private static int failures = 0;
+
+  /**
+   * Gives access to the signing method of S3StorageCloud. Never instantiated.
+   */
+  private static class Signer extends S3StorageCloud {
+    private Signer() {
+      super(null);
+    }
+
+    static String signature(String secretKey, String region, String method, String path,
+                            SortedMap<String, String> query, SortedMap<String, String> headers,
+                            String payloadHash, String amzDate)
+    {
+      return sign(secretKey, region, method, path, query, headers, payloadHash, amzDate);
+    }
+  }
+
+  /**
+   * Object stored by the fake server
+   */
+  private static class StoredObject {
+    byte content[];
+    String eTag;
+    long lastModified;
+    TreeMap<String, String> headers = new TreeMap<String, String>();
+  }
+
+  /**
+   * Fake S3 server handling object and listing requests on a single bucket
+   */
+  private static class FakeS3 implements HttpHandler {
+    TreeMap<String, StoredObject> objects = new TreeMap<String, StoredObject>();
+    int listRequests = 0;
+    int rejected = 0;
+
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        synchronized (this) {
+          serve(exchange);
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        exchange.sendResponseHeaders(500, -1);
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void serve(HttpExchange exchange) throws Exception {
+      String method = exchange.getRequestMethod();
+      String rawPath = exchange.getRequestURI().getRawPath();
+      TreeMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      byte body[] = readAll(exchange.getRequestBody());
+
+      if (!verifySignature(exchange, method, rawPath, query)) {
+        rejected++;
+        send(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>".getBytes());
+        return;
+      }
+
+      String path = exchange.getRequestURI().getPath();
+      if (path.equals("/" + BUCKET) || path.equals("/" + BUCKET + "/")) {
+        list(exchange, query);
+        return;
+      }
+      String key = path.substring(BUCKET.length() + 2);
+      StoredObject object = objects.get(key);
+
+      if (method.equals("PUT")) {
+        StoredObject stored = new StoredObject();
+        stored.content = body;
+        stored.eTag = md5(body);
+        stored.lastModified = System.currentTimeMillis();
+        Headers headers = exchange.getRequestHeaders();
+        for (String name: headers.keySet()) {
+          String lower = name.toLowerCase();
+          if (lower.startsWith("x-amz-meta-") || lower.equals("content-type"))
+            stored.headers.put(lower, headers.getFirst(name));
+        }
+        objects.put(key, stored);
+        exchange.getResponseHeaders().add("ETag", "\"" + stored.eTag + "\"");
+        send(exchange, 200, new byte[0]);
+      } else if (method.equals("DELETE")) {
+        objects.remove(key);
+        send(exchange, 204, null);
+      } else if (object == null) {
+        send(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>".getBytes());
+      } else {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("ETag", "\"" + object.eTag + "\"");
+        headers.add("Last-Modified", httpDate(object.lastModified));
+        for (Map.Entry<String, String> e: object.headers.entrySet())
+          headers.add(e.getKey(), e.getValue());
+        if (method.equals("HEAD")) {
+          headers.add("Content-Length", Integer.toString(object.content.length));
+          exchange.sendResponseHeaders(200, -1);
+        } else {
+          send(exchange, 200, object.content);
+        }
+      }
+    }
+
+    private void list(HttpExchange exchange, TreeMap<String, String> query) throws IOException {
+      listRequests++;
+      String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+      String marker = query.get("marker");
+      int maxKeys = Integer.parseInt(query.get("max-keys"));
+
+      StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+      SortedMap<String, StoredObject> page =
+        (marker != null) ? objects.tailMap(marker + "\0") : objects;
+      int count = 0;
+      boolean truncated = false;
+      for (Map.Entry<String, StoredObject> e: page.entrySet()) {
+        if (!e.getKey().startsWith(prefix)) continue;
+        if (count == maxKeys) {
+          truncated = true;
+          break;
+        }
+        count++;
+        xml.append("<Contents><Key>").append(e.getKey()).append("</Key>")
+          .append("<LastModified>").append(isoDate(e.getValue().lastModified))
+          .append("</LastModified><ETag>&quot;").append(e.getValue().eTag)
+          .append("&quot;</ETag><Size>").append(e.getValue().content.length)
+          .append("</Size></Contents>");
+      }
+      xml.append("<IsTruncated>").append(truncated).append("</IsTruncated></ListBucketResult>");
+      send(exchange, 200, xml.toString().getBytes("UTF-8"));
+    }
+
+    /**
+     * Recomputes the signature of a request from the headers it declares as signed.
+     */
+    private boolean verifySignature(HttpExchange exchange, String method, String rawPath,
+                                    TreeMap<String, String> query)
+    {
+      Headers headers = exchange.getRequestHeaders();
+      String authorization = headers.getFirst("Authorization");
+      if (authorization == null) return false;
+      String amzDate = headers.getFirst("x-amz-date");
+      String scope = amzDate.substring(0, 8) + "/" + REGION + "/s3/aws4_request";
+      if (!authorization.startsWith("AWS4-HMAC-SHA256 Credential=" + ACCESS_KEY + "/" + scope))
+        return false;
+
+      int start = authorization.indexOf("SignedHeaders=") + "SignedHeaders=".length();
+      String signedNames = authorization.substring(start, authorization.indexOf(',', start));
+      TreeMap<String, String> signed = new TreeMap<String, String>();
+      for (String name: signedNames.split(";")) signed.put(name, headers.getFirst(name));
+
+      String expected = Signer.signature(SECRET_KEY, REGION, method, rawPath, query, signed,
+                                         headers.getFirst("x-amz-content-sha256"), amzDate);
+      return authorization.endsWith("Signature=" + expected);
+    }
+  }
+
+  /* *********************************************************************
+   * Utility methods
+   ***********************************************************************/
+
+  private static TreeMap<String, String> parseQuery(String rawQuery) throws IOException {
+    TreeMap<String, String> query = new TreeMap<String, String>();
+    if (rawQuery == null) return query;
+    for (String param: rawQuery.split("&")) {
+      int eq = param.indexOf('=');
+      String name = (eq < 0) ? param : param.substring(0, eq);
+      String value = (eq < 0) ? "" : param.substring(eq + 1);
+      query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+    }
+    return query;
+  }
+
+  private static void send(HttpExchange exchange, int status, byte body[]) throws IOException {
+    if (body == null || exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(status, -1);
+    } else {
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte buff[] = new byte[8192];
+    int len;
+    try {
+      while ((len = in.read(buff)) >= 0) out.write(buff, 0, len);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static String md5(byte content[]) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b: MessageDigest.getInstance("MD5").digest(content))
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String isoDate(long time) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(time));
+  }
+
+  private static String httpDate(long time) {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(time));
+  }
+
+  private static void check(boolean condition, String message) {
+    if (condition) {
+      System.out.println("ok: " + message);
+    } else {
+      failures++;
+      System.out.println("FAILED: " + message);
+    }
+  }
+
+  private static S3StorageCloud connect(int port, String secretKey) throws Exception {
+    URI uri = new URI("http", ACCESS_KEY + ":" + secretKey, "127.0.0.1", port, "/" + BUCKET,
+                      S3StorageCloud.PARAMETER_REGION + "=" + REGION, null);
+    return (S3StorageCloud) StorageCloud.getInstance("s3", CloudURI.getInstance("s3", uri));
+  }
+
+  /* *********************************************************************
+   * Test
+   ***********************************************************************/
+
+  public static void main(String args[]) throws Exception {
+    /* Example "GET Object" of the AWS signature version 4 documentation */
+    TreeMap<String, String> headers = new TreeMap<String, String>();
+    headers.put("host", "examplebucket.s3.amazonaws.com");
+    headers.put("range", "bytes=0-9");
+    headers.put("x-amz-content-sha256",
+                "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+    headers.put("x-amz-date", "20130524T000000Z");
+    String signature = Signer.signature("wJalrXUtnFEMI/K7MDENG/bPxRfiCYEXAMPLEKEY", "us-east-1",
+                                        "GET", "/test.txt", new TreeMap<String, String>(),
+                                        headers, headers.get("x-amz-content-sha256"),
+                                        "20130524T000000Z");
+    check(signature.equals("f0e8bdb87c964420e857bd35b5d6ed310bd44f0170aba48dd91039c6036bdb41"),
+          "signature of the AWS documentation example");
+
+    FakeS3 fake = new FakeS3();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", fake);
+    server.start();
+    int port = server.getAddress().getPort();
+
+    try {
+      S3StorageCloud cloud = connect(port, SECRET_KEY);
+
+      /* Signed requests, with a key needing encoding */
+      String key = "dir/a key+\u00e8";
+      cloud.put(key, "text/plain", new ByteArrayInputStream("hello".getBytes()), null);
+      CloudObject object = cloud.get(key);
+      String content = (object == null) ? null : new String(readAll(object.getInputStream()));
+      check("hello".equals(content) &&
+            object.getMetadata().getContentMD5().equals(md5("hello".getBytes())),
+            "put and get of an encoded key");
+
+      /* 404 mapping */
+      check(cloud.get("missing") == null, "get of a missing key returns null");
+      check(cloud.getMetadata("missing") == null, "getMetadata of a missing key returns null");
+      check(cloud.get("missing", 0, 3) == null, "ranged get of a missing key returns null");
+      cloud.remove(key);
+      check(cloud.get(key) == null, "get of a removed key returns null");
+
+      /* Pagination */
+      for (int i = 0; i < 25; i++) {
+        cloud.put(String.format("page/%02d", i), null,
+                  new ByteArrayInputStream(("v" + i).getBytes()), null);
+      }
+      cloud.put("other", null, new ByteArrayInputStream(new byte[0]), null);
+
+      int pageSize = S3StorageCloud.LIST_PAGE_SIZE;
+      S3StorageCloud.LIST_PAGE_SIZE = 10;
+      try {
+        fake.listRequests = 0;
+        String keys[] = cloud.list(null, "page/");
+        boolean ordered = keys.length == 25;
+        for (int i = 0; ordered && i < keys.length; i++)
+          ordered = keys[i].equals(String.format("page/%02d", i));
+        check(ordered, "list by prefix returns the 25 keys in order");
+        check(fake.listRequests == 3, "list by prefix fetches 3 pages of 10 keys (" +
+              fake.listRequests + " requests)");
+
+        fake.listRequests = 0;
+        int count = 0;
+        for (Iterator<String> i = cloud.listIterator(null, null, 7); i.hasNext(); i.next())
+          count++;
+        check(count == 26, "listIterator returns every key (" + count + ")");
+        check(fake.listRequests == 4, "listIterator fetches 4 pages of 7 keys (" +
+              fake.listRequests + " requests)");
+      } finally {
+        S3StorageCloud.LIST_PAGE_SIZE = pageSize;
+      }
+
+      check(fake.rejected == 0, "every signed request accepted");
+
+      /* Wrong secret key */
+      try {
+        connect(port, "wrong").getMetadata("other");
+        check(false, "request signed with a wrong key rejected");
+      } catch (CloudException e) {
+        check(fake.rejected == 1 && e.getMessage().contains("403"),
+              "request signed with a wrong key rejected: " + e.getMessage());
+      }
+    } finally {
+      server.stop(0);
+    }
+
+    if (failures > 0) {
+      System.out.println(failures + " checks FAILED");
+      System.exit(1);
+    }
+    System.out.println("All checks passed");
+    System.exit(0);
+  }
+}
@@ -16,7 +16,9 @@ import java.nio.ByteBuffer;
 import java.util.Date;
 
 import cloudypeer.PeerNode;
+import cloudypeer.cloud.AsyncStorageCloud;
 import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.MeteredStorageCloud;
 import cloudypeer.cloud.StorageCloud;
 import cloudypeer.epidemicbcast.antientropy.CloudEnabledAntiEntropyBroadcast;
 import cloudypeer.epidemicbcast.rumormongering.RumorMongeringBroadcast;
@@ -46,7 +48,7 @@ public class SimpleApp {
 
   private CloudURI peerSamplingCloudURI;
   private CloudURI storeCloudURI;
-  private StorageCloud storeCloud;
+  private MeteredStorageCloud storeCloud;
 
   private PeerNode localNode;
 
@@ -82,7 +84,8 @@ public class SimpleApp {
     this.simpleStore.addUpdateHandler(new SimpleStoreUpdateHandler("local"));
 
     this.storeCloudURI = CloudURI.getInstance(cloudProvider, storeURI);
-    this.storeCloud = StorageCloud.getInstance(cloudProvider, storeCloudURI);
+    this.storeCloud = new MeteredStorageCloud(StorageCloud.getInstance(cloudProvider, storeCloudURI));
+    this.storeCloud.registerMBean(localNode.toString());
     BasicCloudPersistenceHandler cloudPersistence = new BasicCloudPersistenceHandler(storeCloud, "store/");
     cloudPersistence.setKeysRefreshThreshold(10);
     cloudPersistence.setMetadataRefreshThreshold(2);
@@ -93,6 +96,8 @@ public class SimpleApp {
     this.antiEntropy = CloudEnabledAntiEntropyBroadcast.getDefaultInstance(localNode, peerSelectorAE,
                                                                     simpleStore, cloudStore);
     this.antiEntropy.setPeriod(15);
+    this.antiEntropy.setMeteredCloud(storeCloud);
+    this.antiEntropy.setAsyncCloud(new AsyncStorageCloud(storeCloud));
     this.rumorMongering = RumorMongeringBroadcast.getDefaultInstance(localNode, peerSelectorRM,
                                                                 simpleStore, 5);
     this.rumorMongering.setPeriod(4);
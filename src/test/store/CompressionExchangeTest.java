@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package test.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.security.MessageDigest;
+import java.util.Date;
+
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryDiff;
+import cloudypeer.store.StoreEntryDiffData;
+import cloudypeer.store.compression.CompressedStoreEntry;
+import cloudypeer.store.compression.CompressionPolicy;
+import cloudypeer.store.diff.FakeDiff;
+import cloudypeer.store.diff.FakeDiffData;
+import cloudypeer.store.diff.FakeDiffHandler;
+import cloudypeer.store.persistence.InMemoryPersistenceHandler;
+import cloudypeer.store.simple.SimpleStore;
+import cloudypeer.store.simple.SimpleStoreEntry;
+import cloudypeer.store.simple.SimpleStoreEntryMetadata;
+
+/**
+ * Checks that compressed entries are exchanged as is only with peers advertising their codec. <br>
+ * A peer compressing its JSON entries serves them to a peer requesting them with this version's
+ * diff data, which must receive and store the compressed frame, and to a peer requesting them
+ * with diff data advertising no codec, as older peers do, which must receive a plain entry
+ * readable without the compression and compact metadata classes.
+ * <br>
+ * Usage: CompressionExchangeTest. Exits with status 1 on failure.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CompressionExchangeTest {
+
+  private static int failures = 0;
+
+  /**
+   * ObjectInputStream of a peer without the classes added after the compression layer
+   */
+  private static class OldPeerInputStream extends ObjectInputStream {
+    OldPeerInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+      throws IOException, ClassNotFoundException
+    {
+      String name = desc.getName();
+      if (name.startsWith("cloudypeer.store.compression.") ||
+          name.startsWith("cloudypeer.store.simple.Compact"))
+        throw new ClassNotFoundException(name);
+      return super.resolveClass(desc);
+    }
+  }
+
+  private static byte[] serialize(Object o) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(o);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte bytes[], boolean oldPeer) throws Exception {
+    InputStream in = new ByteArrayInputStream(bytes);
+    ObjectInputStream objIn = oldPeer ? new OldPeerInputStream(in) : new ObjectInputStream(in);
+    try {
+      return objIn.readObject();
+    } finally {
+      objIn.close();
+    }
+  }
+
+  private static String md5(byte content[]) throws Exception {
+    StringBuilder hex = new StringBuilder();
+    for (byte b: MessageDigest.getInstance("MD5").digest(content))
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte buff[] = new byte[1024];
+    int len;
+    try {
+      while ((len = in.read(buff)) >= 0) out.write(buff, 0, len);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static void check(boolean condition, String message) {
+    if (condition) {
+      System.out.println("ok: " + message);
+    } else {
+      failures++;
+      System.out.println("FAILED: " + message);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 200; i++) json.append("{\"id\":").append(i).append(",\"tag\":\"x\"},");
+    byte content[] = json.append("{}]").toString().getBytes();
+    String keys[] = {"doc"};
+
+    InMemoryPersistenceHandler senderHandler = new InMemoryPersistenceHandler();
+    senderHandler.setCompressionPolicy(CompressionPolicy.textPolicy());
+    SimpleStore sender = new SimpleStore(senderHandler, new FakeDiffHandler());
+    sender.putStoreEntries(new StoreEntry[] {
+        new SimpleStoreEntry("doc", new ByteArrayInputStream(content),
+                             new SimpleStoreEntryMetadata(new Date(), content.length, md5(content),
+                                                          "application/json", null))});
+    check(senderHandler.read("doc") instanceof CompressedStoreEntry, "sender stores compressed");
+
+    /* Requesting peer running this version */
+    InMemoryPersistenceHandler receiverHandler = new InMemoryPersistenceHandler();
+    SimpleStore receiver = new SimpleStore(receiverHandler, new FakeDiffHandler());
+    byte diffData[] = serialize(receiver.produceStoreEntriesDiffData(keys));
+    StoreEntryDiff diff[] = sender.diffStoreEntries((StoreEntryDiffData[]) deserialize(diffData,
+                                                                                       false));
+    check(((FakeDiff) diff[0]).getEntry() instanceof CompressedStoreEntry,
+          "frame sent as is to a peer advertising the codec");
+    byte compressedDiff[] = serialize(diff);
+    receiver.patchStoreEntries((StoreEntryDiff[]) deserialize(compressedDiff, false));
+    check(receiverHandler.read("doc") instanceof CompressedStoreEntry,
+          "received frame stored without recompressing");
+    check(md5(read(receiver.getStoreEntry("doc").getInputStream())).equals(md5(content)),
+          "received content matches");
+
+    /* Requesting peer running an older version: its diff data carries no codec */
+    diffData = serialize(new StoreEntryDiffData[] {new FakeDiffData("doc")});
+    diff = sender.diffStoreEntries((StoreEntryDiffData[]) deserialize(diffData, false));
+    check(!(((FakeDiff) diff[0]).getEntry() instanceof CompressedStoreEntry),
+          "entry decompressed for a peer not advertising the codec");
+    byte plainDiff[] = serialize(diff);
+    try {
+      StoreEntryDiff received[] = (StoreEntryDiff[]) deserialize(plainDiff, true);
+      StoreEntry entry = ((FakeDiff) received[0]).getEntry();
+      check(md5(read(entry.getInputStream())).equals(entry.getMetadata().getContentMD5()) &&
+            entry.getMetadata().getContentMD5().equals(md5(content)),
+            "older peer reads the plain entry");
+    } catch (ClassNotFoundException e) {
+      check(false, "older peer reads the plain entry: " + e.getMessage());
+    }
+    System.out.println(String.format("Diff size: %d bytes compressed, %d bytes plain",
+                                     compressedDiff.length, plainDiff.length));
+
+    if (failures > 0) {
+      System.out.println(failures + " checks FAILED");
+      System.exit(1);
+    }
+    System.out.println("All checks passed");
+    System.exit(0);
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package test.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.diff.FakeDiffHandler;
+import cloudypeer.store.persistence.BasicCloudPersistenceHandler;
+import cloudypeer.store.persistence.InMemoryPersistenceHandler;
+import cloudypeer.store.persistence.WriteBehindPersistenceHandler;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
+import cloudypeer.store.simple.SimpleStore;
+import cloudypeer.store.simple.SimpleStoreEntry;
+import cloudypeer.store.simple.StoreEntryPersistenceHandler;
+
+/**
+ * Stress test of SimpleStore.updateStoreEntries over the in-memory, write-behind and cloud
+ * persistence handlers. <br>
+ * Several writers offer random versions of the same few keys while a monitor re-reads their
+ * timestamps: a key must never go back to an older version, must end at the newest version
+ * offered and its content must match its metadata. The cloud handler stamps the versions it
+ * reloads with the cloud modification date, so versions are offered with past timestamps and
+ * a cloud key must end at a version at least as new as the newest one offered. Before the
+ * stress run, a concurrent write
+ * is injected between the comparison and the compare-and-write of an update, checking that the
+ * update is compared again (up to MAX_UPDATE_ATTEMPTS times) instead of overwriting it. <br>
+ * <br>
+ * Usage: UpdateStressTest [writers] [batches per writer]. Exits with status 1 on failure.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class UpdateStressTest {
+
+  private static final int KEYS = 8;
+  private static final int BATCH_SIZE = 4;
+
+  private static int failures = 0;
+
+  /**
+   * Store counting the compare-and-writes lost to a concurrent writer, optionally writing a
+   * competing version right before the next compare-and-write.
+   */
+  private static class RacingStore extends SimpleStore {
+    private StoreEntryPersistenceHandler handler;
+    AtomicLong lost = new AtomicLong();
+    volatile StoreEntry competitor = null;
+
+    RacingStore(StoreEntryPersistenceHandler handler) {
+      super(handler, new FakeDiffHandler());
+      this.handler = handler;
+    }
+
+    protected boolean[] compareAndPutStoreEntries(StoreEntry entries[],
+                                                  StoreEntryMetadata expected[])
+    {
+      StoreEntry racing = competitor;
+      competitor = null;
+      if (racing != null) handler.write(new StoreEntry[] {racing});
+
+      boolean written[] = super.compareAndPutStoreEntries(entries, expected);
+      for (boolean w: written) if (!w) lost.incrementAndGet();
+      return written;
+    }
+  }
+
+  private static StoreEntry entry(String key, long timestamp) {
+    byte content[] = ("v" + timestamp).getBytes();
+    return new SimpleStoreEntry(key, new ByteArrayInputStream(content),
+                                new CompactStoreEntryMetadata(new Date(timestamp), content.length,
+                                                              md5(content), "text/plain", null));
+  }
+
+  private static String md5(byte content[]) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b: MessageDigest.getInstance("MD5").digest(content))
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static long timestamp(SimpleStore store, String key) {
+    StoreEntryMetadata meta = store.getStoreEntryMetadata(key);
+    return (meta == null) ? 0 : meta.getModifiedTimestamp().getTime();
+  }
+
+  private static void check(boolean condition, String handler, String message) {
+    if (condition) return;
+    failures++;
+    System.out.println("FAILED [" + handler + "]: " + message);
+  }
+
+  /**
+   * Injects a concurrent write between the comparison and the compare-and-write of an update.
+   */
+  private static void checkRace(String name, StoreEntryPersistenceHandler handler) {
+    RacingStore store = new RacingStore(handler);
+    store.putStoreEntries(new StoreEntry[] {entry("race", 100)});
+
+    /* Competitor older than the update: the update is compared again and written */
+    store.competitor = entry("race", 200);
+    store.updateStoreEntries(new StoreEntry[] {entry("race", 300)});
+    check(timestamp(store, "race") == 300, name, "update not retried after losing a race: " +
+          timestamp(store, "race"));
+
+    /* Competitor newer than the update: the update is compared again and dropped */
+    store.competitor = entry("race", 500);
+    store.updateStoreEntries(new StoreEntry[] {entry("race", 400)});
+    check(timestamp(store, "race") == 500, name, "newer concurrent version overwritten: " +
+          timestamp(store, "race"));
+
+    /* Competitor on every attempt: the update gives up after MAX_UPDATE_ATTEMPTS */
+    final int attempts[] = new int[1];
+    final long next[] = {600};
+    RacingStore always = new RacingStore(handler) {
+        protected boolean[] compareAndPutStoreEntries(StoreEntry entries[],
+                                                      StoreEntryMetadata expected[])
+        {
+          attempts[0]++;
+          competitor = entry("race", next[0]++);
+          return super.compareAndPutStoreEntries(entries, expected);
+        }
+      };
+    always.updateStoreEntries(new StoreEntry[] {entry("race", 10000)});
+    check(attempts[0] == SimpleStore.MAX_UPDATE_ATTEMPTS, name, "expected " +
+          SimpleStore.MAX_UPDATE_ATTEMPTS + " attempts, performed " + attempts[0]);
+    check(timestamp(always, "race") == next[0] - 1, name, "last concurrent version lost: " +
+          timestamp(always, "race"));
+
+    System.out.println(name + ": race checks done (" + store.lost.get() + " lost races)");
+  }
+
+  /**
+   * Runs the writers and the monitor, then checks the final versions and contents.
+   */
+  private static void stress(String name, StoreEntryPersistenceHandler handler, boolean cloud,
+                             final int writers, final int batches) throws Exception
+  {
+    final RacingStore store = new RacingStore(handler);
+    final AtomicLong maxOffered[] = new AtomicLong[KEYS];
+    for (int k = 0; k < KEYS; k++) maxOffered[k] = new AtomicLong();
+    final AtomicLong regressions = new AtomicLong();
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Thread monitor = new Thread() {
+        public void run() {
+          long last[] = new long[KEYS];
+          while (!done.get()) {
+            for (int k = 0; k < KEYS; k++) {
+              long t = timestamp(store, "k" + k);
+              if (t < last[k]) regressions.incrementAndGet();
+              last[k] = t;
+            }
+          }
+        }
+      };
+    monitor.start();
+
+    long start = System.currentTimeMillis();
+    Thread threads[] = new Thread[writers];
+    for (int w = 0; w < writers; w++) {
+      final Random random = new Random(w);
+      threads[w] = new Thread() {
+          public void run() {
+            for (int i = 0; i < batches; i++) {
+              StoreEntry batch[] = new StoreEntry[BATCH_SIZE];
+              for (int j = 0; j < batch.length; j++) {
+                int k = random.nextInt(KEYS);
+                long t = System.currentTimeMillis() - random.nextInt(2000);
+                batch[j] = entry("k" + k, t);
+                long max;
+                while ((max = maxOffered[k].get()) < t && !maxOffered[k].compareAndSet(max, t));
+              }
+              store.updateStoreEntries(batch);
+            }
+          }
+        };
+      threads[w].start();
+    }
+    for (Thread t: threads) t.join();
+    done.set(true);
+    monitor.join();
+
+    check(regressions.get() == 0, name, regressions.get() + " timestamp regressions observed");
+    for (int k = 0; k < KEYS; k++) {
+      String key = "k" + k;
+      long t = timestamp(store, key);
+      if (cloud) {
+        check(t >= maxOffered[k].get(), name, key + " ended at " + t + ", before " +
+              maxOffered[k].get());
+      } else {
+        check(t == maxOffered[k].get(), name, key + " ended at " + t + " instead of " +
+              maxOffered[k].get());
+      }
+
+      StoreEntry e = store.getStoreEntry(key);
+      String content = (e == null) ? null : read(e.getInputStream());
+      check(content != null && md5(content.getBytes()).equals(e.getMetadata().getContentMD5()),
+            name, key + " content " + content + " doesn't match its metadata");
+      if (!cloud) check(("v" + t).equals(content), name, key + " content " + content +
+                        " doesn't match version " + t);
+    }
+
+    System.out.println(String.format("%s: %d writers x %d batches in %d ms, %d lost races",
+                                     name, writers, batches,
+                                     System.currentTimeMillis() - start, store.lost.get()));
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte buff[] = new byte[256];
+    int len;
+    try {
+      while ((len = in.read(buff)) >= 0) out.write(buff, 0, len);
+    } finally {
+      in.close();
+    }
+    return new String(out.toByteArray());
+  }
+
+  private static StoreEntryPersistenceHandler cloudHandler(String bucket) throws Exception {
+    StorageCloud cloud = StorageCloud.getInstance("mem", CloudURI.getInstance(
+      "mem", new URI("mem://localhost/" + bucket)));
+    return new BasicCloudPersistenceHandler(cloud, "stress");
+  }
+
+  public static void main(String args[]) throws Exception {
+    int writers = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+    int batches = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+
+    checkRace("in-memory", new InMemoryPersistenceHandler());
+    WriteBehindPersistenceHandler writeBehind =
+      new WriteBehindPersistenceHandler(new InMemoryPersistenceHandler());
+    checkRace("write-behind", writeBehind);
+    writeBehind.close();
+    checkRace("cloud", cloudHandler("race"));
+
+    stress("in-memory", new InMemoryPersistenceHandler(), false, writers, batches);
+    writeBehind = new WriteBehindPersistenceHandler(new InMemoryPersistenceHandler(), 1,
+                                                    null, null);
+    stress("write-behind", writeBehind, false, writers, batches);
+    writeBehind.close();
+    stress("cloud", cloudHandler("stress"), true, writers, batches / 10);
+
+    if (failures > 0) {
+      System.out.println(failures + " checks FAILED");
+      System.exit(1);
+    }
+    System.out.println("All checks passed");
+    System.exit(0);
+  }
+}
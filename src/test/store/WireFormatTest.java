@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package test.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.simple.CompactMetadataMap;
+import cloudypeer.store.simple.CompactStoreEntryMetadata;
+import cloudypeer.store.simple.SimpleStoreEntry;
+import cloudypeer.store.simple.SimpleStoreEntryMetadata;
+
+/**
+ * Checks that entries and metadata maps sent to peers can be read by peers running older
+ * versions, which don't have the compact metadata classes. <br>
+ * Objects are serialized as sent to peers and read back by a stream refusing to load the
+ * compact classes, as the class loader of an older peer would.
+ * <br>
+ * Usage: WireFormatTest. Exits with status 1 on failure.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class WireFormatTest {
+
+  private static int failures = 0;
+
+  /**
+   * ObjectInputStream of a peer without the compact metadata classes
+   */
+  private static class OldPeerInputStream extends ObjectInputStream {
+    OldPeerInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    protected Class<?> resolveClass(ObjectStreamClass desc)
+      throws IOException, ClassNotFoundException
+    {
+      if (desc.getName().startsWith("cloudypeer.store.simple.Compact"))
+        throw new ClassNotFoundException(desc.getName());
+      return super.resolveClass(desc);
+    }
+  }
+
+  private static Object roundTrip(Object o) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(o);
+    out.close();
+
+    ObjectInputStream in = new OldPeerInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    try {
+      return in.readObject();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String md5(byte content[]) throws Exception {
+    StringBuilder hex = new StringBuilder();
+    for (byte b: MessageDigest.getInstance("MD5").digest(content))
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  private static void check(boolean condition, String message) {
+    if (condition) {
+      System.out.println("ok: " + message);
+    } else {
+      failures++;
+      System.out.println("FAILED: " + message);
+    }
+  }
+
+  private static boolean sameMetadata(StoreEntryMetadata a, StoreEntryMetadata b) {
+    return a.getModifiedTimestamp().equals(b.getModifiedTimestamp()) &&
+      a.getContentLength() == b.getContentLength() &&
+      a.getContentMD5().equals(b.getContentMD5()) &&
+      a.getContentType().equals(b.getContentType()) &&
+      a.getUserMetadata().equals(b.getUserMetadata());
+  }
+
+  public static void main(String args[]) throws Exception {
+    byte content[] = "hello peer".getBytes();
+    HashMap<String, String> user = new HashMap<String, String>();
+    user.put("origin", "test");
+    CompactStoreEntryMetadata meta =
+      new CompactStoreEntryMetadata(new Date(1300000000000L), content.length, md5(content),
+                                    "text/plain", user);
+
+    /* Entry with compact metadata, as returned by the persistence handlers */
+    StoreEntry entry = new SimpleStoreEntry("key", new ByteArrayInputStream(content), meta);
+    StoreEntry received = null;
+    try {
+      received = (StoreEntry) roundTrip(entry);
+    } catch (ClassNotFoundException e) {
+      check(false, "entry readable without the compact classes: " + e.getMessage());
+    }
+    if (received != null) {
+      check(received.getMetadata() instanceof SimpleStoreEntryMetadata,
+            "entry metadata received as SimpleStoreEntryMetadata");
+      check(received.getKey().equals("key") && sameMetadata(meta, received.getMetadata()),
+            "entry key and metadata preserved");
+      ByteArrayOutputStream read = new ByteArrayOutputStream();
+      InputStream in = received.getInputStream();
+      int b;
+      while ((b = in.read()) >= 0) read.write(b);
+      check(new String(read.toByteArray()).equals("hello peer"), "entry content preserved");
+      received.getMetadata().getUserMetadata().put("changed", "true");
+      check(true, "received user metadata is mutable");
+    }
+
+    /* Metadata map, as sent by the protocols */
+    CompactMetadataMap map = new CompactMetadataMap();
+    map.put("key", meta);
+    map.put("other", new SimpleStoreEntryMetadata(new Date(), 0, md5(new byte[0]), null, null));
+    Map<?, ?> receivedMap = null;
+    try {
+      receivedMap = (Map<?, ?>) roundTrip(CompactStoreEntryMetadata.toWireMap(map));
+    } catch (ClassNotFoundException e) {
+      check(false, "metadata map readable without the compact classes: " + e.getMessage());
+    }
+    if (receivedMap != null) {
+      check(receivedMap.size() == 2 && receivedMap.get("key") instanceof SimpleStoreEntryMetadata
+            && sameMetadata(meta, (StoreEntryMetadata) receivedMap.get("key")),
+            "metadata map received as SimpleStoreEntryMetadata");
+    }
+
+    /* The old peer stream does reject compact metadata */
+    try {
+      roundTrip(meta);
+      check(false, "compact metadata rejected by the old peer stream");
+    } catch (ClassNotFoundException e) {
+      check(true, "compact metadata rejected by the old peer stream");
+    }
+
+    if (failures > 0) {
+      System.out.println(failures + " checks FAILED");
+      System.exit(1);
+    }
+    System.out.println("All checks passed");
+    System.exit(0);
+  }
+}